@@ -1,9 +1,12 @@
 package com.logicaldoc.cmis;
 
 import java.io.BufferedInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -86,6 +89,7 @@ import org.apache.chemistry.opencmis.commons.impl.dataobjects.ObjectInFolderData
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.ObjectInFolderListImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.ObjectListImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.ObjectParentDataImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PartialContentStreamImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PermissionDefinitionDataImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PermissionMappingDataImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertiesImpl;
@@ -105,6 +109,7 @@ import org.apache.chemistry.opencmis.commons.server.ObjectInfo;
 import org.apache.chemistry.opencmis.commons.server.ObjectInfoHandler;
 import org.apache.chemistry.opencmis.commons.spi.Holder;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -115,6 +120,7 @@ import com.logicaldoc.core.document.AbstractDocument;
 import com.logicaldoc.core.document.Document;
 import com.logicaldoc.core.document.DocumentEvent;
 import com.logicaldoc.core.document.DocumentHistory;
+import com.logicaldoc.core.document.DocumentHistoryWriter;
 import com.logicaldoc.core.document.DocumentManager;
 import com.logicaldoc.core.document.Version;
 import com.logicaldoc.core.document.dao.DocumentDAO;
@@ -143,6 +149,7 @@ import com.logicaldoc.core.store.Storer;
 import com.logicaldoc.util.Context;
 import com.logicaldoc.util.LocaleUtil;
 import com.logicaldoc.util.config.ContextProperties;
+import com.logicaldoc.util.io.LimitedInputStream;
 
 /**
  * LogicalDOC implementation of a CMIS Repository
@@ -172,6 +179,46 @@ public class LDRepository {
 
 	private static final int DEFAULT_QUERY_SIZE = 40;
 
+	private static final int MAX_CURSORS = 1000;
+
+	/**
+	 * Positions reached by the sessions when paging the children of the
+	 * folders, the key is sid:folderId:position and the value is the
+	 * identifier of the last document returned
+	 */
+	private static final Map<String, Long> cursors = new LinkedHashMap<String, Long>(MAX_CURSORS, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > MAX_CURSORS;
+		}
+	};
+
+	private static final int MAX_DOWNLOADS = 1000;
+
+	/**
+	 * Fragments of a same content requested by a session within this time are
+	 * considered part of the same download
+	 */
+	private static final long DOWNLOAD_WINDOW = 60000L;
+
+	/**
+	 * Last download of a content made by the sessions, the key is
+	 * sid:docId:fileVersion and the value is the moment of the last request
+	 */
+	private static final Map<String, Long> downloads = new LinkedHashMap<String, Long>(MAX_DOWNLOADS, 0.75f,
+			true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > MAX_DOWNLOADS;
+		}
+	};
+
 	/** Repository id */
 	private final String id;
 
@@ -1129,12 +1176,14 @@ public class LDRepository {
 	}
 
 	/**
-	 * CMIS getContentStream
+	 * CMIS getContentStream, when an offset or a length are given just the
+	 * requested range is returned and, if the storer supports it, the content
+	 * is read from the offset without reading the preceding bytes.
 	 * 
 	 * @param context the call context
 	 * @param objectId identifier of the file/folder
-	 * @param offset not supported, leave null
-	 * @param length not supported, leave null
+	 * @param offset optional index of the first byte to return
+	 * @param length optional maximum number of bytes to return
 	 * 
 	 * @return the stream
 	 */
@@ -1144,56 +1193,45 @@ public class LDRepository {
 		validatePermission(objectId, context, Permission.DOWNLOAD);
 
 		try {
-			if ((offset != null) || (length != null))
-				throw new CmisInvalidArgumentException("Offset and Length are not supported!");
+			if ((offset != null && offset.signum() < 0) || (length != null && length.signum() < 0))
+				throw new CmisInvalidArgumentException("Offset and Length must not be negative!");
 
 			AbstractDocument doc = getDocument(objectId);
 
-			InputStream stream = null;
+			long start = offset != null ? offset.longValue() : 0L;
+			if (start > 0 && start >= doc.getFileSize())
+				throw new CmisInvalidArgumentException("Offset exceeds the size of the content!");
+			long count = doc.getFileSize() - start;
+			if (length != null)
+				count = Math.min(count, length.longValue());
+
 			Storer storer = (Storer) Context.get().getBean(Storer.class);
 			InputStream is = null;
 			if (doc instanceof Document) {
-				is = storer.getStream(doc.getId(), storer.getResourceName((Document) doc, null, null));
+				is = openStream(storer, doc.getId(), storer.getResourceName((Document) doc, null, null), start);
 			} else {
 				Version v = (Version) doc;
-				is = storer.getStream(v.getDocId(), storer.getResourceName(v.getDocId(), v.getFileVersion(), null));
+				is = openStream(storer, v.getDocId(), storer.getResourceName(v.getDocId(), v.getFileVersion(), null),
+						start);
 			}
-			stream = new BufferedInputStream(is, BUFFER_SIZE);
+			InputStream stream = new BufferedInputStream(is, BUFFER_SIZE);
 
-			// Create the document history event
-			DocumentHistory transaction = new DocumentHistory();
-			transaction.setSessionId(sid);
-			transaction.setEvent(DocumentEvent.DOWNLOADED.toString());
-			transaction.setComment("");
-			transaction.setUser(getSessionUser());
-			transaction.setDocId(doc.getId());
-			transaction.setVersion(doc.getVersion());
-			transaction.setFilename(doc.getFileName());
-			transaction.setFileSize(doc.getFileSize());
-			transaction.setNotified(0);
-			if (doc instanceof Document)
-				transaction.setDocument((Document) doc);
+			// Record the download just once even if the content is requested
+			// in several fragments, in whatever order
+			if (isNewDownload(doc))
+				saveDownloadHistory(doc);
 
-			if (doc instanceof Document) {
-				transaction.setFolderId(doc.getFolder().getId());
-				transaction.setPath(folderDao.computePathExtended(doc.getFolder().getId()));
+			// compile data
+			ContentStreamImpl result;
+			if ((offset != null) || (length != null)) {
+				result = new PartialContentStreamImpl();
+				stream = new LimitedInputStream(stream, count);
 			} else {
-				transaction.setFolderId(((Version) doc).getFolderId());
-				transaction.setPath(folderDao.computePathExtended(((Version) doc).getFolderId()));
+				result = new ContentStreamImpl();
 			}
-
-			try {
-				DocumentHistoryDAO historyDAO = (DocumentHistoryDAO) Context.get().getBean(DocumentHistoryDAO.class);
-				historyDAO.store(transaction);
-			} catch (Throwable t) {
-				log.warn(t.getMessage(), t);
-			}
-
-			// compile data
-			ContentStreamImpl result = new ContentStreamImpl();
 			result.setFileName(doc.getFileName());
 			result.setMimeType(MimeTypes.getMIMEType(doc.getFileName()));
-			result.setLength(BigInteger.valueOf(doc.getFileSize()));
+			result.setLength(BigInteger.valueOf(count));
 			result.setStream(stream);
 
 			return result;
@@ -1202,6 +1240,84 @@ public class LDRepository {
 		}
 	}
 
+	/**
+	 * Opens the content of a resource positioned at the given offset, a
+	 * positional read is used if the storer supports channels.
+	 */
+	private static InputStream openStream(Storer storer, long docId, String resource, long offset)
+			throws IOException {
+		SeekableByteChannel channel = storer.getChannel(docId, resource);
+		if (channel != null) {
+			try {
+				channel.position(offset);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			return Channels.newInputStream(channel);
+		}
+
+		InputStream is = storer.getStream(docId, resource);
+		if (offset > 0) {
+			try {
+				IOUtils.skipFully(is, offset);
+			} catch (IOException e) {
+				is.close();
+				throw e;
+			}
+		}
+		return is;
+	}
+
+	/**
+	 * Checks if the request of a content starts a new download of the current
+	 * session, that is the same content was not requested in the last
+	 * {@link #DOWNLOAD_WINDOW} milliseconds
+	 */
+	private boolean isNewDownload(AbstractDocument doc) {
+		long docId = doc instanceof Document ? doc.getId() : ((Version) doc).getDocId();
+		String key = sid + ":" + docId + ":" + doc.getFileVersion();
+		long now = System.currentTimeMillis();
+		synchronized (downloads) {
+			Long last = downloads.put(key, now);
+			return last == null || now - last > DOWNLOAD_WINDOW;
+		}
+	}
+
+	/**
+	 * Hands the history of the download to the asynchronous writer, the path
+	 * of the folder is computed by the writer itself
+	 */
+	private void saveDownloadHistory(AbstractDocument doc) {
+		DocumentHistory transaction = new DocumentHistory();
+		transaction.setSessionId(sid);
+		transaction.setEvent(DocumentEvent.DOWNLOADED.toString());
+		transaction.setComment("");
+		// Copy just the fields, the entities cannot be shared with the writer
+		User user = getSessionUser();
+		transaction.setUserId(user.getId());
+		transaction.setUserLogin(user.getUsername());
+		transaction.setUsername(user.getFullName());
+		transaction.setTenantId(doc.getTenantId());
+		transaction.setDocId(doc.getId());
+		transaction.setVersion(doc.getVersion());
+		transaction.setFilename(doc.getFileName());
+		transaction.setFileSize(doc.getFileSize());
+		transaction.setColor(doc.getColor());
+		transaction.setNotified(0);
+		if (doc instanceof Document)
+			transaction.setFolderId(doc.getFolder().getId());
+		else
+			transaction.setFolderId(((Version) doc).getFolderId());
+
+		try {
+			DocumentHistoryWriter writer = (DocumentHistoryWriter) Context.get().getBean(DocumentHistoryWriter.class);
+			writer.write(transaction);
+		} catch (Throwable t) {
+			log.warn(t.getMessage(), t);
+		}
+	}
+
 	private Object catchError(Throwable t) {
 		if (t instanceof CmisObjectNotFoundException)
 			log.debug(t.getMessage());
@@ -1267,28 +1383,20 @@ public class LDRepository {
 			// prepare result
 			ObjectInFolderListImpl result = new ObjectInFolderListImpl();
 			result.setObjects(new ArrayList<ObjectInFolderData>());
-			result.setHasMoreItems(false);
-			int count = 0;
 
 			User user = userDao.findByUsername(context.getUsername());
 			long userId = user.getId();
 
 			// iterate through children folders
+			int foldersCount = 0;
 			for (Folder child : folderDao.findChildren(folder.getId(), userId)) {
 				if (child.getHidden() == 1)
 					continue;
 
-				count++;
-
-				if (skip > 0) {
-					skip--;
-					continue;
-				}
+				foldersCount++;
 
-				if (result.getObjects().size() >= max) {
-					result.setHasMoreItems(true);
+				if (foldersCount <= skip || result.getObjects().size() >= max)
 					continue;
-				}
 
 				// build and add child object
 				ObjectInFolderDataImpl objectInFolder = new ObjectInFolderDataImpl();
@@ -1300,31 +1408,38 @@ public class LDRepository {
 				result.getObjects().add(objectInFolder);
 			}
 
-			// iterate through children documents
-			for (Document child : documentDao.findByFolder(folder.getId(), null)) {
-				count++;
-
-				if (skip > 0) {
-					skip--;
-					continue;
+			// load just the requested page of the children documents
+			long documentsCount = documentDao.countByFolder(folder.getId());
+			int docSkip = Math.max(0, skip - foldersCount);
+			int docMax = max - result.getObjects().size();
+			if (docMax > 0 && docSkip < documentsCount) {
+				Long afterId = null;
+				if (docSkip > 0) {
+					afterId = getCursor(folder.getId(), docSkip);
+					if (afterId == null)
+						afterId = documentDao.findDocIdAtPosition(folder.getId(), docSkip - 1);
 				}
 
-				if (result.getObjects().size() >= max) {
-					result.setHasMoreItems(true);
-					continue;
-				}
+				List<Document> page = documentDao.findByFolder(folder.getId(), afterId, docMax);
+				for (Document child : page) {
+					// build and add child object
+					ObjectInFolderDataImpl objectInFolder = new ObjectInFolderDataImpl();
+					objectInFolder
+							.setObject(compileObjectType(context, child, filterCollection, iaa, false, objectInfos));
+					if (ips) {
+						objectInFolder.setPathSegment(child.getFileName());
+					}
 
-				// build and add child object
-				ObjectInFolderDataImpl objectInFolder = new ObjectInFolderDataImpl();
-				objectInFolder.setObject(compileObjectType(context, child, filterCollection, iaa, false, objectInfos));
-				if (ips) {
-					objectInFolder.setPathSegment(child.getFileName());
+					result.getObjects().add(objectInFolder);
 				}
 
-				result.getObjects().add(objectInFolder);
+				if (!page.isEmpty())
+					putCursor(folder.getId(), docSkip + page.size(), page.get(page.size() - 1).getId());
 			}
 
+			long count = foldersCount + documentsCount;
 			result.setNumItems(BigInteger.valueOf(count));
+			result.setHasMoreItems((long) skip + result.getObjects().size() < count);
 
 			return result;
 		} catch (Throwable t) {
@@ -1332,6 +1447,23 @@ public class LDRepository {
 		}
 	}
 
+	/**
+	 * Gets the identifier of the last document returned to this session when
+	 * listing a folder up to the given position, so the next page can be
+	 * read with a keyset query
+	 */
+	private Long getCursor(long folderId, int position) {
+		synchronized (cursors) {
+			return cursors.get(sid + ":" + folderId + ":" + position);
+		}
+	}
+
+	private void putCursor(long folderId, int position, long docId) {
+		synchronized (cursors) {
+			cursors.put(sid + ":" + folderId + ":" + position, docId);
+		}
+	}
+
 	private Folder getFolder(String folderId) {
 		PersistentObject object = getObject(folderId);
 		if (!(object instanceof Folder))
@@ -609,6 +609,30 @@ public abstract class HibernatePersistentObjectDAO<T extends PersistentObject> i
 		}
 	}
 
+	/**
+	 * Executes the same SQL update statement once for each set of arguments,
+	 * sending them to the database in a single batch
+	 * 
+	 * @param statement SQL containing bind parameters
+	 * @param args the arguments of each execution
+	 * 
+	 * @return the number of rows affected by each execution
+	 * 
+	 * @throws PersistenceException raised in case of errors in the database
+	 */
+	protected int[] jdbcBatchUpdate(String statement, List<Object[]> args) throws PersistenceException {
+		if (!checkStoringAspect() || args.isEmpty())
+			return new int[0];
+
+		DataSource dataSource = (DataSource) Context.get().getBean("DataSource");
+		try {
+			JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+			return jdbcTemplate.batchUpdate(statement, args);
+		} catch (Throwable e) {
+			throw new PersistenceException(e);
+		}
+	}
+
 	protected Connection getConnection() throws SQLException {
 		DataSource dataSource = (DataSource) Context.get().getBean("DataSource");
 		return dataSource.getConnection();
@@ -2,21 +2,28 @@ package com.logicaldoc.core.automation;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.Velocity;
 import org.apache.velocity.runtime.RuntimeSingleton;
+import org.apache.velocity.runtime.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.config.BeanDefinition;
@@ -56,8 +63,26 @@ public class Automation {
 
 	public static final String PARAMETERS_NAMES = "parametersnames";
 
+	private static final int DEFAULT_CACHE_SIZE = 500;
+
 	private static Logger log = LoggerFactory.getLogger(Automation.class);
 
+	/**
+	 * The classes marked with @AutomationDictionary, the key is the name used
+	 * in the scripts
+	 */
+	private static volatile Map<String, Class<?>> tools = null;
+
+	/**
+	 * The already parsed scripts, the key is the SHA-256 digest of the script
+	 * so the cache does not retain the texts of big scripts
+	 */
+	private static Map<String, Template> templates = null;
+
+	private static final AtomicLong cacheHits = new AtomicLong(0L);
+
+	private static final AtomicLong cacheMisses = new AtomicLong(0L);
+
 	private String logTag = "AutomationEngine";
 
 	private Locale locale = Locale.ENGLISH;
@@ -76,6 +101,118 @@ public class Automation {
 		}
 	}
 
+	/**
+	 * Scans the classpath to discover all the classes marked
+	 * with @AutomationDictionary. The discovery is done just once, invoke this
+	 * method again to refresh the tools after new plugins have been loaded.
+	 */
+	public static synchronized void discoverTools() {
+		Map<String, Class<?>> found = new HashMap<String, Class<?>>();
+
+		ClassPathScanningCandidateComponentProvider scanner = new ClassPathScanningCandidateComponentProvider(true);
+		scanner.addIncludeFilter(new AnnotationTypeFilter(AutomationDictionary.class));
+		for (BeanDefinition bd : scanner.findCandidateComponents("com.logicaldoc")) {
+			String beanClassName = bd.getBeanClassName();
+			Class<?> beanClass = null;
+			try {
+				beanClass = Class.forName(beanClassName);
+			} catch (ClassNotFoundException e) {
+				log.error(e.getMessage(), e);
+			}
+
+			if (beanClass == null)
+				continue;
+
+			String key = beanClass.getSimpleName();
+			AutomationDictionary annotation = beanClass.getAnnotation(AutomationDictionary.class);
+			if (annotation != null && StringUtils.isNotEmpty(annotation.key()))
+				key = annotation.key();
+
+			found.put(key, beanClass);
+		}
+
+		tools = Collections.unmodifiableMap(found);
+		log.info("Discovered {} automation tools", found.size());
+	}
+
+	private static Map<String, Class<?>> getTools() {
+		if (tools == null)
+			synchronized (Automation.class) {
+				if (tools == null)
+					discoverTools();
+			}
+		return tools;
+	}
+
+	/**
+	 * Retrieves the parsed template of a given script, parsing it only if it
+	 * is not already cached. The parsing is done under the lock of the cache,
+	 * so concurrent evaluations of the same script parse it just once
+	 * 
+	 * @param script the script's text
+	 * @param name name to give to the template
+	 * 
+	 * @return the parsed template
+	 * 
+	 * @throws ParseException the script is malformed
+	 */
+	private static Template getTemplate(String script, String name) throws ParseException {
+		Map<String, Template> cache = getTemplates();
+		String key = DigestUtils.sha256Hex(script);
+		synchronized (cache) {
+			Template template = cache.get(key);
+			if (template != null) {
+				cacheHits.incrementAndGet();
+				return template;
+			}
+
+			cacheMisses.incrementAndGet();
+			template = new Template();
+			template.setName(name);
+			template.setRuntimeServices(RuntimeSingleton.getRuntimeServices());
+			template.setData(RuntimeSingleton.parse(new StringReader(script), template));
+			template.initDocument();
+			cache.put(key, template);
+			return template;
+		}
+	}
+
+	/**
+	 * The number of evaluations that found the script already parsed
+	 * 
+	 * @return number of cache hits
+	 */
+	public static long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	/**
+	 * The number of evaluations that had to parse the script
+	 * 
+	 * @return number of cache misses
+	 */
+	public static long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	private static synchronized Map<String, Template> getTemplates() {
+		if (templates == null) {
+			final int size = Context.get() != null
+					? Context.get().getProperties().getInt("automation.cache.size", DEFAULT_CACHE_SIZE)
+					: DEFAULT_CACHE_SIZE;
+			templates = Collections.synchronizedMap(new LinkedHashMap<String, Template>(size, 0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Template> eldest) {
+					return size() > size;
+				}
+			});
+		}
+		return templates;
+	}
+
 	public Automation() {
 		super();
 	}
@@ -112,38 +249,18 @@ public class Automation {
 	 * @param clientDictionary Custom keys provided by the client
 	 * @return The complete dictionary to use
 	 */
-	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private Map<String, Object> prepareDictionary(Map<String, Object> clientDictionary) {	
+	private Map<String, Object> prepareDictionary(Map<String, Object> clientDictionary) {
 		if (clientDictionary == null)
 			clientDictionary = new ConcurrentHashMap<String, Object>();
 		HashMap<String, Object> dictionary = new HashMap<String, Object>();
 
 		/*
-		 * Scan the classpath to add all the @AutomationDictionary classes
+		 * Add all the @AutomationDictionary classes
 		 */
-		ClassPathScanningCandidateComponentProvider scanner = new ClassPathScanningCandidateComponentProvider(true);
-		scanner.addIncludeFilter(new AnnotationTypeFilter(AutomationDictionary.class));
-		for (BeanDefinition bd : scanner.findCandidateComponents("com.logicaldoc")) {
-			String beanClassName = bd.getBeanClassName();
-			Class beanClass = null;
-			try {
-				beanClass = Class.forName(beanClassName);
-			} catch (ClassNotFoundException e) {
-				log.error(e.getMessage(), e);
-			}
-
-			if (beanClass == null)
-				continue;
-
-			String key = beanClass.getSimpleName();
-			AutomationDictionary annotation = (AutomationDictionary) beanClass
-					.getAnnotation(AutomationDictionary.class);
-			if (annotation != null && StringUtils.isNotEmpty(annotation.key()))
-				key = annotation.key();
-
+		for (Map.Entry<String, Class<?>> tool : getTools().entrySet()) {
 			try {
-				Object instance = beanClass.getDeclaredConstructor().newInstance();
-				dictionary.put(key, instance);
+				Object instance = tool.getValue().getDeclaredConstructor().newInstance();
+				dictionary.put(tool.getKey(), instance);
 			} catch (Throwable e) {
 				log.error(e.getMessage(), e);
 			}
@@ -240,11 +357,8 @@ public class Automation {
 		try {
 			if (StringUtils.isNotEmpty(expression)) {
 				VelocityContext context = prepareContext(prepareDictionary(clientDictionary));
-				
-				Velocity.evaluate(context, writer, StringUtils.isNotEmpty(logTag) ? logTag : "ScriptEngine",
-						expression);
-//				Velocity.evaluate(context, writer, StringUtils.isNotEmpty(logTag) ? logTag : "ScriptEngine",
-//						expression.replace("\n", "${nl}"));
+				getTemplate(expression, StringUtils.isNotEmpty(logTag) ? logTag : "ScriptEngine").merge(context,
+						writer);
 			}
 			return writer.toString();
 		} catch (Throwable e) {
@@ -265,7 +379,8 @@ public class Automation {
 		try {
 			if (reader != null) {
 				VelocityContext context = prepareContext(prepareDictionary(clientDictionary));
-				Velocity.evaluate(context, writer, StringUtils.isNotEmpty(logTag) ? logTag : "ScriptEngine", reader);
+				getTemplate(IOUtils.toString(reader), StringUtils.isNotEmpty(logTag) ? logTag : "ScriptEngine")
+						.merge(context, writer);
 			}
 		} catch (Throwable e) {
 			log.error("Error in the script", e);
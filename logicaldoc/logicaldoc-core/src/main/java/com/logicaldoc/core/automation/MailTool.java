@@ -96,7 +96,8 @@ public class MailTool {
 			String extension = document.getFileExtension();
 			att.setMimeType(MimeType.get(extension));
 			Storer storer = (Storer) Context.get().getBean(Storer.class);
-			att.setData(storer.getBytes(document.getId(), storer.getResourceName(document, null, null)));
+			att.setDocId(document.getId());
+			att.setResource(storer.getResourceName(document, null, null));
 			email.addAttachment(2 + email.getAttachments().size(), att);
 		}
 
@@ -1,10 +1,12 @@
 package com.logicaldoc.core.communication;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Locale;
 
+import javax.activation.DataSource;
+import javax.mail.util.ByteArrayDataSource;
+
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,6 +34,17 @@ public class EMailAttachment {
 
 	private String fileName = "";
 
+	/**
+	 * Identifier of the document whose content is the attachment, used when
+	 * the data is not specified
+	 */
+	private Long docId;
+
+	/**
+	 * Name of the document's resource to read from the storer
+	 */
+	private String resource;
+
 	public EMailAttachment() {
 	}
 
@@ -67,6 +80,35 @@ public class EMailAttachment {
 		this.data = data;
 	}
 
+	public Long getDocId() {
+		return docId;
+	}
+
+	public void setDocId(Long docId) {
+		this.docId = docId;
+	}
+
+	public String getResource() {
+		return resource;
+	}
+
+	public void setResource(String resource) {
+		this.resource = resource;
+	}
+
+	/**
+	 * Gets the source of the attachment's content: the data if specified,
+	 * otherwise the document's resource streamed from the storer
+	 * 
+	 * @return the data source
+	 */
+	public DataSource getDataSource() {
+		if (data == null && docId != null)
+			return new StorerDataSource(docId, resource, fileName, mimeType);
+		else
+			return new ByteArrayDataSource(data != null ? data : new byte[0], mimeType);
+	}
+
 	public long getSize() {
 		return size;
 	}
@@ -108,7 +150,7 @@ public class EMailAttachment {
 
 		// and gets some fields
 		if (parser != null) {
-			try (InputStream contentStream = new ByteArrayInputStream(getData())) {
+			try (InputStream contentStream = getDataSource().getInputStream()) {
 				if (tenantId != null) {
 					TenantDAO tDao = (TenantDAO) Context.get().getBean(TenantDAO.class);
 					content = parser.parse(contentStream, getFileName(),
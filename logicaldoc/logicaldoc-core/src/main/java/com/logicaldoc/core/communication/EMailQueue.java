@@ -0,0 +1,415 @@
+package com.logicaldoc.core.communication;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.logicaldoc.core.security.dao.TenantDAO;
+import com.logicaldoc.core.threading.ThreadPools;
+import com.logicaldoc.util.config.ContextProperties;
+import com.logicaldoc.util.io.FileUtil;
+
+/**
+ * Outbound queue of the e-mails sent asynchronously. The messages are
+ * delivered by the threads of the <b>Email</b> pool, each of them reusing
+ * the connections kept by the {@link SmtpTransportPool}.<br>
+ * When a message cannot be delivered because of a temporary problem(server
+ * unreachable, rate limit exceeded ...) it is saved in the spool folder
+ * <b>smtp.spool</b> and delivery is retried later, waiting
+ * <b>smtp.retry.interval</b> seconds doubled at each attempt, up to
+ * <b>smtp.retry.max</b> attempts. Being saved on disk, the failed messages
+ * survive a restart. When the server accepted just some of the recipients,
+ * only the ones still to be served are retried. The settings of the sender
+ * are saved with the message, so it is retried through the same server.
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class EMailQueue {
+
+	private static final String THREAD_POOL = "Email";
+
+	private static final String RETRY_THREAD_POOL = "EMailQueue";
+
+	private static final String TENANT = "tenant";
+
+	private static final String ATTEMPTS = "attempts";
+
+	private static final String NEXT = "next";
+
+	private static final String RECIPIENTS = "recipients";
+
+	private static final String TENANT_ID = "tenantId";
+
+	private static final String HISTORICYZE = "historicyze";
+
+	// Prefix of the settings of the sender
+	private static final String SENDER = "sender.";
+
+	protected static Logger log = LoggerFactory.getLogger(EMailQueue.class);
+
+	private ContextProperties config;
+
+	private ThreadPools threadPools;
+
+	private TenantDAO tenantDAO;
+
+	private SmtpTransportPool transportPool;
+
+	private ScheduledFuture<?> scheduler;
+
+	private final AtomicInteger depth = new AtomicInteger(0);
+
+	private final AtomicLong sent = new AtomicLong(0L);
+
+	private final AtomicLong failed = new AtomicLong(0L);
+
+	/**
+	 * Puts an email in the queue
+	 *
+	 * @param sender the sender to use
+	 * @param email the email to send
+	 * @param templateName optional name of the template to apply
+	 * @param dictionary dictionary to use with the template
+	 */
+	public void enqueue(EMailSender sender, EMail email, String templateName, Map<String, Object> dictionary) {
+		depth.incrementAndGet();
+		try {
+			threadPools.execute(() -> {
+				try {
+					deliver(sender, email, templateName, dictionary);
+				} finally {
+					depth.decrementAndGet();
+				}
+			}, THREAD_POOL);
+		} catch (Throwable t) {
+			depth.decrementAndGet();
+			log.error("Cannot enqueue the email with subject '{}' - {}", email.getSubject(), t.getMessage(), t);
+		}
+	}
+
+	private void deliver(EMailSender sender, EMail email, String templateName, Map<String, Object> dictionary) {
+		try {
+			if (templateName != null && !sender.applyTemplate(email, templateName, dictionary))
+				return;
+			sender.send(email);
+			sent.incrementAndGet();
+		} catch (MessagingException e) {
+			if (isTemporary(e) && spool(sender, email, getUnsentRecipients(e))) {
+				log.warn("Email with subject '{}' not delivered, will retry later - {}", email.getSubject(),
+						e.getMessage());
+			} else {
+				failed.incrementAndGet();
+				log.error("Cannot send the email with subject '{}' to {}", email.getSubject(),
+						email.getAllRecipientsEmails(), e);
+			}
+		} catch (Throwable t) {
+			failed.incrementAndGet();
+			log.error("Cannot send the email with subject '{}' to {}", email.getSubject(),
+					email.getAllRecipientsEmails(), t);
+		}
+	}
+
+	/**
+	 * Only the problems in the communication are worth a retry, invalid
+	 * addresses and wrong credentials will never be accepted
+	 */
+	private static boolean isTemporary(MessagingException e) {
+		if (e instanceof AuthenticationFailedException)
+			return false;
+		if (e instanceof SendFailedException) {
+			SendFailedException sfe = (SendFailedException) e;
+			if (sfe.getInvalidAddresses() != null && sfe.getInvalidAddresses().length > 0)
+				return false;
+			Address[] unsent = getUnsentRecipients(e);
+			return unsent == null || unsent.length > 0;
+		}
+		return true;
+	}
+
+	/**
+	 * The recipients that did not receive the message, so the ones already
+	 * served do not get it twice
+	 * 
+	 * @return the valid unsent addresses or null if all the recipients have to
+	 *         be served
+	 */
+	private static Address[] getUnsentRecipients(MessagingException e) {
+		if (!(e instanceof SendFailedException))
+			return null;
+		SendFailedException sfe = (SendFailedException) e;
+		if (sfe.getValidSentAddresses() == null && sfe.getValidUnsentAddresses() == null)
+			return null;
+		return sfe.getValidUnsentAddresses() != null ? sfe.getValidUnsentAddresses() : new Address[0];
+	}
+
+	/**
+	 * Saves a message in the spool folder for a later delivery
+	 * 
+	 * @param recipients the recipients to deliver to, if null all the
+	 *        recipients of the message
+	 */
+	private boolean spool(EMailSender sender, EMail email, Address[] recipients) {
+		String tenant = tenantDAO.getTenantName(email.getTenantId());
+		if (tenant == null)
+			return false;
+
+		String id = UUID.randomUUID().toString();
+		File spoolDir = getSpoolDir();
+		spoolDir.mkdirs();
+		File emlFile = new File(spoolDir, id + ".eml");
+		try (OutputStream out = new FileOutputStream(emlFile)) {
+			MimeMessage message = sender.buildMessage(email, Session.getInstance(new Properties()));
+			message.writeTo(out);
+			if (recipients == null)
+				recipients = message.getAllRecipients();
+		} catch (Throwable t) {
+			log.warn("Cannot spool the email with subject '{}' - {}", email.getSubject(), t.getMessage());
+			FileUtil.strongDelete(emlFile);
+			return false;
+		}
+
+		Properties status = new Properties();
+		status.setProperty(TENANT, tenant);
+		status.setProperty(TENANT_ID, Long.toString(email.getTenantId()));
+		status.setProperty(HISTORICYZE, Boolean.toString(email.isHistoricyze()));
+		saveSender(sender, status);
+		if (recipients != null && recipients.length > 0)
+			status.setProperty(RECIPIENTS, InternetAddress.toString(recipients));
+		status.setProperty(ATTEMPTS, "1");
+		status.setProperty(NEXT, Long.toString(System.currentTimeMillis() + getRetryInterval()));
+		return saveStatus(new File(spoolDir, id + ".properties"), status);
+	}
+
+	/**
+	 * Tries to deliver the messages in the spool folder whose retry time has
+	 * come
+	 */
+	public synchronized void retry() {
+		File[] files = getSpoolDir().listFiles((dir, name) -> name.endsWith(".properties"));
+		if (files == null || files.length == 0)
+			return;
+
+		Arrays.sort(files);
+		for (File statusFile : files) {
+			Properties status = loadStatus(statusFile);
+			File emlFile = new File(statusFile.getParentFile(), statusFile.getName().replace(".properties", ".eml"));
+			if (status == null || !emlFile.exists()) {
+				FileUtil.strongDelete(statusFile);
+				FileUtil.strongDelete(emlFile);
+				continue;
+			}
+
+			if (Long.parseLong(status.getProperty(NEXT, "0")) > System.currentTimeMillis())
+				continue;
+
+			int attempts = Integer.parseInt(status.getProperty(ATTEMPTS, "1"));
+			EMailSender sender = loadSender(status);
+			MimeMessage message = null;
+			try (InputStream in = new FileInputStream(emlFile)) {
+				String recipients = status.getProperty(RECIPIENTS);
+				message = sender.send(in, recipients != null ? InternetAddress.parse(recipients) : null);
+				sent.incrementAndGet();
+				log.info("Delivered the spooled email {} after {} attempts", emlFile.getName(), attempts + 1);
+			} catch (Throwable t) {
+				attempts++;
+				boolean temporary = !(t instanceof MessagingException) || isTemporary((MessagingException) t);
+				if (temporary && attempts < getMaxAttempts()) {
+					Address[] unsent = t instanceof MessagingException
+							? getUnsentRecipients((MessagingException) t)
+							: null;
+					if (unsent != null)
+						status.setProperty(RECIPIENTS, InternetAddress.toString(unsent));
+					status.setProperty(ATTEMPTS, Integer.toString(attempts));
+					status.setProperty(NEXT, Long.toString(
+							System.currentTimeMillis() + getRetryInterval() * (1L << Math.min(attempts - 1, 16))));
+					saveStatus(statusFile, status);
+					log.warn("Spooled email {} not delivered at attempt {} - {}", emlFile.getName(), attempts,
+							t.getMessage());
+					continue;
+				}
+
+				failed.incrementAndGet();
+				log.error("Giving up the delivery of the spooled email {} after {} attempts", emlFile.getName(),
+						attempts, t);
+			}
+
+			if (message != null && Boolean.parseBoolean(status.getProperty(HISTORICYZE, "false")))
+				sender.historycize(message, Long.parseLong(status.getProperty(TENANT_ID, "1")));
+
+			FileUtil.strongDelete(emlFile);
+			FileUtil.strongDelete(statusFile);
+		}
+	}
+
+	/**
+	 * Saves the settings of the sender, the password included, so the message
+	 * is retried through the same server
+	 */
+	private static void saveSender(EMailSender sender, Properties status) {
+		if (sender.getHost() == null)
+			return;
+
+		status.setProperty(SENDER + "host", sender.getHost());
+		status.setProperty(SENDER + "port", Integer.toString(sender.getPort()));
+		if (sender.getUsername() != null)
+			status.setProperty(SENDER + "username", sender.getUsername());
+		if (sender.getPassword() != null)
+			status.setProperty(SENDER + "password", sender.getPassword());
+		if (sender.getSender() != null)
+			status.setProperty(SENDER + "sender", sender.getSender());
+		status.setProperty(SENDER + "authEncripted", Boolean.toString(sender.isAuthEncripted()));
+		status.setProperty(SENDER + "connectionSecurity", Integer.toString(sender.getConnectionSecurity()));
+		if (sender.getFolderId() != null)
+			status.setProperty(SENDER + "folderId", Long.toString(sender.getFolderId()));
+		status.setProperty(SENDER + "foldering", Integer.toString(sender.getFoldering()));
+	}
+
+	/**
+	 * Recreates the sender of a spooled message, the messages spooled without
+	 * the settings of the sender are sent with the ones of the tenant
+	 */
+	private static EMailSender loadSender(Properties status) {
+		if (status.getProperty(SENDER + "host") == null)
+			return new EMailSender(status.getProperty(TENANT));
+
+		EMailSender sender = new EMailSender();
+		sender.setHost(status.getProperty(SENDER + "host"));
+		sender.setPort(Integer.parseInt(status.getProperty(SENDER + "port")));
+		sender.setUsername(status.getProperty(SENDER + "username"));
+		sender.setPassword(status.getProperty(SENDER + "password"));
+		sender.setSender(status.getProperty(SENDER + "sender"));
+		sender.setAuthEncripted(Boolean.parseBoolean(status.getProperty(SENDER + "authEncripted")));
+		sender.setConnectionSecurity(Integer.parseInt(
+				status.getProperty(SENDER + "connectionSecurity", Integer.toString(EMailSender.SECURITY_NONE))));
+		if (status.getProperty(SENDER + "folderId") != null)
+			sender.setFolderId(Long.parseLong(status.getProperty(SENDER + "folderId")));
+		sender.setFoldering(Integer.parseInt(
+				status.getProperty(SENDER + "foldering", Integer.toString(EMailSender.FOLDERING_DAY))));
+		return sender;
+	}
+
+	private static Properties loadStatus(File file) {
+		Properties status = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			status.load(in);
+			return status;
+		} catch (Throwable t) {
+			log.warn("Cannot read {} - {}", file.getName(), t.getMessage());
+			return null;
+		}
+	}
+
+	private static boolean saveStatus(File file, Properties status) {
+		try (OutputStream out = new FileOutputStream(file)) {
+			status.store(out, null);
+			return true;
+		} catch (IOException e) {
+			log.warn("Cannot write {} - {}", file.getName(), e.getMessage());
+			return false;
+		}
+	}
+
+	public void init() {
+		long interval = Math.max(1L, config.getLong("smtp.retry.check", 60L));
+		scheduler = threadPools.scheduleWithFixedDelay(() -> {
+			transportPool.evict();
+			retry();
+		}, RETRY_THREAD_POOL, TimeUnit.SECONDS.toMillis(interval));
+	}
+
+	public void destroy() {
+		if (scheduler != null)
+			scheduler.cancel(false);
+	}
+
+	File getSpoolDir() {
+		String spool = config.getPropertyWithSubstitutions("smtp.spool");
+		if (spool == null || spool.trim().isEmpty())
+			return new File(System.getProperty("java.io.tmpdir"), "mailspool");
+		return new File(spool);
+	}
+
+	private long getRetryInterval() {
+		return TimeUnit.SECONDS.toMillis(Math.max(1L, config.getLong("smtp.retry.interval", 300L)));
+	}
+
+	private int getMaxAttempts() {
+		return config.getInt("smtp.retry.max", 5);
+	}
+
+	/**
+	 * The number of emails waiting to be sent
+	 *
+	 * @return the depth of the queue
+	 */
+	public int getDepth() {
+		return depth.get();
+	}
+
+	/**
+	 * The number of emails waiting in the spool folder for a new attempt
+	 *
+	 * @return number of spooled emails
+	 */
+	public int getSpooled() {
+		File[] files = getSpoolDir().listFiles((dir, name) -> name.endsWith(".eml"));
+		return files != null ? files.length : 0;
+	}
+
+	/**
+	 * The number of emails delivered through the queue
+	 *
+	 * @return number of sent emails
+	 */
+	public long getSent() {
+		return sent.get();
+	}
+
+	/**
+	 * The number of emails that could not be delivered at all
+	 *
+	 * @return number of failed emails
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public void setConfig(ContextProperties config) {
+		this.config = config;
+	}
+
+	public void setThreadPools(ThreadPools threadPools) {
+		this.threadPools = threadPools;
+	}
+
+	public void setTenantDAO(TenantDAO tenantDAO) {
+		this.tenantDAO = tenantDAO;
+	}
+
+	public void setTransportPool(SmtpTransportPool transportPool) {
+		this.transportPool = transportPool;
+	}
+}
@@ -2,6 +2,7 @@ package com.logicaldoc.core.communication;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.net.URL;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -19,6 +20,7 @@ import javax.activation.DataSource;
 import javax.activation.URLDataSource;
 import javax.mail.Address;
 import javax.mail.Authenticator;
+import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
@@ -45,7 +47,6 @@ import com.logicaldoc.core.metadata.Attribute;
 import com.logicaldoc.core.metadata.TemplateDAO;
 import com.logicaldoc.core.security.dao.TenantDAO;
 import com.logicaldoc.core.security.dao.UserDAO;
-import com.logicaldoc.core.threading.ThreadPools;
 import com.logicaldoc.util.Context;
 import com.logicaldoc.util.config.ContextProperties;
 import com.logicaldoc.util.io.FileUtil;
@@ -60,8 +61,6 @@ import net.sf.jmimemagic.MagicMatch;
  * @author Matteo Caruso - LogicalDOC
  */
 public class EMailSender {
-	private static final String THREAD_POOL = "Email";
-
 	private static Logger log = LoggerFactory.getLogger(EMailSender.class);
 
 	public static final int SECURITY_NONE = 0;
@@ -177,14 +176,8 @@ public class EMailSender {
 	 * @param dictionary map of variable to pass to the automation
 	 */
 	public void sendAsync(EMail email, String templateName, Map<String, Object> dictionary) {
-		ThreadPools tPools = (ThreadPools) Context.get().getBean(ThreadPools.class);
-		tPools.execute(() -> {
-			try {
-				send(email, templateName, dictionary);
-			} catch (Throwable e) {
-				log.error(e.getMessage(), e);
-			}
-		}, THREAD_POOL);
+		EMailQueue queue = (EMailQueue) Context.get().getBean(EMailQueue.class);
+		queue.enqueue(this, email, templateName, dictionary);
 	}
 
 	/**
@@ -197,19 +190,32 @@ public class EMailSender {
 	 * @throws Exception raised if the message cannot be sent
 	 */
 	public void send(EMail email, String templateName, Map<String, Object> dictionary) throws Exception {
+		if (applyTemplate(email, templateName, dictionary))
+			send(email);
+	}
+
+	/**
+	 * Renders the subject and the body of an email using a template
+	 * 
+	 * @param email The email to prepare
+	 * @param templateName Name of the template to be applied
+	 * @param dictionary The dictionary to be used in the template
+	 * 
+	 * @return false if the template was not found
+	 */
+	boolean applyTemplate(EMail email, String templateName, Map<String, Object> dictionary) {
 		MessageTemplateDAO templateDao = (MessageTemplateDAO) Context.get().getBean(MessageTemplateDAO.class);
 		MessageTemplate template = templateDao.findByNameAndLanguage(templateName, email.getLocale().toString(),
 				email.getTenantId());
 		if (template == null) {
 			log.warn("Template {} was not found", templateName);
-			return;
+			return false;
 		}
 
 		dictionary.put(Automation.LOCALE, email.getLocale());
 		email.setSubject(template.getFormattedSubject(dictionary));
 		email.setMessageText(template.getFormattedBody(dictionary));
-
-		send(email);
+		return true;
 	}
 
 	/**
@@ -218,19 +224,14 @@ public class EMailSender {
 	 * @param email the email to send
 	 */
 	public void sendAsync(EMail email) {
-		ThreadPools tPools = (ThreadPools) Context.get().getBean(ThreadPools.class);
-		tPools.execute(() -> {
-			try {
-				send(email);
-			} catch (Throwable e) {
-				log.error(e.getMessage(), e);
-			}
-		}, THREAD_POOL);
+		EMailQueue queue = (EMailQueue) Context.get().getBean(EMailQueue.class);
+		queue.enqueue(this, email, null, null);
 	}
 
 	/**
 	 * This method sends an email using the smtp-protocol. The email can be a
-	 * simple mail or a multipart mail containing up to 5 attachments.
+	 * simple mail or a multipart mail containing up to 5 attachments. The
+	 * connection to the server is taken from the {@link SmtpTransportPool}.
 	 * 
 	 * @param email E-Mail which should be sent.
 	 * 
@@ -246,66 +247,93 @@ public class EMailSender {
 			log.warn(t.getMessage(), t);
 		}
 
-		Properties props = new Properties();
-		if (!StringUtils.isEmpty(username))
-			props.put("mail.smtp.auth", "true");
+		SmtpTransportPool pool = (SmtpTransportPool) Context.get().getBean(SmtpTransportPool.class);
+		SmtpTransportPool.PooledTransport transport = pool.borrow(this);
+		MimeMessage message = null;
+		Date now = new Date();
+		try {
+			message = buildMessage(email, transport.getSession());
 
-		if (authEncripted) {
-			// The 'smtps' protocol must be used
-			props.put("mail.transport.protocol", "smtps");
-			props.put("mail.smtps.host", host);
-			props.put("mail.smtps.port", port);
-			props.put("mail.smtps.ssl.protocols", "TLSv1.1 TLSv1.2");
-			if (connectionSecurity == SECURITY_STARTTLS)
-				props.put("mail.smtps.starttls.enable", "true");
-			if (connectionSecurity == SECURITY_TLS)
-				props.put("mail.smtps.starttls.required", "true");
-			if (connectionSecurity == SECURITY_SSL) {
-				// Necessary property to send e-mails with SSL
-				props.put("mail.smtps.ssl.enable", "true");
-			}
-		} else {
-			props.put("mail.transport.protocol", "smtp");
-			props.put("mail.smtp.host", host);
-			props.put("mail.smtp.port", port);
-			if (connectionSecurity == SECURITY_STARTTLS)
-				props.put("mail.smtp.starttls.enable", "true");
-			if (connectionSecurity == SECURITY_TLS)
-				props.put("mail.smtp.starttls.required", "true");
-			if (connectionSecurity == SECURITY_SSL) {
-				// Necessary property to send e-mails with SSL
-				props.put("mail.smtp.ssl.enable", "true");
-			}
+			MailDateFormat formatter = new MailDateFormat();
+			formatter.setTimeZone(TimeZone.getTimeZone("GMT")); // always use UTC
+																// for outgoing mail
+			message.setHeader("Date", formatter.format(now));
+
+			pool.send(transport, message, message.getAllRecipients());
+			pool.release(transport, true);
+		} catch (Throwable t) {
+			pool.release(transport, false);
+			throw t;
 		}
 
-		props.put("mail.smtp.ssl.protocols", "TLSv1.1 TLSv1.2");
-		props.put("mail.smtp.ssl.checkserveridentity", "false");
-		props.put("mail.smtp.ssl.trust", "*");
-		// props.put("mail.debug", "true");
+		log.info("Sent email with subject '{}' to recipients {}", email.getSubject(), email.getAllRecipientsEmails());
 
-		Session sess = null;
+		/*
+		 * If the case, we save the email as document in LogicalDOC's repository
+		 */
+		email.setSentDate(now);
+		historycizeOutgoingEmail(email, message, (InternetAddress) message.getFrom()[0]);
+	}
 
+	/**
+	 * Sends an already composed message, like the ones saved for a later
+	 * delivery by the {@link EMailQueue}
+	 * 
+	 * @param mimeStream stream of the message in MIME format
+	 * @param recipients the recipients to deliver to, if null all the
+	 *        recipients of the message are used
+	 * 
+	 * @return the sent message
+	 * 
+	 * @throws MessagingException raised if the message cannot be sent
+	 */
+	MimeMessage send(InputStream mimeStream, Address[] recipients) throws MessagingException {
+		SmtpTransportPool pool = (SmtpTransportPool) Context.get().getBean(SmtpTransportPool.class);
+		SmtpTransportPool.PooledTransport transport = pool.borrow(this);
 		try {
-			if (!StringUtils.isEmpty(username))
-				sess = Session.getInstance(props, new Authenticator() {
-					protected PasswordAuthentication getPasswordAuthentication() {
-						return new PasswordAuthentication(username, password);
-					}
-				});
-			else
-				sess = Session.getInstance(props);
-		} catch (SecurityException e) {
-			if (!StringUtils.isEmpty(username))
-				sess = Session.getInstance(props, new Authenticator() {
-					protected PasswordAuthentication getPasswordAuthentication() {
-						return new PasswordAuthentication(username, password);
-					}
-				});
-			else
-				sess = Session.getInstance(props);
+			MimeMessage message = new MimeMessage(transport.getSession(), mimeStream);
+			pool.send(transport, message, recipients != null ? recipients : message.getAllRecipients());
+			pool.release(transport, true);
+			return message;
+		} catch (MessagingException e) {
+			pool.release(transport, false);
+			throw e;
 		}
+	}
+
+	/**
+	 * Saves an already sent message as a document, like the ones delivered by
+	 * the {@link EMailQueue} after a retry
+	 * 
+	 * @param message the sent message
+	 * @param tenantId identifier of the tenant the email belongs to
+	 */
+	void historycize(MimeMessage message, long tenantId) {
+		if (folderId == null || folderId == 0)
+			return;
+
+		try {
+			EMail email = MailUtil.messageToMail(message, false);
+			email.setTenantId(tenantId);
+			email.setSentDate(new Date());
+			historycizeOutgoingEmail(email, message, (InternetAddress) message.getFrom()[0]);
+		} catch (Throwable t) {
+			log.warn("Cannot historycize the spooled email - {}", t.getMessage(), t);
+		}
+	}
 
-		MimeMessage message = new MimeMessage(sess);
+	/**
+	 * Composes the MIME message of an email
+	 * 
+	 * @param email The email representation
+	 * @param session The mail session
+	 * 
+	 * @return The message ready to be sent
+	 * 
+	 * @throws Exception error composing the message
+	 */
+	MimeMessage buildMessage(EMail email, Session session) throws Exception {
+		MimeMessage message = new MimeMessage(session);
 
 		// The FROM field must to be the one configured for the SMTP connection.
 		// because of errors will be returned in the case the sender is not in
@@ -354,14 +382,20 @@ public class EMailSender {
 		for (Integer partId : email.getAttachments().keySet()) {
 			EMailAttachment att = email.getAttachment(partId);
 			if (att != null) {
-				String mime = "text/plain";
-				try {
-					MagicMatch match = Magic.getMagicMatch(att.getData(), true);
-					mime = match.getMimeType();
-				} catch (Throwable t) {
+				DataSource fdSource = null;
+				if (att.getData() != null) {
+					String mime = "text/plain";
+					try {
+						MagicMatch match = Magic.getMagicMatch(att.getData(), true);
+						mime = match.getMimeType();
+					} catch (Throwable t) {
 
+					}
+					fdSource = new ByteArrayDataSource(att.getData(), mime);
+				} else {
+					// The content is streamed from the storer while sending
+					fdSource = att.getDataSource();
 				}
-				DataSource fdSource = new ByteArrayDataSource(att.getData(), mime);
 				DataHandler fdHandler = new DataHandler(fdSource);
 				MimeBodyPart part = new MimeBodyPart();
 				part.setDataHandler(fdHandler);
@@ -372,38 +406,109 @@ public class EMailSender {
 		}
 
 		message.setContent(mpMessage);
+		return message;
+	}
+
+	/**
+	 * Identifies the SMTP server and the account used by this sender, the
+	 * senders with the same key can share the same connections
+	 * 
+	 * @return the key of the server
+	 */
+	String getServerKey() {
+		return (authEncripted ? "smtps" : "smtp") + "://" + StringUtils.defaultString(username) + "@" + host + ":"
+				+ port + "/" + connectionSecurity + "/" + StringUtils.defaultString(password).hashCode();
+	}
+
+	/**
+	 * Creates a new mail session with the settings of this sender
+	 * 
+	 * @return the new session
+	 */
+	Session createSession() {
+		Properties props = new Properties();
+		if (!StringUtils.isEmpty(username))
+			props.put("mail.smtp.auth", "true");
+
+		if (authEncripted) {
+			// The 'smtps' protocol must be used
+			props.put("mail.transport.protocol", "smtps");
+			props.put("mail.smtps.host", host);
+			props.put("mail.smtps.port", port);
+			props.put("mail.smtps.ssl.protocols", "TLSv1.1 TLSv1.2");
+			if (connectionSecurity == SECURITY_STARTTLS)
+				props.put("mail.smtps.starttls.enable", "true");
+			if (connectionSecurity == SECURITY_TLS)
+				props.put("mail.smtps.starttls.required", "true");
+			if (connectionSecurity == SECURITY_SSL) {
+				// Necessary property to send e-mails with SSL
+				props.put("mail.smtps.ssl.enable", "true");
+			}
+		} else {
+			props.put("mail.transport.protocol", "smtp");
+			props.put("mail.smtp.host", host);
+			props.put("mail.smtp.port", port);
+			if (connectionSecurity == SECURITY_STARTTLS)
+				props.put("mail.smtp.starttls.enable", "true");
+			if (connectionSecurity == SECURITY_TLS)
+				props.put("mail.smtp.starttls.required", "true");
+			if (connectionSecurity == SECURITY_SSL) {
+				// Necessary property to send e-mails with SSL
+				props.put("mail.smtp.ssl.enable", "true");
+			}
+		}
+
+		props.put("mail.smtp.ssl.protocols", "TLSv1.1 TLSv1.2");
+		props.put("mail.smtp.ssl.checkserveridentity", "false");
+		props.put("mail.smtp.ssl.trust", "*");
+		// props.put("mail.debug", "true");
+
+		Session sess = null;
+
+		try {
+			if (!StringUtils.isEmpty(username))
+				sess = Session.getInstance(props, new Authenticator() {
+					protected PasswordAuthentication getPasswordAuthentication() {
+						return new PasswordAuthentication(username, password);
+					}
+				});
+			else
+				sess = Session.getInstance(props);
+		} catch (SecurityException e) {
+			if (!StringUtils.isEmpty(username))
+				sess = Session.getInstance(props, new Authenticator() {
+					protected PasswordAuthentication getPasswordAuthentication() {
+						return new PasswordAuthentication(username, password);
+					}
+				});
+			else
+				sess = Session.getInstance(props);
+		}
+		return sess;
+	}
 
+	/**
+	 * Opens a new connection to the SMTP server
+	 * 
+	 * @param session the mail session
+	 * 
+	 * @return the connected transport
+	 * 
+	 * @throws MessagingException the connection cannot be established
+	 */
+	Transport connect(Session session) throws MessagingException {
 		Transport trans = null;
 		if (authEncripted)
-			trans = sess.getTransport("smtps");
+			trans = session.getTransport("smtps");
 		else
-			trans = sess.getTransport("smtp");
+			trans = session.getTransport("smtp");
 
 		if (StringUtils.isEmpty(username)) {
 			trans.connect(host, port, null, null);
 		} else {
 			trans.connect(host, port, username, password);
 		}
-
-		Address[] adr = message.getAllRecipients();
-		// message.setSentDate(new Date());
-
-		MailDateFormat formatter = new MailDateFormat();
-		formatter.setTimeZone(TimeZone.getTimeZone("GMT")); // always use UTC
-															// for outgoing mail
-		Date now = new Date();
-		message.setHeader("Date", formatter.format(now));
-
-		trans.sendMessage(message, adr);
-		trans.close();
-
-		log.info("Sent email with subject '{}' to recipients {}", email.getSubject(), email.getAllRecipientsEmails());
-
-		/*
-		 * If the case, we save the email as document in LogicalDOC's repository
-		 */
-		email.setSentDate(now);
-		historycizeOutgoingEmail(email, message, from);
+		return trans;
 	}
 
 	/**
@@ -0,0 +1,288 @@
+package com.logicaldoc.core.communication;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.logicaldoc.util.config.ContextProperties;
+
+/**
+ * Keeps the connections to the SMTP servers open, so the same connection is
+ * reused to send several messages instead of performing the whole
+ * connect/authentication/TLS handshake for each message. For each server at
+ * most <b>smtp.pool.size</b> idle connections are kept for
+ * <b>smtp.pool.idle</b> seconds, and a connection is closed after it has
+ * delivered <b>smtp.pool.messages</b> messages. The messages sent to the same
+ * server are throttled to <b>smtp.ratelimit</b> per second(0 means no
+ * limit).
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class SmtpTransportPool {
+
+	protected static Logger log = LoggerFactory.getLogger(SmtpTransportPool.class);
+
+	private ContextProperties config;
+
+	/**
+	 * The idle connections, the key is the server key
+	 */
+	private final Map<String, Deque<PooledTransport>> idle = new ConcurrentHashMap<String, Deque<PooledTransport>>();
+
+	/**
+	 * Next time slot(in nanoseconds) available for sending to each server
+	 */
+	private final Map<String, AtomicLong> slots = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final AtomicLong opened = new AtomicLong(0L);
+
+	private final AtomicLong reused = new AtomicLong(0L);
+
+	/**
+	 * A connection to an SMTP server
+	 */
+	public static class PooledTransport {
+
+		private final String key;
+
+		private final Session session;
+
+		private final Transport transport;
+
+		private int sent = 0;
+
+		private long lastUsed = System.currentTimeMillis();
+
+		private PooledTransport(String key, Session session, Transport transport) {
+			this.key = key;
+			this.session = session;
+			this.transport = transport;
+		}
+
+		public Session getSession() {
+			return session;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public int getSent() {
+			return sent;
+		}
+	}
+
+	/**
+	 * Gets a connection to the server configured in the given sender, reusing
+	 * an idle one if possible
+	 *
+	 * @param sender the sender with the SMTP settings
+	 *
+	 * @return the connected transport
+	 *
+	 * @throws MessagingException the connection cannot be opened
+	 */
+	public PooledTransport borrow(EMailSender sender) throws MessagingException {
+		String key = sender.getServerKey();
+		Deque<PooledTransport> connections = idle.get(key);
+		if (connections != null) {
+			PooledTransport pooled;
+			while ((pooled = poll(connections)) != null) {
+				if (isUsable(pooled)) {
+					reused.incrementAndGet();
+					return pooled;
+				}
+				close(pooled);
+			}
+		}
+
+		Session session = sender.createSession();
+		Transport transport = sender.connect(session);
+		opened.incrementAndGet();
+		log.debug("Opened a new connection to {}", key);
+		return new PooledTransport(key, session, transport);
+	}
+
+	/**
+	 * Sends a message through a connection, waiting if needed to respect the
+	 * rate limit of the server
+	 *
+	 * @param pooled the connection
+	 * @param message the message to send
+	 * @param recipients the recipients
+	 *
+	 * @throws MessagingException error sending the message
+	 */
+	public void send(PooledTransport pooled, MimeMessage message, Address[] recipients) throws MessagingException {
+		throttle(pooled.key);
+		pooled.transport.sendMessage(message, recipients);
+		pooled.sent++;
+		pooled.lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Gives back a connection to the pool
+	 *
+	 * @param pooled the connection
+	 * @param reusable false if the connection must be closed, for instance
+	 *        because an error happened
+	 */
+	public void release(PooledTransport pooled, boolean reusable) {
+		if (pooled == null)
+			return;
+
+		if (!reusable || pooled.sent >= getMaxMessages()) {
+			close(pooled);
+			return;
+		}
+
+		Deque<PooledTransport> connections = idle.computeIfAbsent(pooled.key, k -> new LinkedList<PooledTransport>());
+		synchronized (connections) {
+			if (connections.size() < getPoolSize()) {
+				pooled.lastUsed = System.currentTimeMillis();
+				connections.push(pooled);
+				return;
+			}
+		}
+		close(pooled);
+	}
+
+	private PooledTransport poll(Deque<PooledTransport> connections) {
+		synchronized (connections) {
+			return connections.poll();
+		}
+	}
+
+	private boolean isUsable(PooledTransport pooled) {
+		if (System.currentTimeMillis() - pooled.lastUsed > getIdleTimeout())
+			return false;
+		try {
+			return pooled.transport.isConnected();
+		} catch (Throwable t) {
+			return false;
+		}
+	}
+
+	private void close(PooledTransport pooled) {
+		try {
+			pooled.transport.close();
+			log.debug("Closed the connection to {} after {} messages", pooled.key, pooled.sent);
+		} catch (Throwable t) {
+			log.debug("Error closing the connection to {} - {}", pooled.key, t.getMessage());
+		}
+	}
+
+	private void throttle(String key) {
+		int rate = config != null ? config.getInt("smtp.ratelimit", 0) : 0;
+		if (rate <= 0)
+			return;
+
+		long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+		long now = System.nanoTime();
+		long slot = slots.computeIfAbsent(key, k -> new AtomicLong(now))
+				.getAndUpdate(next -> Math.max(next, now) + interval);
+		long wait = slot - now;
+		if (wait > 0)
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+	}
+
+	/**
+	 * Closes the idle connections not used since more than
+	 * <b>smtp.pool.idle</b> seconds
+	 */
+	public void evict() {
+		for (Deque<PooledTransport> connections : idle.values()) {
+			List<PooledTransport> expired = new ArrayList<PooledTransport>();
+			synchronized (connections) {
+				long now = System.currentTimeMillis();
+				connections.removeIf(pooled -> {
+					if (now - pooled.lastUsed > getIdleTimeout()) {
+						expired.add(pooled);
+						return true;
+					}
+					return false;
+				});
+			}
+			for (PooledTransport pooled : expired)
+				close(pooled);
+		}
+	}
+
+	/**
+	 * Closes all the idle connections
+	 */
+	public void destroy() {
+		for (Deque<PooledTransport> connections : idle.values()) {
+			PooledTransport pooled;
+			while ((pooled = poll(connections)) != null)
+				close(pooled);
+		}
+	}
+
+	private int getPoolSize() {
+		return config != null ? config.getInt("smtp.pool.size", 4) : 4;
+	}
+
+	private int getMaxMessages() {
+		return Math.max(1, config != null ? config.getInt("smtp.pool.messages", 100) : 100);
+	}
+
+	private long getIdleTimeout() {
+		return TimeUnit.SECONDS.toMillis(config != null ? config.getLong("smtp.pool.idle", 30L) : 30L);
+	}
+
+	/**
+	 * The number of connections idle in the pool
+	 *
+	 * @return number of idle connections
+	 */
+	public int getIdle() {
+		int count = 0;
+		for (Deque<PooledTransport> connections : idle.values())
+			synchronized (connections) {
+				count += connections.size();
+			}
+		return count;
+	}
+
+	/**
+	 * The number of connections opened so far
+	 *
+	 * @return number of opened connections
+	 */
+	public long getOpened() {
+		return opened.get();
+	}
+
+	/**
+	 * The number of times an idle connection has been reused
+	 *
+	 * @return number of reuses
+	 */
+	public long getReused() {
+		return reused.get();
+	}
+
+	public void setConfig(ContextProperties config) {
+		this.config = config;
+	}
+}
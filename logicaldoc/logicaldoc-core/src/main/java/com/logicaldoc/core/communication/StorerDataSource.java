@@ -0,0 +1,69 @@
+package com.logicaldoc.core.communication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataSource;
+
+import com.logicaldoc.core.store.Storer;
+import com.logicaldoc.util.Context;
+
+/**
+ * A data source that reads a resource of a document directly from the
+ * storer, so the content of an attachment is streamed into the message
+ * instead of being loaded in memory.
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class StorerDataSource implements DataSource {
+
+	private long docId;
+
+	private String resource;
+
+	private String name;
+
+	private String contentType;
+
+	public StorerDataSource(long docId, String resource, String name, String contentType) {
+		super();
+		this.docId = docId;
+		this.resource = resource;
+		this.name = name;
+		this.contentType = contentType;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		Storer storer = (Storer) Context.get().getBean(Storer.class);
+		InputStream stream = storer.getStream(docId, resource);
+		if (stream == null)
+			throw new IOException("Resource " + resource + " of document " + docId + " not found");
+		return stream;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		throw new IOException("Read only data source");
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	public long getDocId() {
+		return docId;
+	}
+
+	public String getResource() {
+		return resource;
+	}
+}
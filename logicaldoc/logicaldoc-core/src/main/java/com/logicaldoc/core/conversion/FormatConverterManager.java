@@ -159,7 +159,7 @@ public class FormatConverterManager {
 						String.format("The converter %s was unable to convert as pdf the document: %s - %s",
 								converter.getClass().getSimpleName(), document.getId(), fileName));
 
-			storer.store(dest, document.getId(), resource);
+			storer.store(dest, document.getId(), resource, document.getTenantId());
 		} finally {
 			// Delete temporary resources
 			FileUtil.strongDelete(src);
@@ -1,28 +1,68 @@
 package com.logicaldoc.core.document;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.LoggerFactory;
 
+import com.logicaldoc.core.PersistenceException;
 import com.logicaldoc.core.document.dao.DocumentDAO;
+import com.logicaldoc.core.security.Tenant;
+import com.logicaldoc.core.sequence.SequenceDAO;
+import com.logicaldoc.core.store.Storer;
 import com.logicaldoc.core.task.Task;
+import com.logicaldoc.core.threading.NamedThreadFactory;
 import com.logicaldoc.i18n.I18N;
+import com.logicaldoc.util.io.FileUtil;
+import com.logicaldoc.util.time.TimeDiff;
 
 /**
- * This task takes care of calculating the documents digest
- * 
+ * This task takes care of calculating the documents digest.<br>
+ * The documents are read in pages of <b>digest.page</b> elements ordered by
+ * identifier, the files of each page are hashed in parallel by
+ * <b>digest.threads</b> workers that read the storage through channels with
+ * direct buffers of <b>digest.buffer</b> KB, then the digests are saved with
+ * batched updates of <b>digest.write.batch</b> documents. After each page the
+ * last processed identifier is saved in the sequence <b>digest.cursor</b>, so
+ * an interrupted run is resumed by the next one. At most <b>digest.batch</b>
+ * documents are processed in a single run.
+ *
  * @author Marco Meschieri - LogicalDOC
  * @since 6.4
  */
 public class DigestProcessor extends Task {
 	public static final String NAME = "DigestProcessor";
 
+	private static final String CURSOR = "digest.cursor";
+
 	private DocumentDAO documentDao;
 
-	private long processed = 0;
+	private SequenceDAO sequenceDao;
+
+	private Storer storer;
+
+	private AtomicLong processed = new AtomicLong(0);
+
+	private AtomicLong errors = new AtomicLong(0);
+
+	/**
+	 * Number of bytes hashed in the current run
+	 */
+	private AtomicLong bytes = new AtomicLong(0);
 
-	private long errors = 0;
+	/**
+	 * Duration of the current run in milliseconds
+	 */
+	private long elapsed = 0;
 
 	public DigestProcessor() {
 		super(NAME);
@@ -33,6 +73,14 @@ public class DigestProcessor extends Task {
 		this.documentDao = documentDao;
 	}
 
+	public void setSequenceDao(SequenceDAO sequenceDao) {
+		this.sequenceDao = sequenceDao;
+	}
+
+	public void setStorer(Storer storer) {
+		this.storer = storer;
+	}
+
 	@Override
 	public boolean isIndeterminate() {
 		return false;
@@ -46,12 +94,20 @@ public class DigestProcessor extends Task {
 	@Override
 	protected void runTask() throws Exception {
 		log.info("Start processing of digests");
-		errors = 0;
-		processed = 0;
+		errors.set(0);
+		processed.set(0);
+		bytes.set(0);
+		elapsed = 0;
+		long start = System.currentTimeMillis();
+
+		ExecutorService executor = null;
 		try {
+			long cursor = sequenceDao.getCurrentValue(CURSOR, 0L, Tenant.SYSTEM_ID);
+
 			// First of all find documents to be processed
 			size = documentDao.queryForLong(
-					"select count(*) from ld_document where ld_deleted = 0 and ld_docref is null and ld_digest is null");
+					"select count(*) from ld_document where ld_deleted = 0 and ld_docref is null and ld_digest is null and ld_id > "
+							+ cursor);
 
 			Integer max = config.getProperty("digest.batch") != null
 					? Integer.parseInt(config.getProperty("digest.batch"))
@@ -63,43 +119,143 @@ public class DigestProcessor extends Task {
 			if (max != null && max.intValue() < 1)
 				max = null;
 
-			log.info("Found a total of {} documents to be processed", size);
+			log.info("Found a total of {} documents to be processed starting from document {}", size, cursor);
+
+			int threads = Math.max(1, config.getInt("digest.threads", 4));
+			int pageSize = Math.max(1, config.getInt("digest.page", 1000));
+			int batchSize = Math.max(1, config.getInt("digest.write.batch", 100));
+			int bufferSize = Math.max(8, config.getInt("digest.buffer", 1024)) * 1024;
 
-			List<Long> ids = documentDao
-					.findIdsByWhere("_entity.docRef is null and _entity.digest is null and deleted = 0", null, max);
-			for (Long id : ids) {
-				try {
-					log.debug("Processing document {}", id);
+			executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("Digest"));
+			ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(bufferSize));
+
+			long limit = max != null ? max.longValue() : Long.MAX_VALUE;
+			long count = 0;
+			while (!interruptRequested && count < limit) {
+				List<Document> page = loadPage(cursor, (int) Math.min(pageSize, limit - count));
+				if (page.isEmpty()) {
+					// All done, the next run will start from the beginning
+					saveCursor(0L);
+					break;
+				}
 
-					Document doc = documentDao.findById(id);
-					documentDao.updateDigest(doc);
+				List<Future<Document>> futures = new ArrayList<Future<Document>>();
+				for (Document doc : page)
+					futures.add(executor.submit(() -> computeDigest(doc, buffers.get())));
 
-					log.debug("Processed document {}", id);
-					processed++;
-				} catch (Throwable e) {
-					log.error(e.getMessage(), e);
-					errors++;
-				} finally {
-					next();
+				List<Document> computed = new ArrayList<Document>();
+				for (Future<Document> future : futures) {
+					try {
+						Document doc = future.get();
+						if (doc != null)
+							computed.add(doc);
+					} catch (ExecutionException e) {
+						log.error(e.getMessage(), e);
+						errors.incrementAndGet();
+					} finally {
+						next();
+					}
 				}
-				if (interruptRequested)
-					return;
+
+				for (int i = 0; i < computed.size(); i += batchSize) {
+					List<Document> batch = computed.subList(i, Math.min(i + batchSize, computed.size()));
+					try {
+						documentDao.updateDigests(batch);
+						processed.addAndGet(batch.size());
+					} catch (PersistenceException e) {
+						log.error(e.getMessage(), e);
+						errors.addAndGet(batch.size());
+					}
+				}
+
+				cursor = page.get(page.size() - 1).getId();
+				saveCursor(cursor);
+				count += page.size();
+
+				log.debug("Processed {} documents at {}", count, getThroughput(System.currentTimeMillis() - start));
 			}
 		} finally {
-			log.info("Digest processing finished");
-			log.info("Processed documents: {}", processed);
-			log.info("Errors: {}", errors);
+			if (executor != null)
+				executor.shutdownNow();
+			elapsed = System.currentTimeMillis() - start;
+
+			log.info("Digest processing finished in {}", TimeDiff.printDuration(elapsed));
+			log.info("Processed documents: {}", processed.get());
+			log.info("Errors: {}", errors.get());
+			log.info("Throughput: {}", getThroughput(elapsed));
 		}
 	}
 
+	/**
+	 * Loads the next documents to process, just the fields needed to locate
+	 * the files are populated
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Document> loadPage(long cursor, int max) throws PersistenceException {
+		return documentDao.query(
+				"select ld_id, ld_fileversion, ld_version, ld_tenantid from ld_document where ld_deleted = 0 and ld_docref is null and ld_digest is null and ld_id > ? order by ld_id",
+				new Object[] { cursor }, (rs, rowNum) -> {
+					Document doc = new Document();
+					doc.setId(rs.getLong(1));
+					doc.setFileVersion(rs.getString(2));
+					doc.setVersion(rs.getString(3));
+					doc.setTenantId(rs.getLong(4));
+					return doc;
+				}, max);
+	}
+
+	/**
+	 * Computes the digest of a document's file
+	 *
+	 * @return the document with the digest or null if the file does not exist
+	 */
+	private Document computeDigest(Document doc, ByteBuffer buffer) throws Exception {
+		log.debug("Processing document {}", doc.getId());
+
+		String resource = storer.getResourceName(doc, doc.getFileVersion(), null);
+		if (!storer.exists(doc.getId(), resource)) {
+			log.warn("The file of document {} does not exist", doc.getId());
+			errors.incrementAndGet();
+			return null;
+		}
+
+		try (SeekableByteChannel channel = storer.getChannel(doc.getId(), resource)) {
+			if (channel != null) {
+				doc.setDigest(FileUtil.computeDigest(channel, buffer));
+				bytes.addAndGet(channel.size());
+			} else {
+				try (InputStream is = storer.getStream(doc.getId(), resource)) {
+					doc.setDigest(FileUtil.computeDigest(is));
+				}
+				bytes.addAndGet(storer.size(doc.getId(), resource));
+			}
+		}
+
+		log.debug("Processed document {}", doc.getId());
+		return doc.getDigest() != null ? doc : null;
+	}
+
+	private void saveCursor(long cursor) {
+		sequenceDao.reset(CURSOR, 0L, Tenant.SYSTEM_ID, cursor);
+	}
+
+	private String getThroughput(long millis) {
+		double seconds = Math.max(millis, 1L) / 1000D;
+		return String.format(Locale.ENGLISH, "%.1f docs/s, %.1f MB/s", processed.get() / seconds,
+				bytes.get() / 1048576D / seconds);
+	}
+
 	@Override
 	protected String prepareReport(Locale locale) {
 		StringBuffer sb = new StringBuffer();
 		sb.append(I18N.message("processeddocs", locale) + ": ");
-		sb.append(processed);
+		sb.append(processed.get());
 		sb.append("\n");
 		sb.append(I18N.message("errors", locale) + ": ");
-		sb.append(errors);
+		sb.append(errors.get());
+		sb.append("\n");
+		sb.append(I18N.message("throughput", locale) + ": ");
+		sb.append(getThroughput(elapsed));
 		return sb.toString();
 	}
-}
\ No newline at end of file
+}
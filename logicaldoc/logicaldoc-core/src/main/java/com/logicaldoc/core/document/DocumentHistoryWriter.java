@@ -0,0 +1,187 @@
+package com.logicaldoc.core.document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.logicaldoc.core.document.dao.DocumentHistoryDAO;
+import com.logicaldoc.core.folder.FolderDAO;
+import com.logicaldoc.core.threading.ThreadPools;
+import com.logicaldoc.util.config.ContextProperties;
+
+/**
+ * Saves the histories of the documents asynchronously, so the requests that
+ * just read the documents, like the downloads, do not wait for the database.
+ * The histories are put in a queue of <b>history.writer.size</b> elements
+ * and a writer scheduled in the <b>DocumentHistoryWriter</b> thread pool
+ * drains it every <b>history.writer.flush</b> milliseconds, saving batches of
+ * <b>history.writer.batch</b> histories in one transaction. The path of the folder is computed by the writer when not
+ * already specified.<br>
+ * When the queue is full the history is saved by the caller, so no history
+ * gets lost. When a batch cannot be saved its histories are saved one by one,
+ * so just the wrong ones are discarded.<br>
+ * The queued histories must not reference Hibernate entities, like the
+ * document, because they are saved by a different thread.
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class DocumentHistoryWriter {
+
+	protected static Logger log = LoggerFactory.getLogger(DocumentHistoryWriter.class);
+
+	public static final String THREADPOOL = "DocumentHistoryWriter";
+
+	private DocumentHistoryDAO historyDAO;
+
+	private FolderDAO folderDAO;
+
+	private ContextProperties config;
+
+	private ThreadPools threadPools;
+
+	private BlockingQueue<DocumentHistory> queue;
+
+	private ScheduledFuture<?> writer;
+
+	private final AtomicLong written = new AtomicLong(0L);
+
+	private final AtomicLong failed = new AtomicLong(0L);
+
+	/**
+	 * Puts a history in the queue, never blocks
+	 *
+	 * @param history the history to save
+	 */
+	public void write(DocumentHistory history) {
+		if (queue == null || !queue.offer(history)) {
+			log.debug("History queue not available or full, saving the history synchronously");
+			store(Collections.singletonList(history));
+		}
+	}
+
+	/**
+	 * Saves all the histories in the queue
+	 */
+	public synchronized void flush() {
+		if (queue == null)
+			return;
+
+		int batchSize = Math.max(1, config.getInt("history.writer.batch", 500));
+		List<DocumentHistory> batch = new ArrayList<DocumentHistory>(batchSize);
+		while (queue.drainTo(batch, batchSize) > 0) {
+			store(batch);
+			batch.clear();
+		}
+	}
+
+	private void store(List<DocumentHistory> batch) {
+		for (DocumentHistory history : batch)
+			if (history.getPath() == null && history.getFolderId() != null)
+				history.setPath(folderDAO.computePathExtended(history.getFolderId()));
+
+		try {
+			historyDAO.store(batch);
+			written.addAndGet(batch.size());
+			log.debug("Saved {} histories", batch.size());
+		} catch (Throwable t) {
+			if (batch.size() == 1) {
+				failed.incrementAndGet();
+				log.warn("Unable to save the history - {}", t.getMessage(), t);
+			} else {
+				log.warn("Unable to save {} histories in one transaction, saving them one by one - {}",
+						batch.size(), t.getMessage());
+				for (DocumentHistory history : batch)
+					storeOne(history);
+			}
+		}
+	}
+
+	/**
+	 * Saves a single history in its own transaction, used when a batch gets
+	 * rolled back so that only the wrong histories are lost
+	 */
+	private void storeOne(DocumentHistory history) {
+		// The rolled back transaction may have already assigned the identifier
+		history.setId(0L);
+		history.setRecordVersion(0L);
+		try {
+			historyDAO.store(history);
+			written.incrementAndGet();
+		} catch (Throwable t) {
+			failed.incrementAndGet();
+			log.warn("Unable to save the history of document {} - {}", history.getDocId(), t.getMessage(), t);
+		}
+	}
+
+	public void init() {
+		queue = new LinkedBlockingQueue<DocumentHistory>(Math.max(1, config.getInt("history.writer.size", 10000)));
+
+		long interval = Math.max(10L, config.getLong("history.writer.flush", 1000L));
+		writer = threadPools.scheduleWithFixedDelay(this::flush, THREADPOOL, interval);
+	}
+
+	/**
+	 * Stops the writer saving the histories still in the queue
+	 */
+	public void destroy() {
+		if (writer != null)
+			writer.cancel(false);
+
+		try {
+			flush();
+		} catch (Throwable t) {
+			log.warn(t.getMessage(), t);
+		}
+	}
+
+	/**
+	 * The number of histories waiting to be saved
+	 *
+	 * @return the depth of the queue
+	 */
+	public int getDepth() {
+		return queue != null ? queue.size() : 0;
+	}
+
+	/**
+	 * The number of histories saved in the database
+	 *
+	 * @return number of saved histories
+	 */
+	public long getWritten() {
+		return written.get();
+	}
+
+	/**
+	 * The number of histories that could not be saved
+	 *
+	 * @return number of failed histories
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public void setHistoryDAO(DocumentHistoryDAO historyDAO) {
+		this.historyDAO = historyDAO;
+	}
+
+	public void setFolderDAO(FolderDAO folderDAO) {
+		this.folderDAO = folderDAO;
+	}
+
+	public void setConfig(ContextProperties config) {
+		this.config = config;
+	}
+
+	public void setThreadPools(ThreadPools threadPools) {
+		this.threadPools = threadPools;
+	}
+}
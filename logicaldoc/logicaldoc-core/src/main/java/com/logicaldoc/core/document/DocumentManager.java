@@ -155,6 +155,17 @@ public interface DocumentManager {
 	 */
 	public long reindex(long docId, String content, DocumentHistory transaction) throws Exception;
 
+	/**
+	 * Updates the indexing status of a document whose hit has already been
+	 * written into the full-text index
+	 * 
+	 * @param doc The indexed document
+	 * @param transaction entry to log the event (set the user)
+	 * 
+	 * @throws PersistenceException if the document cannot be updated
+	 */
+	public void markIndexed(Document doc, DocumentHistory transaction) throws PersistenceException;
+
 	/**
 	 * Rename an existing document filename.
 	 * 
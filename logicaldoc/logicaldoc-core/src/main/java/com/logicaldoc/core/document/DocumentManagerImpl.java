@@ -1,5 +1,6 @@
 package com.logicaldoc.core.document;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -32,6 +33,7 @@ import com.logicaldoc.core.conversion.FormatConverterManager;
 import com.logicaldoc.core.document.dao.DocumentDAO;
 import com.logicaldoc.core.document.dao.DocumentNoteDAO;
 import com.logicaldoc.core.document.dao.VersionDAO;
+import com.logicaldoc.core.document.thumbnail.ThumbnailService;
 import com.logicaldoc.core.folder.Folder;
 import com.logicaldoc.core.folder.FolderDAO;
 import com.logicaldoc.core.metadata.Attribute;
@@ -46,6 +48,7 @@ import com.logicaldoc.core.security.SessionManager;
 import com.logicaldoc.core.security.User;
 import com.logicaldoc.core.security.dao.TenantDAO;
 import com.logicaldoc.core.security.dao.UserDAO;
+import com.logicaldoc.core.store.StagedResource;
 import com.logicaldoc.core.store.Storer;
 import com.logicaldoc.core.ticket.Ticket;
 import com.logicaldoc.core.ticket.TicketDAO;
@@ -56,7 +59,12 @@ import com.logicaldoc.util.time.TimeDiff;
 import com.logicaldoc.util.time.TimeDiff.TimeField;
 
 /**
- * Basic Implementation of <code>DocumentManager</code>
+ * Basic Implementation of <code>DocumentManager</code>.<br>
+ * The changes to a document are serialized by a lock dedicated to the
+ * document and the creations by a lock dedicated to the target folder, the
+ * locks are taken from two fixed sets of stripes, one for the documents and
+ * one for the folders. The expensive work that does not touch the database,
+ * like counting the pages, is done before acquiring the lock.
  * 
  * @author Marco Meschieri - LogicalDOC
  * @since 3.5
@@ -65,6 +73,15 @@ public class DocumentManagerImpl implements DocumentManager {
 
 	protected static Logger log = LoggerFactory.getLogger(DocumentManagerImpl.class);
 
+	private static final int STRIPES = 64;
+
+	// Locks of the documents
+	private final Object[] documentLocks = new Object[STRIPES];
+
+	// Locks of the folders, kept apart so a folder never shares the lock of
+	// a document
+	private final Object[] folderLocks = new Object[STRIPES];
+
 	private DocumentDAO documentDAO;
 
 	private DocumentNoteDAO documentNoteDAO;
@@ -87,6 +104,37 @@ public class DocumentManagerImpl implements DocumentManager {
 
 	private ContextProperties config;
 
+	private ThumbnailService thumbnailService;
+
+	public DocumentManagerImpl() {
+		for (int i = 0; i < STRIPES; i++) {
+			documentLocks[i] = new Object();
+			folderLocks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Gets the lock that serializes the changes of a document
+	 * 
+	 * @param docId identifier of the document
+	 * 
+	 * @return the lock
+	 */
+	private Object getDocumentLock(long docId) {
+		return documentLocks[(Long.hashCode(docId) & 0x7fffffff) % STRIPES];
+	}
+
+	/**
+	 * Gets the lock that serializes the creation of documents in a folder
+	 * 
+	 * @param folderId identifier of the folder
+	 * 
+	 * @return the lock
+	 */
+	private Object getFolderLock(long folderId) {
+		return folderLocks[(Long.hashCode(folderId) & 0x7fffffff) % STRIPES];
+	}
+
 	public void setListenerManager(DocumentListenerManager listenerManager) {
 		this.listenerManager = listenerManager;
 	}
@@ -111,6 +159,10 @@ public class DocumentManagerImpl implements DocumentManager {
 		this.storer = storer;
 	}
 
+	public void setThumbnailService(ThumbnailService thumbnailService) {
+		this.thumbnailService = thumbnailService;
+	}
+
 	public void setConfig(ContextProperties config) {
 		this.config = config;
 	}
@@ -148,10 +200,11 @@ public class DocumentManagerImpl implements DocumentManager {
 			// Remove the files of the same fileVersion
 			List<String> resources = storer.listResources(document.getId(), fileVersion);
 			for (String resource : resources)
-				storer.delete(document.getId(), resource);
+				storer.delete(document.getId(), resource, document.getTenantId());
 
 			// Store the new file
-			storer.store(newFile, document.getId(), storer.getResourceName(document, fileVersion, null));
+			storer.store(newFile, document.getId(), storer.getResourceName(document, fileVersion, null),
+					document.getTenantId());
 
 			long fileSize = newFile.length();
 
@@ -190,11 +243,14 @@ public class DocumentManagerImpl implements DocumentManager {
 
 		transaction.setEvent(DocumentEvent.CHECKEDIN.toString());
 
+		// This may take time so it is done before locking the document
+		Integer pages = countPages(file, filename);
+
 		/*
 		 * Better to synchronize this block because under high multi-threading
 		 * may lead to hibernate's sessions rollbacks
 		 */
-		synchronized (this) {
+		synchronized (getDocumentLock(docId)) {
 			// identify the document and folder
 			Document document = documentDAO.findDocument(docId);
 			String oldFileVersion = document.getFileVersion();
@@ -230,7 +286,8 @@ public class DocumentManagerImpl implements DocumentManager {
 					document.setFileVersion(originalFileVersion);
 				}
 
-				countPages(file, document);
+				if (pages != null)
+					document.setPages(pages);
 
 				Map<String, Object> dictionary = new HashMap<String, Object>();
 
@@ -315,6 +372,9 @@ public class DocumentManagerImpl implements DocumentManager {
 
 				if (!document.getFileVersion().equals(oldFileVersion))
 					documentNoteDAO.copyAnnotations(document.getId(), oldFileVersion, document.getFileVersion());
+
+				if (thumbnailService != null)
+					thumbnailService.pregenerate(document.getId(), document.getFileVersion());
 			}
 		}
 	}
@@ -352,7 +412,7 @@ public class DocumentManagerImpl implements DocumentManager {
 		 * Better to synchronize this block because under high multi-threading
 		 * may lead to hibernate's sessions rollbacks
 		 */
-		synchronized (this) {
+		synchronized (getDocumentLock(docId)) {
 			Document document = documentDAO.findDocument(docId);
 
 			if (document.getStatus() == status && document.getLockUserId() == transaction.getUserId()) {
@@ -386,7 +446,7 @@ public class DocumentManagerImpl implements DocumentManager {
 
 	private void storeFile(Document doc, File file) throws IOException {
 		String resource = storer.getResourceName(doc, null, null);
-		storer.store(file, doc.getId(), resource);
+		storer.store(file, doc.getId(), resource, doc.getTenantId());
 	}
 
 	/**
@@ -467,8 +527,6 @@ public class DocumentManagerImpl implements DocumentManager {
 		log.debug("Reindexing document {} - {}", docId, doc.getFileName());
 
 		try {
-			boolean alreadyIndexed = doc.getIndexed() == AbstractDocument.INDEX_INDEXED;
-
 			long parsingTime = 0;
 			String cont = content;
 			if (StringUtils.isEmpty(cont) && doc.getIndexed() != AbstractDocument.INDEX_TO_INDEX_METADATA) {
@@ -482,22 +540,7 @@ public class DocumentManagerImpl implements DocumentManager {
 			// This may take time
 			indexer.addHit(doc, cont);
 
-			// For additional safety update the DB directly
-			doc.setIndexed(AbstractDocument.INDEX_INDEXED);
-
-			if (transaction != null)
-				transaction.setEvent(DocumentEvent.INDEXED.toString());
-
-			boolean stored = documentDAO.store(doc, transaction);
-			if (!stored)
-				throw new Exception("Document not stored");
-
-			/*
-			 * If the document was already indexed, mark the aliases to be
-			 * re-indexed
-			 */
-			if (alreadyIndexed)
-				markAliasesToIndex(docId);
+			markIndexed(doc, transaction);
 
 			return parsingTime;
 		} catch (Throwable e) {
@@ -506,6 +549,28 @@ public class DocumentManagerImpl implements DocumentManager {
 		}
 	}
 
+	@Override
+	public void markIndexed(Document doc, DocumentHistory transaction) throws PersistenceException {
+		boolean alreadyIndexed = doc.getIndexed() == AbstractDocument.INDEX_INDEXED;
+
+		// For additional safety update the DB directly
+		doc.setIndexed(AbstractDocument.INDEX_INDEXED);
+
+		if (transaction != null)
+			transaction.setEvent(DocumentEvent.INDEXED.toString());
+
+		boolean stored = documentDAO.store(doc, transaction);
+		if (!stored)
+			throw new PersistenceException("Document not stored");
+
+		/*
+		 * If the document was already indexed, mark the aliases to be
+		 * re-indexed
+		 */
+		if (alreadyIndexed)
+			markAliasesToIndex(doc.getId());
+	}
+
 	private void markAliasesToIndex(long referencedDocId) throws PersistenceException {
 		documentDAO.jdbcUpdate("update ld_document set ld_indexed=" + AbstractDocument.INDEX_TO_INDEX
 				+ " where ld_docref=" + referencedDocId + " and not ld_id = " + referencedDocId);
@@ -523,7 +588,7 @@ public class DocumentManagerImpl implements DocumentManager {
 			 * Better to synchronize this block because under high
 			 * multi-threading may lead to hibernate's sessions rollbacks
 			 */
-			synchronized (this) {
+			synchronized (getDocumentLock(doc.getId())) {
 				documentDAO.initialize(doc);
 				if (doc.getImmutable() == 0
 						|| ((doc.getImmutable() == 1 && transaction.getUser().isMemberOf("admin")))) {
@@ -657,7 +722,7 @@ public class DocumentManagerImpl implements DocumentManager {
 			 * Better to synchronize this block because under high
 			 * multi-threading may lead to hibernate's sessions rollbacks
 			 */
-			synchronized (this) {
+			synchronized (getDocumentLock(doc.getId())) {
 				documentDAO.initialize(doc);
 				transaction.setPathOld(folderDAO.computePathExtended(doc.getFolder().getId()));
 				transaction.setFilenameOld(doc.getFileName());
@@ -700,19 +765,39 @@ public class DocumentManagerImpl implements DocumentManager {
 		assert (transaction != null);
 		assert (docVO != null);
 
-		// Write content to temporary file, then delete it
-		File tmp = File.createTempFile("create", "");
+		/*
+		 * Write the content just once in the staging area of the storage,
+		 * meanwhile the size and the digest get computed. Once the record is
+		 * created the staged file is promoted to the document's resource.
+		 */
+		StagedResource staged = storer.stage(content != null ? content : new ByteArrayInputStream(new byte[0]));
 		try {
-			if (content != null)
-				FileUtil.writeFile(content, tmp.getPath());
-			return create(tmp, docVO, transaction);
+			return create(staged.getFile(), staged, docVO, transaction);
 		} finally {
-			FileUtils.deleteQuietly(tmp);
+			storer.discard(staged);
 		}
 	}
 
 	@Override
 	public Document create(File file, Document docVO, DocumentHistory transaction) throws PersistenceException {
+		return create(file, null, docVO, transaction);
+	}
+
+	/**
+	 * Creates a new document
+	 * 
+	 * @param file the document's file
+	 * @param staged the staged content, if not null the <code>file</code> is
+	 *        the staged file and it gets promoted instead of being copied
+	 * @param docVO the value object containing the document's metadata
+	 * @param transaction the transaction metadata
+	 * 
+	 * @return the newly created document
+	 * 
+	 * @throws PersistenceException raised if the document cannot be created
+	 */
+	private Document create(File file, StagedResource staged, Document docVO, DocumentHistory transaction)
+			throws PersistenceException {
 		assert (transaction != null);
 		assert (docVO != null);
 
@@ -754,47 +839,64 @@ public class DocumentManagerImpl implements DocumentManager {
 			docVO.setType(type);
 			docVO.setVersion(config.getProperty("document.startversion"));
 			docVO.setFileVersion(docVO.getVersion());
-			docVO.setFileSize(file.length());
+			docVO.setFileSize(staged != null ? staged.getSize() : file.length());
 			docVO.setId(0L);
 
+			// The digest of a staged content is known for free
+			if (staged != null)
+				docVO.setDigest(staged.getDigest());
+
+			// The expensive operations are done before locking
+			if (file != null) {
+				Integer pages = countPages(file, docVO.getFileName());
+				if (pages != null)
+					docVO.setPages(pages);
+			}
+
+			if (docVO.getTemplate() == null && docVO.getTemplateId() != null)
+				docVO.setTemplate(templateDAO.findById(docVO.getTemplateId()));
+
+			if (file != null)
+				transaction.setFile(file.getAbsolutePath());
+
+			// Create the record
+			transaction.setEvent(DocumentEvent.STORED.toString());
+
 			/*
 			 * Better to synchronize this block because under high
 			 * multi-threading may lead to hibernate's sessions rollbacks
 			 */
-			synchronized (this) {
-				countPages(file, docVO);
-
-				if (docVO.getTemplate() == null && docVO.getTemplateId() != null)
-					docVO.setTemplate(templateDAO.findById(docVO.getTemplateId()));
-
-				if (file != null)
-					transaction.setFile(file.getAbsolutePath());
-
-				// Create the record
-				transaction.setEvent(DocumentEvent.STORED.toString());
+			synchronized (getFolderLock(docVO.getFolder() != null ? docVO.getFolder().getId() : 0L)) {
 				stored = documentDAO.store(docVO, transaction);
+			}
 
-				if (stored) {
-					/* store the document into filesystem */
-					if (file != null)
-						try {
+			if (stored) {
+				/* store the document into filesystem */
+				if (file != null)
+					try {
+						if (staged != null)
+							storer.promote(staged, docVO.getId(), storer.getResourceName(docVO, null, null),
+									docVO.getTenantId());
+						else
 							storeFile(docVO, file);
-						} catch (Throwable e) {
-							String message = String.format("Unable to store the file of document %d", docVO.getId());
-							log.error(message);
-							documentDAO.delete(docVO.getId());
-							throw new Exception(message, e);
-						}
+					} catch (Throwable e) {
+						String message = String.format("Unable to store the file of document %d", docVO.getId());
+						log.error(message);
+						documentDAO.delete(docVO.getId());
+						throw new Exception(message, e);
+					}
 
-					// Store the initial version (default 1.0)
-					Version vers = Version.create(docVO, userDAO.findById(transaction.getUserId()),
-							transaction.getComment(), DocumentEvent.STORED.toString(), true);
-					versionDAO.store(vers);
-					log.debug("Stored version {}", vers.getVersion());
-					return docVO;
-				} else
-					throw new Exception("Document not stored");
-			}
+				// Store the initial version (default 1.0)
+				Version vers = Version.create(docVO, userDAO.findById(transaction.getUserId()),
+						transaction.getComment(), DocumentEvent.STORED.toString(), true);
+				versionDAO.store(vers);
+				log.debug("Stored version {}", vers.getVersion());
+
+				if (file != null && thumbnailService != null)
+					thumbnailService.pregenerate(docVO.getId(), docVO.getFileVersion());
+				return docVO;
+			} else
+				throw new Exception("Document not stored");
 		} catch (Throwable e) {
 			log.error(e.getMessage(), e);
 			throw new PersistenceException(e);
@@ -802,21 +904,23 @@ public class DocumentManagerImpl implements DocumentManager {
 	}
 
 	/**
-	 * Processes a file trying to calculate the pages and updates the pages
-	 * property of the given document.
+	 * Processes a file trying to calculate the pages.
 	 * 
 	 * @param file The document's file
-	 * @param doc The document
+	 * @param filename The name of the file
+	 * 
+	 * @return the number of pages or null if they cannot be counted
 	 */
-	private void countPages(File file, Document doc) {
+	private Integer countPages(File file, String filename) {
 		try {
-			Parser parser = ParserFactory.getParser(doc.getFileName());
-			log.debug("Using parser {} to count pages of document {}", parser.getClass().getName(), doc);
+			Parser parser = ParserFactory.getParser(filename);
+			log.debug("Using parser {} to count pages of file {}", parser.getClass().getName(), filename);
 			if (parser != null)
-				doc.setPages(parser.countPages(file, doc.getFileName()));
+				return parser.countPages(file, filename);
 		} catch (Throwable e) {
-			log.warn("Cannot count pages of document {}", doc, e);
+			log.warn("Cannot count pages of file {}", filename, e);
 		}
+		return null;
 	}
 
 	@Override
@@ -888,7 +992,7 @@ public class DocumentManagerImpl implements DocumentManager {
 		 * Better to synchronize this block because under high multi-threading
 		 * may lead to hibernate's sessions rollbacks
 		 */
-		synchronized (this) {
+		synchronized (getDocumentLock(docId)) {
 			Document document = documentDAO.findDocument(docId);
 			documentDAO.initialize(document);
 
@@ -947,7 +1051,7 @@ public class DocumentManagerImpl implements DocumentManager {
 		 * Better to synchronize this block because under high multi-threading
 		 * may lead to hibernate's sessions rollbacks
 		 */
-		synchronized (this) {
+		synchronized (getDocumentLock(docId)) {
 			Document document = documentDAO.findDocument(docId);
 
 			if (document.getImmutable() == 0
@@ -1129,7 +1233,7 @@ public class DocumentManagerImpl implements DocumentManager {
 			List<String> resources = storer.listResources(versionToDelete.getDocId(), versionToDelete.getFileVersion());
 			for (String resource : resources)
 				try {
-					storer.delete(versionToDelete.getDocId(), resource);
+					storer.delete(versionToDelete.getDocId(), resource, versionToDelete.getTenantId());
 				} catch (Throwable t) {
 					log.warn("Unable to delete resource {} of document {}", resource, versionToDelete.getDocId());
 				}
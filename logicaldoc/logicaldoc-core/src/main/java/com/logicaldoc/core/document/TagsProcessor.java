@@ -7,7 +7,8 @@ import com.logicaldoc.core.task.Task;
 
 /**
  * This task generate all data needed by the tag cloud panel and the tags
- * drop-down lists.
+ * drop-down lists. The counters are kept updated by the
+ * {@link UniqueTagCounters} so this task just repairs them.
  * 
  * @author Marco Meschieri - LogicalDOC
  * @since 4.0
@@ -0,0 +1,355 @@
+package com.logicaldoc.core.document;
+
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.logicaldoc.core.threading.ThreadPools;
+import com.logicaldoc.util.config.ContextProperties;
+
+/**
+ * Maintains the counters of the table <b>ld_uniquetag</b> incrementally: the
+ * changes of the documents' tags are collected as deltas per tenant and tag
+ * and every <b>tagcloud.flush</b> seconds they are saved with batches of
+ * updates, inserting the tags not yet known. The changes made inside a
+ * transaction are only collected after its commit.<br>
+ * The most used tags of each tenant are kept in memory, so the tag cloud is
+ * served without sorting the whole table. The cache keeps more tags than the
+ * ones displayed and remembers the highest count among the tags left out, if
+ * a displayed tag could have been surpassed by one of them the cache is
+ * reloaded.<br>
+ * The full recount made by the {@link TagsProcessor} is just a repair.
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class UniqueTagCounters {
+
+	protected static Logger log = LoggerFactory.getLogger(UniqueTagCounters.class);
+
+	private static final int MIN_CACHE_SIZE = 100;
+
+	private static final int BATCH_SIZE = 500;
+
+	public static final String THREADPOOL = "UniqueTagCounters";
+
+	private DataSource dataSource;
+
+	private ContextProperties config;
+
+	private ThreadPools threadPools;
+
+	// Key is the tenant, value is the map tag - delta to be saved
+	private final Map<Long, Map<String, Long>> deltas = new ConcurrentHashMap<Long, Map<String, Long>>();
+
+	// Key is the tenant, value is the cache of the most used tags
+	private final Map<Long, TopTags> tops = new HashMap<Long, TopTags>();
+
+	private ScheduledFuture<?> flusher;
+
+	// The deltas of the transaction bound to the current thread, not yet
+	// committed
+	private final ThreadLocal<Map<Long, Map<String, Long>>> pending = new ThreadLocal<Map<Long, Map<String, Long>>>();
+
+	/**
+	 * Records the change of the tags of a document
+	 *
+	 * @param tenantId identifier of the tenant
+	 * @param oldTags the tags before the change(those of a deleted document
+	 *        do not count)
+	 * @param newTags the tags after the change(those of a deleted document do
+	 *        not count)
+	 */
+	public void update(long tenantId, Collection<String> oldTags, Collection<String> newTags) {
+		for (String tag : oldTags)
+			if (!newTags.contains(tag))
+				add(tenantId, tag, -1L);
+		for (String tag : newTags)
+			if (!oldTags.contains(tag))
+				add(tenantId, tag, 1L);
+	}
+
+	/**
+	 * Records a change of the usage of a tag
+	 *
+	 * @param tenantId identifier of the tenant
+	 * @param tag the tag
+	 * @param delta the number of documents that started(positive) or
+	 *        stopped(negative) using the tag
+	 */
+	public void add(long tenantId, String tag, long delta) {
+		if (StringUtils.isEmpty(tag) || delta == 0L)
+			return;
+		getDeltas().computeIfAbsent(tenantId, t -> new ConcurrentHashMap<String, Long>()).merge(tag, delta,
+				Long::sum);
+	}
+
+	/**
+	 * Gets the deltas to update: those of the current transaction, if any,
+	 * that are merged into the shared ones after the commit
+	 */
+	private Map<Long, Map<String, Long>> getDeltas() {
+		if (!TransactionSynchronizationManager.isSynchronizationActive())
+			return deltas;
+
+		Map<Long, Map<String, Long>> txDeltas = pending.get();
+		if (txDeltas == null) {
+			Map<Long, Map<String, Long>> newDeltas = new HashMap<Long, Map<String, Long>>();
+			pending.set(newDeltas);
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					for (Map.Entry<Long, Map<String, Long>> tenant : newDeltas.entrySet())
+						for (Map.Entry<String, Long> delta : tenant.getValue().entrySet())
+							deltas.computeIfAbsent(tenant.getKey(), t -> new ConcurrentHashMap<String, Long>())
+									.merge(delta.getKey(), delta.getValue(), Long::sum);
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					pending.remove();
+				}
+			});
+			txDeltas = newDeltas;
+		}
+		return txDeltas;
+	}
+
+	/**
+	 * Saves the collected deltas in the database
+	 */
+	public synchronized void flush() {
+		for (Map.Entry<Long, Map<String, Long>> entry : deltas.entrySet()) {
+			long tenantId = entry.getKey();
+
+			// Removing a key is atomic with respect to the merges, so no
+			// change gets lost
+			Map<String, Long> tenantDeltas = new HashMap<String, Long>();
+			for (String tag : new ArrayList<String>(entry.getValue().keySet())) {
+				Long delta = entry.getValue().remove(tag);
+				if (delta != null && delta != 0L)
+					tenantDeltas.put(tag, delta);
+			}
+			if (tenantDeltas.isEmpty())
+				continue;
+
+			try {
+				save(tenantId, tenantDeltas);
+				updateTop(tenantId, tenantDeltas);
+				log.debug("Saved the counters of {} tags of tenant {}", tenantDeltas.size(), tenantId);
+			} catch (Throwable t) {
+				log.warn("Unable to save the counters of the tags of tenant {} - {}", tenantId, t.getMessage(), t);
+				// Restore the deltas, they will be saved at next flush
+				for (Map.Entry<String, Long> delta : tenantDeltas.entrySet())
+					add(tenantId, delta.getKey(), delta.getValue());
+			}
+		}
+	}
+
+	private void save(long tenantId, Map<String, Long> tenantDeltas) {
+		JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+		List<String> tags = new ArrayList<String>(tenantDeltas.keySet());
+		List<Object[]> updates = tags.stream().map(tag -> new Object[] { tenantDeltas.get(tag), tenantId, tag })
+				.collect(Collectors.toList());
+		int[] results = jdbc.batchUpdate(
+				"update ld_uniquetag set ld_count = ld_count + ? where ld_tenantid = ? and ld_tag = ?", updates);
+
+		// Insert the tags that did not exist yet
+		List<String> missing = new ArrayList<String>();
+		List<String> unknown = new ArrayList<String>();
+		for (int i = 0; i < results.length; i++) {
+			if (tenantDeltas.get(tags.get(i)) <= 0L)
+				continue;
+			if (results[i] == 0)
+				missing.add(tags.get(i));
+			else if (results[i] == Statement.SUCCESS_NO_INFO)
+				unknown.add(tags.get(i));
+		}
+
+		// The driver did not tell if these tags were updated, so check if
+		// they exist
+		if (!unknown.isEmpty()) {
+			List<String> existing = new ArrayList<String>();
+			for (int i = 0; i < unknown.size(); i += BATCH_SIZE) {
+				List<String> chunk = unknown.subList(i, Math.min(i + BATCH_SIZE, unknown.size()));
+				List<Object> args = new ArrayList<Object>();
+				args.add(tenantId);
+				args.addAll(chunk);
+				existing.addAll(jdbc.queryForList("select ld_tag from ld_uniquetag where ld_tenantid = ? and ld_tag in ("
+						+ chunk.stream().map(t -> "?").collect(Collectors.joining(",")) + ")", args.toArray(),
+						String.class));
+			}
+			unknown.removeAll(existing);
+			missing.addAll(unknown);
+		}
+
+		if (!missing.isEmpty())
+			jdbc.batchUpdate("insert into ld_uniquetag(ld_tag, ld_tenantid, ld_count) values (?, ?, ?)",
+					missing.stream().map(tag -> new Object[] { tag, tenantId, tenantDeltas.get(tag) })
+							.collect(Collectors.toList()));
+	}
+
+	/**
+	 * Applies the deltas to the cache of the most used tags
+	 */
+	private void updateTop(long tenantId, Map<String, Long> tenantDeltas) {
+		TopTags top = tops.get(tenantId);
+		if (top == null)
+			return;
+
+		// Retrieve the current counts of the tags that may enter the cache
+		List<String> candidates = tenantDeltas.entrySet().stream()
+				.filter(e -> e.getValue() > 0L && !top.counts.containsKey(e.getKey())).map(Map.Entry::getKey)
+				.collect(Collectors.toList());
+		Map<String, Long> current = new HashMap<String, Long>();
+		JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+		for (int i = 0; i < candidates.size(); i += BATCH_SIZE) {
+			List<String> chunk = candidates.subList(i, Math.min(i + BATCH_SIZE, candidates.size()));
+			List<Object> args = new ArrayList<Object>();
+			args.add(tenantId);
+			args.addAll(chunk);
+			jdbc.query("select ld_tag, ld_count from ld_uniquetag where ld_tenantid = ? and ld_tag in ("
+					+ chunk.stream().map(t -> "?").collect(Collectors.joining(",")) + ")", args.toArray(), rs -> {
+						current.put(rs.getString(1), rs.getLong(2));
+					});
+		}
+
+		for (Map.Entry<String, Long> delta : tenantDeltas.entrySet()) {
+			Long count = top.counts.get(delta.getKey());
+			if (count != null)
+				top.put(delta.getKey(), count + delta.getValue());
+			else if (current.containsKey(delta.getKey()))
+				top.put(delta.getKey(), current.get(delta.getKey()));
+		}
+	}
+
+	/**
+	 * Gets the most used tags of a tenant
+	 *
+	 * @param tenantId identifier of the tenant
+	 * @param max maximum number of tags to return
+	 *
+	 * @return the tags ordered by descending count
+	 */
+	public synchronized List<TagCloud> getTopTags(long tenantId, int max) {
+		TopTags top = tops.get(tenantId);
+		if (top == null || top.capacity < max || !top.isReliable(max)) {
+			top = load(tenantId, Math.max(MIN_CACHE_SIZE, max * 2));
+			tops.put(tenantId, top);
+		}
+		return top.getTop(max);
+	}
+
+	private TopTags load(long tenantId, int capacity) {
+		TopTags top = new TopTags(capacity);
+		JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+		jdbc.setMaxRows(capacity + 1);
+		jdbc.query("select ld_tag, ld_count from ld_uniquetag where ld_tenantid = ? order by ld_count desc",
+				new Object[] { tenantId }, rs -> {
+					top.put(rs.getString(1), rs.getLong(2));
+				});
+		log.debug("Loaded the {} most used tags of tenant {}", top.counts.size(), tenantId);
+		return top;
+	}
+
+	/**
+	 * Discards the cached tags, to be invoked when the table
+	 * <b>ld_uniquetag</b> gets rebuilt
+	 */
+	public synchronized void invalidate() {
+		tops.clear();
+	}
+
+	public void init() {
+		long interval = config.getLong("tagcloud.flush", 10L);
+		if (interval <= 0)
+			return;
+		flusher = threadPools.scheduleWithFixedDelay(this::flush, THREADPOOL, TimeUnit.SECONDS.toMillis(interval));
+	}
+
+	public void destroy() {
+		if (flusher != null)
+			flusher.cancel(false);
+		try {
+			flush();
+		} catch (Throwable t) {
+			log.warn(t.getMessage(), t);
+		}
+	}
+
+	public void setDataSource(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	public void setConfig(ContextProperties config) {
+		this.config = config;
+	}
+
+	public void setThreadPools(ThreadPools threadPools) {
+		this.threadPools = threadPools;
+	}
+
+	/**
+	 * The most used tags of a tenant
+	 */
+	private static class TopTags {
+
+		private final int capacity;
+
+		private final Map<String, Long> counts = new HashMap<String, Long>();
+
+		// The highest count among the tags that are not in the cache
+		private long outsideMax = 0L;
+
+		TopTags(int capacity) {
+			this.capacity = capacity;
+		}
+
+		void put(String tag, long count) {
+			counts.put(tag, Math.max(0L, count));
+			if (counts.size() > capacity) {
+				// Evict the least used tag
+				Map.Entry<String, Long> min = Collections.min(counts.entrySet(), Map.Entry.comparingByValue());
+				counts.remove(min.getKey());
+				outsideMax = Math.max(outsideMax, min.getValue());
+			}
+		}
+
+		/**
+		 * Checks if the first <code>max</code> tags are surely the most used
+		 */
+		boolean isReliable(int max) {
+			if (outsideMax == 0L)
+				return true;
+			List<Long> values = new ArrayList<Long>(counts.values());
+			if (values.size() < max)
+				return false;
+			values.sort(Collections.reverseOrder());
+			return values.get(max - 1) >= outsideMax;
+		}
+
+		List<TagCloud> getTop(int max) {
+			return counts.entrySet().stream()
+					.sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+					.limit(max).map(e -> new TagCloud(e.getKey(), e.getValue()))
+					.collect(Collectors.toList());
+		}
+	}
+}
@@ -69,6 +69,41 @@ public interface DocumentDAO extends PersistentObjectDAO<Document> {
 	 */
 	public List<Document> findByFolder(long folderId, Integer max);
 
+	/**
+	 * Finds a page of the documents direct children of the given folder. The
+	 * documents are ordered by identifier and the page starts right after the
+	 * last document of the previous page, so the database never scans the
+	 * skipped documents.
+	 * 
+	 * @param folderId Folder identifier
+	 * @param afterId Optional, identifier of the last document of the
+	 *        previous page
+	 * @param max Optional, defines the maximum records number
+	 * 
+	 * @return The documents in the page
+	 */
+	public List<Document> findByFolder(long folderId, Long afterId, Integer max);
+
+	/**
+	 * Finds the identifier of the document at a given position among the
+	 * children of a folder ordered by identifier.
+	 * 
+	 * @param folderId Folder identifier
+	 * @param position The position, starting from 0
+	 * 
+	 * @return The identifier or null if the folder contains less documents
+	 */
+	public Long findDocIdAtPosition(long folderId, int position);
+
+	/**
+	 * Counts the documents direct children of the given folder.
+	 * 
+	 * @param folderId Folder identifier
+	 * 
+	 * @return number of documents
+	 */
+	public long countByFolder(long folderId);
+
 	/**
 	 * Finds all document of the specified status and locked by the specified
 	 * user
@@ -437,6 +472,17 @@ public interface DocumentDAO extends PersistentObjectDAO<Document> {
 	 */
 	public void updateDigest(Document doc) throws PersistenceException;
 
+	/**
+	 * Saves the digests already computed for a set of documents using batched
+	 * updates, the versions with the same file version are updated too
+	 * 
+	 * @param documents The documents, each one must have the identifier, the
+	 *        file version and the digest
+	 * 
+	 * @throws PersistenceException raised in case of database errors
+	 */
+	public void updateDigests(List<Document> documents) throws PersistenceException;
+
 	/**
 	 * Cleans all references to expired transactions. If no lock is found for a
 	 * document referencing a given transaction, the transactionId will be set
@@ -4,6 +4,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
+import com.logicaldoc.core.PersistenceException;
 import com.logicaldoc.core.PersistentObjectDAO;
 import com.logicaldoc.core.document.DocumentHistory;
 
@@ -103,4 +104,13 @@ public interface DocumentHistoryDAO extends PersistentObjectDAO<DocumentHistory>
 	 * @return list of histories ordered by date
 	 */
 	public List<DocumentHistory> findByUserIdAndEvent(long userId, String event, String sessionId);
+
+	/**
+	 * Saves a batch of histories in the same transaction
+	 * 
+	 * @param histories the histories to save
+	 * 
+	 * @throws PersistenceException error at data layer
+	 */
+	public void store(List<DocumentHistory> histories) throws PersistenceException;
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package com.logicaldoc.core.document.dao;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Serializable;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -21,6 +22,9 @@ import java.util.stream.Collectors;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.time.DateUtils;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.SessionImplementor;
 import org.slf4j.LoggerFactory;
 import org.springframework.jdbc.core.BeanPropertyRowMapper;
 import org.springframework.jdbc.core.RowMapper;
@@ -41,6 +45,7 @@ import com.logicaldoc.core.document.DocumentListenerManager;
 import com.logicaldoc.core.document.DocumentNote;
 import com.logicaldoc.core.document.Tag;
 import com.logicaldoc.core.document.TagCloud;
+import com.logicaldoc.core.document.UniqueTagCounters;
 import com.logicaldoc.core.document.Version;
 import com.logicaldoc.core.folder.Folder;
 import com.logicaldoc.core.folder.FolderDAO;
@@ -85,6 +90,8 @@ public class HibernateDocumentDAO extends HibernatePersistentObjectDAO<Document>
 
 	private ContextProperties config;
 
+	private UniqueTagCounters tagCounters;
+
 	private HibernateDocumentDAO() {
 		super(Document.class);
 		super.log = LoggerFactory.getLogger(HibernateDocumentDAO.class);
@@ -424,12 +431,19 @@ public class HibernateDocumentDAO extends HibernatePersistentObjectDAO<Document>
 			// Use unique filename in the same folder
 			setUniqueFilename(doc);
 
+			// The tags currently counted in the tag cloud
+			Set<String> oldTags = tagCounters != null ? getOldTags(doc) : null;
+
 			// Save the document
 			saveOrUpdate(doc);
 			try {
 				flush();
 			} catch (Throwable t) {
 			}
+
+			if (oldTags != null)
+				tagCounters.update(doc.getTenantId(), oldTags,
+						doc.getDeleted() == 0 ? doc.getTagsAsWords() : new HashSet<String>());
 			if (doc.getDeleted() == 0 && doc.getId() != 0L)
 				refresh(doc);
 
@@ -544,6 +558,26 @@ public class HibernateDocumentDAO extends HibernatePersistentObjectDAO<Document>
 		}
 	}
 
+	@Override
+	public void updateDigests(List<Document> documents) throws PersistenceException {
+		if (documents.isEmpty() || !checkStoringAspect())
+			return;
+
+		Date now = new Date();
+		List<Object[]> docArgs = new ArrayList<Object[]>();
+		List<Object[]> verArgs = new ArrayList<Object[]>();
+		for (Document doc : documents) {
+			docArgs.add(new Object[] { now, doc.getDigest(), doc.getId(), doc.getFileVersion() });
+			verArgs.add(new Object[] { doc.getDigest(), doc.getId(), doc.getFileVersion() });
+		}
+
+		// The file may have been checked in meanwhile, so do not overwrite the
+		// digest of a newer file version
+		jdbcBatchUpdate("update ld_document set ld_lastmodified=?, ld_digest=? where ld_id=? and ld_fileversion=?",
+				docArgs);
+		jdbcBatchUpdate("update ld_version set ld_digest=? where ld_documentid=? and ld_fileversion=?", verArgs);
+	}
+
 	@SuppressWarnings("unchecked")
 	public List<Document> findLastModifiedByUserId(long userId, int maxElements) {
 		List<Document> coll = new ArrayList<Document>();
@@ -764,6 +798,47 @@ public class HibernateDocumentDAO extends HibernatePersistentObjectDAO<Document>
 		}
 	}
 
+	@Override
+	public List<Document> findByFolder(long folderId, Long afterId, Integer max) {
+		try {
+			if (afterId == null)
+				return findByWhere("_entity.folder.id = ?1 ", new Object[] { Long.valueOf(folderId) },
+						"_entity.id asc", max);
+			else
+				return findByWhere("_entity.folder.id = ?1 and _entity.id > ?2 ",
+						new Object[] { Long.valueOf(folderId), afterId }, "_entity.id asc", max);
+		} catch (PersistenceException e) {
+			log.warn(e.getMessage(), e);
+			return new ArrayList<Document>();
+		}
+	}
+
+	@Override
+	public Long findDocIdAtPosition(long folderId, int position) {
+		if (position < 0)
+			return null;
+		try {
+			String query = "select _entity.id from Document _entity where _entity.deleted=0 "
+					+ " and _entity.folder.id = :folderId order by _entity.id asc";
+			List<Long> ids = getCurrentSession().createQuery(query, Long.class).setParameter("folderId", folderId)
+					.setFirstResult(position).setMaxResults(1).list();
+			return ids.isEmpty() ? null : ids.get(0);
+		} catch (Throwable e) {
+			log.warn(e.getMessage(), e);
+			return null;
+		}
+	}
+
+	@Override
+	public long countByFolder(long folderId) {
+		try {
+			return queryForLong("select count(*) from ld_document where ld_deleted=0 and ld_folderid = " + folderId);
+		} catch (PersistenceException e) {
+			log.error(e.getMessage(), e);
+			return 0;
+		}
+	}
+
 	@Override
 	public List<Document> findArchivedByFolder(long folderId) {
 		try {
@@ -941,6 +1016,12 @@ public class HibernateDocumentDAO extends HibernatePersistentObjectDAO<Document>
 
 	@Override
 	public void restore(long docId, long folderId, final DocumentHistory transaction) throws PersistenceException {
+		// The tags of a deleted document are not counted in the tag cloud
+		@SuppressWarnings("unchecked")
+		List<String> restoredTags = (List<String>) queryForList(
+				"select ld_tag from ld_tag where ld_docid = ? and exists (select ld_id from ld_document where ld_id = ? and not ld_deleted = 0)",
+				new Object[] { docId, docId }, String.class, null);
+
 		bulkUpdate("set ld_deleted=0, ld_folderid=" + folderId + ", ld_lastmodified=CURRENT_TIMESTAMP where ld_id="
 				+ docId, null);
 
@@ -948,6 +1029,10 @@ public class HibernateDocumentDAO extends HibernatePersistentObjectDAO<Document>
 				+ ", ld_lastmodified=CURRENT_TIMESTAMP where ld_documentid=" + docId, null);
 
 		Document doc = findById(docId);
+		if (doc != null && tagCounters != null)
+			for (String tag : restoredTags)
+				tagCounters.add(doc.getTenantId(), tag, 1L);
+
 		if (doc != null && transaction != null) {
 			transaction.setDocId(docId);
 			transaction.setEvent(DocumentEvent.RESTORED.toString());
@@ -1195,6 +1280,10 @@ public class HibernateDocumentDAO extends HibernatePersistentObjectDAO<Document>
 		this.tenantDAO = tenantDAO;
 	}
 
+	public void setTagCounters(UniqueTagCounters tagCounters) {
+		this.tagCounters = tagCounters;
+	}
+
 	@Override
 	public void cleanUnexistingUniqueTags() {
 		StringBuffer deleteStatement = new StringBuffer("delete from ld_uniquetag UT where ");
@@ -1283,50 +1372,48 @@ public class HibernateDocumentDAO extends HibernatePersistentObjectDAO<Document>
 
 	@Override
 	public void updateCountUniqueTags() {
+		// Save the pending increments before recounting, then drop the cache
+		if (tagCounters != null)
+			tagCounters.flush();
+
 		List<Long> tenantIds = tenantDAO.findAllIds();
 		for (Long tenantId : tenantIds) {
-			// Get the actual unique tags for the given tenant
-			List<String> uniqueTags = new ArrayList<String>();
-
+			// Update the count of all the tags of the tenant skipping those
+			// tags that belong to deleted documents
 			try {
-				uniqueTags = (List<String>) queryForList("select ld_tag from ld_uniquetag", String.class);
+				jdbcUpdate(
+						"update ld_uniquetag set ld_count = (select count(T.ld_tag) from ld_tag T, ld_document D where T.ld_tag=ld_uniquetag.ld_tag and T.ld_tenantid="
+								+ tenantId + " and T.ld_docid = D.ld_id and D.ld_deleted=0 ) where ld_tenantid="
+								+ tenantId);
 			} catch (PersistenceException e) {
-				log.error(e.getMessage(), e);
-			}
-
-			// Update the count for each tag skipping those tags that belong to
-			// deleted documents
-			for (String tag : uniqueTags) {
-				try {
-					jdbcUpdate(
-							"update ld_uniquetag set ld_count = (select count(T.ld_tag) from ld_tag T, ld_document D where T.ld_tag='"
-									+ SqlUtil.doubleQuotes(tag) + "' and T.ld_tenantid=" + tenantId
-									+ " and T.ld_docid = D.ld_id and D.ld_deleted=0 ) where ld_tag='"
-									+ SqlUtil.doubleQuotes(tag) + "' and ld_tenantid=" + tenantId);
-				} catch (PersistenceException e) {
-					log.warn(e.getMessage(), e);
-				}
+				log.warn(e.getMessage(), e);
 			}
 		}
+
+		if (tagCounters != null)
+			tagCounters.invalidate();
 	}
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public List<TagCloud> getTagCloud(long tenantId, int maxTags) {
-		GenericDAO gendao = (GenericDAO) Context.get().getBean(GenericDAO.class);
-
 		List<TagCloud> list = new ArrayList<TagCloud>();
-		try {
-			list = (List<TagCloud>) gendao.query("select ld_tag, ld_count from ld_uniquetag where ld_tenantid="
-					+ tenantId + " order by ld_count desc", null, new RowMapper<TagCloud>() {
+		if (tagCounters != null && maxTags > 0) {
+			list = tagCounters.getTopTags(tenantId, maxTags);
+		} else {
+			GenericDAO gendao = (GenericDAO) Context.get().getBean(GenericDAO.class);
+			try {
+				list = (List<TagCloud>) gendao.query("select ld_tag, ld_count from ld_uniquetag where ld_tenantid="
+						+ tenantId + " order by ld_count desc", null, new RowMapper<TagCloud>() {
 
-						@Override
-						public TagCloud mapRow(ResultSet rs, int arg1) throws SQLException {
-							return new TagCloud(rs.getString(1), rs.getLong(2));
-						}
-					}, null);
-		} catch (PersistenceException e) {
-			log.error(e.getMessage(), e);
+							@Override
+							public TagCloud mapRow(ResultSet rs, int arg1) throws SQLException {
+								return new TagCloud(rs.getString(1), rs.getLong(2));
+							}
+						}, null);
+			} catch (PersistenceException e) {
+				log.error(e.getMessage(), e);
+			}
 		}
 
 		/**
@@ -1362,6 +1449,62 @@ public class HibernateDocumentDAO extends HibernatePersistentObjectDAO<Document>
 		return getTagCloud(session.getTenantId(), maxTags);
 	}
 
+	/**
+	 * Retrieves the tags of a document counted in the tag cloud before the
+	 * current change. The state loaded by the session is used when possible,
+	 * the database is queried only for detached documents or when the loaded
+	 * tags are not available.
+	 * 
+	 * @return the tags, null if surely unchanged
+	 */
+	private Set<String> getOldTags(Document doc) {
+		if (doc.getId() == 0L)
+			return new HashSet<String>();
+
+		EntityEntry entry = ((SessionImplementor) sessionFactory.getCurrentSession()).getPersistenceContext()
+				.getEntry(doc);
+		if (entry == null || entry.getLoadedState() == null)
+			return getLiveTags(doc.getId());
+
+		boolean wasLive = Integer.valueOf(0).equals(entry.getLoadedValue("deleted"));
+		Object loadedTags = entry.getLoadedValue("tags");
+		if (!(loadedTags instanceof PersistentCollection))
+			return getLiveTags(doc.getId());
+
+		PersistentCollection collection = (PersistentCollection) loadedTags;
+		if (!collection.wasInitialized()) {
+			// The tags were never read, so they did not change
+			if (collection == doc.getTags() && wasLive == (doc.getDeleted() == 0))
+				return null;
+			return getLiveTags(doc.getId());
+		}
+
+		if (!wasLive)
+			return new HashSet<String>();
+
+		Serializable snapshot = collection.getStoredSnapshot();
+		if (!(snapshot instanceof Map))
+			return getLiveTags(doc.getId());
+		return ((Map<?, ?>) snapshot).keySet().stream().map(tag -> ((Tag) tag).getTag())
+				.collect(Collectors.toSet());
+	}
+
+	/**
+	 * Retrieves the tags of a document as saved in the database, if the
+	 * document is not deleted
+	 */
+	@SuppressWarnings("unchecked")
+	private Set<String> getLiveTags(long docId) {
+		try {
+			return new HashSet<String>((List<String>) queryForList(
+					"select A.ld_tag from ld_tag A, ld_document B where A.ld_docid = B.ld_id and B.ld_deleted = 0 and B.ld_id = ?",
+					new Object[] { docId }, String.class, null));
+		} catch (PersistenceException e) {
+			log.warn(e.getMessage(), e);
+			return new HashSet<String>();
+		}
+	}
+
 	@Override
 	public Document findDocument(long docId) {
 		Document doc = findById(docId);
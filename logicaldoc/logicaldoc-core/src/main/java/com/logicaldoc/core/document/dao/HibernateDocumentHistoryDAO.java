@@ -146,6 +146,12 @@ public class HibernateDocumentHistoryDAO extends HibernatePersistentObjectDAO<Do
 			return true;
 	}
 
+	@Override
+	public void store(List<DocumentHistory> histories) throws PersistenceException {
+		for (DocumentHistory history : histories)
+			store(history);
+	}
+
 	@Override
 	public List<DocumentHistory> findByPath(String pathExpression, Date olderDate, Collection<String> events,
 			Integer max) {
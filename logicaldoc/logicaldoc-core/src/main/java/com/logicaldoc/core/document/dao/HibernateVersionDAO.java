@@ -146,7 +146,7 @@ public class HibernateVersionDAO extends HibernatePersistentObjectDAO<Version> i
 							}
 						}
 						if (toDelete) {
-							storer.delete(version.getDocId(), resource);
+							storer.delete(version.getDocId(), resource, version.getTenantId());
 						}
 					}
 				}
@@ -24,7 +24,7 @@ public class ImageThumbnailBuilder extends AbstractThumbnailBuilder {
 	protected static Logger log = LoggerFactory.getLogger(ImageThumbnailBuilder.class);
 
 	@Override
-	public synchronized void buildThumbnail(String sid, Document document, String fileVersion, File src, File dest,
+	public void buildThumbnail(String sid, Document document, String fileVersion, File src, File dest,
 			int size, int quality) throws IOException {
 		try {
 			String outExt = FilenameUtils.getExtension(dest.getName().toLowerCase());
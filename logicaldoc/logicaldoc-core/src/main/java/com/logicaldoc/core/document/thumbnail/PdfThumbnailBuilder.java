@@ -20,7 +20,7 @@ public class PdfThumbnailBuilder extends ImageThumbnailBuilder {
 	protected static Logger log = LoggerFactory.getLogger(PdfThumbnailBuilder.class);
 
 	@Override
-	public synchronized void buildThumbnail(String sid, Document document, String fileVersion, File src, File dest,
+	public void buildThumbnail(String sid, Document document, String fileVersion, File src, File dest,
 			int size, int compression) throws IOException {
 
 		File tmp = File.createTempFile("rendertmb", ThumbnailManager.SUFFIX_THUMB);
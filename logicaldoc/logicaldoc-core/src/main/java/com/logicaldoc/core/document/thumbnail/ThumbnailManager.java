@@ -143,7 +143,7 @@ public class ThumbnailManager {
 
 			// Put the resource
 			String resource = storer.getResourceName(document, getSuitableFileVersion(document, fileVersion), suffix);
-			storer.store(dest, document.getId(), resource);
+			storer.store(dest, document.getId(), resource, document.getTenantId());
 		} catch (Throwable e) {
 			log.warn("Error rendering image for document: {} - {}", document.getId(), document.getFileName(), e);
 		} finally {
@@ -0,0 +1,218 @@
+package com.logicaldoc.core.document.thumbnail;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.logicaldoc.core.document.Document;
+import com.logicaldoc.core.document.dao.DocumentDAO;
+import com.logicaldoc.core.store.Storer;
+import com.logicaldoc.core.threading.ThreadPools;
+import com.logicaldoc.util.config.ContextProperties;
+
+/**
+ * Renders the thumbnails, tiles and the other images of the documents in the
+ * thread pool <b>Thumbnail</b>, so the number of concurrent renderings is
+ * bounded. The requests for the same image (document, file version and
+ * suffix) are coalesced: while an image is being rendered, all the callers
+ * that ask for it receive the same future.<br>
+ * The service also pre-generates the images listed in
+ * <b>thumbnail.pregenerate</b>(comma separated suffixes, like
+ * <code>thumb.png,tile.png</code>) when a document is created or checked in,
+ * using the separate pool <b>ThumbnailPregeneration</b> so that the images
+ * requested by the users never wait behind the pre-generations. The
+ * pre-generation starts after the commit of the current transaction and reads
+ * the document again, so it never sees uncommitted data. At most
+ * <b>thumbnail.pregenerate.queue</b> documents can be pending, the exceeding
+ * ones are discarded and the images will be rendered on first access.
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class ThumbnailService {
+
+	public static final String POOL = "Thumbnail";
+
+	public static final String POOL_PREGENERATION = "ThumbnailPregeneration";
+
+	private static Logger log = LoggerFactory.getLogger(ThumbnailService.class);
+
+	private ThumbnailManager thumbnailManager;
+
+	private DocumentDAO documentDao;
+
+	private Storer storer;
+
+	private ThreadPools threadPools;
+
+	private ContextProperties config;
+
+	// Key is docId-fileVersion-suffix, value is the rendering in progress
+	private Map<String, Future<?>> renderings = new ConcurrentHashMap<String, Future<?>>();
+
+	private AtomicInteger pendingPregenerations = new AtomicInteger(0);
+
+	/**
+	 * Renders an image of a document unless it is already stored. If the same
+	 * image is being rendered, the future of that rendering is returned.
+	 *
+	 * @param document the document
+	 * @param fileVersion the file version(optional)
+	 * @param suffix the suffix of the image, like <code>thumb.png</code>,
+	 *        <code>tile.png</code> or <code>thumb450.png</code>
+	 * @param sid identifier of the session(optional)
+	 *
+	 * @return the future that completes when the image is available
+	 */
+	public Future<?> render(Document document, String fileVersion, String suffix, String sid) {
+		return render(document, fileVersion, suffix, sid, false);
+	}
+
+	/**
+	 * Renders an image, if <code>inline</code> is true the rendering is
+	 * executed in the current thread
+	 */
+	private Future<?> render(Document document, String fileVersion, String suffix, String sid, boolean inline) {
+		String fver = fileVersion != null ? fileVersion : document.getFileVersion();
+		String resource = storer.getResourceName(document, fver, suffix);
+		if (storer.size(document.getId(), resource) > 0L)
+			return CompletableFuture.completedFuture(null);
+
+		String key = document.getId() + "-" + fver + "-" + suffix;
+		FutureTask<Void> task = new FutureTask<Void>(() -> {
+			try {
+				// Another rendering may have just completed
+				if (storer.size(document.getId(), resource) <= 0L)
+					createImage(document, fver, suffix, sid);
+			} finally {
+				renderings.remove(key);
+			}
+		}, null);
+
+		Future<?> rendering = renderings.putIfAbsent(key, task);
+		if (rendering != null)
+			return rendering;
+
+		if (inline) {
+			task.run();
+			return task;
+		}
+
+		try {
+			threadPools.getPool(POOL).execute(task);
+		} catch (RuntimeException e) {
+			// The pool is not available, for instance during the shutdown
+			log.debug("Cannot use pool {}: {}", POOL, e.getMessage());
+			task.run();
+		}
+		return task;
+	}
+
+	private void createImage(Document document, String fileVersion, String suffix, String sid) {
+		try {
+			if (ThumbnailManager.SUFFIX_THUMB.equals(suffix))
+				thumbnailManager.createTumbnail(document, fileVersion, sid);
+			else if (ThumbnailManager.SUFFIX_TILE.equals(suffix))
+				thumbnailManager.createTile(document, fileVersion, sid);
+			else if (ThumbnailManager.SUFFIX_MOBILE.equals(suffix))
+				thumbnailManager.createMobile(document, fileVersion, sid);
+			else if (suffix.startsWith(ThumbnailManager.THUMB) && suffix.endsWith(".png")) {
+				/*
+				 * In this case the suffix is like thumb450.png so we extract
+				 * the size from the name
+				 */
+				int size = Integer
+						.parseInt(suffix.substring(ThumbnailManager.THUMB.length(), suffix.lastIndexOf('.')));
+				thumbnailManager.createTumbnail(document, fileVersion, size, null, sid);
+			} else {
+				log.error("Unknow image {}", suffix);
+				return;
+			}
+			log.debug("Created image {} of document {}", suffix, document.getId());
+		} catch (Throwable t) {
+			log.error(t.getMessage(), t);
+		}
+	}
+
+	/**
+	 * Schedules the pre-generation of the images of a document, if enabled.
+	 * When invoked inside a transaction, the pre-generation is scheduled after
+	 * the commit.
+	 *
+	 * @param docId identifier of the document
+	 * @param fileVersion the file version
+	 */
+	public void pregenerate(long docId, String fileVersion) {
+		String suffixes = config.getProperty("thumbnail.pregenerate");
+		if (StringUtils.isEmpty(suffixes))
+			return;
+
+		if (TransactionSynchronizationManager.isSynchronizationActive())
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					schedulePregeneration(docId, fileVersion, suffixes);
+				}
+			});
+		else
+			schedulePregeneration(docId, fileVersion, suffixes);
+	}
+
+	private void schedulePregeneration(long docId, String fileVersion, String suffixes) {
+		if (pendingPregenerations.incrementAndGet() > config.getInt("thumbnail.pregenerate.queue", 1000)) {
+			pendingPregenerations.decrementAndGet();
+			log.debug("Too many pending pre-generations, skip document {}", docId);
+			return;
+		}
+
+		try {
+			threadPools.getPool(POOL_PREGENERATION).execute(() -> {
+				try {
+					Document document = documentDao.findById(docId);
+					if (document == null)
+						return;
+
+					for (String suffix : suffixes.split(","))
+						if (StringUtils.isNotEmpty(suffix.trim()))
+							render(document, fileVersion, suffix.trim(), null, true);
+				} catch (Throwable t) {
+					log.warn(t.getMessage(), t);
+				} finally {
+					pendingPregenerations.decrementAndGet();
+				}
+			});
+		} catch (RuntimeException e) {
+			pendingPregenerations.decrementAndGet();
+			log.debug("Cannot use pool {}: {}", POOL_PREGENERATION, e.getMessage());
+		}
+	}
+
+	public void setThumbnailManager(ThumbnailManager thumbnailManager) {
+		this.thumbnailManager = thumbnailManager;
+	}
+
+	public void setDocumentDao(DocumentDAO documentDao) {
+		this.documentDao = documentDao;
+	}
+
+	public void setStorer(Storer storer) {
+		this.storer = storer;
+	}
+
+	public void setThreadPools(ThreadPools threadPools) {
+		this.threadPools = threadPools;
+	}
+
+	public void setConfig(ContextProperties config) {
+		this.config = config;
+	}
+}
@@ -2,6 +2,7 @@ package com.logicaldoc.core.folder;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.logicaldoc.core.PersistenceException;
@@ -235,6 +236,18 @@ public interface FolderDAO extends PersistentObjectDAO<Folder> {
 	 */
 	public Set<Permission> getEnabledPermissions(long folderId, long userId);
 
+	/**
+	 * Finds all permissions of a user enabled on the specified folders, the
+	 * evaluation is done in a single pass so this method should be preferred
+	 * when listing many folders
+	 * 
+	 * @param folderIds IDs of the folders
+	 * @param userId ID of the user
+	 * 
+	 * @return Map with key the folder ID and value the enabled permissions
+	 */
+	public Map<Long, Set<Permission>> getEnabledPermissions(Collection<Long> folderIds, long userId);
+
 	/**
 	 * This method selects only the folder ID from the folders for which a user
 	 * is authorized. Only folders direct child of the specified parent are
@@ -0,0 +1,26 @@
+package com.logicaldoc.core.folder;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This interface defines a hook called after the changes to the folders have
+ * been committed, useful to invalidate the data derived from the folders
+ * hierarchy. The changes include creations, renames, moves, deletions and
+ * alterations of the security policies.
+ * 
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public interface FolderListener {
+
+	/**
+	 * Called after the commit of a transaction that changed some folders
+	 * 
+	 * @param paths key is the tenant ID, value is the set of paths in the form
+	 *        /Default/dir1/dir2 that the changed folders had before and after
+	 *        the changes. If null the changed folders are not known and all of
+	 *        them must be considered changed
+	 */
+	public void afterCommit(Map<Long, Set<String>> paths);
+}
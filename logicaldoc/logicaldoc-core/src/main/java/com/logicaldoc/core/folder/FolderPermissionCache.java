@@ -0,0 +1,237 @@
+package com.logicaldoc.core.folder;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.logicaldoc.core.security.Permission;
+import com.logicaldoc.util.config.ContextProperties;
+
+/**
+ * Cache of the permissions granted on the folders. The permissions are
+ * represented as a bitmask(see {@link Permission#getMask()}) and are
+ * associated to the couple (folder that defines the security policies, set of
+ * groups), so that all the users sharing the same groups also share the same
+ * entries.<br>
+ * The cache also remembers the groups of each user. Invalidations are applied
+ * immediately and repeated when the current transaction completes, so that the
+ * data loaded by concurrent threads before the commit get discarded as well.
+ * Each invalidation also moves a generation counter: the loaders capture it
+ * before reading the database and the values they put are dropped if it moved
+ * in the meantime.<br>
+ * The maximum number of cached masks, and separately of cached users, is
+ * controlled by the setting <b>cache.permissions.size</b>.
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class FolderPermissionCache {
+
+	private static Logger log = LoggerFactory.getLogger(FolderPermissionCache.class);
+
+	private ContextProperties config;
+
+	// Key is the user ID
+	private Map<Long, UserGroups> users = new ConcurrentHashMap<Long, UserGroups>();
+
+	// Key is the ID of the folder that defines the policies, value is a map
+	// with key the groups key and value the permissions mask
+	private Map<Long, Map<String, Integer>> masks = new ConcurrentHashMap<Long, Map<String, Integer>>();
+
+	private AtomicInteger size = new AtomicInteger(0);
+
+	private AtomicLong generation = new AtomicLong(0L);
+
+	/**
+	 * Gets the current generation, to be captured before reading from the
+	 * database the data to put in the cache
+	 *
+	 * @return the generation
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Gets the cached groups of a user
+	 *
+	 * @param userId identifier of the user
+	 *
+	 * @return the groups or null if not cached
+	 */
+	public UserGroups getUserGroups(long userId) {
+		return users.get(userId);
+	}
+
+	/**
+	 * Caches the groups of a user
+	 *
+	 * @param userId identifier of the user
+	 * @param groups the groups
+	 * @param generation the generation captured before loading the groups
+	 */
+	public void putUserGroups(long userId, UserGroups groups, long generation) {
+		if (!users.containsKey(userId) && users.size() >= getMaxSize()) {
+			log.debug("Users cache is full");
+			users.clear();
+		}
+		users.put(userId, groups);
+
+		// An invalidation may have happened meanwhile
+		if (this.generation.get() != generation)
+			users.remove(userId, groups);
+	}
+
+	/**
+	 * Gets the cached permissions
+	 *
+	 * @param securityFolderId identifier of the folder that defines the
+	 *        security policies
+	 * @param groups the groups of the user
+	 *
+	 * @return the permissions mask or null if not cached
+	 */
+	public Integer getMask(long securityFolderId, UserGroups groups) {
+		Map<String, Integer> map = masks.get(securityFolderId);
+		return map != null ? map.get(groups.getKey()) : null;
+	}
+
+	/**
+	 * Caches the permissions
+	 *
+	 * @param securityFolderId identifier of the folder that defines the
+	 *        security policies
+	 * @param groups the groups of the user
+	 * @param mask the permissions mask
+	 * @param generation the generation captured before loading the mask
+	 */
+	public void putMask(long securityFolderId, UserGroups groups, int mask, long generation) {
+		if (this.generation.get() != generation)
+			return;
+
+		if (size.get() >= getMaxSize()) {
+			log.debug("Permissions cache is full");
+			clearMasks();
+		}
+
+		Map<String, Integer> map = masks.computeIfAbsent(securityFolderId,
+				id -> new ConcurrentHashMap<String, Integer>());
+		if (map.put(groups.getKey(), mask) == null)
+			size.incrementAndGet();
+
+		// An invalidation may have happened meanwhile
+		if (this.generation.get() != generation)
+			map.remove(groups.getKey(), mask);
+	}
+
+	private int getMaxSize() {
+		return config.getInt("cache.permissions.size", 100000);
+	}
+
+	/**
+	 * Invalidates the permissions defined by a folder
+	 *
+	 * @param folderId identifier of the folder
+	 */
+	public void invalidateFolder(long folderId) {
+		removeMasks(folderId);
+		afterCompletion(() -> removeMasks(folderId));
+	}
+
+	private void removeMasks(long folderId) {
+		generation.incrementAndGet();
+		Map<String, Integer> removed = masks.remove(folderId);
+		if (removed != null)
+			size.addAndGet(-removed.size());
+	}
+
+	/**
+	 * Invalidates the groups of a user, to be called when the memberships
+	 * change
+	 *
+	 * @param userId identifier of the user
+	 */
+	public void invalidateUser(long userId) {
+		removeUser(userId);
+		afterCompletion(() -> removeUser(userId));
+	}
+
+	private void removeUser(long userId) {
+		generation.incrementAndGet();
+		users.remove(userId);
+	}
+
+	/**
+	 * Invalidates the whole cache
+	 */
+	public void invalidateAll() {
+		clear();
+		afterCompletion(() -> clear());
+	}
+
+	private void clear() {
+		generation.incrementAndGet();
+		users.clear();
+		clearMasks();
+	}
+
+	private void clearMasks() {
+		masks.clear();
+		size.set(0);
+	}
+
+	private void afterCompletion(Runnable action) {
+		if (TransactionSynchronizationManager.isSynchronizationActive())
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					action.run();
+				}
+			});
+	}
+
+	public void setConfig(ContextProperties config) {
+		this.config = config;
+	}
+
+	/**
+	 * The groups a user belongs to
+	 *
+	 * @author Marco Meschieri - LogicalDOC
+	 * @since 8.7.3
+	 */
+	public static class UserGroups {
+
+		private final boolean admin;
+
+		private final long[] groupIds;
+
+		private final String key;
+
+		public UserGroups(boolean admin, long[] groupIds) {
+			this.admin = admin;
+			this.groupIds = groupIds.clone();
+			Arrays.sort(this.groupIds);
+			this.key = Arrays.toString(this.groupIds);
+		}
+
+		public boolean isAdmin() {
+			return admin;
+		}
+
+		public long[] getGroupIds() {
+			return groupIds;
+		}
+
+		public String getKey() {
+			return key;
+		}
+	}
+}
@@ -0,0 +1,799 @@
+package com.logicaldoc.core.folder;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.logicaldoc.core.PersistenceException;
+
+/**
+ * In-memory index of the folders hierarchy. It keeps for each folder just the
+ * parent, the name, the security reference, the type and the deleted flag so
+ * that ancestry, path and subtree queries can be answered without hitting the
+ * database.<br>
+ * The index is tenant scoped: the folders of a tenant are loaded with a single
+ * query the first time one of them is requested. The changes are notified by
+ * the DAO node by node: while the transaction is running they are only visible
+ * to the thread that made them, and they are merged into the shared index
+ * after the commit(a rollback just discards them). A full reload of a tenant
+ * only happens when it is explicitly marked as stale.<br>
+ * After the commit the {@link FolderListener}s are notified with the paths
+ * the changed folders had before and after the changes.<br>
+ * The index is local to the node: the changes made by the other nodes of a
+ * cluster are not notified, so they are seen only after a reload.
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class FolderTree {
+
+	private static Logger log = LoggerFactory.getLogger(FolderTree.class);
+
+	/**
+	 * Protection against loops in a corrupted hierarchy
+	 */
+	private static final int MAX_DEPTH = 1000;
+
+	private static final String COLUMNS = "select ld_id, ld_parentid, ld_name, ld_securityref, ld_type, ld_deleted, ld_tenantid from ld_folder ";
+
+	private FolderDAO folderDao;
+
+	private FolderListenerManager listenerManager;
+
+	// Key is the folder ID
+	private Map<Long, Node> nodes = new HashMap<Long, Node>();
+
+	// Key is the parent folder ID, value the IDs of the direct children
+	private Map<Long, Set<Long>> children = new HashMap<Long, Set<Long>>();
+
+	// Key is the tenant ID, value is the ID of the root folder
+	private Map<Long, Long> roots = new HashMap<Long, Long>();
+
+	private Set<Long> loadedTenants = new HashSet<Long>();
+
+	private Set<Long> staleTenants = Collections.synchronizedSet(new HashSet<Long>());
+
+	private Set<Long> staleFolders = Collections.synchronizedSet(new HashSet<Long>());
+
+	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * The changes made by the transaction bound to the current thread, not yet
+	 * committed
+	 */
+	private ThreadLocal<Changes> pending = new ThreadLocal<Changes>();
+
+	public FolderTree(FolderDAO folderDao) {
+		this.folderDao = folderDao;
+	}
+
+	/**
+	 * Computes the path of a folder in the form /4/1200/1300
+	 *
+	 * @param folderId identifier of the folder
+	 *
+	 * @return the path or null if the folder does not exist
+	 */
+	public String getPath(long folderId) {
+		return computePath(folderId, false);
+	}
+
+	/**
+	 * Computes the path of a folder in the form /Default/dir1/dir2
+	 *
+	 * @param folderId identifier of the folder
+	 *
+	 * @return the path or null if the folder does not exist
+	 */
+	public String getPathExtended(long folderId) {
+		return computePath(folderId, true);
+	}
+
+	private String computePath(long folderId, boolean extended) {
+		Node node = getNode(folderId);
+		if (node == null)
+			return null;
+
+		lock.readLock().lock();
+		try {
+			Long rootId = getRootId(node.tenantId);
+			if (rootId == null)
+				return null;
+
+			StringBuilder path = new StringBuilder();
+			if (node.id != rootId)
+				path.append(extended ? node.name : Long.toString(node.id));
+
+			for (Node parent : getParents(node, rootId)) {
+				path.insert(0, '/');
+				if (parent.id != rootId)
+					path.insert(0, extended ? parent.name : Long.toString(parent.id));
+			}
+
+			if (path.length() == 0 || path.charAt(0) != '/')
+				path.insert(0, '/');
+			return path.toString();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Retrieves the identifiers of the parent folders, the first element is
+	 * the root
+	 *
+	 * @param folderId identifier of the folder
+	 *
+	 * @return the list of parents, empty if the folder does not exist
+	 */
+	public List<Long> getParentIds(long folderId) {
+		Node node = getNode(folderId);
+		if (node == null)
+			return new ArrayList<Long>();
+
+		lock.readLock().lock();
+		try {
+			Long rootId = getRootId(node.tenantId);
+			List<Node> parents = getParents(node, rootId != null ? rootId : -1L);
+			List<Long> ids = new ArrayList<Long>(parents.size());
+			for (int i = parents.size() - 1; i >= 0; i--)
+				ids.add(parents.get(i).id);
+			return ids;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the workspace the given folder belongs to
+	 *
+	 * @param folderId identifier of the folder
+	 *
+	 * @return identifier of the workspace, null if not found
+	 */
+	public Long getWorkspaceId(long folderId) {
+		Node node = getNode(folderId);
+		if (node == null)
+			return null;
+		if (node.type == Folder.TYPE_WORKSPACE)
+			return node.id;
+
+		lock.readLock().lock();
+		try {
+			Long rootId = getRootId(node.tenantId);
+			List<Node> parents = getParents(node, rootId != null ? rootId : -1L);
+			for (int i = parents.size() - 1; i >= 0; i--) {
+				Node parent = parents.get(i);
+				if (!"/".equals(parent.name) && parent.type == Folder.TYPE_WORKSPACE)
+					return parent.id;
+			}
+			return null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Checks if a folder is a parent of another one
+	 *
+	 * @param folderId identifier of the candidate parent
+	 * @param targetId identifier of the folder to check
+	 *
+	 * @return true if <code>folderId</code> is one of the parents of
+	 *         <code>targetId</code>
+	 */
+	public boolean isInPath(long folderId, long targetId) {
+		return getParentIds(targetId).contains(folderId);
+	}
+
+	/**
+	 * Gets the security reference of a folder
+	 *
+	 * @param folderId identifier of the folder
+	 *
+	 * @return the security reference, null if the folder does not exist or
+	 *         defines its own rights
+	 */
+	public Long getSecurityRef(long folderId) {
+		Node node = getNode(folderId);
+		return node != null ? node.securityRef : null;
+	}
+
+	/**
+	 * Checks if a folder exists and is not deleted
+	 *
+	 * @param folderId identifier of the folder
+	 *
+	 * @return true if the folder exists
+	 */
+	public boolean exists(long folderId) {
+		return getNode(folderId) != null;
+	}
+
+	/**
+	 * Collects the identifiers of all the folders in a tree
+	 *
+	 * @param rootId identifier of the root of the tree
+	 * @param includeDeleted if the deleted folders must be traversed too
+	 *
+	 * @return the set of folder identifiers, including <code>rootId</code>
+	 */
+	public Set<Long> getTreeIds(long rootId, boolean includeDeleted) {
+		Set<Long> ids = new HashSet<Long>();
+		ids.add(rootId);
+
+		// Just to be sure the tenant has been loaded
+		getNode(rootId);
+
+		// Children added by the current transaction
+		Map<Long, Set<Long>> pendingChildren = new HashMap<Long, Set<Long>>();
+		Changes changes = pending.get();
+		if (changes != null)
+			for (Node node : changes.nodes.values())
+				if (node.id != node.parentId)
+					pendingChildren.computeIfAbsent(node.parentId, k -> new HashSet<Long>()).add(node.id);
+
+		lock.readLock().lock();
+		try {
+			LinkedList<Long> queue = new LinkedList<Long>();
+			queue.add(rootId);
+			while (!queue.isEmpty()) {
+				Long parentId = queue.removeFirst();
+				Set<Long> childIds = new HashSet<Long>();
+				if (children.containsKey(parentId))
+					childIds.addAll(children.get(parentId));
+				if (pendingChildren.containsKey(parentId))
+					childIds.addAll(pendingChildren.get(parentId));
+
+				for (Long childId : childIds) {
+					Node child = lookup(childId);
+
+					// Skip the folders moved elsewhere by the current
+					// transaction
+					if (child == null || child.parentId != parentId.longValue()
+							|| (!includeDeleted && child.deleted != 0))
+						continue;
+					if (ids.add(childId))
+						queue.add(childId);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return ids;
+	}
+
+	/**
+	 * Walks up the hierarchy with the same rules of the database
+	 * implementation: the folders marked as deleted interrupt the walk.
+	 * Invoke it with the read lock held.
+	 */
+	private List<Node> getParents(Node node, long rootId) {
+		List<Node> parents = new ArrayList<Node>();
+		Node current = node;
+		int depth = 0;
+		while (current != null && current.id != current.parentId && current.id != rootId && depth++ < MAX_DEPTH) {
+			current = lookup(current.parentId);
+			if (current != null && current.deleted == 1)
+				current = null;
+			if (current != null)
+				parents.add(current);
+		}
+
+		if (depth >= MAX_DEPTH)
+			log.warn("Detected a loop in the hierarchy of folder {}", node.id);
+
+		return parents;
+	}
+
+	/**
+	 * Gets the node of a not deleted folder, loading the tenant if needed
+	 */
+	private Node getNode(long folderId) {
+		refresh();
+
+		Changes changes = pending.get();
+		if (changes != null && changes.nodes.containsKey(folderId)) {
+			Node node = changes.nodes.get(folderId);
+			return node.deleted == 1 ? null : node;
+		}
+
+		lock.readLock().lock();
+		try {
+			Node node = nodes.get(folderId);
+			if (node != null)
+				return node.deleted == 1 ? null : node;
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		// Not found, maybe the tenant has not been loaded yet
+		try {
+			@SuppressWarnings("unchecked")
+			List<Long> tenants = (List<Long>) folderDao
+					.queryForList("select ld_tenantid from ld_folder where ld_id=" + folderId, Long.class);
+			if (tenants.isEmpty())
+				return null;
+
+			lock.writeLock().lock();
+			try {
+				long tenantId = tenants.get(0);
+				if (!loadedTenants.contains(tenantId))
+					loadTenant(tenantId);
+				else
+					loadFolders(Collections.singletonList(folderId));
+				Node node = nodes.get(folderId);
+				return node == null || node.deleted == 1 ? null : node;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		} catch (PersistenceException e) {
+			log.error(e.getMessage(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Gets a node as seen by the current transaction, deleted folders
+	 * included. Invoke it with the read lock held.
+	 */
+	private Node lookup(long folderId) {
+		Changes changes = pending.get();
+		if (changes != null && changes.nodes.containsKey(folderId))
+			return changes.nodes.get(folderId);
+		return nodes.get(folderId);
+	}
+
+	/**
+	 * Gets the root of a tenant as seen by the current transaction. Invoke it
+	 * with the read lock held.
+	 */
+	private Long getRootId(long tenantId) {
+		Changes changes = pending.get();
+		if (changes != null)
+			for (Node node : changes.nodes.values())
+				if (node.tenantId == tenantId && "/".equals(node.name) && node.deleted == 0)
+					return node.id;
+		return roots.get(tenantId);
+	}
+
+	/**
+	 * Reloads the stale tenants and folders
+	 */
+	private void refresh() {
+		if (staleTenants.isEmpty() && staleFolders.isEmpty())
+			return;
+
+		lock.writeLock().lock();
+		try {
+			Set<Long> tenants = null;
+			synchronized (staleTenants) {
+				tenants = new HashSet<Long>(staleTenants);
+				staleTenants.clear();
+			}
+
+			Set<Long> folders = null;
+			synchronized (staleFolders) {
+				folders = new HashSet<Long>(staleFolders);
+				staleFolders.clear();
+			}
+
+			for (Long tenantId : tenants)
+				if (loadedTenants.contains(tenantId))
+					loadTenant(tenantId);
+
+			if (!folders.isEmpty())
+				loadFolders(folders);
+		} catch (PersistenceException e) {
+			log.error(e.getMessage(), e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Loads all the folders of a tenant. Invoke it with the write lock held.
+	 */
+	@SuppressWarnings("unchecked")
+	private void loadTenant(long tenantId) throws PersistenceException {
+		long time = System.currentTimeMillis();
+
+		// Remove the old nodes of the tenant
+		List<Long> oldIds = nodes.values().stream().filter(n -> n.tenantId == tenantId).map(n -> n.id)
+				.collect(Collectors.toList());
+		for (Long id : oldIds)
+			remove(id);
+
+		List<Node> records = (List<Node>) folderDao.query(COLUMNS + " where ld_tenantid=" + tenantId, null,
+				new NodeMapper(), null);
+		for (Node node : records)
+			put(node);
+
+		loadedTenants.add(tenantId);
+		log.info("Loaded {} folders of tenant {} in {} ms", records.size(), tenantId,
+				System.currentTimeMillis() - time);
+	}
+
+	/**
+	 * Reloads the given folders. Invoke it with the write lock held.
+	 */
+	@SuppressWarnings("unchecked")
+	private void loadFolders(Collection<Long> folderIds) throws PersistenceException {
+		List<Long> ids = new ArrayList<Long>(folderIds);
+		for (int i = 0; i < ids.size(); i += 500) {
+			List<Long> chunk = ids.subList(i, Math.min(i + 500, ids.size()));
+			Set<Long> missing = new HashSet<Long>(chunk);
+			List<Node> records = (List<Node>) folderDao.query(
+					COLUMNS + " where ld_id in " + chunk.toString().replace('[', '(').replace(']', ')'), null,
+					new NodeMapper(), null);
+			for (Node node : records) {
+				missing.remove(node.id);
+				if (loadedTenants.contains(node.tenantId))
+					put(node);
+			}
+
+			// Not found anymore in the database
+			for (Long id : missing)
+				remove(id);
+		}
+	}
+
+	private void put(Node node) {
+		remove(node.id);
+		nodes.put(node.id, node);
+		if (node.id != node.parentId) {
+			Set<Long> siblings = children.get(node.parentId);
+			if (siblings == null) {
+				siblings = new HashSet<Long>();
+				children.put(node.parentId, siblings);
+			}
+			siblings.add(node.id);
+		}
+		if ("/".equals(node.name) && node.deleted == 0)
+			roots.put(node.tenantId, node.id);
+	}
+
+	private void remove(long folderId) {
+		Node old = nodes.remove(folderId);
+		if (old == null)
+			return;
+		Set<Long> siblings = children.get(old.parentId);
+		if (siblings != null) {
+			siblings.remove(folderId);
+			if (siblings.isEmpty())
+				children.remove(old.parentId);
+		}
+		if (roots.get(old.tenantId) != null && roots.get(old.tenantId) == folderId)
+			roots.remove(old.tenantId);
+	}
+
+	/**
+	 * Updates the index with the current state of a folder saved in the
+	 * current transaction. The change is immediately visible to the current
+	 * transaction and it is merged into the shared index after the commit.
+	 *
+	 * @param folder the folder to put in the index
+	 */
+	public void update(Folder folder) {
+		if (folder == null || folder.getId() == 0L)
+			return;
+
+		Map<Long, Set<String>> paths = collectPaths(Collections.singletonList(folder.getId()), null);
+		stage(new Node(folder.getId(), folder.getParentId(), folder.getName(), folder.getSecurityRef(),
+				folder.getType(), folder.getDeleted(), folder.getTenantId()));
+		changed(collectPaths(Collections.singletonList(folder.getId()), paths));
+	}
+
+	/**
+	 * Updates some attributes of a set of folders changed in the current
+	 * transaction with a bulk update. As for {@link #update(Folder)} the
+	 * change is merged into the shared index after the commit.
+	 *
+	 * @param folderIds identifiers of the changed folders
+	 * @param parentId the new parent, null if unchanged
+	 * @param securityRef the new security reference, null if unchanged
+	 * @param deleted the new deleted flag, null if unchanged
+	 */
+	public void patch(Collection<Long> folderIds, Long parentId, Long securityRef, Integer deleted) {
+		if (folderIds == null || folderIds.isEmpty())
+			return;
+
+		refresh();
+
+		Map<Long, Set<String>> paths = collectPaths(folderIds, null);
+		List<Node> patched = new ArrayList<Node>();
+		List<Long> unknown = new ArrayList<Long>();
+		lock.readLock().lock();
+		try {
+			for (Long id : folderIds) {
+				Node node = lookup(id);
+				if (node == null) {
+					unknown.add(id);
+					continue;
+				}
+				patched.add(new Node(node.id, parentId != null ? parentId : node.parentId, node.name,
+						securityRef != null ? securityRef : node.securityRef, node.type,
+						deleted != null ? deleted : node.deleted, node.tenantId));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		for (Node node : patched)
+			stage(node);
+		changed(collectPaths(folderIds, paths));
+
+		// Folders not in the index, just reload them after the commit
+		if (!unknown.isEmpty()) {
+			Changes changes = getChanges();
+			if (changes != null)
+				changes.reload.addAll(unknown);
+			else
+				staleFolders.addAll(unknown);
+		}
+	}
+
+	private void stage(Node node) {
+		Changes changes = getChanges();
+		if (changes != null)
+			changes.nodes.put(node.id, node);
+		else
+			apply(Collections.singletonList(node));
+	}
+
+	/**
+	 * Gets the changes of the current transaction, registering the
+	 * synchronization that merges them at the commit. Returns null if there
+	 * is no transaction.
+	 */
+	private Changes getChanges() {
+		Changes changes = pending.get();
+		if (changes != null || !TransactionSynchronizationManager.isSynchronizationActive())
+			return changes;
+
+		final Changes txChanges = new Changes();
+		pending.set(txChanges);
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCommit() {
+				apply(txChanges.nodes.values());
+				staleFolders.addAll(txChanges.reload);
+				if (txChanges.reloadAll)
+					invalidateAll();
+				if (txChanges.reloadAll || !txChanges.paths.isEmpty())
+					notifyListeners(txChanges.reloadAll ? null : txChanges.paths);
+			}
+
+			@Override
+			public void afterCompletion(int status) {
+				pending.remove();
+			}
+		});
+		return txChanges;
+	}
+
+	/**
+	 * Merges some nodes into the shared index, the nodes of the tenants not
+	 * loaded yet are ignored
+	 */
+	private void apply(Collection<Node> changed) {
+		if (changed.isEmpty())
+			return;
+
+		lock.writeLock().lock();
+		try {
+			for (Node node : changed)
+				if (loadedTenants.contains(node.tenantId))
+					put(node);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Reloads from the database some folders changed in the current
+	 * transaction by statements that do not say how they changed them, the
+	 * reload happens after the commit
+	 *
+	 * @param folderIds identifiers of the changed folders, if null all the
+	 *        loaded tenants are reloaded
+	 */
+	public void reload(Collection<Long> folderIds) {
+		Changes changes = getChanges();
+		if (folderIds == null) {
+			if (changes != null) {
+				changes.reloadAll = true;
+			} else {
+				invalidateAll();
+				notifyListeners(null);
+			}
+		} else {
+			// The new paths will be known only after the reload
+			Map<Long, Set<String>> paths = collectPaths(folderIds, null);
+			if (changes != null)
+				changes.reload.addAll(folderIds);
+			else
+				staleFolders.addAll(folderIds);
+			changed(paths);
+		}
+	}
+
+	/**
+	 * Collects the current paths of some folders, if there are listeners to
+	 * notify
+	 * 
+	 * @param folderIds identifiers of the folders
+	 * @param paths the map to fill, if null a new one is created
+	 * 
+	 * @return the paths, key is the tenant ID
+	 */
+	private Map<Long, Set<String>> collectPaths(Collection<Long> folderIds, Map<Long, Set<String>> paths) {
+		if (paths == null)
+			paths = new HashMap<Long, Set<String>>();
+		if (listenerManager == null || listenerManager.getListeners().isEmpty())
+			return paths;
+
+		for (Long folderId : folderIds) {
+			Node node = getNode(folderId);
+			String path = node != null ? getPathExtended(folderId) : null;
+			if (path != null)
+				paths.computeIfAbsent(node.tenantId, t -> new HashSet<String>()).add(path);
+		}
+		return paths;
+	}
+
+	/**
+	 * Records the paths of the changed folders, the listeners are notified
+	 * after the commit or immediately if there is no transaction
+	 */
+	private void changed(Map<Long, Set<String>> paths) {
+		if (paths.isEmpty())
+			return;
+
+		Changes changes = getChanges();
+		if (changes != null)
+			for (Map.Entry<Long, Set<String>> entry : paths.entrySet())
+				changes.paths.computeIfAbsent(entry.getKey(), t -> new HashSet<String>()).addAll(entry.getValue());
+		else
+			notifyListeners(paths);
+	}
+
+	private void notifyListeners(Map<Long, Set<String>> paths) {
+		if (listenerManager == null)
+			return;
+
+		for (FolderListener listener : listenerManager.getListeners())
+			try {
+				listener.afterCommit(paths);
+			} catch (Throwable t) {
+				log.warn(t.getMessage(), t);
+			}
+	}
+
+	/**
+	 * Marks a folder as stale, it will be reloaded from the database at the
+	 * next use of the index
+	 *
+	 * @param folderId identifier of the folder
+	 */
+	public void invalidate(long folderId) {
+		staleFolders.add(folderId);
+	}
+
+	/**
+	 * Marks all the folders of a tenant as stale, they will be reloaded from
+	 * the database at the next use of the index
+	 *
+	 * @param tenantId identifier of the tenant
+	 */
+	public void invalidateTenant(long tenantId) {
+		staleTenants.add(tenantId);
+	}
+
+	/**
+	 * Marks all the loaded tenants as stale
+	 */
+	private void invalidateAll() {
+		lock.readLock().lock();
+		try {
+			staleTenants.addAll(loadedTenants);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Discards the whole index
+	 */
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			nodes.clear();
+			children.clear();
+			roots.clear();
+			loadedTenants.clear();
+			staleTenants.clear();
+			staleFolders.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void setListenerManager(FolderListenerManager listenerManager) {
+		this.listenerManager = listenerManager;
+	}
+
+	/**
+	 * The changes made by a transaction
+	 */
+	private static class Changes {
+		// Key is the folder ID
+		private final Map<Long, Node> nodes = new LinkedHashMap<Long, Node>();
+
+		// Folders to reload after the commit
+		private final Set<Long> reload = new HashSet<Long>();
+
+		// If all the loaded tenants must be reloaded after the commit
+		private boolean reloadAll = false;
+
+		// Paths of the changed folders to notify, key is the tenant ID
+		private final Map<Long, Set<String>> paths = new HashMap<Long, Set<String>>();
+	}
+
+	/**
+	 * Minimal representation of a folder
+	 */
+	private static class Node {
+		private final long id;
+
+		private final long parentId;
+
+		private final String name;
+
+		private final Long securityRef;
+
+		private final int type;
+
+		private final int deleted;
+
+		private final long tenantId;
+
+		public Node(long id, long parentId, String name, Long securityRef, int type, int deleted, long tenantId) {
+			this.id = id;
+			this.parentId = parentId;
+			this.name = name;
+			this.securityRef = securityRef;
+			this.type = type;
+			this.deleted = deleted;
+			this.tenantId = tenantId;
+		}
+	}
+
+	private static class NodeMapper implements RowMapper<Node> {
+		@Override
+		public Node mapRow(ResultSet rs, int rowNum) throws SQLException {
+			Long securityRef = rs.getLong(4);
+			if (rs.wasNull())
+				securityRef = null;
+			return new Node(rs.getLong(1), rs.getLong(2), rs.getString(3), securityRef, rs.getInt(5), rs.getInt(6),
+					rs.getLong(7));
+		}
+	}
+}
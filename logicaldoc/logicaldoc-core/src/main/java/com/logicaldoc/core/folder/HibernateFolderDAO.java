@@ -7,15 +7,20 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang.StringUtils;
@@ -33,6 +38,7 @@ import com.logicaldoc.core.document.DocumentHistory;
 import com.logicaldoc.core.document.DocumentManager;
 import com.logicaldoc.core.document.Tag;
 import com.logicaldoc.core.document.dao.DocumentDAO;
+import com.logicaldoc.core.folder.FolderPermissionCache.UserGroups;
 import com.logicaldoc.core.metadata.Attribute;
 import com.logicaldoc.core.metadata.Template;
 import com.logicaldoc.core.metadata.TemplateDAO;
@@ -60,12 +66,19 @@ import com.logicaldoc.util.sql.SqlUtil;
 @SuppressWarnings("unchecked")
 public class HibernateFolderDAO extends HibernatePersistentObjectDAO<Folder> implements FolderDAO {
 
+	private static final Pattern UPDATED_IDS = Pattern.compile("where\\s+ld_id\\s+in\\s*\\(([\\d\\s,]+)\\)\\s*$",
+			Pattern.CASE_INSENSITIVE);
+
 	private UserDAO userDAO;
 
 	private FolderHistoryDAO historyDAO;
 
 	private Storer storer;
 
+	private FolderTree tree = new FolderTree(this);
+
+	private FolderPermissionCache permissionCache;
+
 	protected HibernateFolderDAO() {
 		super(Folder.class);
 		super.log = LoggerFactory.getLogger(HibernateFolderDAO.class);
@@ -128,6 +141,7 @@ public class HibernateFolderDAO extends HibernatePersistentObjectDAO<Folder> imp
 						alias.setSecurityRef(folder.getId());
 					initialize(alias);
 					saveOrUpdate(alias);
+					folderChanged(alias);
 				}
 			}
 		}
@@ -181,6 +195,7 @@ public class HibernateFolderDAO extends HibernatePersistentObjectDAO<Folder> imp
 			folder.setOcrTemplateId(null);
 
 		saveOrUpdate(folder);
+		folderChanged(folder);
 		if (StringUtils.isEmpty(folder.getPath())) {
 			folder.setPath(computePath(folder.getId()));
 			saveOrUpdate(folder);
@@ -349,70 +364,21 @@ public class HibernateFolderDAO extends HibernatePersistentObjectDAO<Folder> imp
 		}
 	}
 
-	@SuppressWarnings("rawtypes")
 	@Override
 	public List<Folder> findChildren(long parentId, long userId) {
 		List<Folder> coll = new ArrayList<Folder>();
 		try {
 			Folder parent = findFolder(parentId);
-
-			User user = userDAO.findById(userId);
-			if (user.isMemberOf("admin"))
-				return findChildren(parent.getId(), null);
-
-			Set<Group> groups = user.getGroups();
-			if (groups.isEmpty())
+			List<Folder> children = findChildren(parent.getId(), null);
+			if (children.isEmpty())
 				return coll;
 
-			/*
-			 * Search for the folders that define its own policies
-			 */
-			StringBuffer query1 = new StringBuffer("select distinct(_entity) from Folder _entity  ");
-			query1.append(" left join _entity.folderGroups as _group ");
-			query1.append(" where _group.groupId in (");
-
-			boolean first = true;
-			Iterator iter = groups.iterator();
-			while (iter.hasNext()) {
-				if (!first)
-					query1.append(",");
-				Group ug = (Group) iter.next();
-				query1.append(Long.toString(ug.getId()));
-				first = false;
-			}
-			query1.append(") and _entity.parentId=" + parent.getId());
-			query1.append(" and not(_entity.id=" + parent.getId() + ")");
-
-			coll = (List<Folder>) findByQuery(query1.toString(), null, null);
-
-			/*
-			 * Now search for all other folders that references accessible
-			 * folders
-			 */
-			StringBuffer query2 = new StringBuffer(
-					"select _entity from Folder _entity where _entity.deleted=0 and _entity.parentId=?1 ");
-			query2.append(" and _entity.securityRef in (");
-			query2.append("    select distinct(B.id) from Folder B ");
-			query2.append(" left join B.folderGroups as _group");
-			query2.append(" where _group.groupId in (");
-
-			first = true;
-			iter = groups.iterator();
-			while (iter.hasNext()) {
-				if (!first)
-					query2.append(",");
-				Group ug = (Group) iter.next();
-				query2.append(Long.toString(ug.getId()));
-				first = false;
-			}
-			query2.append("))");
-			query2.append(" and not(_entity.id=" + parent.getId() + ")");
-
-			List<Folder> coll2 = (List<Folder>) findByQuery(query2.toString(), new Long[] { parent.getId() }, null);
-			for (Folder folder : coll2) {
-				if (!coll.contains(folder))
-					coll.add(folder);
-			}
+			// Evaluate the access to all the children in one pass
+			Map<Long, Integer> masks = getPermissionMasks(
+					children.stream().map(f -> f.getId()).collect(Collectors.toList()), userId);
+			for (Folder child : children)
+				if (Permission.READ.match(masks.get(child.getId())))
+					coll.add(child);
 		} catch (Throwable e) {
 			if (log.isErrorEnabled())
 				log.error(e.getMessage(), e);
@@ -471,51 +437,8 @@ public class HibernateFolderDAO extends HibernatePersistentObjectDAO<Folder> imp
 	}
 
 	@Override
-	@SuppressWarnings("rawtypes")
 	public boolean isReadEnabled(long folderId, long userId) {
-		boolean result = true;
-		try {
-			User user = userDAO.findById(userId);
-			if (user == null)
-				return false;
-			if (user.isMemberOf("admin"))
-				return true;
-
-			long id = folderId;
-			Folder folder = findById(folderId);
-			if (folder == null)
-				return false;
-			if (folder.getSecurityRef() != null)
-				id = folder.getSecurityRef().longValue();
-
-			Set<Group> Groups = user.getGroups();
-			if (Groups.isEmpty())
-				return false;
-
-			StringBuffer query = new StringBuffer("select distinct(_entity) from Folder _entity  ");
-			query.append(" left join _entity.folderGroups as _group ");
-			query.append(" where _group.groupId in (");
-
-			boolean first = true;
-			Iterator iter = Groups.iterator();
-			while (iter.hasNext()) {
-				if (!first)
-					query.append(",");
-				Group ug = (Group) iter.next();
-				query.append(Long.toString(ug.getId()));
-				first = false;
-			}
-			query.append(") and _entity.id=?1");
-
-			List<FolderGroup> coll = (List<FolderGroup>) findByQuery(query.toString(),
-					new Object[] { Long.valueOf(id) }, null);
-			result = coll.size() > 0;
-		} catch (Throwable e) {
-			log.error(e.getMessage(), e);
-			result = false;
-		}
-
-		return result;
+		return isPermissionEnabled(Permission.READ, folderId, userId);
 	}
 
 	@Override
@@ -668,48 +591,12 @@ public class HibernateFolderDAO extends HibernatePersistentObjectDAO<Folder> imp
 
 	@Override
 	public String computePath(long folderId) {
-		Folder folder = findById(folderId);
-		if (folder == null)
-			return null;
-
-		Folder root = findRoot(folder.getTenantId());
-		if (root == null)
-			return null;
-
-		long rootId = root.getId();
-
-		String path = !folder.equals(root) ? Long.toString(folder.getId()) : "/";
-		while (folder != null && folder.getId() != folder.getParentId() && folder.getId() != rootId) {
-			folder = findById(folder.getParentId());
-			if (folder != null)
-				path = (folder.getId() != rootId ? folder.getId() : "") + "/" + path;
-		}
-		if (!path.startsWith("/"))
-			path = "/" + path;
-		return path;
+		return tree.getPath(folderId);
 	}
 
 	@Override
 	public String computePathExtended(long folderId) {
-		Folder folder = findById(folderId);
-		if (folder == null)
-			return null;
-
-		Folder root = findRoot(folder.getTenantId());
-		if (root == null)
-			return null;
-
-		long rootId = root.getId();
-
-		String path = folderId != rootId ? folder.getName() : "";
-		while (folder != null && folder.getId() != folder.getParentId() && folder.getId() != rootId) {
-			folder = findById(folder.getParentId());
-			if (folder != null)
-				path = (folder.getId() != rootId ? folder.getName() : "") + "/" + path;
-		}
-		if (!path.startsWith("/"))
-			path = "/" + path;
-		return path;
+		return tree.getPathExtended(folderId);
 	}
 
 	/**
@@ -814,39 +701,19 @@ public class HibernateFolderDAO extends HibernatePersistentObjectDAO<Folder> imp
 
 	@Override
 	public List<Folder> findParents(long folderId) {
-		Folder folder = findById(folderId);
-		if (folder == null)
-			return new ArrayList<Folder>();
-
-		long rootId = findRoot(folder.getTenantId()).getId();
 		List<Folder> coll = new ArrayList<Folder>();
-		try {
-			while (folder.getId() != rootId && folder.getId() != folder.getParentId()) {
-				folder = findById(folder.getParentId());
-				if (folder != null)
-					coll.add(0, folder);
-			}
-		} catch (Exception e) {
-			log.error(e.getMessage(), e);
+		for (Long parentId : tree.getParentIds(folderId)) {
+			Folder parent = findById(parentId);
+			if (parent != null)
+				coll.add(parent);
 		}
 		return coll;
 	}
 
 	@Override
 	public Folder findWorkspace(long folderId) {
-		Folder folder = findById(folderId);
-
-		if (folder != null && folder.isWorkspace())
-			return folder;
-		else {
-			List<Folder> parents = findParents(folderId);
-			for (Folder parent : parents) {
-				if (!"/".equals(parent.getName()) && parent.isWorkspace())
-					return parent;
-			}
-		}
-
-		return null;
+		Long workspaceId = tree.getWorkspaceId(folderId);
+		return workspaceId != null ? findById(workspaceId) : null;
 	}
 
 	@Override
@@ -858,8 +725,9 @@ public class HibernateFolderDAO extends HibernatePersistentObjectDAO<Folder> imp
 	@Override
 	public void restore(long folderId, long parentId, FolderHistory transaction) throws PersistenceException {
 		Folder parent = findFolder(parentId);
-		bulkUpdate("set ld_deleted=0, ld_parentid=" + parent.getId()
+		super.bulkUpdate("set ld_deleted=0, ld_parentid=" + parent.getId()
 				+ ", ld_lastmodified=CURRENT_TIMESTAMP where ld_id=" + folderId, null);
+		foldersChanged(Collections.singletonList(folderId), parent.getId(), null, 0);
 
 		Folder fld = findFolder(folderId);
 		if (fld != null && transaction != null) {
@@ -871,8 +739,11 @@ public class HibernateFolderDAO extends HibernatePersistentObjectDAO<Folder> imp
 		Set<Long> treeIds = findFolderIdInTree(folderId, true);
 		if (!treeIds.isEmpty()) {
 			String idsStr = treeIds.toString().replace('[', '(').replace(']', ')');
-			bulkUpdate("set ld_deleted=0, ld_lastmodified=CURRENT_TIMESTAMP where ld_deleted=1 and ld_id in " + idsStr,
+			List<Long> restoredIds = (List<Long>) queryForList(
+					"select ld_id from ld_folder where ld_deleted=1 and ld_id in " + idsStr, Long.class);
+			super.bulkUpdate("set ld_deleted=0, ld_lastmodified=CURRENT_TIMESTAMP where ld_deleted=1 and ld_id in " + idsStr,
 					null);
+			foldersChanged(restoredIds, null, null, 0);
 			jdbcUpdate(
 					"update ld_document set ld_deleted=0, ld_lastmodified=CURRENT_TIMESTAMP where ld_deleted=1 and ld_folderid in "
 							+ idsStr);
@@ -881,49 +752,120 @@ public class HibernateFolderDAO extends HibernatePersistentObjectDAO<Folder> imp
 
 	@Override
 	public Set<Permission> getEnabledPermissions(long folderId, long userId) {
+		return getEnabledPermissions(Collections.singletonList(folderId), userId).get(folderId);
+	}
 
-		Set<Permission> permissions = new HashSet<Permission>();
+	@Override
+	public Map<Long, Set<Permission>> getEnabledPermissions(Collection<Long> folderIds, long userId) {
+		Map<Long, Integer> masks = getPermissionMasks(folderIds, userId);
+		Map<Long, Set<Permission>> permissions = new HashMap<Long, Set<Permission>>();
+		for (Long folderId : folderIds) {
+			Set<Permission> set = new HashSet<Permission>();
+			int mask = masks.get(folderId);
+			for (Permission permission : Permission.values())
+				if (permission.match(mask))
+					set.add(permission);
+			permissions.put(folderId, set);
+		}
+		return permissions;
+	}
 
-		try {
+	/**
+	 * Computes the masks of the permissions granted to a user on a set of
+	 * folders, using the cache as much as possible.
+	 * 
+	 * @param folderIds identifiers of the folders
+	 * @param userId identifier of the user
+	 * 
+	 * @return map with key the folder's identifier and value the permissions
+	 *         mask
+	 */
+	private Map<Long, Integer> getPermissionMasks(Collection<Long> folderIds, long userId) {
+		Map<Long, Integer> masks = new HashMap<Long, Integer>();
+		for (Long folderId : folderIds)
+			masks.put(folderId, 0);
+
+		UserGroups groups = getUserGroups(userId);
+		if (groups == null)
+			return masks;
+
+		// If the user is an administrator bypass all controls
+		if (groups.isAdmin()) {
+			int all = Permission.all().stream().mapToInt(p -> p.getMask()).reduce(0, (a, b) -> a | b);
+			for (Long folderId : folderIds)
+				masks.put(folderId, all);
+			return masks;
+		}
+
+		if (groups.getGroupIds().length == 0)
+			return masks;
+
+		/*
+		 * If a folder defines a security ref, use another folder to find the
+		 * policies
+		 */
+		Map<Long, Long> securityFolders = new HashMap<Long, Long>();
+		Set<Long> missing = new HashSet<Long>();
+		for (Long folderId : folderIds) {
+			if (!tree.exists(folderId))
+				continue;
+			Long securityRef = tree.getSecurityRef(folderId);
+			long id = securityRef != null ? securityRef : folderId;
+			securityFolders.put(folderId, id);
+			if (permissionCache.getMask(id, groups) == null)
+				missing.add(id);
+		}
+
+		// The loaded masks may be discarded by the cache if an invalidation
+		// happens meanwhile
+		Map<Long, Integer> loaded = missing.isEmpty() ? Collections.emptyMap()
+				: loadPermissionMasks(missing, groups);
+
+		for (Map.Entry<Long, Long> entry : securityFolders.entrySet()) {
+			Integer mask = loaded.containsKey(entry.getValue()) ? loaded.get(entry.getValue())
+					: permissionCache.getMask(entry.getValue(), groups);
+			masks.put(entry.getKey(), mask != null ? mask : 0);
+		}
+		return masks;
+	}
+
+	private UserGroups getUserGroups(long userId) {
+		UserGroups groups = permissionCache.getUserGroups(userId);
+		if (groups == null) {
+			long generation = permissionCache.getGeneration();
 			User user = userDAO.findById(userId);
 			if (user == null)
-				return permissions;
-
-			// If the user is an administrator bypass all controls
-			if (user.isMemberOf("admin")) {
-				return Permission.all();
-			}
+				return null;
+			groups = new UserGroups(user.isMemberOf("admin"),
+					user.getGroups().stream().mapToLong(g -> g.getId()).toArray());
+			permissionCache.putUserGroups(userId, groups, generation);
+		}
+		return groups;
+	}
 
-			Set<Group> groups = user.getGroups();
-			if (groups.isEmpty())
-				return permissions;
-
-			// If the folder defines a security ref, use another folder to find
-			// the policies
-			long id = folderId;
-			Folder folder = findById(folderId);
-			if (folder.getSecurityRef() != null) {
-				id = folder.getSecurityRef().longValue();
-				log.debug("Use the security reference " + id);
-			}
+	/**
+	 * Loads from the database the permissions masks of the given folders and
+	 * puts them in the cache.
+	 * 
+	 * @return the loaded masks, the key is the folder ID
+	 */
+	private Map<Long, Integer> loadPermissionMasks(Collection<Long> securityFolderIds, UserGroups groups) {
+		Map<Long, Integer> loaded = new HashMap<Long, Integer>();
+		String groupIds = Arrays.toString(groups.getGroupIds()).replace('[', '(').replace(']', ')');
+		List<Long> ids = new ArrayList<Long>(securityFolderIds);
+		for (int i = 0; i < ids.size(); i += 500) {
+			List<Long> chunk = ids.subList(i, Math.min(i + 500, ids.size()));
+
+			long generation = permissionCache.getGeneration();
+			Map<Long, Integer> masks = new HashMap<Long, Integer>();
+			for (Long id : chunk)
+				masks.put(id, 0);
 
 			StringBuffer query = new StringBuffer(
-					"select A.ld_write as LDWRITE, A.ld_add as LDADD, A.ld_security as LDSECURITY, A.ld_immutable as LDIMMUTABLE, A.ld_delete as LDDELETE, A.ld_rename as LDRENAME, A.ld_import as LDIMPORT, A.ld_export as LDEXPORT, A.ld_sign as LDSIGN, A.ld_archive as LDARCHIVE, A.ld_workflow as LDWORKFLOW, A.ld_download as LDDOWNLOAD, A.ld_calendar as LDCALENDAR, A.ld_subscription as LDSUBSCRIPTION, A.ld_print as LDPRINT, A.ld_password as LDPASSWORD, A.ld_move as LDMOVE, A.ld_email as LDEMAIL, A.ld_automation LDAUTOMATION, A.ld_storage LDSTORAGE");
+					"select A.ld_folderid, A.ld_write as LDWRITE, A.ld_add as LDADD, A.ld_security as LDSECURITY, A.ld_immutable as LDIMMUTABLE, A.ld_delete as LDDELETE, A.ld_rename as LDRENAME, A.ld_import as LDIMPORT, A.ld_export as LDEXPORT, A.ld_sign as LDSIGN, A.ld_archive as LDARCHIVE, A.ld_workflow as LDWORKFLOW, A.ld_download as LDDOWNLOAD, A.ld_calendar as LDCALENDAR, A.ld_subscription as LDSUBSCRIPTION, A.ld_print as LDPRINT, A.ld_password as LDPASSWORD, A.ld_move as LDMOVE, A.ld_email as LDEMAIL, A.ld_automation LDAUTOMATION, A.ld_storage LDSTORAGE");
 			query.append(" from ld_foldergroup A");
-			query.append(" where ");
-			query.append(" A.ld_folderid=" + id);
-			query.append(" and A.ld_groupid in (");
-
-			boolean first = true;
-			Iterator<Group> iter = groups.iterator();
-			while (iter.hasNext()) {
-				if (!first)
-					query.append(",");
-				Group ug = (Group) iter.next();
-				query.append(Long.toString(ug.getId()));
-				first = false;
-			}
-			query.append(")");
+			query.append(" where A.ld_folderid in " + chunk.toString().replace('[', '(').replace(']', ')'));
+			query.append(" and A.ld_groupid in " + groupIds);
 
 			/**
 			 * IMPORTANT: the connection MUST be explicitly closed, otherwise it
@@ -934,56 +876,59 @@ public class HibernateFolderDAO extends HibernatePersistentObjectDAO<Folder> imp
 					Statement stmt = con.createStatement();
 					ResultSet rs = stmt.executeQuery(query.toString())) {
 				while (rs.next()) {
-					permissions.add(Permission.READ);
+					long folderId = rs.getLong(1);
+					int mask = masks.get(folderId) | Permission.READ.getMask();
 					if (rs.getInt("LDADD") == 1)
-						permissions.add(Permission.ADD);
+						mask |= Permission.ADD.getMask();
 					if (rs.getInt("LDEXPORT") == 1)
-						permissions.add(Permission.EXPORT);
+						mask |= Permission.EXPORT.getMask();
 					if (rs.getInt("LDIMPORT") == 1)
-						permissions.add(Permission.IMPORT);
+						mask |= Permission.IMPORT.getMask();
 					if (rs.getInt("LDDELETE") == 1)
-						permissions.add(Permission.DELETE);
+						mask |= Permission.DELETE.getMask();
 					if (rs.getInt("LDIMMUTABLE") == 1)
-						permissions.add(Permission.IMMUTABLE);
+						mask |= Permission.IMMUTABLE.getMask();
 					if (rs.getInt("LDSECURITY") == 1)
-						permissions.add(Permission.SECURITY);
+						mask |= Permission.SECURITY.getMask();
 					if (rs.getInt("LDRENAME") == 1)
-						permissions.add(Permission.RENAME);
+						mask |= Permission.RENAME.getMask();
 					if (rs.getInt("LDWRITE") == 1)
-						permissions.add(Permission.WRITE);
-					if (rs.getInt("LDDELETE") == 1)
-						permissions.add(Permission.DELETE);
+						mask |= Permission.WRITE.getMask();
 					if (rs.getInt("LDSIGN") == 1)
-						permissions.add(Permission.SIGN);
+						mask |= Permission.SIGN.getMask();
 					if (rs.getInt("LDARCHIVE") == 1)
-						permissions.add(Permission.ARCHIVE);
+						mask |= Permission.ARCHIVE.getMask();
 					if (rs.getInt("LDWORKFLOW") == 1)
-						permissions.add(Permission.WORKFLOW);
+						mask |= Permission.WORKFLOW.getMask();
 					if (rs.getInt("LDDOWNLOAD") == 1)
-						permissions.add(Permission.DOWNLOAD);
+						mask |= Permission.DOWNLOAD.getMask();
 					if (rs.getInt("LDCALENDAR") == 1)
-						permissions.add(Permission.CALENDAR);
+						mask |= Permission.CALENDAR.getMask();
 					if (rs.getInt("LDSUBSCRIPTION") == 1)
-						permissions.add(Permission.SUBSCRIPTION);
+						mask |= Permission.SUBSCRIPTION.getMask();
 					if (rs.getInt("LDPRINT") == 1)
-						permissions.add(Permission.PRINT);
+						mask |= Permission.PRINT.getMask();
 					if (rs.getInt("LDPASSWORD") == 1)
-						permissions.add(Permission.PASSWORD);
+						mask |= Permission.PASSWORD.getMask();
 					if (rs.getInt("LDMOVE") == 1)
-						permissions.add(Permission.MOVE);
+						mask |= Permission.MOVE.getMask();
 					if (rs.getInt("LDEMAIL") == 1)
-						permissions.add(Permission.EMAIL);
+						mask |= Permission.EMAIL.getMask();
 					if (rs.getInt("LDAUTOMATION") == 1)
-						permissions.add(Permission.AUTOMATION);
+						mask |= Permission.AUTOMATION.getMask();
 					if (rs.getInt("LDSTORAGE") == 1)
-						permissions.add(Permission.STORAGE);
+						mask |= Permission.STORAGE.getMask();
+					masks.put(folderId, mask);
 				}
+
+				for (Map.Entry<Long, Integer> entry : masks.entrySet())
+					permissionCache.putMask(entry.getKey(), groups, entry.getValue(), generation);
+				loaded.putAll(masks);
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
 			}
-		} catch (Exception e) {
-			log.error(e.getMessage(), e);
 		}
-
-		return permissions;
+		return loaded;
 	}
 
 	@Override
@@ -1195,6 +1140,67 @@ public class HibernateFolderDAO extends HibernatePersistentObjectDAO<Folder> imp
 
 	}
 
+	@Override
+	public void deleteAll(Collection<Folder> folders, int code) throws PersistenceException {
+		super.deleteAll(folders, code);
+		if (folders != null)
+			foldersChanged(folders.stream().map(f -> f.getId()).collect(Collectors.toList()), null, null, code);
+	}
+
+	/**
+	 * The folders touched by the bulk updates issued outside this DAO are
+	 * reloaded in the folder tree after the commit. When the updated folders
+	 * cannot be told from the expression all the loaded tenants are reloaded.
+	 */
+	@Override
+	public int bulkUpdate(String expression, Object[] values) throws PersistenceException {
+		int count = super.bulkUpdate(expression, values);
+		if (count > 0) {
+			tree.reload(getUpdatedIds(expression));
+			permissionCache.invalidateAll();
+		}
+		return count;
+	}
+
+	/**
+	 * Extracts the identifiers from an expression like <code>... where ld_id
+	 * in (1,2,3)</code>
+	 * 
+	 * @return the identifiers or null if the expression has another form
+	 */
+	static Collection<Long> getUpdatedIds(String expression) {
+		Matcher matcher = UPDATED_IDS.matcher(expression);
+		if (!matcher.find())
+			return null;
+		return Arrays.stream(matcher.group(1).split(",")).map(id -> Long.parseLong(id.trim()))
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Updates the folder tree with a folder saved in the current transaction,
+	 * the shared tree gets the change after the commit
+	 */
+	private void folderChanged(Folder folder) {
+		tree.update(folder);
+		permissionCache.invalidateFolder(folder.getId());
+	}
+
+	/**
+	 * Updates the folder tree with the folders changed by a bulk update on the
+	 * ld_folder table, the shared tree gets the change after the commit
+	 * 
+	 * @param folderIds identifiers of the updated folders
+	 * @param parentId the new parent, null if unchanged
+	 * @param securityRef the new security reference, null if unchanged
+	 * @param deleted the new deleted flag, null if unchanged
+	 */
+	private void foldersChanged(Collection<Long> folderIds, Long parentId, Long securityRef, Integer deleted) {
+		if (folderIds == null || folderIds.isEmpty())
+			return;
+		tree.patch(folderIds, parentId, securityRef, deleted);
+		permissionCache.invalidateAll();
+	}
+
 	private void checkIfCanDelete(long folderId) throws PersistenceException {
 		Folder folder = findById(folderId);
 		long rootId = findRoot(folder.getTenantId()).getId();
@@ -1242,8 +1248,11 @@ public class HibernateFolderDAO extends HibernatePersistentObjectDAO<Folder> imp
 			if (aliases != null && !aliases.isEmpty()) {
 				String aliasIds = aliases.stream().map(f -> Long.toString(f.getId())).collect(Collectors.joining(","));
 				log.debug("Deleting the aliases to folder {}: {}", folder, aliasIds);
+				List<Long> deletedIds = (List<Long>) queryForList(
+						"select ld_id from ld_folder where ld_foldref in (" + aliasIds + ")", Long.class);
 				int count = jdbcUpdate(
 						"update set ld_deleted=" + delCode + " from ld_folder where ld_foldref in (" + aliasIds + ")");
+				foldersChanged(deletedIds, null, null, delCode);
 				log.info("Removed {} aliases pointing to the deleted folder {}", count, folderId);
 			}
 		}
@@ -1297,6 +1306,8 @@ public class HibernateFolderDAO extends HibernatePersistentObjectDAO<Folder> imp
 					+ " and ld_id in " + treeIdsString, securityRef, new Date(), rootId);
 
 			log.warn("Applied rights to {} folders in tree {}", records, rootId);
+			foldersChanged(treeIds.stream().filter(id -> id != rootId).collect(Collectors.toList()), null,
+					securityRef, null);
 
 			/*
 			 * Delete all the specific rights associated to the folders in the
@@ -1786,13 +1797,17 @@ public class HibernateFolderDAO extends HibernatePersistentObjectDAO<Folder> imp
 		 */
 		evict(folder);
 		int records = jdbcUpdate("update ld_folder set ld_deleted=" + delCode + " where  ld_id in " + treeIdsString);
+		foldersChanged(treeIds, null, null, delCode);
 		log.warn("Deleted {} folders in tree {} - {}", records, folder.getName(), folder.getId());
 
 		/*
 		 * Delete the aliases
 		 */
+		List<Long> aliasIds = (List<Long>) queryForList(
+				"select ld_id from ld_folder where ld_foldref in " + treeIdsString, Long.class);
 		int aliases = jdbcUpdate(
 				"update ld_folder set ld_deleted=" + delCode + " where  ld_foldref in " + treeIdsString);
+		foldersChanged(aliasIds, null, null, delCode);
 		log.warn("Deleted {} folder aliases in tree {} - {}", aliases, folder.getName(), folder.getId());
 
 		/*
@@ -1813,44 +1828,7 @@ public class HibernateFolderDAO extends HibernatePersistentObjectDAO<Folder> imp
 
 	@Override
 	public Set<Long> findFolderIdInTree(long rootId, boolean includeDeleted) {
-		Set<Long> ids = new HashSet<Long>();
-		ids.add(rootId);
-
-		List<Long> lastIds = new ArrayList<Long>();
-		lastIds.add(rootId);
-		while (!lastIds.isEmpty()) {
-			String idsExpression = "";
-			if (isOracle()) {
-				/*
-				 * In Oracle The limit of 1000 elements applies to sets of
-				 * single items: (x) IN ((1), (2), (3), ...). There is no limit
-				 * if the sets contain two or more items: (x, 0) IN ((1,0),
-				 * (2,0), (3,0), ...):
-				 */
-				String str = ids.stream().map(id -> ("(" + id + ",0)")).collect(Collectors.joining(","));
-				idsExpression = " ( (ld_id,0) not in ( ";
-				idsExpression += str;
-				idsExpression += ") and (ld_parentid,0) in (";
-				idsExpression += str;
-				idsExpression += ") ) ";
-			} else {
-				String str = ids.toString().replace('[', '(').replace(']', ')');
-				idsExpression = "(  ld_id not in " + str + " and ld_parentid in " + str + " ) ";
-			}
-			lastIds.clear();
-
-			String query = "select ld_id from ld_folder where " + (includeDeleted ? "" : " ld_deleted=0 and ")
-					+ idsExpression;
-			try {
-				lastIds = queryForList(query, Long.class);
-				if (!lastIds.isEmpty())
-					ids.addAll(lastIds);
-			} catch (PersistenceException e) {
-				log.error(e.getMessage(), e);
-			}
-		}
-
-		return ids;
+		return tree.getTreeIds(rootId, includeDeleted);
 	}
 
 	@Override
@@ -1878,11 +1856,7 @@ public class HibernateFolderDAO extends HibernatePersistentObjectDAO<Folder> imp
 
 	@Override
 	public boolean isInPath(long folderId, long targetId) {
-		for (Folder folder : findParents(targetId)) {
-			if (folder.getId() == folderId)
-				return true;
-		}
-		return false;
+		return tree.isInPath(folderId, targetId);
 	}
 
 	@Override
@@ -1993,6 +1967,14 @@ public class HibernateFolderDAO extends HibernatePersistentObjectDAO<Folder> imp
 		this.storer = storer;
 	}
 
+	public void setPermissionCache(FolderPermissionCache permissionCache) {
+		this.permissionCache = permissionCache;
+	}
+
+	public void setListenerManager(FolderListenerManager listenerManager) {
+		tree.setListenerManager(listenerManager);
+	}
+
 	@Override
 	public boolean updateSecurityRef(long folderId, long rightsFolderId, FolderHistory transaction) {
 		boolean result = true;
@@ -2013,7 +1995,10 @@ public class HibernateFolderDAO extends HibernatePersistentObjectDAO<Folder> imp
 				return false;
 
 			// Now all the folders that are referencing this one must be updated
-			bulkUpdate("set securityRef=" + securityRef + " where securityRef=" + folderId, null);
+			List<Long> referencingIds = (List<Long>) queryForList(
+					"select ld_id from ld_folder where ld_securityref=" + folderId, Long.class);
+			super.bulkUpdate("set securityRef=" + securityRef + " where securityRef=" + folderId, null);
+			foldersChanged(referencingIds, null, securityRef, null);
 		} catch (Throwable e) {
 			result = false;
 			log.error(e.getMessage(), e);
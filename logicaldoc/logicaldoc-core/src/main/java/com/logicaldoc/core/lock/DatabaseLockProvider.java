@@ -0,0 +1,103 @@
+package com.logicaldoc.core.lock;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.logicaldoc.core.PersistenceException;
+import com.logicaldoc.core.generic.Generic;
+import com.logicaldoc.core.generic.GenericDAO;
+import com.logicaldoc.core.security.Tenant;
+import com.logicaldoc.util.Context;
+
+/**
+ * A {@link LockProvider} that stores the locks in the <code>ld_generic</code>
+ * table(type <b>lock</b>), so they are visible to all the nodes of a cluster.
+ * The acquisition is a single conditional update that only succeeds if the
+ * lock is free, expired or already owned by the same transaction, instead of
+ * reading and rewriting the record.
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class DatabaseLockProvider implements LockProvider {
+
+	private static final String LOCK = "lock";
+
+	protected Logger log = LoggerFactory.getLogger(DatabaseLockProvider.class);
+
+	private GenericDAO genericDao;
+
+	@Override
+	public boolean acquire(String lockName, String transactionId, long ttl) {
+		Date now = new Date();
+		try {
+			int updated = getGenericDao().jdbcUpdate(
+					"update ld_generic set ld_string1 = ?, ld_date1 = ?, ld_lastmodified = ?, ld_recordversion = ld_recordversion + 1 "
+							+ " where ld_type = ? and ld_subtype = ? and ld_tenantid = ? and ld_qualifier is null and ld_deleted = 0 "
+							+ " and (ld_string1 is null or ld_string1 = ? or ld_date1 is null or ld_date1 < ?)",
+					transactionId, now, now, LOCK, lockName, Tenant.DEFAULT_ID, transactionId,
+					new Date(now.getTime() - ttl));
+			if (updated > 0)
+				return true;
+
+			if (getGenericDao().findByAlternateKey(LOCK, lockName, null, Tenant.DEFAULT_ID) != null)
+				return false;
+
+			log.debug("Lock {} not found", lockName);
+			Generic lock = new Generic(LOCK, lockName);
+			lock.setString1(transactionId);
+			lock.setDate1(now);
+			getGenericDao().store(lock);
+			return true;
+		} catch (PersistenceException e) {
+			log.warn(e.getMessage(), e);
+			return false;
+		}
+	}
+
+	@Override
+	public void release(String lockName, String transactionId) {
+		try {
+			getGenericDao().jdbcUpdate(
+					"update ld_generic set ld_string1 = null, ld_date1 = null, ld_lastmodified = ?, ld_recordversion = ld_recordversion + 1 "
+							+ " where ld_type = ? and ld_subtype = ? and ld_tenantid = ? and ld_qualifier is null and ld_deleted = 0 and ld_string1 = ?",
+					new Date(), LOCK, lockName, Tenant.DEFAULT_ID, transactionId);
+		} catch (PersistenceException e) {
+			log.warn(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * The locks may be released by other nodes, so the waiters must poll
+	 */
+	@Override
+	public long getExpiration(String lockName) {
+		return -1L;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public List<String> getAllTransactions() {
+		try {
+			return getGenericDao().queryForList(
+					"select ld_string1 from ld_generic where ld_type='lock' and ld_string1 is not null", String.class);
+		} catch (PersistenceException e) {
+			log.error(e.getMessage(), e);
+			return new ArrayList<String>();
+		}
+	}
+
+	private GenericDAO getGenericDao() {
+		if (genericDao == null)
+			genericDao = (GenericDAO) Context.get().getBean(GenericDAO.class);
+		return genericDao;
+	}
+
+	public void setGenericDao(GenericDAO genericDao) {
+		this.genericDao = genericDao;
+	}
+}
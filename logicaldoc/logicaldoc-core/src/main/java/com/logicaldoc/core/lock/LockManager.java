@@ -1,49 +1,46 @@
 package com.logicaldoc.core.lock;
 
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.logicaldoc.core.PersistenceException;
-import com.logicaldoc.core.generic.Generic;
-import com.logicaldoc.core.generic.GenericDAO;
-import com.logicaldoc.core.security.Tenant;
 import com.logicaldoc.util.config.ContextProperties;
 
 /**
- * Central class to manage locks
+ * Central class to manage locks. The state of the locks is kept by a
+ * {@link LockProvider}, while this class implements the waiting: a thread
+ * that cannot acquire a lock sleeps until the lock is released by this node,
+ * the owner's hold expires or the <b>lock.wait</b> timeout is reached. When
+ * the provider cannot tell the expiration(like when the locks are shared
+ * among the nodes of a cluster), the lock gets polled once per second.
  * 
  * @author Marco Meschieri - LogicalDOC
  * @since 6.5
  */
 public class LockManager {
-	private static final String LOCK = "lock";
+
+	private static final long POLL_INTERVAL = 1000L;
 
 	protected Logger log = LoggerFactory.getLogger(LockManager.class);
 
-	private GenericDAO genericDao;
+	private LockProvider provider;
 
 	private ContextProperties config;
 
+	private final Object monitor = new Object();
+
+	// Counts the releases, used to not miss a notification
+	private final AtomicLong releases = new AtomicLong();
+
 	/**
 	 * Gets all the transaction ids associated to the locks
 	 * 
 	 * @return the lists of transactions
 	 */
-	@SuppressWarnings("unchecked")
 	public List<String> getAllTransactions() {
-		try {
-			return genericDao.queryForList(
-					"select ld_string1 from ld_generic where ld_type='lock' and ld_string1 is not null", String.class);
-		} catch (PersistenceException e) {
-			log.error(e.getMessage(), e);
-			return new ArrayList<String>();
-		}
+		return provider.getAllTransactions();
 	}
 
 	/**
@@ -55,25 +52,47 @@ public class LockManager {
 	 * @return true only if the lock was acquired
 	 */
 	public boolean get(String lockName, String transactionId) {
-		GregorianCalendar cal = new GregorianCalendar();
-		cal.add(Calendar.SECOND, config.getInt("lock.wait"));
-		Date ldDate = cal.getTime();
-		while (new Date().before(ldDate)) {
-			if (getInternal(lockName, transactionId)) {
-				log.debug("Acquired lock " + lockName);
+		String name = getLockName(lockName);
+		long ttl = config.getInt("lock.ttl") * 1000L;
+		long deadline = System.currentTimeMillis() + config.getInt("lock.wait") * 1000L;
+
+		while (true) {
+			long released = releases.get();
+			if (provider.acquire(name, transactionId, ttl)) {
+				log.debug("Acquired lock {}", lockName);
 				return true;
-			} else
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
+			}
+
+			long now = System.currentTimeMillis();
+			long delay = deadline - now;
+			if (delay <= 0)
+				break;
+
+			long expiration = provider.getExpiration(name);
+			if (expiration < 0)
+				delay = Math.min(delay, POLL_INTERVAL);
+			else if (expiration > 0)
+				delay = Math.min(delay, Math.max(expiration - now + 1, 1L));
+
+			try {
+				synchronized (monitor) {
+					if (releases.get() == released)
+						monitor.wait(delay);
 				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+
+			if (System.currentTimeMillis() >= deadline)
+				break;
 		}
 
-		log.warn("Unable to get lock " + lockName);
+		log.warn("Unable to get lock {}", lockName);
 		return false;
 	}
 
-	private String getSubType(String lockName) {
+	private String getLockName(String lockName) {
 		return lockName + "-" + config.getProperty("id");
 	}
 
@@ -87,60 +106,19 @@ public class LockManager {
 		if (lockName == null || transactionId == null)
 			return;
 
-		Generic lock = genericDao.findByAlternateKey(LOCK, getSubType(lockName), null, Tenant.DEFAULT_ID);
-		if (lock != null && transactionId.equals(lock.getString1())) {
-			lock.setDate1(null);
-			lock.setString1(null);
-
-			try {
-				genericDao.store(lock);
-			} catch (PersistenceException e) {
-				log.warn(e.getMessage(), e);
-			}
-		}
-	}
-
-	protected boolean getInternal(String lockName, String transactionId) {
-		Date today = new Date();
-		Generic lock = genericDao.findByAlternateKey(LOCK, getSubType(lockName), null, Tenant.DEFAULT_ID);
-		try {
-			if (lock == null) {
-				log.debug("Lock {} not found", lockName);
-				lock = new Generic(LOCK, getSubType(lockName));
-				lock.setString1(transactionId);
-				lock.setDate1(today);
-			}
+		provider.release(getLockName(lockName), transactionId);
 
-			GregorianCalendar cal = new GregorianCalendar();
-			cal.add(Calendar.SECOND, -config.getInt("lock.ttl"));
-			Date ldDate = cal.getTime();
-
-			if (lock.getDate1() == null || lock.getDate1().before(ldDate)) {
-				log.debug("Lock {} expired", lockName);
-				lock.setDate1(today);
-				lock.setString1(transactionId);
-			}
-
-			if (lock.getString1() == null || transactionId.equals(lock.getString1())) {
-				lock.setDate1(today);
-				lock.setString1(transactionId);
-				return true;
-			} else
-				return false;
-		} finally {
-			try {
-				genericDao.store(lock);
-			} catch (PersistenceException e) {
-				log.warn(e.getMessage(), e);
-			}
+		synchronized (monitor) {
+			releases.incrementAndGet();
+			monitor.notifyAll();
 		}
 	}
 
-	public void setGenericDao(GenericDAO genericDao) {
-		this.genericDao = genericDao;
+	public void setProvider(LockProvider provider) {
+		this.provider = provider;
 	}
 
 	public void setConfig(ContextProperties config) {
 		this.config = config;
 	}
-}
\ No newline at end of file
+}
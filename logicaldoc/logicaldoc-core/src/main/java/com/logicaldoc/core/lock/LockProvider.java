@@ -0,0 +1,55 @@
+package com.logicaldoc.core.lock;
+
+import java.util.List;
+
+/**
+ * A provider stores the state of the locks managed by the {@link LockManager}.
+ * Implementations must be thread safe and never block: the waiting logic is
+ * implemented by the {@link LockManager}.
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public interface LockProvider {
+
+	/**
+	 * Tries to acquire a lock, if the lock is already owned by the same
+	 * transaction its expiration gets renewed.
+	 *
+	 * @param lockName name of the lock
+	 * @param transactionId identifier of the transaction that wants to own
+	 *        the lock
+	 * @param ttl time to live of the lock expressed in milliseconds, after
+	 *        this time the lock can be taken by another transaction
+	 *
+	 * @return true only if the lock is now owned by the given transaction
+	 */
+	public boolean acquire(String lockName, String transactionId, long ttl);
+
+	/**
+	 * Releases a lock, nothing happens if the lock is not owned by the given
+	 * transaction
+	 *
+	 * @param lockName name of the lock
+	 * @param transactionId identifier of the transaction that owns the lock
+	 */
+	public void release(String lockName, String transactionId);
+
+	/**
+	 * Gets the moment when the current owner of a lock will lose it
+	 *
+	 * @param lockName name of the lock
+	 *
+	 * @return the expiration expressed in milliseconds since the epoch, 0 if
+	 *         the lock is not owned or -1 if the expiration is not known and
+	 *         the waiters must poll
+	 */
+	public long getExpiration(String lockName);
+
+	/**
+	 * Gets all the transactions that currently own a lock
+	 *
+	 * @return the list of transaction identifiers
+	 */
+	public List<String> getAllTransactions();
+}
@@ -0,0 +1,119 @@
+package com.logicaldoc.core.lock;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * A {@link LockProvider} that keeps the locks in memory, to be used in single
+ * node installations. The state of a lock is an immutable {@link Owner} that
+ * gets swapped with compare-and-set operations, so no thread is ever blocked.
+ * <br>
+ * The locks are not seen by the other nodes of a cluster, so it must be
+ * explicitly enabled with <b>lock.provider</b>, the default being the
+ * {@link DatabaseLockProvider}.
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class MemoryLockProvider implements LockProvider {
+
+	// Key is the lock name
+	private Map<String, Owner> owners = new ConcurrentHashMap<String, Owner>();
+
+	@Override
+	public boolean acquire(String lockName, String transactionId, long ttl) {
+		while (true) {
+			long now = System.currentTimeMillis();
+			Owner current = owners.get(lockName);
+			if (current != null && !current.isExpired(now) && !current.getTransactionId().equals(transactionId))
+				return false;
+
+			Owner owner = new Owner(transactionId, now, now + ttl);
+			if (current == null ? owners.putIfAbsent(lockName, owner) == null
+					: owners.replace(lockName, current, owner))
+				return true;
+		}
+	}
+
+	@Override
+	public void release(String lockName, String transactionId) {
+		Owner current = owners.get(lockName);
+		if (current != null && current.getTransactionId().equals(transactionId))
+			owners.remove(lockName, current);
+	}
+
+	@Override
+	public long getExpiration(String lockName) {
+		Owner current = owners.get(lockName);
+		return current != null ? current.getExpiration() : 0L;
+	}
+
+	@Override
+	public List<String> getAllTransactions() {
+		long now = System.currentTimeMillis();
+		return owners.values().stream().filter(o -> !o.isExpired(now)).map(o -> o.getTransactionId())
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Gets the current owner of a lock
+	 *
+	 * @param lockName name of the lock
+	 *
+	 * @return the owner or null if the lock is free
+	 */
+	public Owner getOwner(String lockName) {
+		Owner current = owners.get(lockName);
+		return current != null && !current.isExpired(System.currentTimeMillis()) ? current : null;
+	}
+
+	/**
+	 * The transaction that owns a lock
+	 *
+	 * @author Marco Meschieri - LogicalDOC
+	 * @since 8.7.3
+	 */
+	public static class Owner {
+
+		private final String transactionId;
+
+		private final long acquired;
+
+		private final long expiration;
+
+		public Owner(String transactionId, long acquired, long expiration) {
+			this.transactionId = transactionId;
+			this.acquired = acquired;
+			this.expiration = expiration;
+		}
+
+		public String getTransactionId() {
+			return transactionId;
+		}
+
+		/**
+		 * When the lock was acquired or renewed, expressed in milliseconds
+		 * since the epoch
+		 *
+		 * @return the acquisition time
+		 */
+		public long getAcquired() {
+			return acquired;
+		}
+
+		public long getExpiration() {
+			return expiration;
+		}
+
+		public boolean isExpired(long now) {
+			return now > expiration;
+		}
+
+		@Override
+		public String toString() {
+			return transactionId;
+		}
+	}
+}
@@ -5,19 +5,14 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
 import java.util.Locale;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.logicaldoc.core.document.Document;
 import com.logicaldoc.core.security.Tenant;
-import com.logicaldoc.util.Context;
 
 /**
  * Abstract implementation of a Parser
@@ -67,34 +62,18 @@ public abstract class AbstractParser implements Parser {
 		Locale lcl = locale != null ? locale : Locale.ENGLISH;
 		String tnt = locale != null ? tenant : Tenant.DEFAULT_NAME;
 
-		long timeout = 0;
-
-		try {
-			timeout = Context.get().getProperties().getInt(tenant + ".parser.timeout", 120);
-		} catch (Throwable e) {
-			log.warn(e.getMessage());
-		}
-
-		if (timeout <= 0)
+		InternalParseTask task = new InternalParseTask(input, filename, encoding, lcl, tnt, document, fileVersion,
+				content);
+		ParsingService service = ParsingService.get();
+		if (service != null) {
+			if (!service.execute(this, task, input, filename, tenant))
+				log.warn("Parse of {} did not complete", filename);
+		} else {
 			try {
-				internalParse(input, filename, encoding, lcl, tnt, document, fileVersion, content);
+				task.call();
 			} catch (Throwable e) {
 				log.error(e.getMessage(), e);
 			}
-		else {
-			// Invoke in a separate thread
-			ExecutorService executor = Executors.newSingleThreadExecutor();
-			String ret = null;
-			try {
-				ret = executor.invokeAll(Arrays.asList(
-						new InternalParseTask(input, filename, encoding, lcl, tnt, document, fileVersion, content)),
-						timeout, TimeUnit.SECONDS).get(0).get();
-			} catch (Throwable e) {
-				log.warn(e.getMessage(), e);
-			}
-			if (!"completed".equals(ret))
-				log.warn("Parse timed out");
-			executor.shutdownNow();
 		}
 
 		log.debug("Parse Finished");
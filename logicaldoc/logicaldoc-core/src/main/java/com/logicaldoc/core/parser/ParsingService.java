@@ -0,0 +1,345 @@
+package com.logicaldoc.core.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.logicaldoc.core.threading.ThreadPools;
+import com.logicaldoc.util.config.ContextProperties;
+
+/**
+ * Executes the parsings in the shared thread pool <b>Parser</b> managed by
+ * {@link ThreadPools}, so the worker threads are reused instead of being
+ * created for every single document.<br>
+ * The following settings are taken into account:
+ * <ul>
+ * <li><b>&lt;tenant&gt;.parser.&lt;ext&gt;.timeout</b>: maximum number of
+ * seconds a file with the given extension can be parsed, if not specified
+ * <b>&lt;tenant&gt;.parser.timeout</b> is used. A value &lt;= 0 means that the
+ * parsing is executed in the caller's thread without any timeout</li>
+ * <li><b>parser.&lt;ext&gt;.slots</b>: maximum number of files with the given
+ * extension that can be parsed at the same time (0 means no limit). Use it to
+ * put a memory budget on the heavy formats</li>
+ * <li><b>threadpool.Parser.core</b>: number of workers of the pool</li>
+ * </ul>
+ * When a parsing times out the worker gets interrupted and the input stream
+ * closed so that a blocked parser is forced to terminate. A worker stuck in a
+ * parser that ignores the interruption keeps counting against the pool until
+ * it really terminates, and when no worker becomes available within the
+ * timeout the parsing is given up.
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class ParsingService {
+
+	public static final String POOL = "Parser";
+
+	private static final int RUNNING = 0;
+
+	private static final int FINISHED = 1;
+
+	private static final int TIMED_OUT = 2;
+
+	private static Logger log = LoggerFactory.getLogger(ParsingService.class);
+
+	private static ParsingService instance;
+
+	/**
+	 * Marks the threads that are already executing a parsing, nested parsings
+	 * (like the entries of an archive) are executed inline
+	 */
+	private static ThreadLocal<Boolean> parsing = new ThreadLocal<Boolean>();
+
+	private ContextProperties config;
+
+	private ThreadPools threadPools;
+
+	// Key is the file extension
+	private Map<String, Semaphore> slots = new ConcurrentHashMap<String, Semaphore>();
+
+	// Key is the name of the parser's class
+	private Map<String, ParserStats> stats = new ConcurrentHashMap<String, ParserStats>();
+
+	/**
+	 * One permit for each worker of the pool, a permit is given back only when
+	 * the worker really terminates the parsing
+	 */
+	private Semaphore workers;
+
+	/**
+	 * Number of workers still busy with a parsing that has already timed out
+	 */
+	private AtomicInteger stuck = new AtomicInteger(0);
+
+	public static ParsingService get() {
+		return instance;
+	}
+
+	public void start() {
+		/*
+		 * The pool has an unbounded queue so it never grows beyond the core
+		 * size, more permits would just queue the parsings
+		 */
+		workers = new Semaphore(Math.max(1, config.getInt("threadpool." + POOL + ".core", 5)));
+		ParsingService.instance = this;
+	}
+
+	public void stop() {
+		if (ParsingService.instance == this)
+			ParsingService.instance = null;
+	}
+
+	/**
+	 * Executes a parsing task applying the timeout and the slots configured for
+	 * the file's extension.
+	 *
+	 * @param parser the parser that is doing the job
+	 * @param task the parsing task, it returns <code>completed</code> when the
+	 *        parsing correctly ends
+	 * @param input the stream being parsed, it is closed in case of timeout
+	 * @param filename name of the file being parsed
+	 * @param tenant name of the tenant
+	 *
+	 * @return true if the parsing completed in time
+	 */
+	public boolean execute(Parser parser, Callable<String> task, InputStream input, String filename, String tenant) {
+		String extension = getExtension(filename);
+		ParserStats stat = getStats(parser);
+		stat.parses.incrementAndGet();
+
+		long timeout = getTimeout(extension, tenant);
+		long start = System.currentTimeMillis();
+		try {
+			if (timeout <= 0 || Boolean.TRUE.equals(parsing.get()))
+				return executeInline(task, stat);
+
+			Semaphore semaphore = getSlots(extension);
+			try {
+				semaphore.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+
+			try {
+				return executeInPool(task, input, timeout, stat);
+			} finally {
+				semaphore.release();
+			}
+		} finally {
+			stat.time.addAndGet(System.currentTimeMillis() - start);
+		}
+	}
+
+	private boolean executeInline(Callable<String> task, ParserStats stat) {
+		try {
+			if ("completed".equals(task.call()))
+				return true;
+			stat.timeouts.incrementAndGet();
+		} catch (Throwable e) {
+			stat.failures.incrementAndGet();
+			log.error(e.getMessage(), e);
+		}
+		return false;
+	}
+
+	private boolean executeInPool(Callable<String> task, InputStream input, long timeout, ParserStats stat) {
+		try {
+			if (!workers.tryAcquire(timeout, TimeUnit.SECONDS)) {
+				stat.timeouts.incrementAndGet();
+				log.warn("No parser worker available in {} seconds, {} workers stuck in timed out parsings", timeout,
+						stuck.get());
+				return false;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+
+		// Whoever between the worker and the caller claims the execution first
+		// is in charge of giving back the permit
+		AtomicBoolean claimed = new AtomicBoolean(false);
+		AtomicInteger state = new AtomicInteger(RUNNING);
+		CountDownLatch started = new CountDownLatch(1);
+		Future<String> future = null;
+		try {
+			future = threadPools.getPool(POOL).submit(() -> {
+				if (!claimed.compareAndSet(false, true))
+					return null;
+				started.countDown();
+				parsing.set(Boolean.TRUE);
+				try {
+					return task.call();
+				} finally {
+					parsing.remove();
+					if (!state.compareAndSet(RUNNING, FINISHED))
+						stuck.decrementAndGet();
+					workers.release();
+				}
+			});
+		} catch (RuntimeException e) {
+			workers.release();
+			// The pool is not available, for instance during the shutdown
+			log.debug("Cannot use pool {}: {}", POOL, e.getMessage());
+			return executeInline(task, stat);
+		}
+
+		try {
+			// The timeout starts when a worker picks up the parsing
+			if (!started.await(timeout, TimeUnit.SECONDS) && claimed.compareAndSet(false, true)) {
+				workers.release();
+				future.cancel(false);
+				stat.timeouts.incrementAndGet();
+				log.warn("Parse not started in {} seconds", timeout);
+				return false;
+			}
+
+			if ("completed".equals(future.get(timeout, TimeUnit.SECONDS)))
+				return true;
+			stat.timeouts.incrementAndGet();
+		} catch (TimeoutException e) {
+			stat.timeouts.incrementAndGet();
+			log.warn("Parse timed out after {} seconds", timeout);
+			timeout(future, input, state);
+		} catch (InterruptedException e) {
+			timeout(future, input, state);
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			stat.failures.incrementAndGet();
+			log.warn(e.getCause().getMessage(), e.getCause());
+		}
+		return false;
+	}
+
+	/**
+	 * Gives up a running parsing, the worker stays counted as stuck until the
+	 * parser really terminates
+	 */
+	private void timeout(Future<String> future, InputStream input, AtomicInteger state) {
+		if (state.compareAndSet(RUNNING, TIMED_OUT))
+			stuck.incrementAndGet();
+		cancel(future, input);
+	}
+
+	private void cancel(Future<String> future, InputStream input) {
+		future.cancel(true);
+		if (input != null)
+			try {
+				input.close();
+			} catch (IOException e) {
+				// Nothing to do
+			}
+	}
+
+	private long getTimeout(String extension, String tenant) {
+		long timeout = config.getInt(tenant + ".parser.timeout", 120);
+		return config.getInt(tenant + ".parser." + extension + ".timeout", (int) timeout);
+	}
+
+	private Semaphore getSlots(String extension) {
+		return slots.computeIfAbsent(extension, ext -> {
+			int max = config.getInt("parser." + ext + ".slots", 0);
+			return new Semaphore(max > 0 ? max : Integer.MAX_VALUE);
+		});
+	}
+
+	private ParserStats getStats(Parser parser) {
+		return stats.computeIfAbsent(parser.getClass().getSimpleName(), name -> new ParserStats());
+	}
+
+	private static String getExtension(String filename) {
+		if (filename == null)
+			return "";
+		String name = filename.trim();
+		return (name.contains(".") ? FilenameUtils.getExtension(name) : name).toLowerCase();
+	}
+
+	/**
+	 * Gets the statistics collected so far
+	 *
+	 * @return map with key the parser's class name and value the statistics
+	 */
+	public Map<String, ParserStats> getStats() {
+		return Collections.unmodifiableMap(new TreeMap<String, ParserStats>(stats));
+	}
+
+	/**
+	 * Gets the number of workers still busy with parsings that have already
+	 * timed out
+	 *
+	 * @return number of stuck workers
+	 */
+	public int getStuck() {
+		return stuck.get();
+	}
+
+	public void setConfig(ContextProperties config) {
+		this.config = config;
+	}
+
+	public void setThreadPools(ThreadPools threadPools) {
+		this.threadPools = threadPools;
+	}
+
+	/**
+	 * Counters of a single parser implementation
+	 *
+	 * @author Marco Meschieri - LogicalDOC
+	 * @since 8.7.3
+	 */
+	public static class ParserStats {
+
+		private AtomicLong parses = new AtomicLong();
+
+		private AtomicLong failures = new AtomicLong();
+
+		private AtomicLong timeouts = new AtomicLong();
+
+		private AtomicLong time = new AtomicLong();
+
+		public long getParses() {
+			return parses.get();
+		}
+
+		public long getFailures() {
+			return failures.get();
+		}
+
+		public long getTimeouts() {
+			return timeouts.get();
+		}
+
+		/**
+		 * The total time spent parsing, expressed in milliseconds
+		 *
+		 * @return the total time
+		 */
+		public long getTime() {
+			return time.get();
+		}
+
+		@Override
+		public String toString() {
+			return "parses: " + getParses() + ", failures: " + getFailures() + ", timeouts: " + getTimeouts()
+					+ ", time: " + getTime() + "ms";
+		}
+	}
+}
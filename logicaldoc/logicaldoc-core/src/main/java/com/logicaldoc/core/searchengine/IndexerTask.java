@@ -1,15 +1,23 @@
 package com.logicaldoc.core.searchengine;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.Callable;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
@@ -25,7 +33,6 @@ import com.logicaldoc.core.security.dao.TenantDAO;
 import com.logicaldoc.core.task.Task;
 import com.logicaldoc.core.threading.NamedThreadFactory;
 import com.logicaldoc.i18n.I18N;
-import com.logicaldoc.util.CollectionUtil;
 import com.logicaldoc.util.Context;
 import com.logicaldoc.util.config.ContextProperties;
 import com.logicaldoc.util.io.FileUtil;
@@ -43,9 +50,24 @@ public class IndexerTask extends Task {
 	private static Logger lg = LoggerFactory.getLogger(IndexerTask.class);
 
 	/**
-	 * This executor will be used to index files
+	 * This executor will be used to run the stages of the indexing pipeline
 	 */
-	private static ScheduledExecutorService executor = null;
+	private static ExecutorService executor = null;
+
+	/**
+	 * Marks the end of the stream of documents to write
+	 */
+	private static final IndexingEntry END_OF_QUEUE = new IndexingEntry(null, null);
+
+	/**
+	 * Seconds to wait between two checks of the state of the pipeline
+	 */
+	private static final int POLL_SECONDS = 1;
+
+	/**
+	 * Seconds to wait for the extractors to notice that the writer has died
+	 */
+	private static final int ABORT_SECONDS = 60;
 
 	public static final String NAME = "IndexerTask";
 
@@ -57,13 +79,44 @@ public class IndexerTask extends Task {
 
 	private SearchEngine indexer;
 
-	private long indexed = 0;
+	private AtomicLong indexed = new AtomicLong(0);
 
-	private long errors = 0;
+	private AtomicLong errors = new AtomicLong(0);
 
-	private long indexingTime = 0;
+	/**
+	 * Time spent by the writer stage to write the hits
+	 */
+	private AtomicLong indexingTime = new AtomicLong(0);
 
-	private long parsingTime = 0;
+	/**
+	 * Time spent by the extraction stage to parse the files
+	 */
+	private AtomicLong parsingTime = new AtomicLong(0);
+
+	/**
+	 * Time spent by the extraction stage to load the documents from the
+	 * database
+	 */
+	private AtomicLong loadingTime = new AtomicLong(0);
+
+	/**
+	 * Time spent by the extraction stage waiting for room in the writer's
+	 * queue, a high value means that the writer is the bottleneck
+	 */
+	private AtomicLong extractionWaitTime = new AtomicLong(0);
+
+	/**
+	 * Time spent by the writer stage waiting for new documents, a high value
+	 * means that the extraction pool is the bottleneck
+	 */
+	private AtomicLong writerWaitTime = new AtomicLong(0);
+
+	/**
+	 * Set when the writer stage terminates before having received the end of
+	 * the queue, the extractors must stop because nobody will consume the
+	 * queue anymore
+	 */
+	private AtomicBoolean writerFailed = new AtomicBoolean(false);
 
 	public IndexerTask() {
 		super(NAME);
@@ -102,9 +155,14 @@ public class IndexerTask extends Task {
 
 		log.info("Start indexing of all documents");
 
-		errors = 0;
-		indexed = 0;
-		indexingTime = 0;
+		errors.set(0);
+		indexed.set(0);
+		indexingTime.set(0);
+		parsingTime.set(0);
+		loadingTime.set(0);
+		extractionWaitTime.set(0);
+		writerWaitTime.set(0);
+		writerFailed.set(false);
 		try {
 			ContextProperties config = Context.get().getProperties();
 			Integer max = config.getProperty("index.batch") != null
@@ -150,66 +208,23 @@ public class IndexerTask extends Task {
 			// Now we can release the lock
 			lockManager.release(getName(), transactionId);
 
-			if (!ids.isEmpty()) {
-				int threadsTotal = config.getInt("index.threads", 1);
-				log.info("Distribute the indexing among {} threads", threadsTotal);
-
-				// Divide the docs in groups of N
-				Collection<List<Long>> partitions = CollectionUtil.partition(ids, threadsTotal);
-
-				startIndexerThreads(threadsTotal);
-				List<IndexerThread> threads = new ArrayList<IndexerThread>();
-
-				// Prepare the threads and launch them
-				int i = 1;
-				for (List<Long> partition : partitions) {
-					IndexerThread iThread = new IndexerThread(partition, i++);
-					threads.add(iThread);
-					executor.schedule(new FutureTask<Long>(iThread), 1, TimeUnit.SECONDS);
-					log.debug("Launched the thread for documents {}", partition);
-				}
-
-				log.info("Waiting for completion");
-				boolean threadsCompleted = false;
-				while (!threadsCompleted) {
-					try {
-						Thread.sleep(2);
-					} catch (Throwable t) {
-
-					}
-
-					threadsCompleted = true;
-					for (IndexerThread iThread : threads) {
-						if (!iThread.isCompleted()) {
-							threadsCompleted = false;
-							;
-							break;
-						}
-					}
-
-					if (interruptRequested)
-						threadsCompleted = true;
-				}
-
-				log.info("All threads have completed");
-
-				// Collect some stats
-				for (IndexerThread thread : threads) {
-					indexingTime += thread.getIndexingTime();
-					parsingTime += thread.getParsingTime();
-					indexed += thread.getIndexed();
-					errors += thread.getErrors();
-				}
-			}
+			if (!ids.isEmpty())
+				runPipeline(ids);
 		} finally {
 			killIndexerThreads();
 
 			log.info("Indexing finished");
-			log.info("Indexing time: {}", TimeDiff.printDuration(indexingTime));
-			log.info("Parsing time: {}", TimeDiff.printDuration(parsingTime));
-			log.info("Indexed documents: {}", indexed);
-			log.info("Errors: {}", errors);
-
+			log.info("Loading time: {}", TimeDiff.printDuration(loadingTime.get()));
+			log.info("Parsing time: {}", TimeDiff.printDuration(parsingTime.get()));
+			log.info("Indexing time: {}", TimeDiff.printDuration(indexingTime.get()));
+			log.info("Extraction stage blocked by the writer for: {}",
+					TimeDiff.printDuration(extractionWaitTime.get()));
+			log.info("Writer stage waiting for the extractors for: {}", TimeDiff.printDuration(writerWaitTime.get()));
+			log.info("Indexed documents: {}", indexed.get());
+			log.info("Errors: {}", errors.get());
+
+			// Make sure all the hits written by the threads get committed
+			indexer.commit();
 			indexer.unlock();
 
 			// To be safer always release the lock
@@ -266,13 +281,13 @@ public class IndexerTask extends Task {
 	protected String prepareReport(Locale locale) {
 		StringBuffer sb = new StringBuffer();
 		sb.append(I18N.message("indexationtime", locale) + ": ");
-		sb.append(TimeDiff.printDuration(indexingTime));
+		sb.append(TimeDiff.printDuration(indexingTime.get()));
 		sb.append("\n");
 		sb.append(I18N.message("indexeddocs", locale) + ": ");
-		sb.append(indexed);
+		sb.append(indexed.get());
 		sb.append("\n");
 		sb.append(I18N.message("errors", locale) + ": ");
-		sb.append(errors);
+		sb.append(errors.get());
 		return sb.toString();
 	}
 
@@ -282,7 +297,7 @@ public class IndexerTask extends Task {
 
 	private static void startIndexerThreads(int threadsTotal) {
 		if (executor == null || executor.isShutdown() || executor.isTerminated())
-			executor = Executors.newScheduledThreadPool(threadsTotal, new NamedThreadFactory("Indexer"));
+			executor = Executors.newFixedThreadPool(threadsTotal, new NamedThreadFactory("Indexer"));
 	}
 
 	/**
@@ -301,46 +316,149 @@ public class IndexerTask extends Task {
 	}
 
 	/**
-	 * This is invoked to index a selection of files
+	 * Indexes the given documents through a pipeline made of two stages
+	 * connected by a bounded queue:
+	 * <ol>
+	 * <li>a pool of <b>index.threads</b> extractors that load the documents
+	 * and parse their files, each extractor takes the next document to process
+	 * from a shared queue so a slow file does not stall the others</li>
+	 * <li>a single writer that collects the extracted texts and sends them to
+	 * the search engine in batches of <b>index.write.batch</b> hits</li>
+	 * </ol>
+	 * When the writer cannot keep up, the queue (<b>index.queue</b> entries)
+	 * fills up and the extractors wait.
+	 * 
+	 * @param ids identifiers of the documents to index
+	 * 
+	 * @throws InterruptedException if the current thread gets interrupted
+	 */
+	private void runPipeline(List<Long> ids) throws InterruptedException {
+		ContextProperties config = Context.get().getProperties();
+		int extractorsTotal = config.getInt("index.threads", 1);
+		if (extractorsTotal < 1)
+			extractorsTotal = 1;
+		int queueSize = config.getInt("index.queue", extractorsTotal * 10);
+		if (queueSize < 1)
+			queueSize = 1;
+		int batchSize = config.getInt("index.write.batch", 50);
+		if (batchSize < 1)
+			batchSize = 1;
+
+		log.info("Distribute the indexing among {} extraction threads", extractorsTotal);
+
+		BlockingQueue<Long> idsQueue = new LinkedBlockingQueue<Long>(ids);
+		BlockingQueue<IndexingEntry> writeQueue = new ArrayBlockingQueue<IndexingEntry>(queueSize);
+		CountDownLatch extractorsDone = new CountDownLatch(extractorsTotal);
+
+		startIndexerThreads(extractorsTotal + 1);
+
+		Future<?> writer = executor.submit(new Writer(writeQueue, batchSize));
+		for (int i = 1; i <= extractorsTotal; i++)
+			executor.submit(new Extractor(i, idsQueue, writeQueue, extractorsDone));
+
+		log.info("Waiting for completion");
+		long abortDeadline = 0L;
+		while (!extractorsDone.await(POLL_SECONDS, TimeUnit.SECONDS)) {
+			if (writer.isDone() && !writerFailed.get()) {
+				log.error("The writer has terminated unexpectedly, stopping the extractors");
+				writerFailed.set(true);
+			}
+
+			if (writerFailed.get()) {
+				if (abortDeadline == 0L)
+					abortDeadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ABORT_SECONDS);
+				else if (System.currentTimeMillis() > abortDeadline) {
+					log.error("The extractors did not stop in {} seconds, giving up", ABORT_SECONDS);
+					break;
+				}
+			}
+		}
+
+		// Signal the writer that there is nothing more to write
+		if (!writerFailed.get() && !writeQueue.offer(END_OF_QUEUE, ABORT_SECONDS, TimeUnit.SECONDS)) {
+			log.error("Unable to signal the end of the queue to the writer");
+			writerFailed.set(true);
+		}
+		while (!writer.isDone()) {
+			try {
+				writer.get(POLL_SECONDS, TimeUnit.SECONDS);
+			} catch (ExecutionException e) {
+				log.error(e.getMessage(), e);
+			} catch (TimeoutException e) {
+				if (writerFailed.get()) {
+					log.error("The writer did not complete in time");
+					writer.cancel(true);
+				}
+			}
+		}
+
+		log.info("All threads have completed");
+	}
+
+	/**
+	 * A document with the extracted text, ready to be written in the index
 	 * 
 	 * @author Marco Meschieri - LogicalDOC
-	 * @since 8.2.1
+	 * @since 8.7.3
 	 */
-	class IndexerThread implements Callable<Long> {
+	static class IndexingEntry {
 
-		private long indexingTime = 0;
+		private Document document;
 
-		private long parsingTime = 0;
+		private String content;
 
-		private List<Long> docIds = new ArrayList<Long>();
+		IndexingEntry(Document document, String content) {
+			this.document = document;
+			this.content = content;
+		}
+
+		public Document getDocument() {
+			return document;
+		}
+
+		public String getContent() {
+			return content;
+		}
+	}
+
+	/**
+	 * First stage of the pipeline, loads the documents and extracts their
+	 * texts
+	 * 
+	 * @author Marco Meschieri - LogicalDOC
+	 * @since 8.7.3
+	 */
+	class Extractor implements Runnable {
 
 		private int number = 1;
 
-		private boolean completed = false;
+		private BlockingQueue<Long> idsQueue;
 
-		private int indexed = 0;
+		private BlockingQueue<IndexingEntry> writeQueue;
 
-		private int errors = 0;
+		private CountDownLatch done;
 
-		IndexerThread(List<Long> docIds, int number) {
-			this.docIds = docIds;
+		Extractor(int number, BlockingQueue<Long> idsQueue, BlockingQueue<IndexingEntry> writeQueue,
+				CountDownLatch done) {
+			this.number = number;
+			this.idsQueue = idsQueue;
+			this.writeQueue = writeQueue;
+			this.done = done;
 		}
 
 		@Override
-		public Long call() throws Exception {
+		public void run() {
 			try {
-				/*
-				 * Prepare the master transaction object
-				 */
-				DocumentHistory transaction = new DocumentHistory();
-				transaction.setUser(userDao.findByUsername("_system"));
-
-				for (Long id : docIds) {
+				Long id = null;
+				while (!interruptRequested && !writerFailed.get() && (id = idsQueue.poll()) != null) {
 					try {
-						log.debug("Thread {}: Indexing document {}", number, id);
+						log.debug("Extractor {}: processing document {}", number, id);
 
+						Date beforeLoading = new Date();
 						Document doc = documentDao.findById(id);
 						Tenant tenant = tenantDao.findById(doc.getTenantId());
+						loadingTime.addAndGet(
+								TimeDiff.getTimeDifference(beforeLoading, new Date(), TimeField.MILLISECOND));
 
 						// Check if this document must be marked for skipping
 						if (!FileUtil.matches(doc.getFileName(),
@@ -351,64 +469,148 @@ public class IndexerTask extends Task {
 							documentDao.initialize(doc);
 							doc.setIndexed(Document.INDEX_SKIP);
 							documentDao.store(doc);
-							log.warn("Thread {}: Document {} with filename '{}' marked as unindexable", number, id,
-									doc.getFileName());
-						} else {
-							Date beforeIndexing = new Date();
-							parsingTime += documentManager.reindex(id, null, transaction.clone());
-							long indexingDiff = TimeDiff.getTimeDifference(beforeIndexing, new Date(),
+							log.warn("Extractor {}: Document {} with filename '{}' marked as unindexable", number,
+									id, doc.getFileName());
+							indexed.incrementAndGet();
+							next();
+							continue;
+						}
+
+						String content = null;
+						if (doc.getIndexed() != AbstractDocument.INDEX_TO_INDEX_METADATA) {
+							// This may take very long time
+							Date beforeParsing = new Date();
+							content = documentManager.parseDocument(doc, null);
+							long parsingDiff = TimeDiff.getTimeDifference(beforeParsing, new Date(),
 									TimeField.MILLISECOND);
-							indexingTime += indexingDiff;
-							log.debug("Thread {}: Indexed document {} in {}ms", number, indexingDiff);
+							parsingTime.addAndGet(parsingDiff);
+							log.debug("Extractor {}: Parsed document {} in {}ms", number, id, parsingDiff);
 						}
-						indexed++;
+
+						// Waits if the writer is not able to keep up
+						Date beforeWaiting = new Date();
+						IndexingEntry entry = new IndexingEntry(doc, content);
+						while (!writeQueue.offer(entry, POLL_SECONDS, TimeUnit.SECONDS))
+							if (writerFailed.get())
+								break;
+						extractionWaitTime.addAndGet(
+								TimeDiff.getTimeDifference(beforeWaiting, new Date(), TimeField.MILLISECOND));
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
 					} catch (Throwable e) {
-						log.error("Thread {}: There was a problem indexing document {}", number, id);
+						log.error("Extractor {}: There was a problem processing document {}", number, id);
 						log.error(e.getMessage(), e);
-						errors++;
-					} finally {
+						errors.incrementAndGet();
 						next();
 					}
-
-					if (interruptRequested) {
-						log.debug("Thread {}: interrupt requested", number);
-						break;
-					}
 				}
 
-				log.debug("Thread {} has completed");
-				return indexingTime;
+				if (interruptRequested)
+					log.debug("Extractor {}: interrupt requested", number);
+				if (writerFailed.get())
+					log.warn("Extractor {}: stopped because the writer has died", number);
+				log.debug("Extractor {} has completed", number);
 			} finally {
-				completed = true;
+				done.countDown();
 			}
 		}
+	}
 
-		public long getIndexingTime() {
-			return indexingTime;
-		}
+	/**
+	 * Last stage of the pipeline, writes the extracted texts in the index in
+	 * batches
+	 * 
+	 * @author Marco Meschieri - LogicalDOC
+	 * @since 8.7.3
+	 */
+	class Writer implements Runnable {
 
-		public long getParsingTime() {
-			return parsingTime;
-		}
+		private BlockingQueue<IndexingEntry> writeQueue;
 
-		public void setIndexingTime(long indexingTime) {
-			this.indexingTime = indexingTime;
-		}
+		private int batchSize = 50;
 
-		public void setParsingTime(long parsingTime) {
-			this.parsingTime = parsingTime;
-		}
+		/**
+		 * The master transaction object
+		 */
+		private DocumentHistory transaction = new DocumentHistory();
 
-		public boolean isCompleted() {
-			return completed;
+		Writer(BlockingQueue<IndexingEntry> writeQueue, int batchSize) {
+			this.writeQueue = writeQueue;
+			this.batchSize = batchSize;
+			transaction.setUser(userDao.findByUsername("_system"));
 		}
 
-		public int getIndexed() {
-			return indexed;
+		@Override
+		public void run() {
+			List<IndexingEntry> batch = new ArrayList<IndexingEntry>();
+			boolean completed = false;
+			while (!completed) {
+				try {
+					Date beforeWaiting = new Date();
+					IndexingEntry entry = writeQueue.take();
+					writerWaitTime.addAndGet(
+							TimeDiff.getTimeDifference(beforeWaiting, new Date(), TimeField.MILLISECOND));
+
+					batch.add(entry);
+					writeQueue.drainTo(batch, batchSize - 1);
+
+					if (batch.remove(END_OF_QUEUE))
+						completed = true;
+
+					write(batch);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					writerFailed.set(true);
+					completed = true;
+				} catch (Throwable t) {
+					log.error("The writer has died", t);
+					writerFailed.set(true);
+					completed = true;
+				} finally {
+					batch.clear();
+				}
+			}
+			log.debug("Writer has completed");
 		}
 
-		public int getErrors() {
-			return errors;
+		private void write(List<IndexingEntry> batch) {
+			if (batch.isEmpty())
+				return;
+
+			Date beforeIndexing = new Date();
+
+			Map<Document, String> hits = new LinkedHashMap<Document, String>();
+			for (IndexingEntry entry : batch)
+				hits.put(entry.getDocument(), entry.getContent());
+
+			boolean batchWritten = false;
+			try {
+				indexer.addHits(hits);
+				batchWritten = true;
+			} catch (Throwable e) {
+				log.warn("Unable to write a batch of {} hits, proceeding one by one", hits.size(), e);
+			}
+
+			for (IndexingEntry entry : batch) {
+				Document doc = entry.getDocument();
+				try {
+					if (!batchWritten)
+						indexer.addHit(doc, entry.getContent());
+					documentManager.markIndexed(doc, transaction.clone());
+					indexed.incrementAndGet();
+				} catch (Throwable e) {
+					log.error("There was a problem indexing document {}", doc.getId());
+					log.error(e.getMessage(), e);
+					errors.incrementAndGet();
+				} finally {
+					next();
+				}
+			}
+
+			long indexingDiff = TimeDiff.getTimeDifference(beforeIndexing, new Date(), TimeField.MILLISECOND);
+			indexingTime.addAndGet(indexingDiff);
+			log.debug("Written {} hits in {}ms", batch.size(), indexingDiff);
 		}
 	}
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package com.logicaldoc.core.searchengine;
 
 import java.io.InputStream;
 import java.util.Collection;
+import java.util.Map;
 
 import com.logicaldoc.core.document.Document;
 
@@ -37,6 +38,25 @@ public interface SearchEngine {
 	 */
 	public void addHit(Document document, InputStream content) throws Exception;
 
+	/**
+	 * Adds a set of hits into the index. Differently from
+	 * {@link #addHit(Document, String)} the commit policy is evaluated just
+	 * once for the whole batch.
+	 * 
+	 * @param hits The documents to add mapped to their extracted body text
+	 * 
+	 * @throws Exception is an error happens and the documents cannot be added
+	 *         to the index
+	 */
+	public void addHits(Map<Document, String> hits) throws Exception;
+
+	/**
+	 * Commits all the pending changes into the index. Depending on the commit
+	 * policy, some write operations may not be immediately committed so this
+	 * method should be invoked at the end of a bulk operation.
+	 */
+	public void commit();
+
 	/**
 	 * Launch the index optimization and triggers the build of spellcheck
 	 * dictionary
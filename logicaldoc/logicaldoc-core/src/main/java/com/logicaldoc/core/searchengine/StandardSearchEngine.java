@@ -6,9 +6,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.lucene.index.CheckIndex;
@@ -37,12 +43,30 @@ import com.logicaldoc.core.document.dao.DocumentNoteDAO;
 import com.logicaldoc.core.metadata.Attribute;
 import com.logicaldoc.core.parser.ParserFactory;
 import com.logicaldoc.core.searchengine.analyzer.FilteredAnalyzer;
+import com.logicaldoc.core.threading.ThreadPools;
 import com.logicaldoc.util.StringUtil;
 import com.logicaldoc.util.config.ContextProperties;
 import com.logicaldoc.util.io.FileUtil;
 
 /**
- * Standard implementation that implements a local search engine
+ * Standard implementation that implements a local search engine.<br>
+ * <br>
+ * Write operations are not serialized and the commits are driven by a policy
+ * configured with the following settings:
+ * <ul>
+ * <li>index.commit.docs: number of pending hits that triggers a commit
+ * (default value: 1, that is commit after each write)</li>
+ * <li>index.commit.time: maximum number of seconds a pending hit can wait
+ * before being committed (default value: 0, that is no time limit)</li>
+ * <li>index.commit.idle: milliseconds without writes after which the batch is
+ * considered idle, so the next write is committed immediately; this way a
+ * single interactive upload gets searchable at once instead of waiting for
+ * the other limits (default value: 1000, 0 to disable)</li>
+ * <li>index.commit.soft: if true the commits triggered by the policy are soft
+ * commits, that make the hits searchable without flushing the segments on
+ * disk; a hard commit is done anyway by {@link #commit()} (default value:
+ * false)</li>
+ * </ul>
  * 
  * @author Marco Meschieri - LogicalDOC
  * @since 6.5
@@ -61,6 +85,34 @@ public class StandardSearchEngine implements SearchEngine {
 
 	protected EmbeddedSolrServer server;
 
+	/**
+	 * Number of written hits not yet committed
+	 */
+	private AtomicInteger pendingHits = new AtomicInteger(0);
+
+	/**
+	 * Moment of the last commit
+	 */
+	private volatile long lastCommit = System.currentTimeMillis();
+
+	/**
+	 * Moment of the last write
+	 */
+	private volatile long lastWrite = 0L;
+
+	/**
+	 * Used to serialize the commits only
+	 */
+	private Object commitLock = new Object();
+
+	/**
+	 * Periodically commits the pending hits in case a time limit has been
+	 * configured
+	 */
+	private ScheduledFuture<?> committer;
+
+	private ThreadPools threadPools;
+
 	protected StandardSearchEngine() {
 	}
 
@@ -80,7 +132,67 @@ public class StandardSearchEngine implements SearchEngine {
 	 * .document.Document, java.lang.String)
 	 */
 	@Override
-	public synchronized void addHit(Document document, String content) throws Exception {
+	public void addHit(Document document, String content) throws Exception {
+		SolrInputDocument hit = prepareHit(document, content);
+		try {
+			FilteredAnalyzer.lang.set(hit.getFieldValue(HitField.LANGUAGE.getName()) != null
+					? hit.getFieldValue(HitField.LANGUAGE.getName()).toString()
+					: null);
+			server.add(hit);
+		} finally {
+			FilteredAnalyzer.lang.remove();
+		}
+		hitsWritten(1);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.logicaldoc.core.searchengine.SearchEngine#addHits(java.util.Map)
+	 */
+	@Override
+	public void addHits(Map<Document, String> hits) throws Exception {
+		if (hits == null || hits.isEmpty())
+			return;
+
+		/*
+		 * The analyzer depends on the language so group the hits by language
+		 * and send each group in a single request
+		 */
+		Map<String, List<SolrInputDocument>> languageGroups = new HashMap<String, List<SolrInputDocument>>();
+		for (Map.Entry<Document, String> entry : hits.entrySet()) {
+			SolrInputDocument hit = prepareHit(entry.getKey(), entry.getValue());
+			String language = hit.getFieldValue(HitField.LANGUAGE.getName()) != null
+					? hit.getFieldValue(HitField.LANGUAGE.getName()).toString()
+					: null;
+			List<SolrInputDocument> group = languageGroups.get(language);
+			if (group == null) {
+				group = new ArrayList<SolrInputDocument>();
+				languageGroups.put(language, group);
+			}
+			group.add(hit);
+		}
+
+		for (Map.Entry<String, List<SolrInputDocument>> group : languageGroups.entrySet()) {
+			try {
+				FilteredAnalyzer.lang.set(group.getKey());
+				server.add(group.getValue());
+			} finally {
+				FilteredAnalyzer.lang.remove();
+			}
+		}
+		hitsWritten(hits.size());
+	}
+
+	/**
+	 * Prepares the Solr representation of a document
+	 * 
+	 * @param document the document to index
+	 * @param content the extracted body text
+	 * 
+	 * @return the document to send to Solr
+	 */
+	protected SolrInputDocument prepareHit(Document document, String content) throws Exception {
 		documentDao.initialize(document);
 		Document doc = document;
 
@@ -164,12 +276,63 @@ public class StandardSearchEngine implements SearchEngine {
 		if (sb.length() > 0)
 			hit.addField(HitField.NOTES.getName(), sb.toString());
 
-		try {
-			FilteredAnalyzer.lang.set(doc.getLanguage());
-			server.add(hit);
-			server.commit();
-		} finally {
-			FilteredAnalyzer.lang.remove();
+		return hit;
+	}
+
+	/**
+	 * Invoked after each write operation, evaluates the commit policy
+	 * 
+	 * @param count number of written hits
+	 */
+	protected void hitsWritten(int count) {
+		long now = System.currentTimeMillis();
+		long previousWrite = lastWrite;
+		lastWrite = now;
+
+		int pending = pendingHits.addAndGet(count);
+		int maxDocs = config.getInt("index.commit.docs", 1);
+		long maxTime = config.getLong("index.commit.time", 0L) * 1000L;
+		long maxIdle = config.getLong("index.commit.idle", 1000L);
+
+		// Commit at once the writes that do not belong to a batch
+		boolean idle = maxIdle > 0 && now - previousWrite >= maxIdle;
+
+		if (pending >= maxDocs || idle || (maxTime > 0 && now - lastCommit >= maxTime))
+			commit(config.getBoolean("index.commit.soft", false), false);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.logicaldoc.core.searchengine.SearchEngine#commit()
+	 */
+	@Override
+	public void commit() {
+		commit(false, true);
+	}
+
+	/**
+	 * Commits the pending hits
+	 * 
+	 * @param soft if a soft commit must be done
+	 * @param force if the commit must be done even if there are no pending
+	 *        hits
+	 */
+	private void commit(boolean soft, boolean force) {
+		synchronized (commitLock) {
+			// Another thread may have already committed our hits
+			int pending = pendingHits.get();
+			if (pending < 1 && !force)
+				return;
+
+			try {
+				server.commit(true, true, soft);
+				pendingHits.addAndGet(-pending);
+				lastCommit = System.currentTimeMillis();
+				log.debug("Committed {} hits", pending);
+			} catch (Throwable e) {
+				log.error("Unable to commit the index: {}", e.getMessage(), e);
+			}
 		}
 	}
 
@@ -295,10 +458,10 @@ public class StandardSearchEngine implements SearchEngine {
 	 * @see com.logicaldoc.core.searchengine.SearchEngine#deleteHit(long)
 	 */
 	@Override
-	public synchronized void deleteHit(long id) {
+	public void deleteHit(long id) {
 		try {
 			server.deleteById(Long.toString(id));
-			server.commit();
+			hitsWritten(1);
 		} catch (Throwable e) {
 			log.debug("Unable to delete hit {}", id, e);
 		}
@@ -311,9 +474,20 @@ public class StandardSearchEngine implements SearchEngine {
 	 * Collection )
 	 */
 	@Override
-	public synchronized void deleteHits(Collection<Long> ids) {
+	public void deleteHits(Collection<Long> ids) {
+		if (ids == null || ids.isEmpty())
+			return;
+
+		List<String> hitIds = new ArrayList<String>();
 		for (Long id : ids)
-			deleteHit(id);
+			hitIds.add(Long.toString(id));
+
+		try {
+			server.deleteById(hitIds);
+			hitsWritten(hitIds.size());
+		} catch (Throwable e) {
+			log.debug("Unable to delete hits {}", ids, e);
+		}
 	}
 
 	/*
@@ -396,8 +570,10 @@ public class StandardSearchEngine implements SearchEngine {
 	@Override
 	public synchronized void close() {
 		log.warn("Closing the indexer");
+		if (committer != null)
+			committer.cancel(false);
 		try {
-			server.commit();
+			commit();
 			unlock();
 			server.getCoreContainer().shutdown();
 			server.close();
@@ -554,11 +730,29 @@ public class StandardSearchEngine implements SearchEngine {
 			container.load();
 
 			unlock();
+
+			startCommitter();
 		} catch (Exception e) {
 			log.error("Unable to initialize the Full-text search engine", e);
 		}
 	}
 
+	/**
+	 * Schedules in the <b>IndexCommitter</b> thread pool the commit of the
+	 * pending hits when the time limit expires even if no other write occurs
+	 */
+	private void startCommitter() {
+		long maxTime = config.getLong("index.commit.time", 0L);
+		if (maxTime <= 0)
+			return;
+
+		committer = threadPools.scheduleWithFixedDelay(() -> {
+			if (pendingHits.get() > 0
+					&& System.currentTimeMillis() - lastCommit >= config.getLong("index.commit.time", 0L) * 1000L)
+				commit(config.getBoolean("index.commit.soft", false), false);
+		}, "IndexCommitter", TimeUnit.SECONDS.toMillis(maxTime));
+	}
+
 	@Override
 	public Object getServer() {
 		return server;
@@ -567,4 +761,8 @@ public class StandardSearchEngine implements SearchEngine {
 	public void setNoteDao(DocumentNoteDAO noteDao) {
 		this.noteDao = noteDao;
 	}
+
+	public void setThreadPools(ThreadPools threadPools) {
+		this.threadPools = threadPools;
+	}
 }
\ No newline at end of file
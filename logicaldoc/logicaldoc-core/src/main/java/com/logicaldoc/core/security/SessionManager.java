@@ -352,12 +352,26 @@ public class SessionManager extends ConcurrentHashMap<String, Session> {
 	 * @return The SID if any
 	 */
 	public String getSessionId(HttpServletRequest request) {
+		return getSessionId(request, true);
+	}
+
+	/**
+	 * Same as {@link #getSessionId(HttpServletRequest)} but the request
+	 * parameters may be skipped, for instance because reading the parameters
+	 * of a form post would consume the body of the request
+	 * 
+	 * @param request The current request to inspect
+	 * @param lookupParameters if the request parameters must be inspected
+	 * 
+	 * @return The SID if any
+	 */
+	public String getSessionId(HttpServletRequest request, boolean lookupParameters) {
 		if (request != null) {
 			if (request.getSession(false) != null && request.getSession(false).getAttribute(PARAM_SID) != null)
 				return (String) request.getSession(false).getAttribute(PARAM_SID);
 			if (request.getAttribute(PARAM_SID) != null)
 				return (String) request.getAttribute(PARAM_SID);
-			if (request.getParameter(PARAM_SID) != null)
+			if (lookupParameters && request.getParameter(PARAM_SID) != null)
 				return (String) request.getParameter(PARAM_SID);
 
 			Cookie cookies[] = request.getCookies();
@@ -7,6 +7,7 @@ import org.slf4j.LoggerFactory;
 
 import com.logicaldoc.core.HibernatePersistentObjectDAO;
 import com.logicaldoc.core.PersistenceException;
+import com.logicaldoc.core.folder.FolderPermissionCache;
 import com.logicaldoc.core.security.Group;
 import com.logicaldoc.core.security.User;
 import com.logicaldoc.util.Context;
@@ -20,6 +21,8 @@ public class HibernateGroupDAO extends HibernatePersistentObjectDAO<Group> imple
 
 	private MenuDAO menuDAO;
 
+	private FolderPermissionCache permissionCache;
+
 	private HibernateGroupDAO() {
 		super(Group.class);
 		super.log = LoggerFactory.getLogger(HibernateGroupDAO.class);
@@ -49,6 +52,7 @@ public class HibernateGroupDAO extends HibernatePersistentObjectDAO<Group> imple
 				group.setName(group.getName() + "." + group.getId());
 				group.setDeleted(code);
 				saveOrUpdate(group);
+				permissionCache.invalidateAll();
 			}
 		} catch (Throwable e) {
 			log.error(e.getMessage(), e);
@@ -141,6 +145,8 @@ public class HibernateGroupDAO extends HibernatePersistentObjectDAO<Group> imple
 			return;
 
 		try {
+			permissionCache.invalidateAll();
+
 			String sql = "delete from ld_menugroup where ld_groupid=" + groupId;
 			log.debug("Delete all menugroup for group {}", groupId);
 			jdbcUpdate(sql);
@@ -242,9 +248,14 @@ public class HibernateGroupDAO extends HibernatePersistentObjectDAO<Group> imple
 						+ " ld_sign=0, ld_archive=0, ld_workflow=0, ld_calendar=0, ld_password=0, ld_move=0, ld_automation=0 , ld_storage=0 "
 						+ " where ld_groupid=" + group.getId();
 				jdbcUpdate(sql);
+				permissionCache.invalidateAll();
 			}
 		} catch (Throwable e) {
 			log.error(e.getMessage(), e);
 		}
 	}
+
+	public void setPermissionCache(FolderPermissionCache permissionCache) {
+		this.permissionCache = permissionCache;
+	}
 }
\ No newline at end of file
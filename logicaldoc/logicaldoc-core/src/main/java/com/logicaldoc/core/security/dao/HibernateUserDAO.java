@@ -16,6 +16,7 @@ import org.slf4j.LoggerFactory;
 import com.logicaldoc.core.HibernatePersistentObjectDAO;
 import com.logicaldoc.core.PersistenceException;
 import com.logicaldoc.core.PersistentObject;
+import com.logicaldoc.core.folder.FolderPermissionCache;
 import com.logicaldoc.core.generic.Generic;
 import com.logicaldoc.core.generic.GenericDAO;
 import com.logicaldoc.core.security.Group;
@@ -54,6 +55,8 @@ public class HibernateUserDAO extends HibernatePersistentObjectDAO<User> impleme
 
 	private ContextProperties config;
 
+	private FolderPermissionCache permissionCache;
+
 	private HibernateUserDAO() {
 		super(User.class);
 		super.log = LoggerFactory.getLogger(HibernateUserDAO.class);
@@ -225,6 +228,7 @@ public class HibernateUserDAO extends HibernatePersistentObjectDAO<User> impleme
 			 * Update the user-group assignments
 			 */
 			{
+				permissionCache.invalidateUser(user.getId());
 				jdbcUpdate("delete from ld_usergroup where ld_userid = ?", user.getId());
 				for (UserGroup ug : user.getUserGroups()) {
 					int exists = queryForInt("select count(*) from ld_group where ld_id=" + ug.getGroupId());
@@ -560,6 +564,7 @@ public class HibernateUserDAO extends HibernatePersistentObjectDAO<User> impleme
 			}
 
 			jdbcUpdate("delete from ld_usergroup where ld_userid=" + userId);
+			permissionCache.invalidateUser(userId);
 
 			saveUserHistory(user, transaction);
 		} catch (Throwable e) {
@@ -602,6 +607,10 @@ public class HibernateUserDAO extends HibernatePersistentObjectDAO<User> impleme
 		this.userListenerManager = userListenerManager;
 	}
 
+	public void setPermissionCache(FolderPermissionCache permissionCache) {
+		this.permissionCache = permissionCache;
+	}
+
 	public UserListenerManager getUserListenerManager() {
 		return userListenerManager;
 	}
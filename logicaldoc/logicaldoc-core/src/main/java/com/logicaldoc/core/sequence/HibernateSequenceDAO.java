@@ -3,32 +3,66 @@ package com.logicaldoc.core.sequence;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.lang.StringUtils;
 import org.slf4j.LoggerFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import com.logicaldoc.core.HibernatePersistentObjectDAO;
 import com.logicaldoc.core.PersistenceException;
+import com.logicaldoc.util.config.ContextProperties;
 import com.logicaldoc.util.sql.SqlUtil;
 
 /**
  * Hibernate implementation of <code>SequenceDAO</code>.
  * <br>
  * Sequences are implemented ad Generics whose type is 'sequence' and subtype is
- * the sequence name.
+ * the sequence name.<br>
+ * The updates of a sequence are serialized by a lock chosen by the sequence's
+ * key among a fixed set of stripes, so different sequences do not contend.
+ * By default every increment is written in the database(strict mode, no gaps),
+ * but the sequences whose name starts with one of the prefixes listed in
+ * <b>sequence.block.names</b> are allocated in blocks of
+ * <b>sequence.block.size</b> values: a single database update reserves the
+ * whole block and the values are then handed out from memory. The block is
+ * reserved in its own transaction, so a rollback of the caller's transaction
+ * never gives back a range still handed out from memory. The values reserved
+ * but not used before a restart or in a rolled back transaction are lost.
  * 
  * @author Marco Meschieri - LogicalDOC
  * @since 4.0
  */
 public class HibernateSequenceDAO extends HibernatePersistentObjectDAO<Sequence> implements SequenceDAO {
 
+	private static final int STRIPES = 64;
+
+	private final Object[] locks = new Object[STRIPES];
+
+	// Key is the sequence's key, value is the block currently in use
+	private Map<String, Block> blocks = new ConcurrentHashMap<String, Block>();
+
+	private ContextProperties config;
+
+	private PlatformTransactionManager transactionManager;
+
 	private HibernateSequenceDAO() {
 		super(Sequence.class);
 		super.log = LoggerFactory.getLogger(HibernateSequenceDAO.class);
+		for (int i = 0; i < STRIPES; i++)
+			locks[i] = new Object();
 	}
 
 	@Override
-	public synchronized void reset(String sequence, long objectId, long tenantId, long value) {
-		synchronized (SequenceDAO.class) {
+	public void reset(String sequence, long objectId, long tenantId, long value) {
+		String key = getKey(sequence, objectId, tenantId);
+		synchronized (getLock(key)) {
+			blocks.remove(key);
+
 			Sequence seq = findByAlternateKey(sequence, objectId, tenantId);
 			if (seq == null)
 				seq = new Sequence();
@@ -47,34 +81,116 @@ public class HibernateSequenceDAO extends HibernatePersistentObjectDAO<Sequence>
 	}
 
 	@Override
-	public synchronized long next(String sequence, long objectId, long tenantId, long increment) {
-		synchronized (SequenceDAO.class) {
-			Sequence seq = findByAlternateKey(sequence, objectId, tenantId);
-			if (seq == null) {
-				seq = new Sequence();
-			}
+	public long next(String sequence, long objectId, long tenantId, long increment) {
+		String key = getKey(sequence, objectId, tenantId);
 
-			seq.setName(sequence);
-			seq.setObjectId(objectId);
-			seq.setTenantId(tenantId);
-			seq.setValue(seq.getValue() + increment);
-			try {
-				store(seq);
-				flush();
-			} catch (PersistenceException e) {
-				log.error(e.getMessage(), e);
+		int blockSize = getBlockSize(sequence);
+		if (blockSize > 0 && increment > 0) {
+			Long value = nextFromBlock(key, increment);
+			if (value != null)
+				return value;
+		}
+
+		synchronized (getLock(key)) {
+			if (blockSize <= 0 || increment <= 0) {
+				// Make sure the database is the only source of the values
+				blocks.remove(key);
+				return increment(sequence, objectId, tenantId, increment);
 			}
-			return seq.getValue();
+
+			// Another thread may have already allocated a new block
+			Long value = nextFromBlock(key, increment);
+			if (value != null)
+				return value;
+
+			long size = Math.max(blockSize, increment);
+			long max = allocate(sequence, objectId, tenantId, size);
+			Block block = new Block(max - size, max);
+			value = block.next(increment);
+			blocks.put(key, block);
+			return value;
 		}
 	}
 
+	private Long nextFromBlock(String key, long increment) {
+		Block block = blocks.get(key);
+		return block != null ? block.next(increment) : null;
+	}
+
+	/**
+	 * Reserves a block of values in a new transaction, committed before the
+	 * block is used
+	 */
+	private long allocate(String sequence, long objectId, long tenantId, long size) {
+		if (transactionManager == null)
+			return increment(sequence, objectId, tenantId, size);
+
+		TransactionTemplate template = new TransactionTemplate(transactionManager);
+		template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		return template.execute(status -> increment(sequence, objectId, tenantId, size));
+	}
+
+	/**
+	 * Increments the value of a sequence in the database
+	 */
+	private long increment(String sequence, long objectId, long tenantId, long increment) {
+		Sequence seq = findByAlternateKey(sequence, objectId, tenantId);
+		if (seq == null) {
+			seq = new Sequence();
+		}
+
+		seq.setName(sequence);
+		seq.setObjectId(objectId);
+		seq.setTenantId(tenantId);
+		seq.setValue(seq.getValue() + increment);
+		try {
+			store(seq);
+			flush();
+		} catch (PersistenceException e) {
+			log.error(e.getMessage(), e);
+		}
+		return seq.getValue();
+	}
+
 	@Override
-	public synchronized long next(String sequence, long objectId, long tenantId) {
+	public long next(String sequence, long objectId, long tenantId) {
 		return this.next(sequence, objectId, tenantId, 1L);
 	}
 
+	/**
+	 * Gets the size of the blocks used to allocate a sequence
+	 * 
+	 * @param sequence name of the sequence
+	 * 
+	 * @return the block size, 0 if the sequence must be allocated in strict
+	 *         mode
+	 */
+	private int getBlockSize(String sequence) {
+		if (config == null)
+			return 0;
+		String names = config.getProperty("sequence.block.names");
+		if (StringUtils.isEmpty(names))
+			return 0;
+		for (String prefix : names.split(","))
+			if (StringUtils.isNotEmpty(prefix.trim()) && sequence.startsWith(prefix.trim()))
+				return config.getInt("sequence.block.size", 100);
+		return 0;
+	}
+
+	private static String getKey(String sequence, long objectId, long tenantId) {
+		return sequence + "|" + objectId + "|" + tenantId;
+	}
+
+	private Object getLock(String key) {
+		return locks[(key.hashCode() & Integer.MAX_VALUE) % STRIPES];
+	}
+
 	@Override
 	public long getCurrentValue(String sequence, long objectId, long tenantId) {
+		Block block = blocks.get(getKey(sequence, objectId, tenantId));
+		if (block != null)
+			return block.getCurrent();
+
 		Sequence seq = findByAlternateKey(sequence, objectId, tenantId);
 		if (seq == null)
 			return 0L;
@@ -148,10 +264,48 @@ public class HibernateSequenceDAO extends HibernatePersistentObjectDAO<Sequence>
 	public boolean delete(long id, int code) throws PersistenceException {
 		Sequence seq = findById(id);
 		if (seq != null) {
+			blocks.remove(getKey(seq.getName(), seq.getObjectId(), seq.getTenantId()));
 			seq.setName(seq.getId() + "." + seq.getName());
 			seq.setDeleted(code);
 			store(seq);
 		}
 		return true;
 	}
-}
\ No newline at end of file
+
+	public void setConfig(ContextProperties config) {
+		this.config = config;
+	}
+
+	public void setTransactionManager(PlatformTransactionManager transactionManager) {
+		this.transactionManager = transactionManager;
+	}
+
+	/**
+	 * A block of reserved values of a sequence
+	 */
+	private static class Block {
+
+		private final AtomicLong value;
+
+		private final long max;
+
+		public Block(long start, long max) {
+			this.value = new AtomicLong(start);
+			this.max = max;
+		}
+
+		/**
+		 * Takes the next value
+		 * 
+		 * @return the value or null if the block is exhausted
+		 */
+		public Long next(long increment) {
+			long next = value.addAndGet(increment);
+			return next <= max ? next : null;
+		}
+
+		public long getCurrent() {
+			return Math.min(value.get(), max);
+		}
+	}
+}
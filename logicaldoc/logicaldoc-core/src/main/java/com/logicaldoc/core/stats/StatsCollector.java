@@ -5,7 +5,9 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.http.Consts;
@@ -30,11 +32,13 @@ import com.logicaldoc.core.security.UserEvent;
 import com.logicaldoc.core.security.dao.GroupDAO;
 import com.logicaldoc.core.security.dao.TenantDAO;
 import com.logicaldoc.core.sequence.SequenceDAO;
+import com.logicaldoc.core.store.Storer;
 import com.logicaldoc.core.task.Task;
 import com.logicaldoc.core.util.UserUtil;
 import com.logicaldoc.util.config.ContextProperties;
 import com.logicaldoc.util.http.HttpUtil;
-import com.logicaldoc.util.plugin.PluginRegistry;
+import com.logicaldoc.util.time.TimeDiff;
+import com.logicaldoc.util.time.TimeDiff.TimeField;
 
 /**
  * Collects statistical informations to the stats site
@@ -47,6 +51,20 @@ public class StatsCollector extends Task {
 
 	public final static String NAME = "StatsCollector";
 
+	/**
+	 * Names of the documents and pages statistics, in the same order of the
+	 * columns computed by {@link #extractDocStats(List)}
+	 */
+	private static final String[] DOC_STATS = { "notindexeddocs", "indexeddocs", "deleteddocs", "totaldocs",
+			"archiveddocs", "docdir", "notindexabledocs", "notindexedpages", "indexedpages", "deletedpages",
+			"totalpages", "archivedpages", "notindexablepages" };
+
+	/**
+	 * Names of the folders statistics, in the same order of the columns
+	 * computed by {@link #extractFldStats(List)}
+	 */
+	private static final String[] FLD_STATS = { "withdocs", "empty", "deletedfolders" };
+
 	private DocumentDAO documentDAO;
 
 	private FolderDAO folderDAO;
@@ -60,6 +78,8 @@ public class StatsCollector extends Task {
 	protected ContextProperties config;
 
 	private SequenceDAO sequenceDAO;
+
+	private Storer storer;
 	
 	private static String userno = "community";
 
@@ -76,7 +96,7 @@ public class StatsCollector extends Task {
 
 	@Override
 	public long getSize() {
-		return 9;
+		return 8;
 	}
 
 	@Override
@@ -129,70 +149,32 @@ public class StatsCollector extends Task {
 		int groups = groupDAO.count();
 		log.debug("Collected users data");
 
-		long userdir = 0;
-		File userDir = UserUtil.getUsersDir();
-		userdir = FileUtils.sizeOfDirectory(userDir);
-		saveStatistic("userdir", userdir, Tenant.SYSTEM_ID);
-
-		long indexdir = 0;
-		File indexDir = new File(config.getPropertyWithSubstitutions("index.dir"));
-		if (indexDir.exists())
-			indexdir = FileUtils.sizeOfDirectory(indexDir);
-		saveStatistic("indexdir", indexdir, Tenant.SYSTEM_ID);
-
-		long importdir = 0;
-		File importDir = new File(config.getPropertyWithSubstitutions("conf.importdir"));
-		if (importDir.exists())
-			importdir = FileUtils.sizeOfDirectory(importDir);
-		saveStatistic("importdir", importdir, Tenant.SYSTEM_ID);
-
-		long exportdir = 0;
-		File exportDir = new File(config.getPropertyWithSubstitutions("conf.exportdir"));
-		if (exportDir.exists())
-			exportdir = FileUtils.sizeOfDirectory(exportDir);
-		saveStatistic("exportdir", exportdir, Tenant.SYSTEM_ID);
-
-		long plugindir = 0;
-		File pluginsDir = PluginRegistry.getPluginsDir();
-		plugindir = FileUtils.sizeOfDirectory(pluginsDir);
-		saveStatistic("plugindir", plugindir, Tenant.SYSTEM_ID);
+		/*
+		 * Walking the directories is expensive, so their sizes are computed
+		 * every stats.dirs.interval hours only
+		 */
+		Generic lastDirScan = genericDAO.findByAlternateKey(STAT, "lastdirscan", null, Tenant.SYSTEM_ID);
+		boolean scanDirs = lastDirScan == null || lastDirScan.getDate1() == null || TimeDiff
+				.getTimeDifference(lastDirScan.getDate1(), new Date(), TimeField.HOUR) >= config
+						.getInt("stats.dirs.interval", 24);
+
+		long userdir = getDirSize("userdir", UserUtil.getUsersDir(), scanDirs);
+		long indexdir = getDirSize("indexdir", getDir("index.dir"), scanDirs);
+		long importdir = getDirSize("importdir", getDir("conf.importdir"), scanDirs);
+		long exportdir = getDirSize("exportdir", getDir("conf.exportdir"), scanDirs);
+		long plugindir = getDirSize("plugindir", getDir("conf.plugindir"), scanDirs);
 
 		next();
 		if (interruptRequested)
 			return;
 
-		long dbdir = 0;
-
-		/*
-		 * Try to determine the database size by using proprietary queries
-		 */
-		try {
-			if ("mysql".equals(documentDAO.getDbms()))
-				dbdir = documentDAO.queryForLong(
-						"select sum(data_length+index_length) from information_schema.tables where table_schema=database();");
-			else if (documentDAO.isOracle())
-				dbdir = documentDAO.queryForLong("SELECT sum(bytes) FROM user_segments");
-			else if ("postgresql".equals(documentDAO.getDbms()))
-				dbdir = documentDAO.queryForLong("select pg_database_size(current_database())");
-		} catch (Throwable t) {
-			log.warn("Unable to determine the database size - {}", t.getMessage());
-		}
-
-		/*
-		 * Fall back to the database dir
-		 */
-		if (dbdir == 0) {
-			File dbDir = new File(config.getPropertyWithSubstitutions("conf.dbdir"));
-			if (dbDir.exists())
-				dbdir = FileUtils.sizeOfDirectory(dbDir);
-		}
+		long dbdir = scanDirs ? computeDbSize() : getStatistic("dbdir");
 		saveStatistic("dbdir", dbdir, Tenant.SYSTEM_ID);
 
-		long logdir = 0;
-		File logsDir = new File(config.getPropertyWithSubstitutions("conf.logdir"));
-		if (logsDir.exists())
-			logdir = FileUtils.sizeOfDirectory(logsDir);
-		saveStatistic("logdir", logdir, Tenant.SYSTEM_ID);
+		long logdir = getDirSize("logdir", getDir("conf.logdir"), scanDirs);
+
+		if (scanDirs)
+			saveStatistic("lastdirscan", new Date(), Tenant.SYSTEM_ID);
 
 		log.info("Saved repository statistics");
 		next();
@@ -200,48 +182,28 @@ public class StatsCollector extends Task {
 			return;
 
 		/*
-		 * Collect documents statistics
+		 * Collect documents and pages statistics
 		 */
-		long[] docStats = extractDocStats(Tenant.SYSTEM_ID);
+		List<Tenant> tenants = tenantDAO.findAll();
+		long[] docStats = extractDocStats(tenants);
 		long totaldocs = docStats[3];
 		long archiveddocs = docStats[4];
 		long docdir = docStats[5];
-		
-		List<Tenant> tenants = tenantDAO.findAll();
-		for (Tenant tenant : tenants)
-			extractDocStats(tenant.getId());
+		long totalpages = docStats[10];
 
-		log.info("Saved documents statistics");		
+		log.info("Saved documents statistics");
 		next();
 		if (interruptRequested)
 			return;
 
-		/*
-		 * Collect pages statistics
-		 */
-		long[] pageStats = extractPageStats(Tenant.SYSTEM_ID);
-		long totalpages = pageStats[3];
-
-		tenants = tenantDAO.findAll();
-		for (Tenant tenant : tenants)
-			extractPageStats(tenant.getId());
-
-		log.info("Saved pages statistics");		
-		next();
-		if (interruptRequested)
-			return;
-		
 		/*
 		 * Collect folders statistics
 		 */
-		long[] fldStats = extractFldStats(Tenant.SYSTEM_ID);
+		long[] fldStats = extractFldStats(tenants);
 		long withdocs = fldStats[0];
 		long empty = fldStats[1];
 		long deletedfolders = fldStats[2];
 
-		for (Tenant tenant : tenants)
-			extractFldStats(tenant.getId());
-
 		log.info("Saved folder statistics");
 		next();
 		if (interruptRequested)
@@ -495,221 +457,168 @@ public class StatsCollector extends Task {
 	}
 
 	/**
-	 * Retrieves the document stats of a specific tenant and saves the results
-	 * in the database
+	 * Computes the documents and pages stats of all the tenants with a single
+	 * scan of the documents table and saves the results in the database
 	 * 
-	 * @param tenantId The tenant Id if the system tenant is used the whole
-	 *        stats are computed
-	 * @return Ordered list of stats<br/>
-	 *         <ol>
-	 *         <li>notindexeddocs</li>
-	 *         <li>indexeddocs</li>
-	 *         <li>deleteddocs</li>
-	 *         <li>totaldocs</li>
-	 *         <li>archiveddocs</li>
-	 *         <li>docdir (total size of the whole repository)</li>
-	 *         <li>notindexabledocs</li>
-	 *         </ol>
+	 * @param tenants the tenants to save the stats for
+	 * 
+	 * @return The stats of the whole system, ordered as {@link #DOC_STATS}
 	 */
-	private long[] extractDocStats(long tenantId) {
-		long[] stats = new long[7];
-		stats[0] = 0;
-		try {
-			stats[0] = documentDAO.queryForLong(
-					"SELECT COUNT(A.ld_id) FROM ld_document A where A.ld_indexed = 0 and A.ld_deleted = 0 "
-							+ (tenantId != Tenant.SYSTEM_ID ? " and A.ld_tenantid=" + tenantId : "")
-							+ " and not A.ld_status=" + AbstractDocument.DOC_ARCHIVED);
-		} catch (PersistenceException e) {
-			log.error(e.getMessage(), e);
-		}
-
-		stats[1] = 0;
-		try {
-			stats[1] = documentDAO.queryForLong(
-					"SELECT COUNT(A.ld_id) FROM ld_document A where A.ld_indexed = 1 and A.ld_deleted = 0 "
-							+ (tenantId != Tenant.SYSTEM_ID ? " and A.ld_tenantid=" + tenantId : "")
-							+ " and not A.ld_status=" + AbstractDocument.DOC_ARCHIVED);
-		} catch (PersistenceException e) {
-			log.error(e.getMessage(), e);
-		}
-
-		stats[2] = 0;
-		try {
-			stats[2] = documentDAO.queryForLong("SELECT COUNT(A.ld_id) FROM ld_document A where A.ld_deleted  > 0 "
-					+ (tenantId != Tenant.SYSTEM_ID ? " and A.ld_tenantid=" + tenantId : ""));
-		} catch (PersistenceException e) {
-			log.error(e.getMessage(), e);
-		}
+	private long[] extractDocStats(List<Tenant> tenants) {
+		String alive = " ld_deleted = 0 and not ld_status = " + AbstractDocument.DOC_ARCHIVED;
+		String notIndexed = "ld_indexed = " + AbstractDocument.INDEX_TO_INDEX + " and " + alive;
+		String indexed = "ld_indexed = " + AbstractDocument.INDEX_INDEXED + " and " + alive;
+		String notIndexable = "ld_indexed = " + AbstractDocument.INDEX_SKIP + " and " + alive;
+		String archived = "ld_status = " + AbstractDocument.DOC_ARCHIVED;
+
+		String query = "select ld_tenantid, " + countIf(notIndexed) + ", " + countIf(indexed) + ", "
+				+ countIf("ld_deleted > 0") + ", count(ld_id), " + countIf(archived) + ", sum(ld_filesize), "
+				+ countIf(notIndexable) + ", " + sumIf("ld_pages", "ld_pages > 0 and " + notIndexed) + ", "
+				+ sumIf("ld_pages", "ld_pages > 0 and " + indexed) + ", " + sumIf("ld_pages", "ld_deleted > 0")
+				+ ", " + sumIf("ld_pages", "ld_pages > 0") + ", " + sumIf("ld_pages", archived) + ", "
+				+ sumIf("ld_pages", notIndexable) + " from ld_document group by ld_tenantid";
+		Map<Long, long[]> stats = queryGroupedStats(query, DOC_STATS.length);
+
+		// The repository size also includes the files of the old versions
+		Map<Long, long[]> versionSizes = queryGroupedStats(
+				"select V.ld_tenantid, sum(V.ld_filesize) from ld_version V where V.ld_version = V.ld_fileversion "
+						+ " and not exists (select D.ld_id from ld_document D where D.ld_id=V.ld_documentid and D.ld_fileversion=V.ld_fileversion) "
+						+ " group by V.ld_tenantid",
+				1);
+		for (Map.Entry<Long, long[]> entry : versionSizes.entrySet())
+			stats.computeIfAbsent(entry.getKey(), t -> new long[DOC_STATS.length])[5] += entry.getValue()[0];
+
+		long[] total = saveGroupedStats(DOC_STATS, stats, tenants);
+
+		if (storer != null) {
+			saveStatistic("storedir", storer.getTotalSize(Tenant.SYSTEM_ID), Tenant.SYSTEM_ID);
+			for (Tenant tenant : tenants)
+				saveStatistic("storedir", storer.getTotalSize(tenant.getId()), tenant.getId());
+		}
+
+		return total;
+	}
 
-		if (tenantId != Tenant.SYSTEM_ID) {
-			stats[3] = documentDAO.count(tenantId, true, true);
-		} else {
-			stats[3] = documentDAO.count(null, true, true);
-		}
+	/**
+	 * Computes the folder stats of all the tenants with a single scan of the
+	 * folders table and saves the results in the database
+	 * 
+	 * @param tenants the tenants to save the stats for
+	 * 
+	 * @return The stats of the whole system, ordered as {@link #FLD_STATS}
+	 */
+	private long[] extractFldStats(List<Tenant> tenants) {
+		String query = "select A.ld_tenantid, " + countIf("A.ld_deleted = 0 and B.ld_folderid is not null") + ", "
+				+ countIf("A.ld_deleted = 0 and B.ld_folderid is null") + ", " + countIf("A.ld_deleted > 0")
+				+ " from ld_folder A left outer join (select distinct(ld_folderid) from ld_document where ld_deleted = 0) B on A.ld_id = B.ld_folderid "
+				+ " group by A.ld_tenantid";
+		return saveGroupedStats(FLD_STATS, queryGroupedStats(query, FLD_STATS.length), tenants);
+	}
 
-		stats[4] = 0;
-		try {
-			stats[4] = documentDAO.queryForLong(
-					"SELECT COUNT(A.ld_id) FROM ld_document A where A.ld_status = " + AbstractDocument.DOC_ARCHIVED
-							+ (tenantId != Tenant.SYSTEM_ID ? " and A.ld_tenantid=" + tenantId : ""));
-		} catch (PersistenceException e) {
-			log.error(e.getMessage(), e);
-		}
+	private static String countIf(String condition) {
+		return sumIf("1", condition);
+	}
 
-		stats[5] = documentDAO.computeTotalSize(tenantId, null, true);
+	private static String sumIf(String expression, String condition) {
+		return "sum(case when " + condition + " then " + expression + " else 0 end)";
+	}
 
-		stats[6] = 0;
+	/**
+	 * Executes a query grouped by tenant, the first column must be the tenant
+	 * 
+	 * @return map tenantId - values of the other columns
+	 */
+	private Map<Long, long[]> queryGroupedStats(String query, int columns) {
+		Map<Long, long[]> stats = new HashMap<Long, long[]>();
 		try {
-			stats[6] = documentDAO.queryForLong("SELECT COUNT(A.ld_id) FROM ld_document A where A.ld_indexed = "
-					+ AbstractDocument.INDEX_SKIP + " and A.ld_deleted = 0 "
-					+ (tenantId != Tenant.SYSTEM_ID ? " and A.ld_tenantid=" + tenantId : "") + " and not A.ld_status="
-					+ AbstractDocument.DOC_ARCHIVED);
+			documentDAO.query(query, null, (rs, rowNum) -> {
+				long[] values = new long[columns];
+				for (int i = 0; i < columns; i++)
+					values[i] = rs.getLong(i + 2);
+				stats.put(rs.getLong(1), values);
+				return null;
+			}, null);
 		} catch (PersistenceException e) {
 			log.error(e.getMessage(), e);
 		}
-
-		saveStatistic("notindexeddocs", stats[0], tenantId);
-		saveStatistic("indexeddocs", stats[1], tenantId);
-		saveStatistic("deleteddocs", stats[2], tenantId);
-		saveStatistic("totaldocs", stats[3], tenantId);
-		saveStatistic("archiveddocs", stats[4], tenantId);
-		saveStatistic("docdir", stats[5], tenantId);
-		saveStatistic("notindexabledocs", stats[6], tenantId);
-
 		return stats;
 	}
 
 	/**
-	 * Retrieves the pages stats of a specific tenant and saves the results in
-	 * the database
+	 * Saves the stats of each tenant and the totals of the whole system
 	 * 
-	 * @param tenantId The tenant Id if the system tenant is used the whole
-	 *        stats are computed
-	 * @return Ordered list of stats<br/>
-	 *         <ol>
-	 *         <li>notindexedpages</li>
-	 *         <li>indexedpages</li>
-	 *         <li>deletedpages</li>
-	 *         <li>totalpages</li>
-	 *         <li>archivedpages</li>
-	 *         <li>notindexablepages</li>
-	 *         </ol>
+	 * @return the totals
 	 */
-	private long[] extractPageStats(long tenantId) {
-		long[] stats = new long[6];
+	private long[] saveGroupedStats(String[] names, Map<Long, long[]> stats, List<Tenant> tenants) {
+		long[] total = new long[names.length];
+		for (long[] values : stats.values())
+			for (int i = 0; i < names.length; i++)
+				total[i] += values[i];
 
-		stats[0] = 0;
-		try {
-			stats[0] = documentDAO.queryForLong(
-					"SELECT SUM(A.ld_pages) FROM ld_document A where A.ld_pages > 0 and A.ld_indexed = 0 and A.ld_deleted = 0 "
-							+ (tenantId != Tenant.SYSTEM_ID ? " and A.ld_tenantid=" + tenantId : "")
-							+ " and not A.ld_status=" + AbstractDocument.DOC_ARCHIVED);
-		} catch (PersistenceException e) {
-			log.error(e.getMessage(), e);
-		}
+		for (int i = 0; i < names.length; i++)
+			saveStatistic(names[i], total[i], Tenant.SYSTEM_ID);
 
-		stats[1] = 0;
-		try {
-			stats[1] = documentDAO.queryForLong(
-					"SELECT SUM(A.ld_pages) FROM ld_document A where A.ld_pages > 0 and A.ld_indexed = 1 and A.ld_deleted = 0 "
-							+ (tenantId != Tenant.SYSTEM_ID ? " and A.ld_tenantid=" + tenantId : "")
-							+ " and not A.ld_status=" + AbstractDocument.DOC_ARCHIVED);
-		} catch (PersistenceException e) {
-			log.error(e.getMessage(), e);
+		for (Tenant tenant : tenants) {
+			long[] values = stats.getOrDefault(tenant.getId(), new long[names.length]);
+			for (int i = 0; i < names.length; i++)
+				saveStatistic(names[i], values[i], tenant.getId());
 		}
-		
-		stats[2] = 0;
-		try {
-			stats[2] = documentDAO.queryForLong("SELECT SUM(A.ld_pages) FROM ld_document A where A.ld_deleted  > 0 "
-					+ (tenantId != Tenant.SYSTEM_ID ? " and A.ld_tenantid=" + tenantId : ""));
-		} catch (PersistenceException e) {
-			log.error(e.getMessage(), e);
-		}
-
-		stats[3] = 0;
-		try {
-			stats[3] = documentDAO.queryForLong("SELECT SUM(A.ld_pages) FROM ld_document A where A.ld_pages > 0 "
-					+ (tenantId != Tenant.SYSTEM_ID ? " and A.ld_tenantid=" + tenantId : ""));
-		} catch (PersistenceException e) {
-			log.error(e.getMessage(), e);
-		}
-
-		stats[4] = 0;
-		try {
-			stats[4] = documentDAO.queryForLong(
-					"SELECT SUM(A.ld_pages) FROM ld_document A where A.ld_status = " + AbstractDocument.DOC_ARCHIVED
-							+ (tenantId != Tenant.SYSTEM_ID ? " and A.ld_tenantid=" + tenantId : ""));
-		} catch (PersistenceException e) {
-			log.error(e.getMessage(), e);
-		}
-
-		stats[5] = 0;
-		try {
-			stats[5] = documentDAO.queryForLong("SELECT SUM(A.ld_pages) FROM ld_document A where A.ld_indexed = "
-					+ AbstractDocument.INDEX_SKIP + " and A.ld_deleted = 0 "
-					+ (tenantId != Tenant.SYSTEM_ID ? " and A.ld_tenantid=" + tenantId : "") + " and not A.ld_status="
-					+ AbstractDocument.DOC_ARCHIVED);
-		} catch (PersistenceException e) {
-			log.error(e.getMessage(), e);
-		}
-
-		saveStatistic("notindexedpages", stats[0], tenantId);
-		saveStatistic("indexedpages", stats[1], tenantId);
-		saveStatistic("deletedpages", stats[2], tenantId);
-		saveStatistic("totalpages", stats[3], tenantId);
-		saveStatistic("archivedpages", stats[4], tenantId);
-		saveStatistic("notindexablepages", stats[5], tenantId);
 
-		return stats;
+		return total;
 	}
 
 	/**
-	 * Retrieves the folder stats of a specific tenant and saves the results in
-	 * the database
-	 * 
-	 * @param tenantId The tenant Id if the system tenant is used the whole
-	 *        stats are computed
-	 * @return Ordered list of stats<br/>
-	 *         <ol>
-	 *         <li>withdocs</li>
-	 *         <li>empty</li>
-	 *         <li>deletedfolders</li>
-	 *         </ol>
+	 * Gets the size of a directory, walking it only if requested otherwise
+	 * the last computed value is returned
 	 */
-	private long[] extractFldStats(long tenantId) {
-		long[] stats = new long[4];
-
-		stats[0] = 0;
-		try {
-			stats[0] = folderDAO.queryForLong(
-					"SELECT COUNT(A.ld_id) FROM ld_folder A where A.ld_deleted = 0 and A.ld_id in (select B.ld_folderid FROM ld_document B where B.ld_deleted = 0) "
-							+ (tenantId != Tenant.SYSTEM_ID ? " and A.ld_tenantid=" + tenantId : ""));
-		} catch (PersistenceException e) {
-			log.error(e.getMessage(), e);
-		}
+	private long getDirSize(String stat, File dir, boolean scan) {
+		if (!scan)
+			return getStatistic(stat);
+
+		long size = 0;
+		if (dir != null && dir.exists())
+			size = FileUtils.sizeOfDirectory(dir);
+		saveStatistic(stat, size, Tenant.SYSTEM_ID);
+		return size;
+	}
 
-		stats[1] = 0;
+	/**
+	 * Tries to determine the database size by using proprietary queries,
+	 * falling back to the size of the database dir
+	 */
+	private long computeDbSize() {
+		long dbdir = 0;
 		try {
-			stats[1] = folderDAO.queryForLong(
-					"SELECT COUNT(A.ld_id) FROM ld_folder A where A.ld_deleted = 0 and A.ld_id not in (select B.ld_folderid FROM ld_document B where B.ld_deleted = 0) "
-							+ (tenantId != Tenant.SYSTEM_ID ? " and A.ld_tenantid=" + tenantId : ""));
-		} catch (PersistenceException e) {
-			log.error(e.getMessage(), e);
+			if ("mysql".equals(documentDAO.getDbms()))
+				dbdir = documentDAO.queryForLong(
+						"select sum(data_length+index_length) from information_schema.tables where table_schema=database();");
+			else if (documentDAO.isOracle())
+				dbdir = documentDAO.queryForLong("SELECT sum(bytes) FROM user_segments");
+			else if ("postgresql".equals(documentDAO.getDbms()))
+				dbdir = documentDAO.queryForLong("select pg_database_size(current_database())");
+		} catch (Throwable t) {
+			log.warn("Unable to determine the database size - {}", t.getMessage());
 		}
 
-		stats[2] = 0;
-		try {
-			stats[2] = folderDAO.queryForLong("SELECT COUNT(A.ld_id) FROM ld_folder A where A.ld_deleted  > 0 "
-					+ (tenantId != Tenant.SYSTEM_ID ? " and A.ld_tenantid=" + tenantId : ""));
-		} catch (PersistenceException e) {
-			log.error(e.getMessage(), e);
+		if (dbdir == 0) {
+			File dbDir = getDir("conf.dbdir");
+			if (dbDir != null && dbDir.exists())
+				dbdir = FileUtils.sizeOfDirectory(dbDir);
 		}
+		return dbdir;
+	}
 
-		saveStatistic("withdocs", stats[0], tenantId);
-		saveStatistic("empty", stats[1], tenantId);
-		saveStatistic("deletedfolders", stats[2], tenantId);
+	private File getDir(String property) {
+		String path = config.getPropertyWithSubstitutions(property);
+		return path != null ? new File(path) : null;
+	}
 
-		return stats;
+	/**
+	 * Reads a numeric statistic of the system previously saved
+	 */
+	private long getStatistic(String parameter) {
+		Generic gen = genericDAO.findByAlternateKey(STAT, parameter, null, Tenant.SYSTEM_ID);
+		return gen != null && gen.getInteger1() != null ? gen.getInteger1() : 0L;
 	}
 
 	/**
@@ -814,4 +723,8 @@ public class StatsCollector extends Task {
 	public void setSequenceDAO(SequenceDAO sequenceDAO) {
 		this.sequenceDAO = sequenceDAO;
 	}
-}
\ No newline at end of file
+
+	public void setStorer(Storer storer) {
+		this.storer = storer;
+	}
+}
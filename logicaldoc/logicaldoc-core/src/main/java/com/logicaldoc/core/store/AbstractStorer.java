@@ -9,23 +9,44 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringWriter;
+import java.nio.channels.SeekableByteChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.logicaldoc.core.PersistenceException;
 import com.logicaldoc.core.document.Document;
 import com.logicaldoc.core.document.dao.DocumentDAO;
+import com.logicaldoc.core.security.Tenant;
+import com.logicaldoc.core.threading.ThreadPools;
 import com.logicaldoc.util.Context;
 import com.logicaldoc.util.StringUtil;
 import com.logicaldoc.util.config.ContextProperties;
 import com.logicaldoc.util.io.FileUtil;
 
 /**
- * Common methods for all the Storer implementations.
+ * Common methods for all the Storer implementations.<br>
+ * The size of the storage is maintained incrementally in a
+ * {@link StorageCounters} that the implementations update through
+ * {@link #updateCounters(long, long, long)}. The counters are saved every
+ * <b>store.counters.save</b> seconds and reconciled with a full scan of the
+ * storage every <b>store.counters.reconcile</b> hours(0 to disable) or at
+ * startup if they were never saved. All the storers schedule these jobs in
+ * the same <b>StorageCounters</b> thread pool.<br>
+ * The callers that know the tenant of the document should use the methods
+ * that accept it, otherwise it gets looked up in the database at each change.
  * 
  * @author Marco Meschieri - LogicalDOC
  * @since 7.6.4
@@ -33,6 +54,10 @@ import com.logicaldoc.util.io.FileUtil;
 public abstract class AbstractStorer implements Storer {
 	protected static final int DEFAULT_BUFFER_SIZE = 1024;
 
+	protected static final int STAGE_BUFFER_SIZE = 65536;
+
+	public static final String THREADPOOL = "StorageCounters";
+
 	protected static Logger log = LoggerFactory.getLogger(AbstractStorer.class);
 
 	protected ContextProperties config;
@@ -43,6 +68,20 @@ public abstract class AbstractStorer implements Storer {
 
 	protected Map<String, String> parameters = new HashMap<String, String>();
 
+	protected StorageCounters counters;
+
+	// True when the counters reflect the content of the storage
+	private volatile boolean countersReady = false;
+
+	// True when a reconciliation has been requested in background
+	private AtomicBoolean reconciliationRequested = new AtomicBoolean(false);
+
+	// The jobs of this storer in the shared pool
+	private List<ScheduledFuture<?>> jobs = new ArrayList<ScheduledFuture<?>>();
+
+	// Tenant of the document being changed by the current thread, if known
+	private static ThreadLocal<Long> currentTenant = new ThreadLocal<Long>();
+
 	public AbstractStorer() {
 	}
 
@@ -95,6 +134,119 @@ public abstract class AbstractStorer implements Storer {
 		store(is, docId, resource);
 	}
 
+	@Override
+	public void store(InputStream stream, long docId, String resource, long tenantId) throws IOException {
+		Long previous = currentTenant.get();
+		currentTenant.set(tenantId);
+		try {
+			store(stream, docId, resource);
+		} finally {
+			restoreTenant(previous);
+		}
+	}
+
+	@Override
+	public void store(File file, long docId, String resource, long tenantId) throws IOException {
+		Long previous = currentTenant.get();
+		currentTenant.set(tenantId);
+		try {
+			store(file, docId, resource);
+		} finally {
+			restoreTenant(previous);
+		}
+	}
+
+	@Override
+	public void promote(StagedResource staged, long docId, String resource, long tenantId) throws IOException {
+		Long previous = currentTenant.get();
+		currentTenant.set(tenantId);
+		try {
+			promote(staged, docId, resource);
+		} finally {
+			restoreTenant(previous);
+		}
+	}
+
+	@Override
+	public void delete(long docId, String resource, long tenantId) {
+		Long previous = currentTenant.get();
+		currentTenant.set(tenantId);
+		try {
+			delete(docId, resource);
+		} finally {
+			restoreTenant(previous);
+		}
+	}
+
+	private static void restoreTenant(Long previous) {
+		if (previous != null)
+			currentTenant.set(previous);
+		else
+			currentTenant.remove();
+	}
+
+	/**
+	 * Stages the content in a temporary file, implementations can override
+	 * this to use an area of the storage itself
+	 */
+	@Override
+	public StagedResource stage(InputStream stream) throws IOException {
+		if (!isEnabled())
+			throw new IOException("Storer not enabled");
+		return stage(stream, File.createTempFile("stage", ""));
+	}
+
+	/**
+	 * Writes a stream into a file computing the size and the SHA-1 digest in
+	 * the same pass. The stream is closed and the file is deleted in case of
+	 * error.
+	 *
+	 * @param stream the content to write
+	 * @param file the destination file
+	 *
+	 * @return the staged content
+	 *
+	 * @throws IOException the content cannot be written
+	 */
+	protected StagedResource stage(InputStream stream, File file) throws IOException {
+		MessageDigest sha = null;
+		try {
+			sha = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+
+		long size = 0L;
+		try (InputStream is = new DigestInputStream(stream, sha);
+				OutputStream os = new FileOutputStream(file, false)) {
+			size = IOUtils.copyLarge(is, os, new byte[STAGE_BUFFER_SIZE]);
+		} catch (IOException e) {
+			FileUtil.strongDelete(file);
+			throw e;
+		}
+		return new StagedResource(file, size, FileUtil.toHexDigest(sha.digest()));
+	}
+
+	/**
+	 * Stores the staged file as usual and then removes it
+	 */
+	@Override
+	public void promote(StagedResource staged, long docId, String resource) throws IOException {
+		if (!staged.getFile().exists())
+			throw new IOException("Staged content " + staged + " not found");
+		try {
+			store(staged.getFile(), docId, resource);
+		} finally {
+			discard(staged);
+		}
+	}
+
+	@Override
+	public void discard(StagedResource staged) {
+		if (staged != null && staged.getFile().exists())
+			FileUtil.strongDelete(staged.getFile());
+	}
+
 	/**
 	 * Computes the relative path of a document's folder inside the storage
 	 * root. The document's id is tokenized by three chars tokens, than the doc/
@@ -140,11 +292,19 @@ public abstract class AbstractStorer implements Storer {
 		}
 	}
 
+	/**
+	 * Uses the channel, if available, to copy just the requested range
+	 */
 	@Override
 	public void writeToStream(long docId, String resource, OutputStream output, long start, long length)
 			throws IOException {
-		try {
-			IOUtils.copyLarge(getStream(docId, resource), output, start, length);
+		try (SeekableByteChannel channel = getChannel(docId, resource)) {
+			if (channel != null)
+				FileUtil.copy(channel, output, start, length);
+			else
+				try (InputStream is = getStream(docId, resource)) {
+					IOUtils.copyLarge(is, output, start, length);
+				}
 		} catch (IOException ioe) {
 			log.error(ioe.getMessage(), ioe);
 			throw ioe;
@@ -153,14 +313,27 @@ public abstract class AbstractStorer implements Storer {
 
 	@Override
 	public void writeToStream(long docId, String resource, OutputStream output) throws IOException {
-		try {
-			IOUtils.copyLarge(getStream(docId, resource), output);
+		try (SeekableByteChannel channel = getChannel(docId, resource)) {
+			if (channel != null)
+				FileUtil.copy(channel, output, 0L, channel.size());
+			else
+				try (InputStream is = getStream(docId, resource)) {
+					IOUtils.copyLarge(is, output);
+				}
 		} catch (IOException ioe) {
 			log.error(ioe.getMessage(), ioe);
 			throw ioe;
 		}
 	}
 
+	/**
+	 * Channels are not supported by default
+	 */
+	@Override
+	public SeekableByteChannel getChannel(long docId, String resource) throws IOException {
+		return null;
+	}
+
 	@Override
 	public void writeToFile(long docId, String resource, File out) throws IOException {
 		OutputStream os = null;
@@ -291,12 +464,182 @@ public abstract class AbstractStorer implements Storer {
 	}
 
 	@Override
-	public void init() {
+	public long getTotalSize() {
+		return getTotalSize(Tenant.SYSTEM_ID);
+	}
 
+	/**
+	 * Returns the last known size, if the counters are not yet reconciled the
+	 * reconciliation is started in background
+	 */
+	@Override
+	public long getTotalSize(long tenantId) {
+		StorageCounters cnts = getCounters();
+		if (!countersReady && reconciliationRequested.compareAndSet(false, true))
+			try {
+				ThreadPools.get().getScheduledPool(THREADPOOL).execute(() -> reconcileCountersIfNeeded());
+			} catch (RuntimeException e) {
+				reconciliationRequested.set(false);
+				log.debug("Cannot schedule the reconciliation of storage {} - {}", id, e.getMessage());
+			}
+		return cnts.getSize(tenantId);
+	}
+
+	/**
+	 * Gets the counters of this storage, loading them from the database the
+	 * first time
+	 * 
+	 * @return the counters
+	 */
+	public synchronized StorageCounters getCounters() {
+		if (counters == null) {
+			counters = new StorageCounters(id);
+			countersReady = counters.load();
+		}
+		return counters;
+	}
+
+	/**
+	 * Updates the counters after a change in the storage
+	 * 
+	 * @param docId identifier of the document whose files were changed
+	 * @param bytes number of bytes added(negative if removed)
+	 * @param files number of files added(negative if removed)
+	 */
+	protected void updateCounters(long docId, long bytes, long files) {
+		if (bytes == 0L && files == 0L)
+			return;
+		Long tenantId = currentTenant.get();
+		getCounters().add(tenantId != null ? tenantId : getTenantId(docId), bytes, files);
+	}
+
+	/**
+	 * Retrieves the tenant of a document, used when the caller did not
+	 * specify it
+	 * 
+	 * @param docId identifier of the document
+	 * 
+	 * @return the tenant's identifier, the default tenant if the document
+	 *         cannot be found
+	 */
+	protected long getTenantId(long docId) {
+		try {
+			DocumentDAO docDao = (DocumentDAO) Context.get().getBean(DocumentDAO.class);
+			long tenantId = docDao.queryForLong("select ld_tenantid from ld_document where ld_id=" + docId);
+			return tenantId != 0L ? tenantId : Tenant.DEFAULT_ID;
+		} catch (Throwable t) {
+			log.debug("Unable to retrieve the tenant of document {} - {}", docId, t.getMessage());
+			return Tenant.DEFAULT_ID;
+		}
+	}
+
+	/**
+	 * Sums the sizes of some documents into the counters of their tenants
+	 * 
+	 * @param documents key is the document's identifier, value is the couple
+	 *        {size, files}
+	 * @param tenants key is the tenant's identifier, value is the couple
+	 *        {size, files}
+	 */
+	protected void countByTenant(Map<Long, long[]> documents, Map<Long, long[]> tenants) {
+		if (documents.isEmpty())
+			return;
+
+		Map<Long, Long> docTenants = new HashMap<Long, Long>();
+		try {
+			DocumentDAO docDao = (DocumentDAO) Context.get().getBean(DocumentDAO.class);
+			List<Long> ids = new ArrayList<Long>(documents.keySet());
+			docDao.query("select ld_id, ld_tenantid from ld_document where ld_id in ("
+					+ StringUtils.join(ids, ',') + ")", null, (rs, rowNum) -> {
+						docTenants.put(rs.getLong(1), rs.getLong(2));
+						return null;
+					}, null);
+		} catch (PersistenceException e) {
+			log.warn("Unable to retrieve the tenants of the documents - {}", e.getMessage());
+		}
+
+		for (Map.Entry<Long, long[]> entry : documents.entrySet()) {
+			Long tenantId = docTenants.getOrDefault(entry.getKey(), Tenant.DEFAULT_ID);
+			long[] counter = tenants.computeIfAbsent(tenantId, t -> new long[2]);
+			counter[0] += entry.getValue()[0];
+			counter[1] += entry.getValue()[1];
+		}
+	}
+
+	/**
+	 * Reconciles the counters with a full scan of the storage
+	 */
+	public void reconcileCounters() {
+		StorageCounters cnts = getCounters();
+		synchronized (cnts) {
+			cnts.beginReconciliation();
+			try {
+				Map<Long, long[]> scanned = scanCounters();
+				if (scanned != null) {
+					cnts.endReconciliation(scanned);
+					cnts.save();
+				} else
+					cnts.abortReconciliation();
+			} catch (Throwable t) {
+				cnts.abortReconciliation();
+				log.error("Unable to scan the storage {} - {}", id, t.getMessage(), t);
+			} finally {
+				// Do not retry at each invocation
+				countersReady = true;
+			}
+		}
+	}
+
+	private void reconcileCountersIfNeeded() {
+		synchronized (getCounters()) {
+			if (!countersReady)
+				reconcileCounters();
+		}
+	}
+
+	/**
+	 * Scans the whole storage to count the bytes and files of each tenant.
+	 * Implementations that do not support the scan must return null.
+	 * 
+	 * @return the map with key the tenant's identifier and value the couple
+	 *         {size, files}
+	 * 
+	 * @throws IOException if the storage cannot be scanned
+	 */
+	protected Map<Long, long[]> scanCounters() throws IOException {
+		return null;
 	}
 
 	@Override
-	public void destroy() {
+	public void init() {
+		long saveInterval = getConfig().getLong("store.counters.save", 60L);
+		long reconcileInterval = getConfig().getLong("store.counters.reconcile", 0L);
+
+		getCounters();
+		synchronized (jobs) {
+			if (!jobs.isEmpty())
+				return;
+			ThreadPools threadPools = ThreadPools.get();
+			if (reconcileInterval > 0)
+				jobs.add(threadPools.scheduleWithFixedDelay(() -> reconcileCounters(), THREADPOOL,
+						countersReady ? TimeUnit.HOURS.toMillis(reconcileInterval) : 0L,
+						TimeUnit.HOURS.toMillis(reconcileInterval)));
+			else if (reconciliationRequested.compareAndSet(false, true))
+				threadPools.getScheduledPool(THREADPOOL).execute(() -> reconcileCountersIfNeeded());
+			if (saveInterval > 0)
+				jobs.add(threadPools.scheduleWithFixedDelay(() -> getCounters().save(), THREADPOOL,
+						TimeUnit.SECONDS.toMillis(saveInterval)));
+		}
+	}
 
+	@Override
+	public void destroy() {
+		synchronized (jobs) {
+			for (ScheduledFuture<?> job : jobs)
+				job.cancel(true);
+			jobs.clear();
+		}
+		if (counters != null)
+			counters.save();
 	}
-}
\ No newline at end of file
+}
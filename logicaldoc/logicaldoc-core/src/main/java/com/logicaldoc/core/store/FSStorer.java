@@ -6,8 +6,22 @@ import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
@@ -31,6 +45,8 @@ public class FSStorer extends AbstractStorer {
 
 	protected static Logger log = LoggerFactory.getLogger(FSStorer.class);
 
+	private static final String STAGING = ".staging";
+
 	public FSStorer() {
 		super();
 	}
@@ -39,8 +55,12 @@ public class FSStorer extends AbstractStorer {
 	public void delete(long docId) {
 		File docDir = getContainer(docId);
 		try {
-			if (docDir.exists())
+			if (docDir.exists()) {
+				long size = FileUtils.sizeOfDirectory(docDir);
+				long files = FileUtils.listFiles(docDir, null, true).size();
 				FileUtils.forceDelete(docDir);
+				updateCounters(docId, -size, -files);
+			}
 		} catch (IOException e) {
 			log.error(e.getMessage());
 		}
@@ -74,7 +94,10 @@ public class FSStorer extends AbstractStorer {
 		File dir = getContainer(docId);
 		FileUtils.forceMkdir(dir);
 		File dest = new File(new StringBuilder(dir.getPath()).append("/").append(resource).toString());
+		boolean existing = dest.exists();
+		long previousSize = dest.length();
 		FileUtil.copyFile(file, dest);
+		updateCounters(docId, dest.length() - previousSize, existing ? 0L : 1L);
 	}
 
 	@Override
@@ -87,7 +110,10 @@ public class FSStorer extends AbstractStorer {
 			File dir = getContainer(docId);
 			FileUtils.forceMkdir(dir);
 			file = new File(new StringBuilder(dir.getPath()).append("/").append(resource).toString());
+			boolean existing = file.exists();
+			long previousSize = file.length();
 			FileUtil.writeFile(stream, file.getPath());
+			updateCounters(docId, file.length() - previousSize, existing ? 0L : 1L);
 		} catch (IOException e) {
 			throw e;
 		} catch (Throwable e) {
@@ -100,6 +126,74 @@ public class FSStorer extends AbstractStorer {
 		}
 	}
 
+	/**
+	 * The content is staged in the folder <b>.staging</b> of the storage root,
+	 * so that it can be promoted just renaming the file
+	 */
+	@Override
+	public StagedResource stage(InputStream stream) throws IOException {
+		if (!isEnabled())
+			throw new IOException("Storer not enabled");
+
+		File dir = getStagingDir();
+		FileUtils.forceMkdir(dir);
+		return stage(stream, new File(dir, UUID.randomUUID().toString()));
+	}
+
+	@Override
+	public void promote(StagedResource staged, long docId, String resource) throws IOException {
+		if (!FileUtil.isInsideFolder(getStagingDir(), staged.getFile())) {
+			// Staged by someone else, so copy it
+			super.promote(staged, docId, resource);
+			return;
+		}
+
+		try {
+			// Do not store 0 byte files
+			if (staged.getFile().length() == 0L)
+				throw new IOException("Do not store 0 byte file");
+
+			if (!isEnabled())
+				throw new IOException("Storer not enabled");
+
+			File dir = getContainer(docId);
+			FileUtils.forceMkdir(dir);
+			File dest = new File(dir, resource);
+			boolean existing = dest.exists();
+			long previousSize = dest.length();
+			try {
+				Files.move(staged.getFile().toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(staged.getFile().toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			updateCounters(docId, dest.length() - previousSize, existing ? 0L : 1L);
+		} finally {
+			discard(staged);
+		}
+	}
+
+	/**
+	 * Also removes the contents staged more than one day ago, left by
+	 * interrupted uploads
+	 */
+	@Override
+	public void init() {
+		super.init();
+
+		File[] staged = getStagingDir().listFiles();
+		if (staged == null)
+			return;
+		long limit = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1);
+		for (File file : staged)
+			if (file.lastModified() < limit)
+				FileUtil.strongDelete(file);
+	}
+
+	private File getStagingDir() {
+		return new File(getRoot(), STAGING);
+	}
+
 	@Override
 	public void writeToFile(long docId, String resource, File out) throws IOException {
 		File container = getContainer(docId);
@@ -122,13 +216,86 @@ public class FSStorer extends AbstractStorer {
 	}
 
 	@Override
-	public long getTotalSize() {
-		long size = 0;
-		File docDir = getRoot();
-		if (docDir.exists())
-			size = FileUtils.sizeOfDirectory(docDir);
+	public SeekableByteChannel getChannel(long docId, String resource) throws IOException {
+		File file = new File(getContainer(docId), resource);
+		return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	}
+
+	/**
+	 * Walks the whole storage root, the files are attributed to the tenants of
+	 * the documents they belong to
+	 */
+	@Override
+	protected Map<Long, long[]> scanCounters() throws IOException {
+		Map<Long, long[]> tenants = new HashMap<Long, long[]>();
+		Path root = getRoot().toPath();
+		if (!Files.exists(root))
+			return tenants;
+
+		// Key is the document, value is the couple {size, files}
+		Map<Long, long[]> documents = new HashMap<Long, long[]>();
+		Path staging = getStagingDir().toPath();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (Thread.currentThread().isInterrupted())
+					throw new IOException("Scan interrupted");
+
+				if (attrs.isRegularFile()) {
+					long[] counter = documents.computeIfAbsent(getDocId(root.relativize(file)), d -> new long[2]);
+					counter[0] += attrs.size();
+					counter[1]++;
+					if (documents.size() >= 1000) {
+						countByTenant(documents, tenants);
+						documents.clear();
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				// The staged contents do not belong to any document yet
+				if (dir.equals(staging))
+					return FileVisitResult.SKIP_SUBTREE;
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+				log.debug("Unable to visit {} - {}", file, exc.getMessage());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		countByTenant(documents, tenants);
+
+		return tenants;
+	}
 
-		return size;
+	/**
+	 * Extracts the document's identifier from the relative path of a file,
+	 * e.g. 123/45/doc/1.0 gives 12345
+	 * 
+	 * @return the document's identifier or 0 if the file is not inside a
+	 *         document's container
+	 */
+	private static long getDocId(Path relativePath) {
+		StringBuilder id = new StringBuilder();
+		boolean container = false;
+		for (Path element : relativePath) {
+			if ("doc".equals(element.toString())) {
+				container = true;
+				break;
+			}
+			id.append(element.toString());
+		}
+		if (!container)
+			return 0L;
+		try {
+			return Long.parseLong(id.toString());
+		} catch (NumberFormatException e) {
+			return 0L;
+		}
 	}
 
 	@Override
@@ -143,7 +310,9 @@ public class FSStorer extends AbstractStorer {
 		File file = new File(getContainer(docId), resource);
 		if (file.exists())
 			try {
+				long size = file.length();
 				FileUtils.forceDelete(file);
+				updateCounters(docId, -size, -1L);
 			} catch (IOException e) {
 				log.error(e.getMessage());
 			}
@@ -0,0 +1,61 @@
+package com.logicaldoc.core.store;
+
+import java.io.File;
+
+/**
+ * A content that has been streamed into the staging area of a storer but not
+ * yet assigned to a document. The size and the digest are computed while the
+ * content is written, so they are available without reading it again.
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ *
+ * @see Storer#stage(java.io.InputStream)
+ */
+public class StagedResource {
+
+	private final File file;
+
+	private final long size;
+
+	private final String digest;
+
+	public StagedResource(File file, long size, String digest) {
+		this.file = file;
+		this.size = size;
+		this.digest = digest;
+	}
+
+	/**
+	 * The local file that contains the staged content, it can be used to
+	 * inspect the content(e.g. to count the pages) before the promotion
+	 *
+	 * @return the staged file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * The number of bytes of the staged content
+	 *
+	 * @return the size in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * The SHA-1 digest of the staged content
+	 *
+	 * @return the digest
+	 */
+	public String getDigest() {
+		return digest;
+	}
+
+	@Override
+	public String toString() {
+		return file.getPath();
+	}
+}
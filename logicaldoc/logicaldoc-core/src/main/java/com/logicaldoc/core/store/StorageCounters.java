@@ -0,0 +1,254 @@
+package com.logicaldoc.core.store;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.logicaldoc.core.PersistenceException;
+import com.logicaldoc.core.sequence.Sequence;
+import com.logicaldoc.core.sequence.SequenceDAO;
+import com.logicaldoc.core.security.Tenant;
+import com.logicaldoc.util.Context;
+
+/**
+ * Keeps the number of bytes and files saved in a storage, in total and per
+ * tenant, so the size of the storage is known without walking the whole
+ * repository. The counters are updated by the storer on each write or
+ * deletion and persisted as sequences named <b>storage.size-&lt;id&gt;</b> and
+ * <b>storage.files-&lt;id&gt;</b> (one record per tenant).<br>
+ * A full scan of the storage can be used to reconcile the counters: the
+ * counters are snapshotted when the scan begins and at the end the difference
+ * between the scanned values and the snapshot is added to the counters, so
+ * the changes made while the scan is running are preserved.
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class StorageCounters {
+
+	protected static Logger log = LoggerFactory.getLogger(StorageCounters.class);
+
+	private static final String SIZE = "storage.size-";
+
+	private static final String FILES = "storage.files-";
+
+	private final int storageId;
+
+	private final AtomicLong size = new AtomicLong(0L);
+
+	private final AtomicLong files = new AtomicLong(0L);
+
+	// Key is the tenant, value is the couple {size, files}
+	private final Map<Long, AtomicLong[]> tenants = new ConcurrentHashMap<Long, AtomicLong[]>();
+
+	// Values of the counters when the running reconciliation began, key is
+	// the tenant, value is the couple {size, files}
+	private Map<Long, long[]> snapshot = null;
+
+	private final AtomicBoolean dirty = new AtomicBoolean(false);
+
+	private SequenceDAO sequenceDao;
+
+	public StorageCounters(int storageId) {
+		this.storageId = storageId;
+	}
+
+	/**
+	 * Updates the counters
+	 *
+	 * @param tenantId identifier of the tenant that owns the files
+	 * @param bytes number of bytes added(negative if removed)
+	 * @param files number of files added(negative if removed)
+	 */
+	public void add(long tenantId, long bytes, long files) {
+		if (bytes == 0L && files == 0L)
+			return;
+
+		AtomicLong[] counter = tenants.computeIfAbsent(tenantId,
+				t -> new AtomicLong[] { new AtomicLong(0L), new AtomicLong(0L) });
+		counter[0].addAndGet(bytes);
+		counter[1].addAndGet(files);
+		size.addAndGet(bytes);
+		this.files.addAndGet(files);
+		dirty.set(true);
+	}
+
+	/**
+	 * Gets the total number of bytes in the storage
+	 *
+	 * @return the size in bytes
+	 */
+	public long getSize() {
+		return Math.max(0L, size.get());
+	}
+
+	/**
+	 * Gets the total number of files in the storage
+	 *
+	 * @return number of files
+	 */
+	public long getFiles() {
+		return Math.max(0L, files.get());
+	}
+
+	/**
+	 * Gets the number of bytes belonging to a tenant
+	 *
+	 * @param tenantId identifier of the tenant, use {@link Tenant#SYSTEM_ID}
+	 *        for the whole storage
+	 *
+	 * @return the size in bytes
+	 */
+	public long getSize(long tenantId) {
+		if (tenantId == Tenant.SYSTEM_ID)
+			return getSize();
+		AtomicLong[] counter = tenants.get(tenantId);
+		return counter != null ? Math.max(0L, counter[0].get()) : 0L;
+	}
+
+	/**
+	 * Gets the number of files belonging to a tenant
+	 *
+	 * @param tenantId identifier of the tenant, use {@link Tenant#SYSTEM_ID}
+	 *        for the whole storage
+	 *
+	 * @return number of files
+	 */
+	public long getFiles(long tenantId) {
+		if (tenantId == Tenant.SYSTEM_ID)
+			return getFiles();
+		AtomicLong[] counter = tenants.get(tenantId);
+		return counter != null ? Math.max(0L, counter[1].get()) : 0L;
+	}
+
+	/**
+	 * Marks the beginning of a full scan taking a snapshot of the counters
+	 */
+	public synchronized void beginReconciliation() {
+		Map<Long, long[]> values = new HashMap<Long, long[]>();
+		for (Map.Entry<Long, AtomicLong[]> entry : tenants.entrySet())
+			values.put(entry.getKey(), new long[] { entry.getValue()[0].get(), entry.getValue()[1].get() });
+		snapshot = values;
+	}
+
+	/**
+	 * Corrects the counters with the results of a full scan: the difference
+	 * between the scanned values and the snapshot taken at the beginning is
+	 * added to the counters, that meanwhile may have been updated
+	 *
+	 * @param scanned the scanned values, key is the tenant, value is the
+	 *        couple {size, files}
+	 */
+	public synchronized void endReconciliation(Map<Long, long[]> scanned) {
+		Map<Long, long[]> start = snapshot != null ? snapshot : new HashMap<Long, long[]>();
+		snapshot = null;
+
+		Set<Long> tenantIds = new HashSet<Long>(start.keySet());
+		tenantIds.addAll(scanned.keySet());
+		for (Long tenantId : tenantIds) {
+			long[] scannedValue = scanned.getOrDefault(tenantId, new long[2]);
+			long[] startValue = start.getOrDefault(tenantId, new long[2]);
+			add(tenantId, scannedValue[0] - startValue[0], scannedValue[1] - startValue[1]);
+		}
+
+		// Make sure the zeroed tenants get saved
+		dirty.set(true);
+
+		log.info("Reconciled the counters of storage {}: {} bytes in {} files", storageId, getSize(), getFiles());
+	}
+
+	/**
+	 * Aborts a reconciliation leaving the counters as they are
+	 */
+	public synchronized void abortReconciliation() {
+		snapshot = null;
+	}
+
+	private void set(Map<Long, long[]> values) {
+		long totalSize = 0L;
+		long totalFiles = 0L;
+		// Keep the tenants that have no more files, so their counters get
+		// saved as zero
+		for (Long tenantId : tenants.keySet())
+			if (!values.containsKey(tenantId))
+				tenants.put(tenantId, new AtomicLong[] { new AtomicLong(0L), new AtomicLong(0L) });
+		for (Map.Entry<Long, long[]> entry : values.entrySet()) {
+			tenants.put(entry.getKey(), new AtomicLong[] { new AtomicLong(entry.getValue()[0]),
+					new AtomicLong(entry.getValue()[1]) });
+			totalSize += entry.getValue()[0];
+			totalFiles += entry.getValue()[1];
+		}
+		size.set(totalSize);
+		files.set(totalFiles);
+		dirty.set(true);
+	}
+
+	/**
+	 * Loads the counters from the database
+	 *
+	 * @return true if the counters were persisted
+	 */
+	public synchronized boolean load() {
+		try {
+			Map<Long, long[]> values = new HashMap<Long, long[]>();
+			for (Sequence seq : findSequences(SIZE))
+				values.computeIfAbsent(seq.getTenantId(), t -> new long[2])[0] = seq.getValue();
+			for (Sequence seq : findSequences(FILES))
+				values.computeIfAbsent(seq.getTenantId(), t -> new long[2])[1] = seq.getValue();
+			if (values.isEmpty())
+				return false;
+
+			set(values);
+			dirty.set(false);
+			return true;
+		} catch (Throwable t) {
+			log.warn("Unable to load the counters of storage {} - {}", storageId, t.getMessage());
+			return false;
+		}
+	}
+
+	private List<Sequence> findSequences(String prefix) throws PersistenceException {
+		return getSequenceDao().findByWhere("_entity.name = ?1 and _entity.objectId = 0",
+				new Object[] { prefix + storageId }, null, null);
+	}
+
+	/**
+	 * Persists the counters if they changed since the last save
+	 */
+	public void save() {
+		if (!dirty.getAndSet(false))
+			return;
+
+		try {
+			for (Map.Entry<Long, AtomicLong[]> entry : tenants.entrySet()) {
+				getSequenceDao().reset(SIZE + storageId, 0L, entry.getKey(), entry.getValue()[0].get());
+				getSequenceDao().reset(FILES + storageId, 0L, entry.getKey(), entry.getValue()[1].get());
+			}
+		} catch (Throwable t) {
+			dirty.set(true);
+			log.warn("Unable to save the counters of storage {} - {}", storageId, t.getMessage());
+		}
+	}
+
+	private SequenceDAO getSequenceDao() {
+		if (sequenceDao == null)
+			sequenceDao = (SequenceDAO) Context.get().getBean(SequenceDAO.class);
+		return sequenceDao;
+	}
+
+	public void setSequenceDao(SequenceDAO sequenceDao) {
+		this.sequenceDao = sequenceDao;
+	}
+
+	public int getStorageId() {
+		return storageId;
+	}
+}
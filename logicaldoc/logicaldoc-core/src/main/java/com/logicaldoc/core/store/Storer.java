@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
 import java.util.List;
 import java.util.Map;
 
@@ -58,6 +59,82 @@ public interface Storer extends Comparable<Storer> {
 	 */
 	public void store(File file, long docId, String resource) throws IOException;
 
+	/**
+	 * Stores a content of a document whose tenant is known, so it does not
+	 * need to be looked up in the database
+	 * 
+	 * @see store(InputStream stream, long docId, String resource)
+	 * 
+	 * @param stream the content to store
+	 * @param docId identifier of the document
+	 * @param resource name of the resource
+	 * @param tenantId identifier of the document's tenant
+	 * 
+	 * @throws IOException the content cannot be stored
+	 */
+	public void store(InputStream stream, long docId, String resource, long tenantId) throws IOException;
+
+	/**
+	 * Stores a file of a document whose tenant is known, so it does not need
+	 * to be looked up in the database
+	 * 
+	 * @see store(File file, long docId, String resource)
+	 * 
+	 * @param file the file to store
+	 * @param docId identifier of the document
+	 * @param resource name of the resource
+	 * @param tenantId identifier of the document's tenant
+	 * 
+	 * @throws IOException the content cannot be stored
+	 */
+	public void store(File file, long docId, String resource, long tenantId) throws IOException;
+
+	/**
+	 * Writes a content into the staging area of the storage, computing its
+	 * size and digest while it is written. The staged content must then be
+	 * promoted with {@link #promote(StagedResource, long, String)} or
+	 * discarded with {@link #discard(StagedResource)}. The stream is closed.
+	 *
+	 * @param stream the content to stage
+	 *
+	 * @return the staged content
+	 *
+	 * @throws IOException the content cannot be staged
+	 */
+	public StagedResource stage(InputStream stream) throws IOException;
+
+	/**
+	 * Moves a staged content into the document's container, where possible
+	 * without copying it again
+	 *
+	 * @param staged the staged content
+	 * @param docId identifier of the document
+	 * @param resource name of the resource
+	 *
+	 * @throws IOException the content cannot be stored
+	 */
+	public void promote(StagedResource staged, long docId, String resource) throws IOException;
+
+	/**
+	 * Same as {@link #promote(StagedResource, long, String)} for a document
+	 * whose tenant is known
+	 *
+	 * @param staged the staged content
+	 * @param docId identifier of the document
+	 * @param resource name of the resource
+	 * @param tenantId identifier of the document's tenant
+	 *
+	 * @throws IOException the content cannot be stored
+	 */
+	public void promote(StagedResource staged, long docId, String resource, long tenantId) throws IOException;
+
+	/**
+	 * Removes a staged content, nothing happens if it was already promoted
+	 *
+	 * @param staged the staged content
+	 */
+	public void discard(StagedResource staged);
+
 	/**
 	 * Deletes all resources of a document from the storage.
 	 * 
@@ -73,6 +150,16 @@ public interface Storer extends Comparable<Storer> {
 	 */
 	public void delete(long docId, String resource);
 
+	/**
+	 * Same as {@link #delete(long, String)} for a document whose tenant is
+	 * known
+	 * 
+	 * @param docId The document identifier
+	 * @param resource Name of the resource to be deleted
+	 * @param tenantId identifier of the document's tenant
+	 */
+	public void delete(long docId, String resource, long tenantId);
+
 	/**
 	 * Computes the resource name inside the container
 	 * 
@@ -173,6 +260,21 @@ public interface Storer extends Comparable<Storer> {
 	 */
 	public InputStream getStream(long docId, String resource) throws IOException;
 
+	/**
+	 * Obtains a channel to read the document's content for the specified
+	 * resource, it allows positional reads so byte ranges can be served
+	 * without reading the preceding bytes. The caller must close the channel.
+	 * 
+	 * @param docId The document's identifier
+	 * @param resource Name of the resource
+	 * 
+	 * @return The channel or null if the storage does not support channels,
+	 *         in this case use {@link #getStream(long, String)}
+	 * 
+	 * @throws IOException cannot open the channel
+	 */
+	public SeekableByteChannel getChannel(long docId, String resource) throws IOException;
+
 	/**
 	 * Obtains the document's raw bytes for the specified resource
 	 * 
@@ -231,6 +333,16 @@ public interface Storer extends Comparable<Storer> {
 	 */
 	public long getTotalSize();
 
+	/**
+	 * Computes the size of the documents of a tenant(in bytes)
+	 * 
+	 * @param tenantId identifier of the tenant
+	 * 
+	 * @return sum of the sizes of all the documents of the tenant expressed in
+	 *         bytes
+	 */
+	public long getTotalSize(long tenantId);
+
 	/**
 	 * Implementations should return the list of the required parameters. A
 	 * parameter is stored in the context as storer.<b>id</b>.parameter = value
@@ -5,6 +5,7 @@ import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -65,23 +66,27 @@ public class ThreadPools {
 	 * 
 	 * @return the created pool
 	 */
-	public synchronized ExecutorService getPool(String name) {
+	public ExecutorService getPool(String name) {
+		return getPool(name, TYPE_SCHEDULED, 5);
+	}
+
+	private synchronized ExecutorService getPool(String name, String defaultType, int defaultCore) {
 		ExecutorService pool = pools.get(name);
 
 		if (pool != null) {
 			if (pools.get(name).isShutdown())
 				throw new RuntimeException(name + " pool was shutdown");
 		} else {
-			int core = config.getInt("threadpool." + name + ".core", 5);
+			int core = config.getInt("threadpool." + name + ".core", defaultCore);
 			int max = config.getInt("threadpool." + name + ".max", 10);
 			int keepalive = config.getInt("threadpool." + name + ".keepalive", 5);
-			String type = config.getString("threadpool." + name + ".type", TYPE_SCHEDULED);
+			String type = config.getString("threadpool." + name + ".type", defaultType);
 
 			if (TYPE_DEFAULT.equals(type))
 				pool = new ScheduledThreadPoolExecutor(core, new NamedThreadFactory(name));
 			else
 				pool = new ThreadPoolExecutor(core, max, keepalive, TimeUnit.SECONDS,
-						new LinkedBlockingQueue<Runnable>());
+						new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name));
 			pools.put(name, pool);
 		}
 
@@ -105,6 +110,62 @@ public class ThreadPools {
 		}
 	}
 
+	/**
+	 * Gets a pool that supports scheduling, in case it does not exist it is
+	 * created of type <b>default</b> with one thread and then cached.
+	 * 
+	 * @param name the name of the pool
+	 * 
+	 * @return the pool
+	 * 
+	 * @throws IllegalStateException if the pool is configured of a type that
+	 *         does not support scheduling
+	 */
+	public ScheduledExecutorService getScheduledPool(String name) {
+		ExecutorService pool = getPool(name, TYPE_DEFAULT, 1);
+		if (!(pool instanceof ScheduledExecutorService))
+			throw new IllegalStateException(name + " pool does not support scheduling");
+		return (ScheduledExecutorService) pool;
+	}
+
+	/**
+	 * Schedules the periodic execution of a task in a thread pool, each
+	 * execution starts after the given delay from the end of the previous one.
+	 * The errors are logged and do not stop the next executions.
+	 * 
+	 * @param task The task to execute
+	 * @param poolName The name of the pool, if not configured it is created of
+	 *        type <b>default</b> with one thread
+	 * @param delay a delay expressed in milliseconds
+	 * 
+	 * @return the handle to cancel the executions
+	 */
+	public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, String poolName, long delay) {
+		return scheduleWithFixedDelay(task, poolName, delay, delay);
+	}
+
+	/**
+	 * Same as {@link #scheduleWithFixedDelay(Runnable, String, long)} but the
+	 * first execution starts after the given initial delay.
+	 * 
+	 * @param task The task to execute
+	 * @param poolName The name of the pool
+	 * @param initialDelay delay of the first execution expressed in
+	 *        milliseconds
+	 * @param delay a delay expressed in milliseconds
+	 * 
+	 * @return the handle to cancel the executions
+	 */
+	public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, String poolName, long initialDelay, long delay) {
+		return getScheduledPool(poolName).scheduleWithFixedDelay(() -> {
+			try {
+				task.run();
+			} catch (Throwable t) {
+				log.warn(t.getMessage(), t);
+			}
+		}, initialDelay, delay, TimeUnit.MILLISECONDS);
+	}
+
 	/**
 	 * Executes a task in the given pool.
 	 * 
@@ -1,21 +1,31 @@
 package com.logicaldoc.core.transfer;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 import java.util.zip.ZipEntry;
 
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream.UnicodeExtraFieldPolicy;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,12 +39,21 @@ import com.logicaldoc.core.folder.FolderDAO;
 import com.logicaldoc.core.folder.FolderEvent;
 import com.logicaldoc.core.folder.FolderHistory;
 import com.logicaldoc.core.store.Storer;
+import com.logicaldoc.core.threading.ThreadPools;
 import com.logicaldoc.util.Context;
+import com.logicaldoc.util.config.ContextProperties;
 
 /**
  * Exports a folder hierarchy and all documents in it as a zip file. Can also be
- * used to export a selection of documents
- * 
+ * used to export a selection of documents.<br>
+ * The archive is streamed to the given output, the folders are visited
+ * without recursion and the documents are loaded in batches. The files with
+ * one of the extensions in <b>export.zip.stored</b> are already compressed so
+ * they are stored without compression. When the PDF conversion is requested,
+ * the conversions of the next <b>export.zip.prefetch</b> documents are
+ * produced in the thread pool <b>ZipExport</b> while the current document is
+ * being written.
+ *
  * @author Alessandro Gasparini - LogicalDOC
  * @author Matteo Caruso - LogicalDOC
  */
@@ -42,6 +61,12 @@ public class ZipExport {
 
 	protected static Logger log = LoggerFactory.getLogger(ZipExport.class);
 
+	private static final String DEFAULT_STORED_EXTENSIONS = "pdf,zip,7z,rar,gz,jpg,jpeg,png,gif,mp3,mp4,docx,xlsx,pptx,odt,ods,odp";
+
+	private static final int BATCH_SIZE = 100;
+
+	private static final int BUFFER_SIZE = 8192;
+
 	private ZipArchiveOutputStream zos;
 
 	private long userId;
@@ -50,44 +75,67 @@ public class ZipExport {
 
 	private long startFolderId;
 
+	private Set<String> storedExtensions = new HashSet<String>();
+
+	private int prefetch = 4;
+
+	// The documents waiting to be written, in archive order
+	private Deque<Entry> pending = new ArrayDeque<Entry>();
+
 	public ZipExport() {
 		zos = null;
 		userId = -1;
 		allLevel = false;
 		startFolderId = Folder.DEFAULTWORKSPACEID;
+
+		ContextProperties config = Context.get() != null ? Context.get().getProperties() : null;
+		String stored = config != null ? config.getProperty("export.zip.stored", DEFAULT_STORED_EXTENSIONS)
+				: DEFAULT_STORED_EXTENSIONS;
+		storedExtensions = Arrays.stream(stored.toLowerCase().split(",")).map(String::trim)
+				.filter(ext -> !ext.isEmpty()).collect(Collectors.toSet());
+		if (config != null)
+			prefetch = config.getInt("export.zip.prefetch", 4);
 	}
 
 	/**
 	 * Exports the specified folder content
-	 * 
+	 *
 	 * @param transaction Transaction with all informations about the export
 	 * @param pdfConversion True if the pdf conversion has to be used instead of
 	 *        the original files
-	 * 
+	 *
 	 * @return The Stream of the zip archive
+	 *
+	 * @deprecated the whole archive is kept in memory, use
+	 *             {@link #process(FolderHistory, OutputStream, boolean)}
 	 */
+	@Deprecated
 	public ByteArrayOutputStream process(FolderHistory transaction, boolean pdfConversion) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		process(transaction, bos, pdfConversion);
+		return bos;
+	}
+
+	/**
+	 * Exports the specified folder content
+	 *
+	 * @param transaction Transaction with all informations about the export
+	 * @param out The stream that will receive the zip
+	 * @param pdfConversion True if the pdf conversion has to be used instead of
+	 *        the original files
+	 */
+	public void process(FolderHistory transaction, OutputStream out, boolean pdfConversion) {
 		FolderDAO folderDao = (FolderDAO) Context.get().getBean(FolderDAO.class);
 		Folder folder = folderDao.findFolder(transaction.getFolderId());
 		this.userId = transaction.getUserId();
 		this.startFolderId = folder.getId();
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		zos = new ZipArchiveOutputStream(bos);
-		zos.setMethod(ZipEntry.DEFLATED);
-		zos.setEncoding("UTF-8");
-		zos.setCreateUnicodeExtraFields(UnicodeExtraFieldPolicy.ALWAYS);
-		zos.setUseLanguageEncodingFlag(true);
+		openArchive(out);
 
 		try {
 			appendChildren(folder, 0, pdfConversion, transaction.getSessionId());
+			writePending(0);
 		} finally {
-			try {
-				zos.flush();
-				zos.close();
-			} catch (Throwable e) {
-				e.printStackTrace();
-			}
-
+			closeArchive();
 		}
 
 		/*
@@ -95,20 +143,22 @@ public class ZipExport {
 		 */
 		transaction.setEvent(FolderEvent.EXPORTED.toString());
 		folderDao.saveFolderHistory(folder, transaction);
-
-		return bos;
 	}
 
 	/**
 	 * Exports a selection of documents
-	 * 
+	 *
 	 * @param docIds Identifiers of the documents
 	 * @param pdfConversion True if the pdf conversion has to be used instead of
 	 *        the original files
 	 * @param transaction session informations
-	 * 
+	 *
 	 * @return The Stream of the zip archive
+	 *
+	 * @deprecated the whole archive is kept in memory, use
+	 *             {@link #process(Long[], OutputStream, boolean, DocumentHistory)}
 	 */
+	@Deprecated
 	public ByteArrayOutputStream process(Long[] docIds, boolean pdfConversion, DocumentHistory transaction) {
 		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 		process(docIds, bos, pdfConversion, transaction);
@@ -117,7 +167,7 @@ public class ZipExport {
 
 	/**
 	 * Exports a selection of documents
-	 * 
+	 *
 	 * @param docIds Identifiers of the documents
 	 * @param out The stream that will receive the zip
 	 * @param pdfConversion True if the pdf conversion has to be used instead of
@@ -128,11 +178,7 @@ public class ZipExport {
 		DocumentDAO ddao = (DocumentDAO) Context.get().getBean(DocumentDAO.class);
 		FolderDAO fdao = (FolderDAO) Context.get().getBean(FolderDAO.class);
 
-		zos = new ZipArchiveOutputStream(out);
-		zos.setEncoding("UTF-8");
-		zos.setMethod(ZipEntry.DEFLATED);
-		zos.setCreateUnicodeExtraFields(UnicodeExtraFieldPolicy.ALWAYS);
-		zos.setUseLanguageEncodingFlag(true);
+		openArchive(out);
 
 		try {
 			for (long id : docIds) {
@@ -145,94 +191,103 @@ public class ZipExport {
 						continue;
 				}
 
-				boolean convertToPdf = pdfConversion;
-				if (doc.getDocRef() != null) {
-					// This is an alias, retrieve the real document
-					doc = ddao.findById(doc.getDocRef());
-					if ("pdf".equals(doc.getDocRefType()))
-						convertToPdf = true;
-				}
-				addDocument("", doc, convertToPdf, transaction.getSessionId());
-
-				if (transaction != null) {
-					DocumentHistory t = (DocumentHistory) transaction.clone();
-					transaction.setEvent(DocumentEvent.DOWNLOADED.toString());
-					ddao.saveDocumentHistory(doc, t);
-				}
+				addDocument("", doc, pdfConversion, transaction != null ? transaction.getSessionId() : null,
+						transaction);
 			}
+			writePending(0);
 		} finally {
-			try {
-				zos.flush();
-				zos.close();
-			} catch (Throwable e) {
-				e.printStackTrace();
-			}
-
+			closeArchive();
 		}
 	}
 
 	/**
 	 * If allLevel set true all children of a specified folder will be export.
 	 * Otherwise only the first level will be export.
-	 * 
+	 *
 	 * @param level the compression level
 	 */
 	public void setAllLevel(boolean level) {
 		allLevel = level;
 	}
 
+	private void openArchive(OutputStream out) {
+		pending.clear();
+		zos = new ZipArchiveOutputStream(out);
+		zos.setMethod(ZipEntry.DEFLATED);
+		zos.setEncoding("UTF-8");
+		zos.setCreateUnicodeExtraFields(UnicodeExtraFieldPolicy.ALWAYS);
+		zos.setUseLanguageEncodingFlag(true);
+	}
+
+	private void closeArchive() {
+		// Do not leave conversions running for entries that will never be
+		// written
+		for (Entry entry : pending)
+			if (entry.conversion != null)
+				entry.conversion.cancel(false);
+		pending.clear();
+
+		try {
+			zos.flush();
+			zos.close();
+		} catch (Throwable e) {
+			log.warn(e.getMessage(), e);
+		}
+	}
+
 	/**
-	 * Adds all children of the specified folder up to the given level
-	 * 
+	 * Adds all children of the specified folder up to the given level. The
+	 * tree is visited breadth first keeping in memory just the identifiers
+	 * and the paths of the folders still to be visited.
+	 *
 	 * @param folder the folder to elaborate
 	 * @param depth the depth
 	 * @param pdfConversion if the PDF conversions have to be used instead
 	 * @param sid identifier of the session
 	 */
 	protected void appendChildren(Folder folder, int depth, boolean pdfConversion, String sid) {
-		if (!allLevel && (depth > 1)) {
-			return;
-		} else {
-			addFolderDocuments(folder, pdfConversion, sid);
-			FolderDAO folderDao = (FolderDAO) Context.get().getBean(FolderDAO.class);
-			Collection<Folder> children = folderDao.findByUserId(userId, folder.getId());
-			Iterator<Folder> iter = children.iterator();
-
-			while (iter.hasNext()) {
-				appendChildren(iter.next(), depth + 1, pdfConversion, sid);
-			}
+		FolderDAO folderDao = (FolderDAO) Context.get().getBean(FolderDAO.class);
+
+		Deque<FolderNode> nodes = new ArrayDeque<FolderNode>();
+		nodes.add(new FolderNode(folder.getId(), getZipEntryPath(folder), depth));
+		while (!nodes.isEmpty()) {
+			FolderNode node = nodes.poll();
+			if (!allLevel && (node.depth > 1))
+				continue;
+
+			addFolderDocuments(node.id, node.path, pdfConversion, sid);
+
+			for (Folder child : folderDao.findByUserId(userId, node.id))
+				nodes.add(new FolderNode(child.getId(), node.path + child.getName() + "/", node.depth + 1));
 		}
 	}
 
 	/**
-	 * Adds all folder's documents
-	 * 
-	 * @param folder the folder to elaborate
+	 * Adds all folder's documents, they are loaded in batches
+	 *
+	 * @param folderId identifier of the folder to elaborate
+	 * @param path path of the folder inside the archive
 	 * @param pdfConversion if the PDF conversions have to be used instead
 	 * @param sid identifier of the session
 	 */
-	protected void addFolderDocuments(Folder folder, boolean pdfConversion, String sid) {
+	protected void addFolderDocuments(long folderId, String path, boolean pdfConversion, String sid) {
 		DocumentDAO ddao = (DocumentDAO) Context.get().getBean(DocumentDAO.class);
-		Collection<Document> docs = ddao.findByFolder(folder.getId(), null);
-
-		for (Document document : docs) {
-			Document doc = document;
-			boolean convertToPdf = pdfConversion;
-			if (doc.getDocRef() != null) {
-				// This is an alias, retrieve the real document
-				doc = ddao.findById(doc.getDocRef());
-				if ("pdf".equals(doc.getDocRefType()))
-					convertToPdf = true;
-			}
 
-			addDocument(getZipEntryPath(folder), doc, convertToPdf, sid);
-		}
+		Long afterId = null;
+		List<Document> docs;
+		do {
+			docs = ddao.findByFolder(folderId, afterId, BATCH_SIZE);
+			for (Document document : docs)
+				addDocument(path, document, pdfConversion, sid, null);
+			if (!docs.isEmpty())
+				afterId = docs.get(docs.size() - 1).getId();
+		} while (docs.size() == BATCH_SIZE);
 	}
 
 	/**
 	 * To maximize the compatibility with Windows we have to remove special
 	 * chars and the total filename size must be <=250
-	 * 
+	 *
 	 * @param src the source filename
 	 * @return the compatible name
 	 */
@@ -248,65 +303,140 @@ public class ZipExport {
 	}
 
 	/**
-	 * Adds a single document into the archive in the specified path.
-	 * 
+	 * Queues a single document to be put into the archive in the specified
+	 * path, if needed its PDF conversion is started immediately.
+	 *
 	 * @param path path to store the document in
 	 * @param document the document
 	 * @param pdfConversion if the PDF conversion has to be used instead
 	 * @param sid identifier of the session
+	 * @param transaction optional session informations, if specified a
+	 *        download history is recorded when the document is written
+	 */
+	private void addDocument(String path, Document document, boolean pdfConversion, String sid,
+			DocumentHistory transaction) {
+		Document doc = document;
+		boolean convertToPdf = pdfConversion;
+		if (doc.getDocRef() != null) {
+			// This is an alias, retrieve the real document
+			if ("pdf".equals(doc.getDocRefType()))
+				convertToPdf = true;
+			DocumentDAO ddao = (DocumentDAO) Context.get().getBean(DocumentDAO.class);
+			doc = ddao.findById(doc.getDocRef());
+		}
+
+		Entry entry = new Entry(path, doc, convertToPdf, transaction);
+		if (convertToPdf && !"pdf".equals(FilenameUtils.getExtension(doc.getFileName().toLowerCase())))
+			entry.conversion = convertToPdf(doc, sid);
+		pending.add(entry);
+
+		writePending(prefetch);
+	}
+
+	/**
+	 * Starts the PDF conversion of a document in the pool, or executes it
+	 * immediately if the prefetch is disabled
 	 */
-	private void addDocument(String path, Document document, boolean pdfConversion, String sid) {
+	private Future<Void> convertToPdf(Document document, String sid) {
+		FormatConverterManager manager = (FormatConverterManager) Context.get().getBean(FormatConverterManager.class);
+		Callable<Void> conversion = () -> {
+			manager.convertToPdf(document, sid);
+			return null;
+		};
+
+		if (prefetch > 0 && ThreadPools.get() != null)
+			return ThreadPools.get().getPool("ZipExport").submit(conversion);
+
+		FutureTask<Void> task = new FutureTask<Void>(conversion);
+		task.run();
+		return task;
+	}
+
+	/**
+	 * Writes the queued documents until just the given number remains
+	 *
+	 * @param window number of documents that can stay in the queue
+	 */
+	private void writePending(int window) {
+		while (pending.size() > window)
+			writeDocument(pending.poll());
+	}
+
+	/**
+	 * Writes a single document into the archive
+	 */
+	private void writeDocument(Entry entry) {
+		Document document = entry.document;
 		Storer storer = (Storer) Context.get().getBean(Storer.class);
 		String resource = storer.getResourceName(document, null, null);
 
-		if (pdfConversion && !"pdf".equals(FilenameUtils.getExtension(document.getFileName().toLowerCase()))) {
-			FormatConverterManager manager = (FormatConverterManager) Context.get()
-					.getBean(FormatConverterManager.class);
+		if (entry.conversion != null) {
 			try {
-				manager.convertToPdf(document, null);
-			} catch (IOException e) {
-				log.warn(e.getMessage(), e);
+				entry.conversion.get();
+			} catch (ExecutionException e) {
+				log.warn(e.getCause().getMessage(), e.getCause());
+				return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 				return;
 			}
 			resource = storer.getResourceName(document, null, FormatConverterManager.PDF_CONVERSION_SUFFIX);
 		}
 
-		InputStream is = null;
-		BufferedInputStream bis = null;
-		try {
-			is = storer.getStream(document.getId(), resource);
-			bis = new BufferedInputStream(is);
+		String fileName = document.getFileName();
+		if (entry.pdfConversion)
+			fileName = FilenameUtils.getBaseName(fileName) + ".pdf";
 
-			String fileName = document.getFileName();
-			if (pdfConversion)
-				fileName = FilenameUtils.getBaseName(fileName) + ".pdf";
+		ZipArchiveEntry zipEntry = new ZipArchiveEntry(entry.path + adjustFileNameForWindows(fileName));
+		boolean entryOpened = false;
+		try {
+			if (storedExtensions.contains(FilenameUtils.getExtension(fileName).toLowerCase())) {
+				// A stored entry needs size and checksum before the content
+				CRC32 crc = new CRC32();
+				long size = 0;
+				try (InputStream is = new CheckedInputStream(storer.getStream(document.getId(), resource), crc)) {
+					byte[] buffer = new byte[BUFFER_SIZE];
+					int len;
+					while ((len = is.read(buffer)) != -1)
+						size += len;
+				}
+				zipEntry.setMethod(ZipEntry.STORED);
+				zipEntry.setSize(size);
+				zipEntry.setCompressedSize(size);
+				zipEntry.setCrc(crc.getValue());
+			} else {
+				zipEntry.setMethod(ZipEntry.DEFLATED);
+			}
 
-			ZipEntry entry = new ZipEntry(path + adjustFileNameForWindows(fileName));
-			entry.setMethod(ZipEntry.DEFLATED);
-			zos.putArchiveEntry(new ZipArchiveEntry(entry));
+			zos.putArchiveEntry(zipEntry);
+			entryOpened = true;
 
 			// Transfer bytes from the file to the ZIP file
-			int len;
-			while ((len = bis.read()) != -1) {
-				zos.write(len);
+			try (InputStream is = storer.getStream(document.getId(), resource)) {
+				IOUtils.copyLarge(is, zos, new byte[BUFFER_SIZE]);
 			}
 		} catch (IOException e) {
 			log.error(e.getMessage());
 		} finally {
-			try {
-				zos.closeArchiveEntry();
-				if (bis != null)
-					bis.close();
-				if (is != null)
-					is.close();
-			} catch (IOException e) {
-			}
+			if (entryOpened)
+				try {
+					zos.closeArchiveEntry();
+				} catch (IOException e) {
+					log.error(e.getMessage());
+				}
+		}
+
+		if (entry.transaction != null) {
+			DocumentDAO ddao = (DocumentDAO) Context.get().getBean(DocumentDAO.class);
+			DocumentHistory t = (DocumentHistory) entry.transaction.clone();
+			t.setEvent(DocumentEvent.DOWNLOADED.toString());
+			ddao.saveDocumentHistory(document, t);
 		}
 	}
 
 	/**
 	 * Computes the correct entry path inside the zip archive
-	 * 
+	 *
 	 * @param folder The folder of the document to be inserted
 	 * @return The full path
 	 */
@@ -338,4 +468,45 @@ public class ZipExport {
 
 		return path.toString();
 	}
-}
\ No newline at end of file
+
+	/**
+	 * A folder still to be visited
+	 */
+	private static class FolderNode {
+
+		private final long id;
+
+		private final String path;
+
+		private final int depth;
+
+		private FolderNode(long id, String path, int depth) {
+			this.id = id;
+			this.path = path;
+			this.depth = depth;
+		}
+	}
+
+	/**
+	 * A document waiting to be written
+	 */
+	private static class Entry {
+
+		private final String path;
+
+		private final Document document;
+
+		private final boolean pdfConversion;
+
+		private final DocumentHistory transaction;
+
+		private Future<Void> conversion;
+
+		private Entry(String path, Document document, boolean pdfConversion, DocumentHistory transaction) {
+			this.path = path;
+			this.document = document;
+			this.pdfConversion = pdfConversion;
+			this.transaction = transaction;
+		}
+	}
+}
@@ -2,14 +2,27 @@ package com.logicaldoc.core.transfer;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
@@ -30,13 +43,19 @@ import com.logicaldoc.core.security.Session;
 import com.logicaldoc.core.security.SessionManager;
 import com.logicaldoc.core.security.User;
 import com.logicaldoc.core.security.dao.UserDAO;
-import com.logicaldoc.core.util.UserUtil;
+import com.logicaldoc.core.threading.ThreadPools;
 import com.logicaldoc.util.Context;
+import com.logicaldoc.util.config.ContextProperties;
 import com.logicaldoc.util.io.ZipUtil;
 
 /**
  * This is an import utilities that imports documents stored in a zip archive.
- * All folders in the zip will be replicated.
+ * All folders in the zip will be replicated.<br>
+ * The archive is opened just once: all the distinct folders are created in a
+ * first pass, then the entries are read directly from the archive and the
+ * documents are created concurrently in the thread pool <b>ZipImport</b>,
+ * with no more than twice as many entries waiting as the threads of the
+ * pool. The progress is logged and the errors are collected per entry.
  * 
  * @author Sebastian Stein
  * @author Matteo Caruso - LogicalDOC
@@ -57,6 +76,13 @@ public class ZipImport {
 
 	protected String fileNameCharset = "UTF-8";
 
+	private int total = 0;
+
+	private final AtomicInteger processed = new AtomicInteger(0);
+
+	// Key is the entry, value is the error
+	private final Map<String, String> errors = new ConcurrentHashMap<String, String>();
+
 	/**
 	 * Constructor.
 	 * 
@@ -72,40 +98,31 @@ public class ZipImport {
 	public void process(File zipsource, Folder parent, long userId, String sessionId) {
 		this.zipFile = zipsource;
 		this.sessionId = sessionId;
+		this.total = 0;
+		this.processed.set(0);
+		this.errors.clear();
 
 		UserDAO userDao = (UserDAO) Context.get().getBean(UserDAO.class);
 		this.user = userDao.findById(userId);
 
-		File dir = UserUtil.getUserResource(userId, "unzip");
-		if (dir.exists()) {
-			try {
-				FileUtils.deleteDirectory(dir);
-			} catch (IOException e) {
-			}
-		}
-
 		try {
-			FileUtils.forceMkdir(dir);
-		} catch (IOException e) {
-		}
+			ZipUtil zipUtil = new ZipUtil();
+			zipUtil.setFileNameCharset(fileNameCharset);
+			List<String> entries = zipUtil.listEntries(zipsource);
 
-		ZipUtil zipUtil = new ZipUtil();
-		zipUtil.unzip(zipFile.getPath(), dir.getPath());
-		File[] files = dir.listFiles();
-
-		for (int i = 0; i < files.length; i++) {
-			if (StringUtils.isNotEmpty(files[i].getName())
-					|| StringUtils.isNotEmpty(FilenameUtils.getBaseName(files[i].getName())))
-				try {
-					addEntry(files[i], parent);
-				} catch (PersistenceException e) {
-					log.error("Error adding entry " + files[i].getName(), e);
-				}
-		}
+			Map<String, Folder> folders = createFolders(parent, entries);
 
-		try {
-			FileUtils.deleteDirectory(dir);
-		} catch (IOException e) {
+			List<String> files = entries.stream().filter(entry -> StringUtils.isNotEmpty(getFileName(entry)))
+					.collect(Collectors.toList());
+			total = files.size();
+			log.info("Importing {} documents from {}", total, zipsource.getName());
+
+			importEntries(zipUtil, files, folders);
+
+			log.info("Imported {} documents from {}, {} errors", total - errors.size(), zipsource.getName(),
+					errors.size());
+		} catch (Throwable e) {
+			log.error("Unable to import the zip {}", zipsource.getName(), e);
 		}
 
 		if (notifyUser)
@@ -119,58 +136,165 @@ public class ZipImport {
 	}
 
 	/**
-	 * Stores a file in the repository of logicaldoc and inserts some
-	 * information in the database of logicaldoc (folder, document, version,
-	 * history, searchdocument).
+	 * Creates all the distinct folders of the entries
+	 * 
+	 * @param parent the folder that receives the archive
+	 * @param entries the entries of the archive
+	 * 
+	 * @return the map path - folder
 	 * 
-	 * @param file
-	 * @param parent
-	 * @throws PersistenceException
+	 * @throws PersistenceException error at data layer
 	 */
-	protected void addEntry(File file, Folder parent) throws PersistenceException {
+	protected Map<String, Folder> createFolders(Folder parent, List<String> entries) throws PersistenceException {
 		FolderDAO dao = (FolderDAO) Context.get().getBean(FolderDAO.class);
-		String folderName = file.getName();
-		FolderHistory transaction = new FolderHistory();
-		transaction.setUser(user);
-		transaction.setSessionId(sessionId);
-
-		Session session = SessionManager.get().get(sessionId);
-		if (transaction != null)
-			transaction.setSession(session);
-
-		if (file.isDirectory()) {
-			// creates a logicaldoc folder
-			Folder folderVO = new Folder();
-			folderVO.setName(folderName);
-			Folder folder = dao.create(parent, folderVO, true, transaction);
-
-			File[] files = file.listFiles();
-
-			for (int i = 0; i < files.length; i++)
-				if (StringUtils.isNotEmpty(files[i].getName())
-						|| StringUtils.isNotEmpty(FilenameUtils.getBaseName(files[i].getName())))
-					addEntry(files[i], folder);
-		} else {
-			// creates a document
-			DocumentManager docManager = (DocumentManager) Context.get().getBean(DocumentManager.class);
+
+		// The sorting ensures the parents come before their children
+		Set<String> paths = new TreeSet<String>();
+		for (String entry : entries)
+			paths.add(getRelativePath(entry));
+
+		Map<String, Folder> folders = new HashMap<String, Folder>();
+		folders.put("", parent);
+		for (String path : paths) {
+			if (folders.containsKey(path))
+				continue;
+
+			FolderHistory transaction = new FolderHistory();
+			transaction.setSessionId(sessionId);
+			transaction.setUser(user);
+			Session session = SessionManager.get().get(sessionId);
+			if (session != null)
+				transaction.setSession(session);
+
+			// Start from the nearest folder already created
+			String parentPath = path.contains("/") ? path.substring(0, path.lastIndexOf('/')) : "";
+			Folder base = folders.get(parentPath);
+			String name = base != null ? path.substring(parentPath.isEmpty() ? 0 : parentPath.length() + 1) : path;
+			folders.put(path, dao.createPath(base != null ? base : parent, name, true, transaction));
+		}
+		log.debug("Prepared {} folders", folders.size());
+		return folders;
+	}
+
+	/**
+	 * Creates the documents of the given entries in the thread pool
+	 * 
+	 * @param zipUtil utility used to read the archive
+	 * @param entries the entries to import
+	 * @param folders the map path - folder
+	 * 
+	 * @throws InterruptedException the import has been interrupted
+	 */
+	protected void importEntries(ZipUtil zipUtil, List<String> entries, Map<String, Folder> folders)
+			throws InterruptedException {
+		ContextProperties config = Context.get().getProperties();
+		ExecutorService pool = ThreadPools.get().getPool("ZipImport");
+		Semaphore window = new Semaphore(Math.max(1, 2 * config.getInt("threadpool.ZipImport.max", 4)));
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		for (String entry : entries) {
+			window.acquire();
+
+			Document doc = (Document) docVo.clone();
+			doc.setId(0L);
+			doc.setFileName(getFileName(entry));
+			doc.setFolder(folders.get(getRelativePath(entry)));
+
+			try {
+				futures.add(pool.submit(() -> {
+					try {
+						importEntry(zipUtil, entry, doc);
+					} finally {
+						window.release();
+					}
+				}));
+			} catch (RejectedExecutionException e) {
+				window.release();
+				errors.put(entry, e.getMessage());
+			}
+		}
+
+		for (Future<?> future : futures)
 			try {
-				DocumentHistory history = new DocumentHistory();
-				history.setEvent(DocumentEvent.STORED.toString());
-				history.setComment("");
-				history.setUser(user);
-				history.setSessionId(sessionId);
-				if (session != null)
-					history.setSession(session);
-
-				Document doc = (Document) docVo.clone();
-				doc.setId(0L);
-				doc.setFolder(parent);
-
-				docManager.create(file, doc, history);
-			} catch (Exception e) {
-				log.error("InMemoryZipImport addEntry failed", e);
+				future.get();
+			} catch (ExecutionException e) {
+				log.warn(e.getMessage(), e);
 			}
+	}
+
+	private void importEntry(ZipUtil zipUtil, String entry, Document doc) {
+		DocumentManager docManager = (DocumentManager) Context.get().getBean(DocumentManager.class);
+		try (InputStream stream = zipUtil.getEntryStream(zipFile, entry)) {
+			if (stream == null)
+				throw new IOException("Unable to read the entry");
+
+			DocumentHistory history = new DocumentHistory();
+			history.setEvent(DocumentEvent.STORED.toString());
+			history.setComment("");
+			history.setUser(user);
+			history.setSessionId(sessionId);
+			Session session = SessionManager.get().get(sessionId);
+			if (session != null)
+				history.setSession(session);
+
+			docManager.create(stream, doc, history);
+		} catch (Throwable e) {
+			log.warn("Unable to import ZIP entry {}", entry, e);
+			errors.put(entry, e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
 		}
+
+		int count = processed.incrementAndGet();
+		if (count % 100 == 0)
+			log.info("Processed {} of {} entries of {}", count, total, zipFile.getName());
+	}
+
+	private static String getRelativePath(String entry) {
+		String relativePath = FilenameUtils.getPath(entry);
+		if (relativePath.startsWith("/"))
+			relativePath = relativePath.substring(1);
+		if (relativePath.endsWith("/"))
+			relativePath = relativePath.substring(0, relativePath.length() - 1);
+		return relativePath;
+	}
+
+	/**
+	 * Gets the file name of an entry
+	 * 
+	 * @return the file name or null if the entry is a folder or it has no
+	 *         name
+	 */
+	private static String getFileName(String entry) {
+		String fileName = FilenameUtils.getName(entry);
+		if (StringUtils.isEmpty(fileName) || StringUtils.isEmpty(FilenameUtils.getBaseName(fileName)))
+			return null;
+		return fileName;
+	}
+
+	/**
+	 * The number of documents to import
+	 * 
+	 * @return the number of file entries in the archive
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * The number of entries processed so far, successfully or not
+	 * 
+	 * @return the number of processed entries
+	 */
+	public int getProcessed() {
+		return processed.get();
+	}
+
+	/**
+	 * The errors raised during the import
+	 * 
+	 * @return the map entry - error message
+	 */
+	public Map<String, String> getErrors() {
+		return errors;
 	}
 
 	/**
@@ -193,6 +317,9 @@ public class ZipImport {
 		sysmess.setSubject(bundle.getString("zip.import.subject"));
 		String message = bundle.getString("zip.import.body");
 		String body = MessageFormat.format(message, new Object[] { zipFile.getName() });
+		if (!errors.isEmpty())
+			body += "\n\n" + errors.entrySet().stream().map(e -> e.getKey() + ": " + e.getValue())
+					.collect(Collectors.joining("\n"));
 		sysmess.setMessageText(body);
 		sysmess.setSentDate(now);
 		sysmess.setConfirmation(0);
@@ -0,0 +1,35 @@
+package com.logicaldoc.core.util;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Utility methods to deal with the transactions
+ * 
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class TransactionUtil {
+
+	private TransactionUtil() {
+	}
+
+	/**
+	 * Executes an action after the commit of the transaction bound to the
+	 * current thread, or immediately if there is no transaction. The action
+	 * is not executed if the transaction is rolled back.
+	 * 
+	 * @param action the action to execute
+	 */
+	public static void afterCommit(Runnable action) {
+		if (TransactionSynchronizationManager.isSynchronizationActive())
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					action.run();
+				}
+			});
+		else
+			action.run();
+	}
+}
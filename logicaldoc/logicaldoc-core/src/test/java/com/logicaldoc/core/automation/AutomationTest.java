@@ -29,4 +29,39 @@ public class AutomationTest extends AbstractCoreTCase {
 			Assert.assertEquals("pippo abc", output);
 		}
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testCachedTemplates() throws Exception {
+		Automation automation = new Automation();
+		String script = "#macro(greet $name)hello $name#end#greet($testval) $DateTool.getClass().getSimpleName()";
+
+		for (String val : new String[] { "abc", "def", "abc" }) {
+			Map<String, Object> dict = new HashMap<String, Object>();
+			dict.put("testval", val);
+			Assert.assertEquals("hello " + val + " DateTool", automation.evaluate(script, dict));
+		}
+
+		// A malformed script is returned as is
+		Assert.assertEquals("#if(", automation.evaluate("#if(", new HashMap<String, Object>()));
+	}
+
+	@Test
+	public void testCacheHits() throws Exception {
+		Automation automation = new Automation();
+		String script = "cache test $testval";
+		Map<String, Object> dict = new HashMap<String, Object>();
+		dict.put("testval", "abc");
+
+		long hits = Automation.getCacheHits();
+		long misses = Automation.getCacheMisses();
+		Assert.assertEquals("cache test abc", automation.evaluate(script, dict));
+		Assert.assertEquals(misses + 1, Automation.getCacheMisses());
+		Assert.assertEquals(hits, Automation.getCacheHits());
+
+		// The second evaluation does not parse the script again
+		dict.put("testval", "def");
+		Assert.assertEquals("cache test def", automation.evaluate(script, dict));
+		Assert.assertEquals(misses + 1, Automation.getCacheMisses());
+		Assert.assertEquals(hits + 1, Automation.getCacheHits());
+	}
+}
@@ -0,0 +1,334 @@
+package com.logicaldoc.core.communication;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.logicaldoc.core.AbstractCoreTCase;
+import com.logicaldoc.core.document.Document;
+import com.logicaldoc.core.document.DummyStorer;
+import com.logicaldoc.core.document.dao.DocumentDAO;
+import com.logicaldoc.core.store.Storer;
+import com.logicaldoc.util.Context;
+import com.logicaldoc.util.config.ContextProperties;
+
+import junit.framework.Assert;
+
+/**
+ * Test case for {@link EMailQueue} and {@link SmtpTransportPool}
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class EMailQueueTest extends AbstractCoreTCase {
+
+	protected static Logger log = LoggerFactory.getLogger(EMailQueueTest.class);
+
+	// Instance under test
+	private EMailQueue queue;
+
+	private SmtpTransportPool pool;
+
+	private DummyStorer storer;
+
+	private ContextProperties config;
+
+	private File spoolDir;
+
+	private SmtpServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		queue = (EMailQueue) context.getBean("EMailQueue");
+		pool = (SmtpTransportPool) context.getBean("SmtpTransportPool");
+		storer = (DummyStorer) Context.get().getBean(Storer.class);
+		storer.setUseDummyFile(true);
+
+		spoolDir = new File("target/mailspool");
+		FileUtils.deleteQuietly(spoolDir);
+		config = Context.get().getProperties();
+		config.setProperty("smtp.spool", spoolDir.getAbsolutePath());
+		config.setProperty("smtp.retry.interval", "1");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		pool.destroy();
+		if (server != null)
+			server.close();
+		storer.setUseDummyFile(false);
+		FileUtils.deleteQuietly(spoolDir);
+		super.tearDown();
+	}
+
+	@Test
+	public void testSpoolAndRetry() throws Exception {
+		// The server is down, the email gets spooled
+		int port = freePort();
+		EMailSender sender = newSender(port);
+		sender.setFolderId(1200L);
+		sender.setFoldering(EMailSender.FOLDERING_NONE);
+		queue.enqueue(sender, newEmail("Spooled"), null, null);
+		waitEmptyQueue();
+		Assert.assertEquals(1, queue.getSpooled());
+
+		String eml = FileUtils.readFileToString(spoolDir.listFiles((dir, name) -> name.endsWith(".eml"))[0],
+				StandardCharsets.UTF_8);
+		Assert.assertTrue(eml.contains("Subject: Spooled"));
+		Assert.assertTrue(eml.contains("filename=pom.xml"));
+
+		// The server is up again, the spooled email gets delivered through
+		// the same server and not the default one of the tenant
+		server = new SmtpServer(port);
+		long opened = pool.getOpened();
+		expireSpool();
+		queue.retry();
+		Assert.assertEquals(0, queue.getSpooled());
+		Assert.assertEquals(1, server.messages.get());
+		Assert.assertEquals(opened + 1, pool.getOpened());
+
+		// The delivered email has been saved as a document
+		List<Document> docs = ((DocumentDAO) context.getBean(DocumentDAO.class))
+				.findByFileNameAndParentFolderId(1200L, "Spooled.eml", null, 1L, null);
+		Assert.assertEquals(1, docs.size());
+
+		// The next emails reuse the same connection
+		long reused = pool.getReused();
+		EMailSender other = newSender(port);
+		for (int i = 0; i < 3; i++)
+			other.send(newEmail("Message " + i));
+		Assert.assertEquals(4, server.messages.get());
+		Assert.assertEquals(1, server.connections.get());
+		Assert.assertEquals(opened + 1, pool.getOpened());
+		Assert.assertEquals(reused + 3, pool.getReused());
+	}
+
+	@Test
+	public void testSpoolUnsentRecipients() throws Exception {
+		// The server temporarily refuses one of the recipients
+		int port = freePort();
+		server = new SmtpServer(port);
+		server.busy.add("busy@acme.com");
+		EMail email = newEmail("Partial");
+		email.parseRecipients("ok@acme.com, busy@acme.com");
+		queue.enqueue(newSender(port), email, null, null);
+		waitEmptyQueue();
+		Assert.assertEquals(1, queue.getSpooled());
+		Assert.assertEquals(0, server.messages.get());
+
+		// The recipients to serve are saved with the message
+		File statusFile = spoolDir.listFiles((dir, name) -> name.endsWith(".properties"))[0];
+		Properties status = loadStatus(statusFile);
+		Assert.assertTrue(status.getProperty("recipients").contains("ok@acme.com"));
+		Assert.assertTrue(status.getProperty("recipients").contains("busy@acme.com"));
+		Assert.assertEquals(Integer.toString(port), status.getProperty("sender.port"));
+
+		// Simulate that the first recipient was already served, so just the
+		// second one must receive the message
+		status.setProperty("recipients", "busy@acme.com");
+		saveStatus(statusFile, status);
+
+		server.busy.clear();
+		server.recipients.clear();
+		expireSpool();
+		queue.retry();
+		Assert.assertEquals(0, queue.getSpooled());
+		Assert.assertEquals(1, server.messages.get());
+		Assert.assertEquals(Arrays.asList("busy@acme.com"), server.recipients);
+	}
+
+	@Test
+	public void testAuthenticationFailed() throws Exception {
+		int port = freePort();
+		server = new SmtpServer(port);
+		server.authentication = true;
+
+		// Wrong credentials are not worth a retry
+		EMailSender sender = newSender(port);
+		sender.setUsername("user");
+		sender.setPassword("wrong");
+		long failed = queue.getFailed();
+		queue.enqueue(sender, newEmail("Unauthorized"), null, null);
+		waitEmptyQueue();
+		Assert.assertEquals(0, queue.getSpooled());
+		Assert.assertEquals(failed + 1, queue.getFailed());
+		Assert.assertEquals(0, server.messages.get());
+	}
+
+	private EMailSender newSender(int port) {
+		EMailSender sender = new EMailSender();
+		sender.setHost("localhost");
+		sender.setPort(port);
+		return sender;
+	}
+
+	private EMail newEmail(String subject) {
+		EMail email = new EMail();
+		email.setTenantId(1L);
+		email.setSubject(subject);
+		email.setMessageText("text of " + subject);
+		email.parseRecipients("test@acme.com");
+
+		EMailAttachment attachment = new EMailAttachment();
+		attachment.setDocId(1L);
+		attachment.setResource("1.0");
+		attachment.setFileName("pom.xml");
+		attachment.setMimeType("text/xml");
+		email.addAttachment(2, attachment);
+		return email;
+	}
+
+	/**
+	 * Makes the spooled emails ready to be retried
+	 */
+	private void expireSpool() throws IOException {
+		for (File statusFile : spoolDir.listFiles((dir, name) -> name.endsWith(".properties"))) {
+			Properties status = loadStatus(statusFile);
+			status.setProperty("next", "0");
+			saveStatus(statusFile, status);
+		}
+	}
+
+	private static Properties loadStatus(File statusFile) throws IOException {
+		Properties status = new Properties();
+		try (InputStream in = new FileInputStream(statusFile)) {
+			status.load(in);
+		}
+		return status;
+	}
+
+	private static void saveStatus(File statusFile, Properties status) throws IOException {
+		try (OutputStream out = new FileOutputStream(statusFile)) {
+			status.store(out, null);
+		}
+	}
+
+	private void waitEmptyQueue() throws InterruptedException {
+		for (int i = 0; i < 100 && queue.getDepth() > 0; i++)
+			Thread.sleep(100);
+		Assert.assertEquals(0, queue.getDepth());
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	/**
+	 * A minimal SMTP server that accepts every message, apart from the busy
+	 * recipients, and rejects every authentication
+	 */
+	private static class SmtpServer extends Thread {
+
+		private final ServerSocket socket;
+
+		private final AtomicInteger connections = new AtomicInteger(0);
+
+		private final AtomicInteger messages = new AtomicInteger(0);
+
+		private final Set<String> busy = ConcurrentHashMap.newKeySet();
+
+		private final List<String> recipients = Collections.synchronizedList(new ArrayList<String>());
+
+		private volatile boolean authentication = false;
+
+		SmtpServer(int port) throws IOException {
+			socket = new ServerSocket(port);
+			setDaemon(true);
+			start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Socket client = socket.accept();
+					connections.incrementAndGet();
+					Thread handler = new Thread(() -> handle(client));
+					handler.setDaemon(true);
+					handler.start();
+				}
+			} catch (SocketException e) {
+				// closed
+			} catch (IOException e) {
+				log.error(e.getMessage(), e);
+			}
+		}
+
+		private void handle(Socket client) {
+			try (Socket s = client;
+					BufferedReader in = new BufferedReader(
+							new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+					PrintWriter out = new PrintWriter(s.getOutputStream(), true)) {
+				reply(out, "220 localhost ESMTP");
+				String line;
+				while ((line = in.readLine()) != null) {
+					String command = line.toUpperCase();
+					if (command.startsWith("DATA")) {
+						reply(out, "354 End data with <CR><LF>.<CR><LF>");
+						while ((line = in.readLine()) != null && !".".equals(line))
+							;
+						messages.incrementAndGet();
+						reply(out, "250 OK");
+					} else if (command.startsWith("EHLO") && authentication) {
+						reply(out, "250-localhost");
+						reply(out, "250 AUTH LOGIN PLAIN");
+					} else if (command.startsWith("AUTH")) {
+						reply(out, "535 5.7.8 Authentication failed");
+					} else if (command.startsWith("RCPT")) {
+						String address = line.substring(line.indexOf('<') + 1, line.lastIndexOf('>'));
+						if (busy.contains(address)) {
+							reply(out, "452 4.2.2 Mailbox busy");
+						} else {
+							recipients.add(address);
+							reply(out, "250 OK");
+						}
+					} else if (command.startsWith("QUIT")) {
+						reply(out, "221 Bye");
+						return;
+					} else {
+						reply(out, "250 OK");
+					}
+				}
+			} catch (IOException e) {
+				// connection closed
+			}
+		}
+
+		private static void reply(PrintWriter out, String text) {
+			out.print(text + "\r\n");
+			out.flush();
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+}
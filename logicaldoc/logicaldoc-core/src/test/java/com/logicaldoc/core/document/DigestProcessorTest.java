@@ -0,0 +1,62 @@
+package com.logicaldoc.core.document;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.logicaldoc.core.AbstractCoreTCase;
+import com.logicaldoc.core.document.dao.DocumentDAO;
+import com.logicaldoc.core.security.Tenant;
+import com.logicaldoc.core.sequence.SequenceDAO;
+import com.logicaldoc.core.store.Storer;
+import com.logicaldoc.util.io.FileUtil;
+
+import junit.framework.Assert;
+
+/**
+ * Test case for <code>DigestProcessor</code>
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class DigestProcessorTest extends AbstractCoreTCase {
+
+	private DocumentDAO documentDao;
+
+	private SequenceDAO sequenceDao;
+
+	private Storer storer;
+
+	// Instance under test
+	private DigestProcessor processor;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		documentDao = (DocumentDAO) context.getBean("DocumentDAO");
+		sequenceDao = (SequenceDAO) context.getBean("SequenceDAO");
+		storer = (Storer) context.getBean("Storer");
+		processor = (DigestProcessor) context.getBean("DigestProcessor");
+	}
+
+	@Test
+	public void testRunTask() throws Exception {
+		File file = new File("pom.xml");
+		storer.store(file, 1L, "1.0");
+		storer.store(file, 3L, "1.3");
+		documentDao.jdbcUpdate("update ld_document set ld_digest=null where ld_id in (1,3)");
+		documentDao.jdbcUpdate("update ld_version set ld_fileversion='1.0' where ld_id=1");
+
+		processor.run();
+
+		String digest = FileUtil.computeDigest(file);
+		Assert.assertEquals(digest, documentDao.findById(1L).getDigest());
+		Assert.assertEquals(digest, documentDao.findById(3L).getDigest());
+		Assert.assertEquals(digest, documentDao.queryForString("select ld_digest from ld_version where ld_id=1"));
+
+		// All the documents were processed, so the next run restarts from the
+		// beginning
+		Assert.assertEquals(0L, sequenceDao.getCurrentValue("digest.cursor", 0L, Tenant.SYSTEM_ID));
+	}
+}
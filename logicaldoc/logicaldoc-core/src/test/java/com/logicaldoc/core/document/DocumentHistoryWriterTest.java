@@ -0,0 +1,88 @@
+package com.logicaldoc.core.document;
+
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.logicaldoc.core.AbstractCoreTCase;
+import com.logicaldoc.core.document.dao.DocumentHistoryDAO;
+
+import junit.framework.Assert;
+
+/**
+ * Test case for {@link DocumentHistoryWriter}
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class DocumentHistoryWriterTest extends AbstractCoreTCase {
+
+	// Instance under test
+	private DocumentHistoryWriter writer;
+
+	private DocumentHistoryDAO dao;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		writer = (DocumentHistoryWriter) context.getBean("DocumentHistoryWriter");
+		dao = (DocumentHistoryDAO) context.getBean("DocumentHistoryDAO");
+	}
+
+	@Test
+	public void testWrite() {
+		int count = dao.findByUserIdAndEvent(1, DocumentEvent.DOWNLOADED.toString(), null).size();
+
+		for (int i = 0; i < 5; i++) {
+			DocumentHistory history = new DocumentHistory();
+			history.setEvent(DocumentEvent.DOWNLOADED.toString());
+			history.setUserId(1L);
+			history.setUsername("admin");
+			history.setDocId(1L);
+			history.setFolderId(1201L);
+			history.setFilename("file" + i + ".pdf");
+			writer.write(history);
+		}
+		writer.flush();
+
+		Assert.assertEquals(0, writer.getDepth());
+		Assert.assertTrue(writer.getWritten() >= 5);
+
+		List<DocumentHistory> histories = dao.findByUserIdAndEvent(1, DocumentEvent.DOWNLOADED.toString(), null);
+		Assert.assertEquals(count + 5, histories.size());
+		for (DocumentHistory history : histories)
+			if (history.getFilename() != null && history.getFilename().startsWith("file"))
+				Assert.assertEquals("/test/ABC", history.getPath());
+	}
+
+	@Test
+	public void testWriteWithError() {
+		int count = dao.findByUserIdAndEvent(1, DocumentEvent.DOWNLOADED.toString(), null).size();
+		long written = writer.getWritten();
+		long failed = writer.getFailed();
+
+		for (int i = 0; i < 3; i++) {
+			DocumentHistory history = new DocumentHistory();
+			history.setEvent(DocumentEvent.DOWNLOADED.toString());
+			history.setUserId(1L);
+			history.setUsername("admin");
+			history.setDocId(1L);
+			history.setFolderId(1201L);
+			history.setFilename("file" + i + ".pdf");
+
+			// The second history cannot be saved because the path is too long
+			if (i == 1)
+				history.setPath(StringUtils.repeat("/folder", 1000));
+			writer.write(history);
+		}
+		writer.flush();
+
+		// Just the wrong history is lost
+		Assert.assertEquals(written + 2, writer.getWritten());
+		Assert.assertEquals(failed + 1, writer.getFailed());
+		Assert.assertEquals(count + 2,
+				dao.findByUserIdAndEvent(1, DocumentEvent.DOWNLOADED.toString(), null).size());
+	}
+}
@@ -2,6 +2,13 @@ package com.logicaldoc.core.document;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 
@@ -18,6 +25,7 @@ import com.logicaldoc.core.security.dao.UserDAO;
 import com.logicaldoc.core.store.Storer;
 import com.logicaldoc.core.ticket.Ticket;
 import com.logicaldoc.util.Context;
+import com.logicaldoc.util.io.FileUtil;
 
 import junit.framework.Assert;
 
@@ -226,6 +234,14 @@ public class DocumentManagerImplTest extends AbstractCoreTCase {
 		
 		newDoc = docDao.findById(newDoc.getId());
 		Assert.assertEquals(newDoc.getFileName(), doc.getFileName());
+
+		// Size and digest were computed while the content was being staged
+		File file = new File("pom.xml");
+		Assert.assertEquals(file.length(), newDoc.getFileSize());
+		Assert.assertEquals(FileUtil.computeDigest(file), newDoc.getDigest());
+		Assert.assertEquals(FileUtil.computeDigest(file), ver.getDigest());
+		Storer storer = (Storer) Context.get().getBean(Storer.class);
+		Assert.assertEquals(file.length(), storer.size(newDoc.getId(), storer.getResourceName(newDoc, null, null)));
 	}
 
 	@Test
@@ -480,4 +496,53 @@ public class DocumentManagerImplTest extends AbstractCoreTCase {
 		Assert.assertEquals(Document.DOC_CHECKED_OUT, doc.getStatus());
 		Assert.assertEquals("1.0", doc.getFileVersion());
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Creates documents from several threads in different folders, all of
+	 * them must be created with their own id
+	 */
+	@Test
+	public void testCreateConcurrently() throws Exception {
+		User user = userDao.findByUsername("admin");
+		Document model = docDao.findById(1);
+		docDao.initialize(model);
+		Folder[] folders = new Folder[] { folderDao.findById(6L), folderDao.findById(1200L) };
+		int threads = 4;
+		int docsPerThread = 10;
+
+		Set<Long> ids = ConcurrentHashMap.newKeySet();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < threads; t++) {
+				Folder folder = folders[t % folders.length];
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < docsPerThread; i++) {
+						Document doc = (Document) model.clone();
+						doc.setId(0);
+						doc.setCustomId(null);
+						doc.setFolder(folder);
+
+						DocumentHistory transaction = new DocumentHistory();
+						transaction.setUser(user);
+						transaction.setUserId(1L);
+						transaction.setComment("ingest");
+
+						ids.add(documentManager.create(new File("pom.xml"), doc, transaction).getId());
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures)
+				future.get();
+		} finally {
+			executor.shutdown();
+		}
+
+		Assert.assertEquals(threads * docsPerThread, ids.size());
+		for (Long id : ids) {
+			Assert.assertNotNull(docDao.findById(id));
+			Assert.assertNotNull(verDao.findByVersion(id, "1.0"));
+		}
+	}
+}
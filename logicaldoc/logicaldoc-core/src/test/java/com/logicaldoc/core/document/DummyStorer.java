@@ -4,8 +4,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
 
 import com.logicaldoc.core.store.FSStorer;
+import com.logicaldoc.core.store.StagedResource;
 
 /**
  * This is basically a {@link FSStorer} but with a flag that if active makes the
@@ -48,6 +52,19 @@ public class DummyStorer extends FSStorer {
 			super.store(stream, docId, resource);
 	}
 
+	@Override
+	public void promote(StagedResource staged, long docId, String resource) throws IOException {
+		if (raiseError) {
+			discard(staged);
+			throw new IOException("error");
+		}
+		if (useDummyFile) {
+			discard(staged);
+			super.store(new File("pom.xml"), docId, resource);
+		} else
+			super.promote(staged, docId, resource);
+	}
+
 	@Override
 	public InputStream getStream(long docId, String resource) throws IOException {
 		if (useDummyFile)
@@ -56,6 +73,14 @@ public class DummyStorer extends FSStorer {
 			return super.getStream(docId, resource);
 	}
 
+	@Override
+	public SeekableByteChannel getChannel(long docId, String resource) throws IOException {
+		if (useDummyFile)
+			return FileChannel.open(new File("pom.xml").toPath(), StandardOpenOption.READ);
+		else
+			return super.getChannel(docId, resource);
+	}
+
 	public boolean isUseDummyFile() {
 		return useDummyFile;
 	}
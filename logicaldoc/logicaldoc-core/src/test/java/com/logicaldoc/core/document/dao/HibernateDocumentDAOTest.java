@@ -5,6 +5,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
@@ -13,6 +14,8 @@ import java.util.Set;
 import org.apache.commons.io.FileUtils;
 import org.junit.Before;
 import org.junit.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import com.ibm.icu.util.Calendar;
 import com.ibm.icu.util.GregorianCalendar;
@@ -22,7 +25,9 @@ import com.logicaldoc.core.document.AbstractDocument;
 import com.logicaldoc.core.document.Document;
 import com.logicaldoc.core.document.DocumentEvent;
 import com.logicaldoc.core.document.DocumentHistory;
+import com.logicaldoc.core.document.TagCloud;
 import com.logicaldoc.core.document.TagsProcessor;
+import com.logicaldoc.core.document.UniqueTagCounters;
 import com.logicaldoc.core.folder.Folder;
 import com.logicaldoc.core.folder.FolderDAO;
 import com.logicaldoc.core.lock.LockManager;
@@ -77,6 +82,27 @@ public class HibernateDocumentDAOTest extends AbstractCoreTCase {
 		Assert.assertNull(doc);
 	}
 
+	@Test
+	public void testUpdateDigests() throws PersistenceException {
+		Document doc = dao.findById(1);
+		String fileVersion = doc.getFileVersion();
+
+		// A digest computed for an older file version is discarded
+		Document old = new Document();
+		old.setId(1L);
+		old.setFileVersion("0.1");
+		old.setDigest("old-digest");
+		dao.updateDigests(Collections.singletonList(old));
+		Assert.assertFalse("old-digest".equals(dao.queryForString("select ld_digest from ld_document where ld_id=1")));
+
+		Document current = new Document();
+		current.setId(1L);
+		current.setFileVersion(fileVersion);
+		current.setDigest("new-digest");
+		dao.updateDigests(Collections.singletonList(current));
+		Assert.assertEquals("new-digest", dao.queryForString("select ld_digest from ld_document where ld_id=1"));
+	}
+
 	@Test
 	public void testArchive() throws PersistenceException {
 		// Create the document history event
@@ -207,6 +233,24 @@ public class HibernateDocumentDAOTest extends AbstractCoreTCase {
 		Assert.assertEquals(0, docs.size());
 	}
 
+	@Test
+	public void testFindByFolderPaged() {
+		Assert.assertEquals(3, dao.countByFolder(6));
+		Assert.assertEquals(0, dao.countByFolder(1111));
+
+		List<Document> page = dao.findByFolder(6, null, 2);
+		Assert.assertEquals(2, page.size());
+		Assert.assertTrue(page.get(0).getId() < page.get(1).getId());
+
+		List<Document> next = dao.findByFolder(6, page.get(1).getId(), 2);
+		Assert.assertEquals(1, next.size());
+		Assert.assertTrue(next.get(0).getId() > page.get(1).getId());
+
+		Assert.assertEquals(Long.valueOf(page.get(1).getId()), dao.findDocIdAtPosition(6, 1));
+		Assert.assertEquals(Long.valueOf(next.get(0).getId()), dao.findDocIdAtPosition(6, 2));
+		Assert.assertNull(dao.findDocIdAtPosition(6, 3));
+	}
+
 	@Test
 	public void testFindIndexed() {
 		List<Document> docs = dao.findByIndexed(1);
@@ -679,4 +723,84 @@ public class HibernateDocumentDAOTest extends AbstractCoreTCase {
 		dao.cleanUnexistingUniqueTags();
 		Assert.assertEquals(0, dao.queryForInt("select count(*) from ld_uniquetag"));
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testTagCounters() throws PersistenceException {
+		UniqueTagCounters counters = (UniqueTagCounters) context.getBean("UniqueTagCounters");
+
+		Document doc = dao.findById(1);
+		dao.initialize(doc);
+		doc.addTag("approved");
+		doc.addTag("newtag");
+		Assert.assertTrue(dao.store(doc));
+		counters.flush();
+
+		Assert.assertEquals(3, dao.queryForInt("select ld_count from ld_uniquetag where ld_tag='approved'"));
+		Assert.assertEquals(1, dao.queryForInt("select ld_count from ld_uniquetag where ld_tag='newtag'"));
+		Assert.assertEquals(0, dao.queryForInt("select count(*) from ld_uniquetag where ld_tag='abc'"));
+
+		List<TagCloud> cloud = dao.getTagCloud(1L, 2);
+		Assert.assertEquals(2, cloud.size());
+		Assert.assertEquals("approved", cloud.get(0).getTag());
+		Assert.assertEquals("rejected", cloud.get(1).getTag());
+		Assert.assertEquals(10, cloud.get(1).getScale());
+
+		// The tags of a deleted document are not counted
+		DocumentHistory transaction = new DocumentHistory();
+		transaction.setUser(new User());
+		Assert.assertTrue(dao.delete(1, transaction));
+		counters.flush();
+		Assert.assertEquals(2, dao.queryForInt("select ld_count from ld_uniquetag where ld_tag='approved'"));
+		Assert.assertEquals(0, dao.queryForInt("select ld_count from ld_uniquetag where ld_tag='newtag'"));
+
+		dao.restore(1, 5, null);
+		counters.flush();
+		Assert.assertEquals(3, dao.queryForInt("select ld_count from ld_uniquetag where ld_tag='approved'"));
+		Assert.assertEquals(1, dao.queryForInt("select ld_count from ld_uniquetag where ld_tag='abc'"));
+		Assert.assertEquals(6, dao.getTagCloud(1L, 30).stream().filter(t -> t.getCount() > 0).count());
+
+		// The full recount repairs the counters
+		dao.jdbcUpdate("update ld_uniquetag set ld_count=100 where ld_tag='newtag'");
+		dao.updateCountUniqueTags();
+		Assert.assertEquals(1, dao.queryForInt("select ld_count from ld_uniquetag where ld_tag='newtag'"));
+		Assert.assertEquals(1L, dao.getTagCloud(1L, 30).stream().filter(t -> t.getTag().equals("newtag"))
+				.findFirst().get().getCount());
+	}
+
+	@Test
+	public void testTagCountersRollback() throws PersistenceException {
+		UniqueTagCounters counters = (UniqueTagCounters) context.getBean("UniqueTagCounters");
+		TransactionTemplate template = new TransactionTemplate(
+				(PlatformTransactionManager) context.getBean("TransactionManager"));
+
+		// The counters are updated only when the transaction commits
+		template.execute(status -> {
+			Document doc = dao.findById(1);
+			dao.initialize(doc);
+			doc.addTag("rolledback");
+			try {
+				Assert.assertTrue(dao.store(doc));
+			} catch (PersistenceException e) {
+				throw new RuntimeException(e);
+			}
+			status.setRollbackOnly();
+			return null;
+		});
+		counters.flush();
+		Assert.assertEquals(0, dao.queryForInt("select count(*) from ld_uniquetag where ld_tag='rolledback'"));
+
+		template.execute(status -> {
+			Document doc = dao.findById(1);
+			dao.initialize(doc);
+			doc.addTag("committed");
+			try {
+				Assert.assertTrue(dao.store(doc));
+			} catch (PersistenceException e) {
+				throw new RuntimeException(e);
+			}
+			return null;
+		});
+		counters.flush();
+		Assert.assertEquals(1, dao.queryForInt("select ld_count from ld_uniquetag where ld_tag='committed'"));
+	}
+}
@@ -0,0 +1,84 @@
+package com.logicaldoc.core.document.thumbnail;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.logicaldoc.core.AbstractCoreTCase;
+import com.logicaldoc.core.document.Document;
+import com.logicaldoc.core.document.dao.DocumentDAO;
+import com.logicaldoc.util.Context;
+import com.logicaldoc.util.config.ContextProperties;
+
+import junit.framework.Assert;
+
+public class ThumbnailServiceTest extends AbstractCoreTCase {
+
+	private ThumbnailService service;
+
+	private DocumentDAO documentDao;
+
+	private AtomicInteger renderings = new AtomicInteger(0);
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		service = (ThumbnailService) context.getBean("ThumbnailService");
+		documentDao = (DocumentDAO) context.getBean("DocumentDAO");
+
+		// A manager that simulates a slow rendering
+		service.setThumbnailManager(new ThumbnailManager() {
+
+			@Override
+			public void createTumbnail(Document document, String fileVersion, String sid) throws IOException {
+				renderings.incrementAndGet();
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+	}
+
+	@Test
+	public void testRender() throws Exception {
+		Document doc = documentDao.findById(1);
+
+		Future<?> first = service.render(doc, null, ThumbnailManager.SUFFIX_THUMB, null);
+		Future<?> second = service.render(doc, null, ThumbnailManager.SUFFIX_THUMB, null);
+
+		// The same rendering is shared
+		Assert.assertSame(first, second);
+		first.get(10, TimeUnit.SECONDS);
+		Assert.assertTrue(second.isDone());
+		Assert.assertEquals(1, renderings.get());
+
+		// Once completed a new request triggers a new rendering, because the
+		// dummy storer never saves the image
+		service.render(doc, null, ThumbnailManager.SUFFIX_THUMB, null).get(10, TimeUnit.SECONDS);
+		Assert.assertEquals(2, renderings.get());
+	}
+
+	@Test
+	public void testPregenerate() throws Exception {
+		String pregenerate = config().getProperty("thumbnail.pregenerate");
+		config().setProperty("thumbnail.pregenerate", ThumbnailManager.SUFFIX_THUMB);
+		try {
+			service.pregenerate(1L, "1.0");
+			for (int i = 0; i < 100 && renderings.get() == 0; i++)
+				Thread.sleep(100);
+			Assert.assertEquals(1, renderings.get());
+		} finally {
+			config().setProperty("thumbnail.pregenerate", pregenerate != null ? pregenerate : "");
+		}
+	}
+
+	private ContextProperties config() {
+		return Context.get().getProperties();
+	}
+}
@@ -0,0 +1,60 @@
+package com.logicaldoc.core.folder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.logicaldoc.core.AbstractCoreTCase;
+import com.logicaldoc.core.folder.FolderPermissionCache.UserGroups;
+
+import junit.framework.Assert;
+
+/**
+ * Test case for {@link FolderPermissionCache}
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class FolderPermissionCacheTest extends AbstractCoreTCase {
+
+	// Instance under test
+	private FolderPermissionCache cache;
+
+	private UserGroups groups = new UserGroups(false, new long[] { 2L, 3L });
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		cache = (FolderPermissionCache) context.getBean("FolderPermissionCache");
+	}
+
+	@Test
+	public void testPutMask() {
+		long generation = cache.getGeneration();
+		cache.putMask(1200L, groups, 5, generation);
+		Assert.assertEquals(Integer.valueOf(5), cache.getMask(1200L, groups));
+
+		cache.putMask(1200L, groups, 7, generation);
+		Assert.assertEquals(Integer.valueOf(7), cache.getMask(1200L, groups));
+
+		cache.invalidateFolder(1200L);
+		Assert.assertNull(cache.getMask(1200L, groups));
+	}
+
+	@Test
+	public void testStalePut() {
+		// The mask was computed before the invalidation, so it is discarded
+		long generation = cache.getGeneration();
+		cache.invalidateFolder(1200L);
+		cache.putMask(1200L, groups, 5, generation);
+		Assert.assertNull(cache.getMask(1200L, groups));
+
+		generation = cache.getGeneration();
+		cache.invalidateUser(1L);
+		cache.putUserGroups(1L, groups, generation);
+		Assert.assertNull(cache.getUserGroups(1L));
+
+		generation = cache.getGeneration();
+		cache.putUserGroups(1L, groups, generation);
+		Assert.assertSame(groups, cache.getUserGroups(1L));
+	}
+}
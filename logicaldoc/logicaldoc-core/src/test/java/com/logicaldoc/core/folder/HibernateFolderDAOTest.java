@@ -2,8 +2,11 @@ package com.logicaldoc.core.folder;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.junit.Before;
@@ -725,6 +728,30 @@ public class HibernateFolderDAOTest extends AbstractCoreTCase {
 		Assert.assertEquals(Permission.all().size(), permissions.size());
 	}
 
+	@Test
+	public void testGetEnabledPermissionsBatch() throws PersistenceException {
+		Map<Long, Set<Permission>> permissions = dao.getEnabledPermissions(Arrays.asList(6L, 7L, 1200L, 999L), 4);
+		Assert.assertEquals(4, permissions.size());
+		Assert.assertEquals(9, permissions.get(6L).size());
+		// Folder 7 refers to folder 6 for the security
+		Assert.assertEquals(permissions.get(6L), permissions.get(7L));
+		Assert.assertTrue(permissions.get(1200L).isEmpty());
+		Assert.assertTrue(permissions.get(999L).isEmpty());
+
+		// Changing the policies must invalidate the cached permissions
+		Folder folder = dao.findById(6);
+		dao.initialize(folder);
+		for (FolderGroup fg : folder.getFolderGroups())
+			fg.setWrite(0);
+		dao.store(folder);
+
+		permissions = dao.getEnabledPermissions(Arrays.asList(6L, 7L), 4);
+		Assert.assertFalse(permissions.get(6L).contains(Permission.WRITE));
+		Assert.assertFalse(permissions.get(7L).contains(Permission.WRITE));
+		Assert.assertTrue(permissions.get(7L).contains(Permission.READ));
+		Assert.assertFalse(dao.isWriteEnabled(7, 4));
+	}
+
 	@Test
 	public void testFindFolderIdByUserId() {
 		Collection<Long> ids = dao.findFolderIdByUserId(3, null, true);
@@ -851,6 +878,45 @@ public class HibernateFolderDAOTest extends AbstractCoreTCase {
 		Assert.assertEquals("/1200/1201", dao.computePath(1201));
 	}
 
+	@Test
+	public void testComputePathAfterChanges() throws Exception {
+		Assert.assertEquals("/1200/1201/1202", dao.computePath(1202));
+		Assert.assertEquals("/test/ABC/xyz", dao.computePathExtended(1202));
+
+		User user = userDao.findByUsername("admin");
+		FolderHistory transaction = new FolderHistory();
+		transaction.setUser(user);
+
+		// Rename the intermediate folder
+		Folder folder = dao.findById(1201);
+		dao.initialize(folder);
+		folder.setName("DEF");
+		dao.store(folder);
+		Assert.assertEquals("/test/DEF/xyz", dao.computePathExtended(1202));
+
+		// Move the tree under the workspace
+		dao.move(folder, dao.findById(3000), transaction);
+		Assert.assertEquals("/3000/1201/1202", dao.computePath(1202));
+		Assert.assertEquals(3000L, dao.findWorkspace(1202).getId());
+		Assert.assertTrue(dao.isInPath(3000, 1202));
+		Assert.assertFalse(dao.isInPath(1200, 1202));
+		Assert.assertTrue(dao.findFolderIdInTree(3000, false).contains(1202L));
+		Assert.assertFalse(dao.findFolderIdInTree(1200, false).contains(1202L));
+
+		// Create a new folder inside the moved tree
+		Folder folderVO = new Folder();
+		folderVO.setName("newfolder");
+		Folder newFolder = dao.create(dao.findById(1202), folderVO, true, null);
+		Assert.assertEquals("/3000/1201/1202/" + newFolder.getId(), dao.computePath(newFolder.getId()));
+		Assert.assertEquals(4, dao.findParents(newFolder.getId()).size());
+
+		// Delete the tree
+		dao.deleteTree(1201, transaction);
+		Assert.assertNull(dao.computePath(newFolder.getId()));
+		Assert.assertFalse(dao.findFolderIdInTree(3000, false).contains(1202L));
+		Assert.assertTrue(dao.findFolderIdInTree(3000, true).contains(1202L));
+	}
+
 	@Test
 	public void testFindChildren() {
 		List<Folder> dirs = dao.findChildren(1200L, 1L);
@@ -1012,6 +1078,60 @@ public class HibernateFolderDAOTest extends AbstractCoreTCase {
 		Assert.assertEquals(0, dirs.size());
 	}
 
+	@Test
+	public void testBulkUpdate() throws Exception {
+		Assert.assertTrue(dao.findFolderIdInTree(1200L, false).contains(1202L));
+
+		// Updates by identifier reload just the given folders
+		dao.bulkUpdate("set ld_deleted=1 where ld_id in (1202)", null);
+		Assert.assertFalse(dao.findFolderIdInTree(1200L, false).contains(1202L));
+
+		// Other updates reload the whole tenant
+		dao.bulkUpdate("set ld_deleted=0 where ld_deleted=1 and ld_name='xyz'", null);
+		Assert.assertTrue(dao.findFolderIdInTree(1200L, false).contains(1202L));
+
+		Assert.assertEquals(Arrays.asList(1L, 2L, 3L),
+				HibernateFolderDAO.getUpdatedIds("set ld_deleted=2 where ld_id in (1, 2,3)"));
+		Assert.assertNull(HibernateFolderDAO.getUpdatedIds("set ld_deleted=2 where ld_deleted=1"));
+	}
+
+	@Test
+	public void testListener() throws Exception {
+		List<Map<Long, Set<String>>> notified = new ArrayList<Map<Long, Set<String>>>();
+		FolderListener listener = paths -> notified.add(paths);
+		List<FolderListener> listeners = ((FolderListenerManager) context.getBean("FolderListenerManager"))
+				.getListeners();
+		listeners.add(listener);
+		try {
+			String oldPath = dao.computePathExtended(1202L);
+			Folder folder = dao.findById(1202L);
+			dao.initialize(folder);
+			folder.setName("renamed");
+			dao.store(folder);
+
+			// Notified once with the paths before and after the rename
+			Assert.assertEquals(1, notified.size());
+			Set<String> paths = notified.get(0).get(1L);
+			Assert.assertTrue(paths.contains(oldPath));
+			Assert.assertTrue(paths.contains(dao.computePathExtended(1202L)));
+			Assert.assertFalse(oldPath.equals(dao.computePathExtended(1202L)));
+
+			// Updates by identifier notify the paths of the given folders
+			notified.clear();
+			dao.bulkUpdate("set ld_deleted=1 where ld_id in (1202)", null);
+			Assert.assertEquals(1, notified.size());
+			Assert.assertTrue(notified.get(0).get(1L).contains(oldPath.replace("xyz", "renamed")));
+
+			// Other updates do not say which folders changed
+			notified.clear();
+			dao.bulkUpdate("set ld_deleted=0 where ld_deleted=1 and ld_name='renamed'", null);
+			Assert.assertEquals(1, notified.size());
+			Assert.assertNull(notified.get(0));
+		} finally {
+			listeners.remove(listener);
+		}
+	}
+
 	@Test
 	public void testFindFolderIdInTree() {
 		Collection<Long> ids = dao.findFolderIdInTree(1200L, false);
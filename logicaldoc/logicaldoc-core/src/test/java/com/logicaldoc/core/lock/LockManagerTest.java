@@ -1,5 +1,7 @@
 package com.logicaldoc.core.lock;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -51,4 +53,47 @@ public class LockManagerTest extends AbstractCoreTCase {
 		Assert.assertNull(lock.getString1());
 		Assert.assertNull(lock.getDate1());
 	}
+
+	@Test
+	public void testGetInMemory() throws InterruptedException {
+		LockManager memoryManager = new LockManager();
+		memoryManager.setConfig(config);
+		memoryManager.setProvider(new MemoryLockProvider());
+
+		Assert.assertTrue(memoryManager.get("test", "t1"));
+		Assert.assertTrue(memoryManager.get("test", "t1"));
+		Assert.assertEquals("[t1]", memoryManager.getAllTransactions().toString());
+
+		// The waiter must be woken up as soon as the lock gets released
+		AtomicBoolean acquired = new AtomicBoolean(false);
+		Thread waiter = new Thread(() -> acquired.set(memoryManager.get("test", "t2")));
+		long start = System.currentTimeMillis();
+		waiter.start();
+		Thread.sleep(200);
+		memoryManager.release("test", "t1");
+		waiter.join();
+		Assert.assertTrue(acquired.get());
+		Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+		Assert.assertEquals("[t2]", memoryManager.getAllTransactions().toString());
+
+		// Release from a transaction that does not own the lock
+		memoryManager.release("test", "t1");
+		Assert.assertFalse(memoryManager.get("test", "t1"));
+		memoryManager.release("test", "t2");
+		Assert.assertTrue(memoryManager.getAllTransactions().isEmpty());
+	}
+
+	@Test
+	public void testMemoryProviderExpiration() throws InterruptedException {
+		MemoryLockProvider provider = new MemoryLockProvider();
+		Assert.assertTrue(provider.acquire("test", "t1", 100));
+		Assert.assertFalse(provider.acquire("test", "t2", 100));
+		Assert.assertEquals("t1", provider.getOwner("test").getTransactionId());
+		Assert.assertTrue(provider.getExpiration("test") > 0);
+
+		Thread.sleep(200);
+		Assert.assertNull(provider.getOwner("test"));
+		Assert.assertTrue(provider.acquire("test", "t2", 100));
+		Assert.assertEquals("t2", provider.getOwner("test").getTransactionId());
+	}
 }
@@ -0,0 +1,98 @@
+package com.logicaldoc.core.parser;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.logicaldoc.core.AbstractCoreTCase;
+import com.logicaldoc.core.security.Tenant;
+import com.logicaldoc.util.config.ContextProperties;
+
+import junit.framework.Assert;
+
+/**
+ * Test case for {@link ParsingService}
+ * 
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class ParsingServiceTest extends AbstractCoreTCase {
+
+	// Instance under test
+	private ParsingService service;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		service = (ParsingService) context.getBean("ParsingService");
+
+		ContextProperties config = (ContextProperties) context.getBean("ContextProperties");
+		config.setProperty(Tenant.DEFAULT_NAME + ".parser.slow.timeout", "1");
+		config.setProperty(Tenant.DEFAULT_NAME + ".parser.fast.timeout", "10");
+	}
+
+	@Test
+	public void testExecute() throws Exception {
+		TXTParser parser = new TXTParser();
+		CountDownLatch interrupted = new CountDownLatch(1);
+
+		boolean completed = service.execute(parser, () -> {
+			try {
+				// Blocks until the parsing gets cancelled
+				new CountDownLatch(1).await();
+			} catch (InterruptedException e) {
+				interrupted.countDown();
+				throw e;
+			}
+			return "completed";
+		}, new ByteArrayInputStream(new byte[0]), "test.slow", Tenant.DEFAULT_NAME);
+		Assert.assertFalse(completed);
+		Assert.assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+
+		completed = service.execute(parser, () -> "completed", null, "test.fast", Tenant.DEFAULT_NAME);
+		Assert.assertTrue(completed);
+
+		completed = service.execute(parser, () -> {
+			throw new Exception("parse error");
+		}, null, "test.fast", Tenant.DEFAULT_NAME);
+		Assert.assertFalse(completed);
+
+		ParsingService.ParserStats stats = service.getStats().get("TXTParser");
+		Assert.assertEquals(3, stats.getParses());
+		Assert.assertEquals(1, stats.getTimeouts());
+		Assert.assertEquals(1, stats.getFailures());
+	}
+
+	@Test
+	public void testStuckParser() throws Exception {
+		TXTParser parser = new TXTParser();
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch finished = new CountDownLatch(1);
+
+		// This parser ignores the interruption
+		boolean completed = service.execute(parser, () -> {
+			try {
+				while (true)
+					try {
+						if (release.await(100, TimeUnit.MILLISECONDS))
+							return "completed";
+					} catch (InterruptedException e) {
+						// ignored
+					}
+			} finally {
+				finished.countDown();
+			}
+		}, null, "test.slow", Tenant.DEFAULT_NAME);
+		Assert.assertFalse(completed);
+		Assert.assertEquals(1, service.getStuck());
+
+		release.countDown();
+		Assert.assertTrue(finished.await(10, TimeUnit.SECONDS));
+		for (int i = 0; i < 100 && service.getStuck() > 0; i++)
+			TimeUnit.MILLISECONDS.sleep(10);
+		Assert.assertEquals(0, service.getStuck());
+	}
+}
@@ -0,0 +1,54 @@
+package com.logicaldoc.core.searchengine;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.logicaldoc.core.AbstractCoreTCase;
+import com.logicaldoc.core.document.AbstractDocument;
+import com.logicaldoc.core.document.Document;
+import com.logicaldoc.core.document.DummyStorer;
+import com.logicaldoc.core.document.dao.DocumentDAO;
+
+import junit.framework.Assert;
+
+/**
+ * Test case for <code>IndexerTask</code>
+ * 
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class IndexerTaskTest extends AbstractCoreTCase {
+
+	private DocumentDAO documentDao;
+
+	private SearchEngine engine;
+
+	// Instance under test
+	private IndexerTask task;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		documentDao = (DocumentDAO) context.getBean("DocumentDAO");
+		engine = (SearchEngine) context.getBean("SearchEngine");
+		task = (IndexerTask) context.getBean("IndexerTask");
+
+		((DummyStorer) context.getBean("Storer")).setUseDummyFile(true);
+	}
+
+	@Test
+	public void testRunTask() throws Exception {
+		Assert.assertEquals(AbstractDocument.INDEX_TO_INDEX, documentDao.findById(2L).getIndexed());
+		Assert.assertEquals(AbstractDocument.INDEX_TO_INDEX, documentDao.findById(3L).getIndexed());
+
+		task.run();
+
+		Document doc = documentDao.findById(2L);
+		Assert.assertEquals(AbstractDocument.INDEX_INDEXED, doc.getIndexed());
+		Assert.assertNull(doc.getTransactionId());
+		Assert.assertEquals(AbstractDocument.INDEX_INDEXED, documentDao.findById(3L).getIndexed());
+
+		Assert.assertNotNull(engine.getHit(2L));
+		Assert.assertNotNull(engine.getHit(3L));
+	}
+}
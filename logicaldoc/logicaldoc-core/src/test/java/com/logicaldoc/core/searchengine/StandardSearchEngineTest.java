@@ -1,6 +1,9 @@
 package com.logicaldoc.core.searchengine;
 
+import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.junit.After;
 import org.junit.Before;
@@ -11,6 +14,8 @@ import org.slf4j.LoggerFactory;
 import com.logicaldoc.core.AbstractCoreTCase;
 import com.logicaldoc.core.document.Document;
 import com.logicaldoc.core.folder.Folder;
+import com.logicaldoc.util.Context;
+import com.logicaldoc.util.config.ContextProperties;
 
 import junit.framework.Assert;
 
@@ -76,6 +81,65 @@ public class StandardSearchEngineTest extends AbstractCoreTCase {
 		Assert.assertNull(hit);
 	}
 
+	@Test
+	public void testAddHits() throws Exception {
+		Folder fold = new Folder();
+		fold.setId(Folder.DEFAULTWORKSPACEID);
+		fold.setName("test");
+
+		Map<Document, String> hits = new LinkedHashMap<Document, String>();
+		for (long id = 200; id < 210; id++) {
+			Document document = new Document();
+			document.setId(id);
+			document.setFileName("Document test " + id);
+			document.setLanguage(id % 2 == 0 ? "en" : "it");
+			document.setDate(new Date());
+			document.setFolder(fold);
+			hits.put(document, "Content of the batch document " + id);
+		}
+
+		engine.addHits(hits);
+		engine.commit();
+
+		Assert.assertEquals(10, engine.getCount());
+		Hit hit = engine.getHit(205L);
+		Assert.assertEquals(205L, hit.getId());
+		Assert.assertEquals("it", hit.getLanguage());
+
+		engine.deleteHits(Arrays.asList(200L, 201L, 202L));
+		engine.commit();
+		Assert.assertEquals(7, engine.getCount());
+		Assert.assertNull(engine.getHit(201L));
+	}
+
+	@Test
+	public void testIdleCommit() throws Exception {
+		ContextProperties config = Context.get().getProperties();
+		String maxDocs = config.getProperty("index.commit.docs");
+		config.setProperty("index.commit.docs", "100");
+		try {
+			Folder fold = new Folder();
+			fold.setId(Folder.DEFAULTWORKSPACEID);
+			fold.setName("test");
+			Document document = new Document();
+			document.setId(300L);
+			document.setFileName("Document test 300");
+			document.setLanguage("en");
+			document.setDate(new Date());
+			document.setFolder(fold);
+
+			// A single write is searchable without waiting for the batch
+			Thread.sleep(1100);
+			engine.addHit(document, "Content of the single document");
+			Assert.assertEquals(300L, engine.getHit(300L).getId());
+		} finally {
+			if (maxDocs != null)
+				config.setProperty("index.commit.docs", maxDocs);
+			else
+				config.remove("index.commit.docs");
+		}
+	}
+
 	@Test
 	public void testDeleteHit() throws Exception {
 		testAddHit();
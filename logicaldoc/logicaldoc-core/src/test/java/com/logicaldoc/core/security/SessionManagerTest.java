@@ -1,5 +1,10 @@
 package com.logicaldoc.core.security;
 
+import java.lang.reflect.Proxy;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
 import org.junit.Test;
 
 import com.logicaldoc.core.AbstractCoreTCase;
@@ -63,4 +68,33 @@ public class SessionManagerTest extends AbstractCoreTCase {
 
 		Assert.assertFalse(sm.isOpen(session1.getSid()));
 	}
+
+	@Test
+	public void testGetSessionId() {
+		SessionManager sm = SessionManager.get();
+
+		HttpServletRequest request = newRequest("parameter-sid", "cookie-sid");
+		Assert.assertEquals("parameter-sid", sm.getSessionId(request));
+		Assert.assertEquals("parameter-sid", sm.getSessionId(request, true));
+
+		// The parameters are skipped but the cookies are still inspected
+		Assert.assertEquals("cookie-sid", sm.getSessionId(request, false));
+	}
+
+	/**
+	 * Builds a request with the given sid parameter and cookie
+	 */
+	private static HttpServletRequest newRequest(String sidParameter, String sidCookie) {
+		return (HttpServletRequest) Proxy.newProxyInstance(SessionManagerTest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getParameter":
+						return SessionManager.PARAM_SID.equals(args[0]) ? sidParameter : null;
+					case "getCookies":
+						return new Cookie[] { new Cookie(SessionManager.COOKIE_SID, sidCookie) };
+					default:
+						return null;
+					}
+				});
+	}
 }
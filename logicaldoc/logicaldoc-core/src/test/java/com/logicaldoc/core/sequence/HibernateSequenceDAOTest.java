@@ -1,13 +1,22 @@
 package com.logicaldoc.core.sequence;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import com.logicaldoc.core.AbstractCoreTCase;
 import com.logicaldoc.core.security.Tenant;
+import com.logicaldoc.util.config.ContextProperties;
 
 public class HibernateSequenceDAOTest extends AbstractCoreTCase {
 
@@ -56,4 +65,61 @@ public class HibernateSequenceDAOTest extends AbstractCoreTCase {
 		Assert.assertNotNull(sequences);
 		Assert.assertEquals(2, sequences.size());
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testNextInBlocks() throws InterruptedException {
+		ContextProperties config = (ContextProperties) context.getBean("ContextProperties");
+		config.setProperty("sequence.block.names", "block-");
+		config.setProperty("sequence.block.size", "10");
+
+		Assert.assertEquals(1L, dao.next("block-test", 0L, Tenant.DEFAULT_ID));
+		Assert.assertEquals(2L, dao.next("block-test", 0L, Tenant.DEFAULT_ID));
+		Assert.assertEquals(2L, dao.getCurrentValue("block-test", 0L, Tenant.DEFAULT_ID));
+
+		// The database contains the end of the reserved block
+		Assert.assertEquals(10L, dao.findByAlternateKey("block-test", 0L, Tenant.DEFAULT_ID).getValue());
+
+		Set<Long> values = Collections.synchronizedSet(new HashSet<Long>());
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		for (int i = 0; i < 100; i++)
+			executor.execute(() -> values.add(dao.next("block-test", 0L, Tenant.DEFAULT_ID)));
+		executor.shutdown();
+		executor.awaitTermination(30, TimeUnit.SECONDS);
+
+		// All distinct values
+		Assert.assertEquals(100, values.size());
+		Assert.assertFalse(values.contains(1L));
+		Assert.assertFalse(values.contains(2L));
+
+		// A reset discards the block
+		dao.reset("block-test", 0L, Tenant.DEFAULT_ID, 500);
+		Assert.assertEquals(501L, dao.next("block-test", 0L, Tenant.DEFAULT_ID));
+
+		// Other sequences are still strict
+		Assert.assertEquals(1L, dao.next("test", 0L, Tenant.DEFAULT_ID));
+		Assert.assertEquals(1L, dao.findByAlternateKey("test", 0L, Tenant.DEFAULT_ID).getValue());
+	}
+
+	@Test
+	public void testBlockRollback() {
+		ContextProperties config = (ContextProperties) context.getBean("ContextProperties");
+		config.setProperty("sequence.block.names", "block-");
+		config.setProperty("sequence.block.size", "10");
+
+		// The block is reserved even if the caller's transaction rolls back
+		TransactionTemplate template = new TransactionTemplate(
+				(PlatformTransactionManager) context.getBean("TransactionManager"));
+		long value = template.execute(status -> {
+			status.setRollbackOnly();
+			return dao.next("block-rollback", 0L, Tenant.DEFAULT_ID);
+		});
+		Assert.assertEquals(1L, value);
+		Assert.assertEquals(10L, dao.findByAlternateKey("block-rollback", 0L, Tenant.DEFAULT_ID).getValue());
+
+		// No value is handed out twice
+		Assert.assertEquals(2L, dao.next("block-rollback", 0L, Tenant.DEFAULT_ID));
+		for (int i = 0; i < 9; i++)
+			dao.next("block-rollback", 0L, Tenant.DEFAULT_ID);
+		Assert.assertEquals(20L, dao.findByAlternateKey("block-rollback", 0L, Tenant.DEFAULT_ID).getValue());
+	}
+}
@@ -0,0 +1,80 @@
+package com.logicaldoc.core.stats;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.logicaldoc.core.AbstractCoreTCase;
+import com.logicaldoc.core.document.dao.DocumentDAO;
+import com.logicaldoc.core.generic.Generic;
+import com.logicaldoc.core.generic.GenericDAO;
+import com.logicaldoc.core.security.Tenant;
+
+import junit.framework.Assert;
+
+/**
+ * Test case for <code>StatsCollector</code>
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class StatsCollectorTest extends AbstractCoreTCase {
+
+	private DocumentDAO documentDao;
+
+	private GenericDAO genericDao;
+
+	// Instance under test
+	private StatsCollector collector;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		documentDao = (DocumentDAO) context.getBean("DocumentDAO");
+		genericDao = (GenericDAO) context.getBean("GenericDAO");
+		collector = (StatsCollector) context.getBean("StatsCollector");
+	}
+
+	@Test
+	public void testRunTask() throws Exception {
+		collector.run();
+
+		for (long tenantId : new long[] { Tenant.SYSTEM_ID, Tenant.DEFAULT_ID }) {
+			String tenantCondition = tenantId != Tenant.SYSTEM_ID ? " and ld_tenantid=" + tenantId : "";
+			Assert.assertEquals(documentDao.queryForLong("select count(*) from ld_document where 1=1" + tenantCondition),
+					getStatistic("totaldocs", tenantId));
+			Assert.assertEquals(
+					documentDao.queryForLong(
+							"select count(*) from ld_document where ld_deleted > 0" + tenantCondition),
+					getStatistic("deleteddocs", tenantId));
+			Assert.assertEquals(documentDao.queryForLong(
+					"select count(*) from ld_document where ld_indexed = 0 and ld_deleted = 0 and not ld_status = 3"
+							+ tenantCondition),
+					getStatistic("notindexeddocs", tenantId));
+			Assert.assertEquals(documentDao.queryForLong(
+					"select sum(ld_pages) from ld_document where ld_pages > 0" + tenantCondition),
+					getStatistic("totalpages", tenantId));
+			Assert.assertEquals(documentDao.computeTotalSize(tenantId, null, true), getStatistic("docdir", tenantId));
+			Assert.assertEquals(
+					documentDao.queryForLong("select count(*) from ld_folder where ld_deleted > 0" + tenantCondition),
+					getStatistic("deletedfolders", tenantId));
+			Assert.assertEquals(
+					documentDao.queryForLong("select count(*) from ld_folder where ld_deleted = 0" + tenantCondition),
+					getStatistic("withdocs", tenantId) + getStatistic("empty", tenantId));
+		}
+
+		// The directories are not walked again before stats.dirs.interval
+		Generic userdir = genericDao.findByAlternateKey(StatsCollector.STAT, "userdir", null, Tenant.SYSTEM_ID);
+		genericDao.initialize(userdir);
+		userdir.setInteger1(123L);
+		genericDao.store(userdir);
+
+		collector.run();
+		Assert.assertEquals(123L, getStatistic("userdir", Tenant.SYSTEM_ID));
+	}
+
+	private long getStatistic(String name, long tenantId) {
+		Generic gen = genericDao.findByAlternateKey(StatsCollector.STAT, name, null, tenantId);
+		Assert.assertNotNull(name, gen);
+		return gen.getInteger1();
+	}
+}
@@ -0,0 +1,142 @@
+package com.logicaldoc.core.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.logicaldoc.core.AbstractCoreTCase;
+import com.logicaldoc.core.security.Tenant;
+import com.logicaldoc.util.config.ContextProperties;
+import com.logicaldoc.util.io.FileUtil;
+
+import junit.framework.Assert;
+
+public class FSStorerTest extends AbstractCoreTCase {
+
+	private FSStorer storer;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		storer = new FSStorer();
+		storer.setConfig((ContextProperties) context.getBean("ContextProperties"));
+
+		// Outside the tests the first reconciliation runs in background
+		storer.reconcileCounters();
+	}
+
+	@Test
+	public void testCounters() throws Exception {
+		File file = new File("pom.xml");
+
+		long size = storer.getTotalSize();
+		long tenantSize = storer.getTotalSize(Tenant.DEFAULT_ID);
+		long files = storer.getCounters().getFiles();
+		Assert.assertEquals(FileUtils.sizeOfDirectory(storer.getRoot()), size);
+
+		storer.store(file, 1L, "counters.test");
+		Assert.assertEquals(size + file.length(), storer.getTotalSize());
+		Assert.assertEquals(tenantSize + file.length(), storer.getTotalSize(Tenant.DEFAULT_ID));
+		Assert.assertEquals(files + 1, storer.getCounters().getFiles());
+
+		// Overwriting a resource does not count a new file
+		storer.store(file, 1L, "counters.test");
+		Assert.assertEquals(size + file.length(), storer.getTotalSize());
+		Assert.assertEquals(files + 1, storer.getCounters().getFiles());
+
+		// The counters are persisted
+		storer.getCounters().save();
+		FSStorer other = new FSStorer();
+		Assert.assertEquals(size + file.length(), other.getCounters().getSize());
+		Assert.assertEquals(size + file.length(), other.getTotalSize());
+
+		storer.delete(1L, "counters.test");
+		Assert.assertEquals(size, storer.getTotalSize());
+		Assert.assertEquals(files, storer.getCounters().getFiles());
+
+		// A full scan gives the same results
+		storer.store(file, 1L, "counters.test");
+		storer.reconcileCounters();
+		Assert.assertEquals(FileUtils.sizeOfDirectory(storer.getRoot()), storer.getTotalSize());
+		Assert.assertEquals(size + file.length(), storer.getTotalSize());
+		Assert.assertEquals(tenantSize + file.length(), storer.getTotalSize(Tenant.DEFAULT_ID));
+
+		storer.delete(1L);
+		Assert.assertFalse(storer.getContainer(1L).exists());
+		Assert.assertEquals(FileUtils.sizeOfDirectory(storer.getRoot()), storer.getTotalSize());
+	}
+
+	@Test
+	public void testTenantCounters() throws Exception {
+		File file = new File("pom.xml");
+		long tenantId = 99L;
+		long tenantSize = storer.getTotalSize(tenantId);
+		long defaultSize = storer.getTotalSize(Tenant.DEFAULT_ID);
+
+		// The given tenant is used instead of looking up the document
+		storer.store(file, 3L, "tenant.test", tenantId);
+		Assert.assertEquals(tenantSize + file.length(), storer.getTotalSize(tenantId));
+		Assert.assertEquals(defaultSize, storer.getTotalSize(Tenant.DEFAULT_ID));
+
+		storer.delete(3L, "tenant.test", tenantId);
+		Assert.assertEquals(tenantSize, storer.getTotalSize(tenantId));
+		Assert.assertEquals(defaultSize, storer.getTotalSize(Tenant.DEFAULT_ID));
+	}
+
+	@Test
+	public void testStage() throws Exception {
+		File file = new File("pom.xml");
+		long size = storer.getTotalSize();
+		long files = storer.getCounters().getFiles();
+
+		StagedResource staged = storer.stage(new FileInputStream(file));
+		Assert.assertTrue(staged.getFile().exists());
+		Assert.assertEquals(file.length(), staged.getSize());
+		Assert.assertEquals(FileUtil.computeDigest(file), staged.getDigest());
+
+		// The staged content is not counted
+		Assert.assertEquals(size, storer.getTotalSize());
+		storer.reconcileCounters();
+		Assert.assertEquals(size, storer.getTotalSize());
+
+		storer.promote(staged, 2L, "stage.test");
+		try {
+			Assert.assertFalse(staged.getFile().exists());
+			Assert.assertEquals(file.length(), storer.size(2L, "stage.test"));
+			Assert.assertEquals(size + file.length(), storer.getTotalSize());
+			Assert.assertEquals(files + 1, storer.getCounters().getFiles());
+		} finally {
+			storer.delete(2L, "stage.test");
+		}
+
+		// A discarded content leaves nothing behind
+		staged = storer.stage(new FileInputStream(file));
+		storer.discard(staged);
+		Assert.assertFalse(staged.getFile().exists());
+		Assert.assertEquals(size, storer.getTotalSize());
+	}
+
+	@Test
+	public void testWriteToStream() throws Exception {
+		File file = new File("pom.xml");
+		byte[] content = Files.readAllBytes(file.toPath());
+		storer.store(file, 2L, "range.test");
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			storer.writeToStream(2L, "range.test", out, 100L, 50L);
+			Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(content, 100, 150), out.toByteArray()));
+
+			out = new ByteArrayOutputStream();
+			storer.writeToStream(2L, "range.test", out);
+			Assert.assertTrue(Arrays.equals(content, out.toByteArray()));
+		} finally {
+			storer.delete(2L, "range.test");
+		}
+	}
+}
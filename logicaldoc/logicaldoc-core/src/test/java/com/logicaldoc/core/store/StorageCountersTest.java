@@ -0,0 +1,73 @@
+package com.logicaldoc.core.store;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.Assert;
+
+/**
+ * Test case for {@link StorageCounters}
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class StorageCountersTest {
+
+	// Instance under test
+	private StorageCounters counters;
+
+	@Before
+	public void setUp() {
+		counters = new StorageCounters(1);
+		counters.add(1L, 1000L, 10L);
+		counters.add(2L, 500L, 5L);
+	}
+
+	@Test
+	public void testAdd() {
+		counters.add(1L, -200L, -2L);
+		Assert.assertEquals(800L, counters.getSize(1L));
+		Assert.assertEquals(8L, counters.getFiles(1L));
+		Assert.assertEquals(1300L, counters.getSize());
+		Assert.assertEquals(13L, counters.getFiles());
+	}
+
+	@Test
+	public void testReconciliation() {
+		counters.beginReconciliation();
+
+		// Files stored and deleted while the scan is running
+		counters.add(1L, 100L, 1L);
+		counters.add(2L, -500L, -5L);
+
+		// The scan found different values for the first tenant
+		Map<Long, long[]> scanned = new HashMap<Long, long[]>();
+		scanned.put(1L, new long[] { 2000L, 20L });
+		scanned.put(2L, new long[] { 500L, 5L });
+		counters.endReconciliation(scanned);
+
+		// The changes made during the scan are preserved
+		Assert.assertEquals(2100L, counters.getSize(1L));
+		Assert.assertEquals(21L, counters.getFiles(1L));
+		Assert.assertEquals(0L, counters.getSize(2L));
+		Assert.assertEquals(0L, counters.getFiles(2L));
+		Assert.assertEquals(2100L, counters.getSize());
+		Assert.assertEquals(21L, counters.getFiles());
+	}
+
+	@Test
+	public void testReconciliationOfMissingTenant() {
+		counters.beginReconciliation();
+
+		// The second tenant has no more files
+		Map<Long, long[]> scanned = new HashMap<Long, long[]>();
+		scanned.put(1L, new long[] { 1000L, 10L });
+		counters.endReconciliation(scanned);
+
+		Assert.assertEquals(0L, counters.getSize(2L));
+		Assert.assertEquals(1000L, counters.getSize());
+	}
+}
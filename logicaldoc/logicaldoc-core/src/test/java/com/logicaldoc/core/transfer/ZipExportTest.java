@@ -0,0 +1,103 @@
+package com.logicaldoc.core.transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.logicaldoc.core.AbstractCoreTCase;
+import com.logicaldoc.core.document.DocumentEvent;
+import com.logicaldoc.core.document.DocumentHistory;
+import com.logicaldoc.core.document.DummyStorer;
+import com.logicaldoc.core.folder.FolderHistory;
+import com.logicaldoc.core.store.Storer;
+import com.logicaldoc.util.Context;
+
+import junit.framework.Assert;
+
+/**
+ * Test case for {@link ZipExport}
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class ZipExportTest extends AbstractCoreTCase {
+
+	private DummyStorer storer;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		storer = (DummyStorer) Context.get().getBean(Storer.class);
+		storer.setUseDummyFile(true);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		storer.setUseDummyFile(false);
+		super.tearDown();
+	}
+
+	@Test
+	public void testProcessFolder() throws IOException {
+		FolderHistory transaction = new FolderHistory();
+		transaction.setUserId(1L);
+		transaction.setFolderId(3000L);
+
+		ZipExport export = new ZipExport();
+		export.setAllLevel(true);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		export.process(transaction, out, false);
+
+		List<String> names = readEntries(out.toByteArray());
+		Assert.assertEquals(3, names.size());
+		Assert.assertTrue(names.contains("folder6/pippo"));
+		Assert.assertTrue(names.contains("folder6/pluto"));
+	}
+
+	@Test
+	public void testProcessSelection() throws IOException {
+		DocumentHistory transaction = new DocumentHistory();
+		transaction.setUserId(1L);
+		transaction.setEvent(DocumentEvent.DOWNLOADED.toString());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new ZipExport().process(new Long[] { 1L, 3L }, out, false, transaction);
+
+		List<String> names = readEntries(out.toByteArray());
+		Assert.assertEquals(2, names.size());
+		Assert.assertTrue(names.contains("pippo"));
+		Assert.assertTrue(names.contains("pluto"));
+	}
+
+	private static List<String> readEntries(byte[] archive) throws IOException {
+		long expectedSize = storerFileSize();
+		List<String> names = new ArrayList<String>();
+		try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(archive))) {
+			ZipEntry entry;
+			while ((entry = zis.getNextEntry()) != null) {
+				names.add(entry.getName());
+
+				long size = 0;
+				byte[] buffer = new byte[1024];
+				int len;
+				while ((len = zis.read(buffer)) != -1)
+					size += len;
+				Assert.assertEquals(expectedSize, size);
+			}
+		}
+		return names;
+	}
+
+	private static long storerFileSize() {
+		return new File("pom.xml").length();
+	}
+}
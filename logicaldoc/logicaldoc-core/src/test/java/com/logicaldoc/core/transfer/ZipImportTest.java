@@ -0,0 +1,89 @@
+package com.logicaldoc.core.transfer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.logicaldoc.core.AbstractCoreTCase;
+import com.logicaldoc.core.document.Document;
+import com.logicaldoc.core.document.dao.DocumentDAO;
+import com.logicaldoc.core.folder.Folder;
+import com.logicaldoc.core.folder.FolderDAO;
+import com.logicaldoc.util.io.FileUtil;
+
+import junit.framework.Assert;
+
+/**
+ * Test case for {@link ZipImport}
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class ZipImportTest extends AbstractCoreTCase {
+
+	private FolderDAO folderDao;
+
+	private DocumentDAO documentDao;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		folderDao = (FolderDAO) context.getBean("FolderDAO");
+		documentDao = (DocumentDAO) context.getBean("DocumentDAO");
+	}
+
+	@Test
+	public void testProcess() throws IOException {
+		File zip = File.createTempFile("import", ".zip");
+		try {
+			try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip))) {
+				for (String entry : new String[] { "one.txt", "a/", "a/two.txt", "a/three.txt", "a/b/four.txt",
+						"c/d/five.txt" }) {
+					zos.putNextEntry(new ZipEntry(entry));
+					if (!entry.endsWith("/"))
+						zos.write(("content of " + entry).getBytes(StandardCharsets.UTF_8));
+					zos.closeEntry();
+				}
+			}
+
+			Document docVo = new Document();
+			docVo.setTenantId(1L);
+			docVo.setLanguage("en");
+
+			Folder parent = folderDao.findById(1200L);
+			ZipImport importer = new ZipImport(docVo, "UTF-8");
+			importer.setNotifyUser(false);
+			importer.process(zip, parent, 1L, null);
+
+			Assert.assertEquals(5, importer.getTotal());
+			Assert.assertEquals(5, importer.getProcessed());
+			Assert.assertTrue(importer.getErrors().isEmpty());
+
+			Assert.assertEquals(1, countDocuments(parent, "one.txt"));
+
+			Folder a = folderDao.findByName(parent, "a", 1L, true).get(0);
+			Assert.assertEquals(2, documentDao.findByFolder(a.getId(), null).size());
+
+			Folder b = folderDao.findByName(a, "b", 1L, true).get(0);
+			Assert.assertEquals(1, countDocuments(b, "four.txt"));
+
+			Folder c = folderDao.findByName(parent, "c", 1L, true).get(0);
+			Folder d = folderDao.findByName(c, "d", 1L, true).get(0);
+			Assert.assertEquals(1, countDocuments(d, "five.txt"));
+		} finally {
+			FileUtil.strongDelete(zip);
+		}
+	}
+
+	private int countDocuments(Folder folder, String fileName) {
+		List<Document> docs = documentDao.findByFolder(folder.getId(), null);
+		return (int) docs.stream().filter(doc -> fileName.equals(doc.getFileName())).count();
+	}
+}
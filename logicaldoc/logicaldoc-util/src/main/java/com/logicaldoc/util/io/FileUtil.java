@@ -20,12 +20,17 @@ import java.io.RandomAccessFile;
 import java.io.Writer;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
@@ -169,7 +174,6 @@ public class FileUtil {
 	}
 
 	public static String computeDigest(InputStream is) {
-		String digest = "";
 		MessageDigest sha = null;
 
 		try {
@@ -180,25 +184,7 @@ public class FileUtil {
 				while ((len = is.read(message)) != -1) {
 					sha.update(message, 0, len);
 				}
-				byte[] messageDigest = sha.digest();
-				// convert the array to String
-				int size = messageDigest.length;
-				StringBuffer buf = new StringBuffer();
-				int unsignedValue = 0;
-				String strUnsignedValue = null;
-				for (int i = 0; i < size; i++) {
-					// convert each messageDigest byte to unsigned
-					unsignedValue = ((int) messageDigest[i]) & 0xff;
-					strUnsignedValue = Integer.toHexString(unsignedValue);
-					// at least two letters
-					if (strUnsignedValue.length() == 1)
-						buf.append("0");
-					buf.append(strUnsignedValue);
-				}
-				digest = buf.toString();
-				log.debug("Computed Digest: {}", digest);
-
-				return digest;
+				return toHexDigest(sha.digest());
 			}
 		} catch (IOException io) {
 			log.error("Error generating digest: ", io);
@@ -213,6 +199,63 @@ public class FileUtil {
 		return null;
 	}
 
+	/**
+	 * Calculates the SHA-1 digest of the content of a channel reading it with
+	 * the given buffer, a large direct buffer reduces the number of reads and
+	 * the copies in the heap. The channel is not closed.
+	 * 
+	 * @param channel the channel to read
+	 * @param buffer the buffer to use for reading
+	 * 
+	 * @return the digest
+	 * 
+	 * @throws IOException if the channel cannot be read
+	 */
+	public static String computeDigest(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+		MessageDigest sha = null;
+		try {
+			sha = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+
+		((Buffer) buffer).clear();
+		while (channel.read(buffer) != -1) {
+			((Buffer) buffer).flip();
+			sha.update(buffer);
+			((Buffer) buffer).clear();
+		}
+		return toHexDigest(sha.digest());
+	}
+
+	/**
+	 * Converts the bytes produced by a message digest into the hexadecimal
+	 * representation used for the documents digests
+	 * 
+	 * @param messageDigest the bytes of the digest
+	 * 
+	 * @return the hexadecimal digest
+	 */
+	public static String toHexDigest(byte[] messageDigest) {
+		// convert the array to String
+		int size = messageDigest.length;
+		StringBuffer buf = new StringBuffer();
+		int unsignedValue = 0;
+		String strUnsignedValue = null;
+		for (int i = 0; i < size; i++) {
+			// convert each messageDigest byte to unsigned
+			unsignedValue = ((int) messageDigest[i]) & 0xff;
+			strUnsignedValue = Integer.toHexString(unsignedValue);
+			// at least two letters
+			if (strUnsignedValue.length() == 1)
+				buf.append("0");
+			buf.append(strUnsignedValue);
+		}
+		String digest = buf.toString();
+		log.debug("Computed Digest: {}", digest);
+		return digest;
+	}
+
 	/**
 	 * This method calculates the digest of a file using the algorithm SHA-1.
 	 * 
@@ -602,6 +645,55 @@ public class FileUtil {
 		}
 	}
 
+	/**
+	 * Copies the given byte range of a channel to the given output using
+	 * positional reads, so the bytes before the start are never read. If the
+	 * input is a {@link FileChannel} the transfer is delegated to
+	 * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, that
+	 * may avoid the copy in user space. The output is not closed.
+	 * 
+	 * @param input the channel to read from
+	 * @param output the output to write to
+	 * @param start start of the byte range
+	 * @param length length of the byte range
+	 * 
+	 * @return number of bytes copied
+	 * 
+	 * @throws IOException If something fails at I/O level
+	 */
+	public static long copy(SeekableByteChannel input, OutputStream output, long start, long length)
+			throws IOException {
+		long end = Math.min(input.size(), start + length);
+		long position = start;
+		WritableByteChannel target = Channels.newChannel(output);
+
+		if (input instanceof FileChannel) {
+			FileChannel channel = (FileChannel) input;
+			while (position < end) {
+				long transferred = channel.transferTo(position, end - position, target);
+				if (transferred <= 0)
+					break;
+				position += transferred;
+			}
+		} else {
+			ByteBuffer buffer = ByteBuffer.allocate(BUFF_SIZE);
+			input.position(start);
+			while (position < end) {
+				((Buffer) buffer).clear();
+				if (end - position < buffer.capacity())
+					((Buffer) buffer).limit((int) (end - position));
+				int read = input.read(buffer);
+				if (read <= 0)
+					break;
+				((Buffer) buffer).flip();
+				while (buffer.hasRemaining())
+					target.write(buffer);
+				position += read;
+			}
+		}
+		return position - start;
+	}
+
 	public static void replaceInFile(String sourcePath, String token, String newValue) throws Exception {
 		BufferedReader reader = null;
 		Writer writer = null;
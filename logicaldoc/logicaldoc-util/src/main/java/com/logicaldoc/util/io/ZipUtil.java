@@ -14,7 +14,9 @@ import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -41,6 +43,19 @@ public class ZipUtil {
 
 	private String fileNameCharset = "UTF-8";
 
+	/*
+	 * The last archive opened for reading its entries, it is kept open
+	 * together with an index of its entries so the central directory is read
+	 * just once
+	 */
+	private File archive;
+
+	private long archiveLastModified;
+
+	private ZipFile archiveZip;
+
+	private Map<String, FileHeader> archiveHeaders;
+
 	public ZipUtil() {
 	}
 
@@ -75,11 +90,8 @@ public class ZipUtil {
 	public List<String> listEntries(File zipFile) {
 		List<String> files = new ArrayList<String>();
 		try {
-			ZipFile zFile = new ZipFile(zipFile);
-			setCharset(zFile);
-
 			@SuppressWarnings("unchecked")
-			List<FileHeader> fileHeaders = zFile.getFileHeaders();
+			List<FileHeader> fileHeaders = openArchive(zipFile).getFileHeaders();
 			for (FileHeader fileHeader : fileHeaders)
 				files.add(fileHeader.getFileName());
 		} catch (Throwable e) {
@@ -88,6 +100,36 @@ public class ZipUtil {
 		return files;
 	}
 
+	/**
+	 * Opens an archive for reading its entries, if it is the same archive
+	 * opened the last time and it has not been modified, the already read
+	 * central directory is reused.
+	 * 
+	 * @param zipFile the archive
+	 * 
+	 * @return the opened archive
+	 * 
+	 * @throws ZipException the archive cannot be read
+	 */
+	private synchronized ZipFile openArchive(File zipFile) throws ZipException {
+		if (archiveZip == null || !zipFile.equals(archive) || zipFile.lastModified() != archiveLastModified) {
+			ZipFile zFile = new ZipFile(zipFile);
+			setCharset(zFile);
+
+			Map<String, FileHeader> headers = new HashMap<String, FileHeader>();
+			@SuppressWarnings("unchecked")
+			List<FileHeader> fileHeaders = zFile.getFileHeaders();
+			for (FileHeader fileHeader : fileHeaders)
+				headers.put(fileHeader.getFileName(), fileHeader);
+
+			archive = zipFile;
+			archiveLastModified = zipFile.lastModified();
+			archiveZip = zFile;
+			archiveHeaders = headers;
+		}
+		return archiveZip;
+	}
+
 	/**
 	 * This method extracts all entries of a zip-file.
 	 * 
@@ -176,9 +218,14 @@ public class ZipUtil {
 			entry = entry.substring(1);
 
 		try {
-			ZipFile zFile = new ZipFile(zipFile);
-			setCharset(zFile);
-			FileHeader header = zFile.getFileHeader(entry);
+			ZipFile zFile;
+			FileHeader header;
+			synchronized (this) {
+				zFile = openArchive(zipFile);
+				header = archiveHeaders.get(entry);
+			}
+			if (header == null)
+				header = zFile.getFileHeader(entry);
 			return zFile.getInputStream(header);
 		} catch (Throwable e) {
 			logError(e.getMessage());
@@ -322,8 +369,9 @@ public class ZipUtil {
 		return fileNameCharset;
 	}
 
-	public void setFileNameCharset(String fileNameCharset) {
+	public synchronized void setFileNameCharset(String fileNameCharset) {
 		this.fileNameCharset = fileNameCharset;
+		this.archiveZip = null;
 	}
 
 	/**
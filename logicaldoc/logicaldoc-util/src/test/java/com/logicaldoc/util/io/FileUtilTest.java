@@ -1,6 +1,13 @@
 package com.logicaldoc.util.io;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -23,4 +30,25 @@ public class FileUtilTest {
 	public void testMatch() throws IOException {
 		Assert.assertTrue(FileUtil.matches("ReleaseNotes.txt", "*.doc,*.txt", ""));
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testCopyRange() throws IOException {
+		File file = new File("pom.xml");
+		byte[] content = Files.readAllBytes(file.toPath());
+
+		try (SeekableByteChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Assert.assertEquals(100L, FileUtil.copy(channel, out, 50L, 100L));
+			Assert.assertArrayEquals(Arrays.copyOfRange(content, 50, 150), out.toByteArray());
+
+			// A second range read from the same channel
+			out = new ByteArrayOutputStream();
+			FileUtil.copy(channel, out, 10L, 5L);
+			Assert.assertArrayEquals(Arrays.copyOfRange(content, 10, 15), out.toByteArray());
+
+			// The range is truncated at the end of the file
+			out = new ByteArrayOutputStream();
+			Assert.assertEquals(20L, FileUtil.copy(channel, out, content.length - 20, 100L));
+		}
+	}
+}
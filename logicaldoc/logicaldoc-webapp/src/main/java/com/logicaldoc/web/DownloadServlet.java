@@ -152,7 +152,7 @@ public class DownloadServlet extends HttpServlet {
 				String unsafe = storer.getString(doc.getId(), unsafeResource);
 				String safe = HTMLSanitizer.sanitize(unsafe);
 				storer.store(new ByteArrayInputStream(safe.getBytes(StandardCharsets.UTF_8)), doc.getId(),
-						safeResource);
+						safeResource, doc.getTenantId());
 			}
 		}
 
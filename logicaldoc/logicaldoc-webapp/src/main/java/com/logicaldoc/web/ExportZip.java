@@ -1,6 +1,5 @@
 package com.logicaldoc.web;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
@@ -87,35 +86,12 @@ public class ExportZip extends HttpServlet {
 
 			User user = userDao.findById(userId.longValue());
 
-			ByteArrayOutputStream bos = null;
-
-			if (docIds != null && docIds.size() > 0) {
-				// Create the document history event
-				DocumentHistory transaction = new DocumentHistory();
-				transaction.setSessionId(session.getSid());
-				transaction.setEvent(DocumentEvent.DOWNLOADED.toString());
-				if (user != null)
-					transaction.setUser(user);
-
-				bos = exporter.process(docIds.toArray(new Long[0]), false, transaction);
-			} else {
-				FolderHistory transaction = new FolderHistory();
-				transaction.setUserId(userId.longValue());
-				transaction.setFolderId(Long.parseLong(folderId));
-				transaction.setSessionId(session.getSid());
-
-				if (user != null)
-					transaction.setUser(user);
-
-				bos = exporter.process(transaction, false);
-			}
-
 			String exportName = "export";
 			if (folderId != null)
 				exportName = folderDao.findById(Long.parseLong(folderId)).getName();
 
+			// The archive is streamed, so its length is not known in advance
 			response.setContentType("application/zip");
-			response.setContentLength(bos.size());
 			response.setHeader("Content-Disposition", "attachment; filename=\"" + exportName + ".zip\"");
 
 			// Headers required by MS Internet Explorer
@@ -123,13 +99,32 @@ public class ExportZip extends HttpServlet {
 			response.setHeader("Cache-Control", "must-revalidate, post-check=0,pre-check=0");
 			response.setHeader("Expires", "0");
 
-			OutputStream os;
-			os = response.getOutputStream();
-			bos.flush();
-			os.write(bos.toByteArray());
-			os.flush();
-			os.close();
-			bos.close();
+			OutputStream os = response.getOutputStream();
+			try {
+				if (docIds != null && docIds.size() > 0) {
+					// Create the document history event
+					DocumentHistory transaction = new DocumentHistory();
+					transaction.setSessionId(session.getSid());
+					transaction.setEvent(DocumentEvent.DOWNLOADED.toString());
+					if (user != null)
+						transaction.setUser(user);
+
+					exporter.process(docIds.toArray(new Long[0]), os, false, transaction);
+				} else {
+					FolderHistory transaction = new FolderHistory();
+					transaction.setUserId(userId.longValue());
+					transaction.setFolderId(Long.parseLong(folderId));
+					transaction.setSessionId(session.getSid());
+
+					if (user != null)
+						transaction.setUser(user);
+
+					exporter.process(transaction, os, false);
+				}
+			} finally {
+				os.flush();
+				os.close();
+			}
 		} catch (Exception e) {
 			log.error(e.getMessage(), e);
 		}
@@ -2,6 +2,11 @@ package com.logicaldoc.web;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Base64;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -17,6 +22,7 @@ import com.logicaldoc.core.document.Version;
 import com.logicaldoc.core.document.dao.DocumentDAO;
 import com.logicaldoc.core.document.dao.VersionDAO;
 import com.logicaldoc.core.document.thumbnail.ThumbnailManager;
+import com.logicaldoc.core.document.thumbnail.ThumbnailService;
 import com.logicaldoc.core.security.Session;
 import com.logicaldoc.core.security.User;
 import com.logicaldoc.core.store.Storer;
@@ -47,6 +53,10 @@ public class ThumbnailServlet extends HttpServlet {
 
 	protected static Logger log = LoggerFactory.getLogger(ThumbnailServlet.class);
 
+	/** A 1x1 transparent PNG */
+	private static final byte[] PLACEHOLDER = Base64.getDecoder().decode(
+			"iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAYAAAAfFcSJAAAADUlEQVR42mNkYPhfDwAChwGA60e6kgAAAABJRU5ErkJggg==");
+
 	/**
 	 * Constructor of the object.
 	 */
@@ -100,10 +110,11 @@ public class ThumbnailServlet extends HttpServlet {
 			if (doc != null && !user.isMemberOf("admin") && !user.isMemberOf("publisher") && !doc.isPublishing())
 				throw new FileNotFoundException("Document not published");
 
-			String resource = storer.getResourceName(docId, fileVersion, suffix);
-
 			// 2) prepare the thumbnail
-			createImageResource(session.getSid(), doc, fileVersion, resource);
+			if (!createImageResource(session.getSid(), doc, fileVersion, suffix)) {
+				sendPlaceholder(response);
+				return;
+			}
 
 			// 3) return the the thumbnail resource
 			ServletUtil.downloadDocument(request, response, session.getSid(), docId, fileVersion,
@@ -115,52 +126,44 @@ public class ThumbnailServlet extends HttpServlet {
 	}
 
 	/**
-	 * Creates the image resource according to the specified format storing it
-	 * in the repository for future access.
+	 * Makes sure the image resource according to the specified format is
+	 * available in the repository, the rendering is delegated to the
+	 * {@link ThumbnailService} and the method waits for at most
+	 * <b>thumbnail.wait</b> seconds.
+	 * 
+	 * @return true if the image is available
 	 */
-	protected void createImageResource(String sid, Document doc, String fileVersion, String resource) {
-		Storer storer = (Storer) Context.get().getBean(Storer.class);
-		ThumbnailManager thumbManager = (ThumbnailManager) Context.get().getBean(ThumbnailManager.class);
+	protected boolean createImageResource(String sid, Document doc, String fileVersion, String suffix) {
+		ThumbnailService thumbService = (ThumbnailService) Context.get().getBean(ThumbnailService.class);
 
 		// In any case try to produce the thumbnail
-		String thumbResource = storer.getResourceName(doc, fileVersion, ThumbnailManager.SUFFIX_THUMB);
-		if (storer.size(doc.getId(), thumbResource) <= 0) {
-			try {
-				thumbManager.createTumbnail(doc, fileVersion, sid);
-				log.debug("Created thumbnail {}", resource);
-			} catch (Throwable t) {
-				log.error(t.getMessage(), t);
-			}
+		Future<?> thumbnail = thumbService.render(doc, fileVersion, ThumbnailManager.SUFFIX_THUMB, sid);
+		Future<?> image = ThumbnailManager.SUFFIX_THUMB.equals(suffix) ? thumbnail
+				: thumbService.render(doc, fileVersion, suffix, sid);
+
+		int wait = Context.get().getProperties().getInt("thumbnail.wait", 10);
+		try {
+			image.get(wait, TimeUnit.SECONDS);
+			return true;
+		} catch (TimeoutException e) {
+			log.debug("Image {} of document {} not yet available", suffix, doc.getId());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			log.error(e.getMessage(), e);
 		}
+		return false;
+	}
 
-		if (resource.endsWith(ThumbnailManager.SUFFIX_THUMB))
-			return;
-
-		if (resource.endsWith(ThumbnailManager.SUFFIX_TILE)) {
-			String tileResource = storer.getResourceName(doc, fileVersion, ThumbnailManager.SUFFIX_TILE);
-			if (storer.size(doc.getId(), tileResource) <= 0L) {
-				try {
-					thumbManager.createTile(doc, fileVersion, sid);
-					log.debug("Created tile {}", resource);
-				} catch (Throwable t) {
-					log.error(t.getMessage(), t);
-				}
-			}
-		} else if (resource.contains(ThumbnailManager.THUMB)) {
-			if (storer.size(doc.getId(), resource) <= 0L) {
-				try {
-					/*
-					 * In this case the resource is like thumn450.png so we
-					 * extract the size from the name
-					 */
-					String sizeStr = resource.substring(resource.indexOf('-') + 6, resource.lastIndexOf('.'));
-					thumbManager.createTumbnail(doc, fileVersion, Integer.parseInt(sizeStr), null, sid);
-					log.debug("Created custom thumbnail {}", resource);
-				} catch (Throwable t) {
-					log.error(t.getMessage(), t);
-				}
-			}
-		} else
-			log.error("Unknow resource {}", resource);
+	/**
+	 * Sends a transparent image to be displayed while the real one is being
+	 * rendered, the browser is instructed to not cache it.
+	 */
+	private void sendPlaceholder(HttpServletResponse response) throws IOException {
+		response.setContentType("image/png");
+		response.setHeader("Cache-Control", "no-cache, no-store, must-revalidate");
+		response.setHeader("Retry-After", "5");
+		response.setContentLength(PLACEHOLDER.length);
+		response.getOutputStream().write(PLACEHOLDER);
 	}
-}
\ No newline at end of file
+}
@@ -181,6 +181,9 @@ public class ApplicationListener implements ServletContextListener, HttpSessionL
 			// Initialize plugins
 			PluginRegistry.getInstance().init(pluginsDir);
 
+			// Discover the automation tools, including those of the plugins
+			Automation.discoverTools();
+
 			// Reinitialize logging because some plugins may have added new
 			// categories
 			try {
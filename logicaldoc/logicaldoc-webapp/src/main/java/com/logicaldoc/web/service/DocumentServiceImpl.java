@@ -1795,7 +1795,8 @@ public class DocumentServiceImpl extends RemoteServiceServlet implements Documen
 			att.setFileName(FilenameUtils.getBaseName(doc.getFileName()) + ".pdf");
 		}
 
-		att.setData(storer.getBytes(doc.getId(), resource));
+		att.setDocId(doc.getId());
+		att.setResource(resource);
 
 		if (att != null) {
 			email.addAttachment(2 + email.getAttachments().size(), att);
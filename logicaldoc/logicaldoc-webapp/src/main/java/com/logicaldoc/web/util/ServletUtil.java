@@ -9,6 +9,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -52,6 +53,7 @@ import com.logicaldoc.gui.common.client.ServerException;
 import com.logicaldoc.util.Context;
 import com.logicaldoc.util.MimeType;
 import com.logicaldoc.util.config.ContextProperties;
+import com.logicaldoc.util.io.FileUtil;
 import com.logicaldoc.util.plugin.PluginRegistry;
 
 /**
@@ -377,22 +379,29 @@ public class ServletUtil {
 				// methods.
 				ServletOutputStream sos = (ServletOutputStream) output;
 
-				// Copy multi part range.
-				for (Range r : ranges) {
-					// Add multipart boundary and header fields for every
-					// range.
-					sos.println();
-					sos.println("--" + MULTIPART_BOUNDARY);
-					sos.println("Content-Type: " + contentType);
-					sos.println("Content-Range: bytes " + r.start + "-" + r.end + "/" + r.total);
-
-					// Copy single part range of multi part range.
-					storer.writeToStream(docId, resource, sos, r.start, r.length);
-
-					// End with multipart boundary.
-					sos.println();
-					sos.println("--" + MULTIPART_BOUNDARY + "--");
+				// Copy multi part range, the same channel is used to read all
+				// the parts.
+				try (SeekableByteChannel channel = storer.getChannel(docId, resource)) {
+					for (Range r : ranges) {
+						// Add multipart boundary and header fields for every
+						// range.
+						sos.println();
+						sos.println("--" + MULTIPART_BOUNDARY);
+						sos.println("Content-Type: " + contentType);
+						sos.println("Content-Range: bytes " + r.start + "-" + r.end + "/" + r.total);
+						sos.println();
+
+						// Copy single part range of multi part range.
+						if (channel != null)
+							FileUtil.copy(channel, sos, r.start, r.length);
+						else
+							storer.writeToStream(docId, resource, sos, r.start, r.length);
+					}
 				}
+
+				// End with multipart boundary.
+				sos.println();
+				sos.println("--" + MULTIPART_BOUNDARY + "--");
 			}
 		} finally {
 			// Gently close streams.
@@ -5,6 +5,7 @@ import org.apache.jackrabbit.webdav.DavResource;
 import org.apache.jackrabbit.webdav.DavResourceLocator;
 import org.apache.jackrabbit.webdav.DavServletRequest;
 
+import com.logicaldoc.webdav.resource.model.Resource;
 import com.logicaldoc.webdav.session.DavSession;
 import org.apache.commons.lang3.tuple.Pair;
 
@@ -22,6 +23,8 @@ public interface DavResourceFactory {
 	public DavResource createResource(DavResourceLocator locator, DavServletRequest request) throws DavException;
 
 	public DavResource createResource(DavResourceLocator locator, DavSession session) throws DavException;
+
+	public DavResource createResource(DavResourceLocator locator, DavSession session, Resource resource) throws DavException;
 	
 	public DavResource createRangeResource(DavResourceLocator locator, DavSession session, Pair<String, String> parsedRange) throws DavException;
 
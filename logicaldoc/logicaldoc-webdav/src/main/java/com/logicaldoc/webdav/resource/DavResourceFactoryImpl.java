@@ -98,6 +98,7 @@ public class DavResourceFactoryImpl implements DavResourceFactory {
 		return new VersionControlledResourceImpl(locator, this, session, resourceConfig, isCollection);
 	}
 
+	@Override
 	public DavResource createResource(DavResourceLocator locator, DavSession session, Resource resource) throws DavException {
 		return new VersionControlledResourceImpl(locator, this, session, resourceConfig, resource);
 	}
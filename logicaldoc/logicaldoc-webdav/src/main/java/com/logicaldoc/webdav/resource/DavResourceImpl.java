@@ -451,7 +451,8 @@ public class DavResourceImpl implements DavResource, Serializable {
 					DavResourceLocator resourceLocator = locator.getFactory().createResourceLocator(locator.getPrefix(),
 							"", currentFilePath, false);
 
-					DavResource childRes = factory.createResource(resourceLocator, session);
+					// The child is already resolved, no need to look it up by path
+					DavResource childRes = factory.createResource(resourceLocator, session, resource);
 
 					list.add(childRes);
 				}
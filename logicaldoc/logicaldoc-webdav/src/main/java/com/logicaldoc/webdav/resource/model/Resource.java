@@ -2,7 +2,9 @@ package com.logicaldoc.webdav.resource.model;
 
 import java.io.InputStream;
 import java.util.Date;
+import java.util.Set;
 
+import com.logicaldoc.core.security.Permission;
 import com.logicaldoc.webdav.session.DavSession;
 
 /**
@@ -59,6 +61,14 @@ public interface Resource {
 
 	public void setAddChildEnabled(boolean renameEnabled);
 
+	/**
+	 * Sets all the permission flags at once, so they do not need to be
+	 * evaluated later
+	 * 
+	 * @param permissions the permissions granted to the requesting user
+	 */
+	public void setPermissions(Set<Permission> permissions);
+
 	public void setLocked(boolean locked);
 
 	public void isFolder(boolean isFolder);
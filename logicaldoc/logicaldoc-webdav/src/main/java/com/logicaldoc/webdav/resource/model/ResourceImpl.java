@@ -18,7 +18,7 @@ import com.logicaldoc.webdav.session.DavSession;
  * 
  * @author Sebastian Wenzky
  */
-public class ResourceImpl implements Resource {
+public class ResourceImpl implements Resource, Cloneable {
 
 	protected static Logger log = LoggerFactory.getLogger(ResourceImpl.class);
 
@@ -97,7 +97,7 @@ public class ResourceImpl implements Resource {
 	}
 
 	public void isWorkspace(boolean isWorkspace) {
-		this.isFolder = isWorkspace;
+		this.isWorkspace = isWorkspace;
 	}
 
 	public boolean isFolder() {
@@ -299,15 +299,20 @@ public class ResourceImpl implements Resource {
 			moveEnabled = true;
 		} else {
 			permissions = fdao.getEnabledPermissions(fid, personRequest);
-			writeEnabled = permissions.contains(Permission.WRITE);
-			deleteEnabled = permissions.contains(Permission.DELETE);
-			renameEnabled = permissions.contains(Permission.RENAME);
-			addChildEnabled = permissions.contains(Permission.ADD);
-			downloadEnabled = permissions.contains(Permission.DOWNLOAD);
-			moveEnabled = permissions.contains(Permission.MOVE);
+			setPermissions(permissions);
 		}
 	}
 
+	@Override
+	public void setPermissions(Set<Permission> permissions) {
+		writeEnabled = permissions.contains(Permission.WRITE);
+		deleteEnabled = permissions.contains(Permission.DELETE);
+		renameEnabled = permissions.contains(Permission.RENAME);
+		addChildEnabled = permissions.contains(Permission.ADD);
+		downloadEnabled = permissions.contains(Permission.DOWNLOAD);
+		moveEnabled = permissions.contains(Permission.MOVE);
+	}
+
 	public boolean isDownloadEnabled() {
 		initPermissions();
 		return this.downloadEnabled;
@@ -352,5 +357,18 @@ public class ResourceImpl implements Resource {
 	
 	public String getETag() {
 		return this.eTag;
-	}	
-}
\ No newline at end of file
+	}
+
+	/**
+	 * Creates a shallow copy of this resource
+	 * 
+	 * @return the copy
+	 */
+	public ResourceImpl copy() {
+		try {
+			return (ResourceImpl) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
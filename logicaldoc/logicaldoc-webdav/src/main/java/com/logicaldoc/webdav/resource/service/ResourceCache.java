@@ -0,0 +1,281 @@
+package com.logicaldoc.webdav.resource.service;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.logicaldoc.util.config.ContextProperties;
+import com.logicaldoc.webdav.resource.model.Resource;
+import com.logicaldoc.webdav.resource.model.ResourceImpl;
+import com.logicaldoc.webdav.session.DavSession;
+
+/**
+ * A short lived cache of the resources resolved from the request paths. The
+ * WebDAV clients issue bursts of requests on the same paths and the
+ * DavSession lives just for one request, so the cache is shared and the
+ * entries are kept per user for at most <b>webdav.cache.ttl</b> seconds, up
+ * to <b>webdav.cache.size</b> entries.<br>
+ * The changes committed to the folders evict the entries under their paths,
+ * the changes to a document evict the entries of that document and the
+ * changes to a user evict the entries of that user, see
+ * {@link ResourceCacheInvalidator}. Each eviction also moves the generation
+ * of the tenant: the callers capture it with
+ * {@link #getGeneration(DavSession)} before resolving a resource, so a
+ * resource resolved while a change was being made is never cached.
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class ResourceCache {
+
+	protected static Logger log = LoggerFactory.getLogger(ResourceCache.class);
+
+	private ContextProperties config;
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(1024, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ResourceCache.Entry> eldest) {
+			return size() > config.getInt("webdav.cache.size", 10000);
+		}
+	};
+
+	// Key is the tenant, value is the current generation, moved by each
+	// eviction
+	private final Map<Long, AtomicLong> generations = new ConcurrentHashMap<Long, AtomicLong>();
+
+	private final AtomicLong hits = new AtomicLong(0L);
+
+	private final AtomicLong misses = new AtomicLong(0L);
+
+	/**
+	 * Gets the resource resolved for a path
+	 *
+	 * @param path the request path
+	 * @param session the current session
+	 *
+	 * @return a copy of the cached resource or null if not found
+	 */
+	public Resource get(String path, DavSession session) {
+		if (!isEnabled())
+			return null;
+
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key(path, session));
+		}
+
+		if (entry == null || entry.expire < System.currentTimeMillis()) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		hits.incrementAndGet();
+		ResourceImpl resource = entry.resource.copy();
+		resource.setSession(session);
+		return resource;
+	}
+
+	/**
+	 * Gets the current generation of the entries of the session's tenant, to
+	 * be captured before resolving a resource
+	 *
+	 * @param session the current session
+	 *
+	 * @return the generation
+	 */
+	public long getGeneration(DavSession session) {
+		return generation(session.getTenantId()).get();
+	}
+
+	/**
+	 * Caches the resource resolved for a path
+	 *
+	 * @param path the request path
+	 * @param session the current session
+	 * @param resource the resolved resource
+	 * @param generation the generation captured before resolving the resource
+	 */
+	public void put(String path, DavSession session, Resource resource, long generation) {
+		if (!isEnabled() || !(resource instanceof ResourceImpl))
+			return;
+
+		// Store a copy, the returned resource may be altered by the caller
+		Entry entry = new Entry(((ResourceImpl) resource).copy(),
+				System.currentTimeMillis() + config.getInt("webdav.cache.ttl", 10) * 1000L, session.getTenantId(),
+				(Long) session.getObject("id"), normalize(path));
+		synchronized (entries) {
+			// The tenant was changed while resolving the resource
+			if (generation == getGeneration(session))
+				entries.put(key(path, session), entry);
+		}
+	}
+
+	/**
+	 * Evicts the resources of a tenant found in the given folders or in their
+	 * subfolders
+	 *
+	 * @param tenantId identifier of the tenant
+	 * @param paths the paths of the folders in the form /Default/dir1/dir2
+	 */
+	public void evictPaths(long tenantId, Collection<String> paths) {
+		if (paths.contains("/")) {
+			evict(tenantId, e -> true);
+			return;
+		}
+
+		Set<String> prefixes = new HashSet<String>(paths);
+		evict(tenantId, e -> isUnder(e.path, prefixes));
+	}
+
+	/**
+	 * Evicts the resources of a document
+	 *
+	 * @param tenantId identifier of the tenant
+	 * @param docId identifier of the document
+	 */
+	public void evictDocument(long tenantId, long docId) {
+		String id = Long.toString(docId);
+		evict(tenantId, e -> !e.resource.isFolder() && id.equals(e.resource.getID()));
+	}
+
+	/**
+	 * Evicts the resources cached for a user
+	 *
+	 * @param tenantId identifier of the tenant
+	 * @param userId identifier of the user
+	 */
+	public void evictUser(long tenantId, long userId) {
+		evict(tenantId, e -> e.userId != null && e.userId == userId);
+	}
+
+	/**
+	 * Evicts all the resources
+	 */
+	public void evictAll() {
+		synchronized (entries) {
+			for (AtomicLong generation : generations.values())
+				generation.incrementAndGet();
+			entries.clear();
+		}
+	}
+
+	private void evict(long tenantId, Predicate<Entry> condition) {
+		synchronized (entries) {
+			generation(tenantId).incrementAndGet();
+			for (Iterator<Entry> iter = entries.values().iterator(); iter.hasNext();) {
+				Entry entry = iter.next();
+				if (entry.tenantId == tenantId && condition.test(entry))
+					iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Checks if a path is one of the given folders or it is inside one of them
+	 */
+	private static boolean isUnder(String path, Set<String> folders) {
+		while (!path.isEmpty()) {
+			if (folders.contains(path))
+				return true;
+			path = path.substring(0, path.lastIndexOf('/'));
+		}
+		return false;
+	}
+
+	/**
+	 * Converts a request path like /store/Default/dir1 in the path of the
+	 * folders like /Default/dir1
+	 */
+	static String normalize(String path) {
+		if (path == null)
+			return "";
+		for (String store : new String[] { "/store", "/vstore" })
+			if (path.equals(store) || path.startsWith(store + "/")) {
+				path = path.substring(store.length());
+				break;
+			}
+		while (path.endsWith("/"))
+			path = path.substring(0, path.length() - 1);
+		return path.startsWith("/") || path.isEmpty() ? path : "/" + path;
+	}
+
+	/**
+	 * The number of requests satisfied by the cache
+	 *
+	 * @return number of hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * The number of requests not satisfied by the cache
+	 *
+	 * @return number of misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * The number of entries currently in the cache, some of them may be
+	 * expired
+	 *
+	 * @return the size of the cache
+	 */
+	public int getSize() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	private boolean isEnabled() {
+		return config.getInt("webdav.cache.ttl", 10) > 0;
+	}
+
+	private AtomicLong generation(long tenantId) {
+		return generations.computeIfAbsent(tenantId, t -> new AtomicLong(0L));
+	}
+
+	private static String key(String path, DavSession session) {
+		return session.getObject("id") + ":" + path;
+	}
+
+	public void setConfig(ContextProperties config) {
+		this.config = config;
+	}
+
+	private static class Entry {
+
+		private final ResourceImpl resource;
+
+		private final long expire;
+
+		private final long tenantId;
+
+		private final Long userId;
+
+		// The path in the form /Default/dir1/dir2, empty for the root
+		private final String path;
+
+		private Entry(ResourceImpl resource, long expire, long tenantId, Long userId, String path) {
+			this.resource = resource;
+			this.expire = expire;
+			this.tenantId = tenantId;
+			this.userId = userId;
+			this.path = path;
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.logicaldoc.webdav.resource.service;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import com.logicaldoc.core.document.Document;
+import com.logicaldoc.core.document.DocumentHistory;
+import com.logicaldoc.core.document.DocumentListener;
+import com.logicaldoc.core.folder.FolderListener;
+import com.logicaldoc.core.security.User;
+import com.logicaldoc.core.security.UserHistory;
+import com.logicaldoc.core.security.UserListener;
+import com.logicaldoc.core.util.TransactionUtil;
+import com.logicaldoc.util.Context;
+
+/**
+ * Evicts from the {@link ResourceCache} the resources affected by the changes
+ * to the folders, to the documents and to the users, also when made from
+ * outside the WebDAV interface. The evictions happen after the commit.
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class ResourceCacheInvalidator implements DocumentListener, FolderListener, UserListener {
+
+	@Override
+	public void beforeStore(Document document, DocumentHistory transaction, Map<String, Object> dictionary)
+			throws Exception {
+		// Nothing to do
+	}
+
+	@Override
+	public void afterStore(Document document, DocumentHistory transaction, Map<String, Object> dictionary)
+			throws Exception {
+		evictDocument(document);
+	}
+
+	@Override
+	public void beforeCheckin(Document document, DocumentHistory transaction, Map<String, Object> dictionary)
+			throws Exception {
+		// Nothing to do
+	}
+
+	@Override
+	public void afterCheckin(Document document, DocumentHistory transaction, Map<String, Object> dictionary)
+			throws Exception {
+		evictDocument(document);
+	}
+
+	@Override
+	public void afterCommit(Map<Long, Set<String>> paths) {
+		ResourceCache cache = getCache();
+		if (cache == null)
+			return;
+
+		if (paths == null)
+			cache.evictAll();
+		else
+			for (Map.Entry<Long, Set<String>> entry : paths.entrySet())
+				cache.evictPaths(entry.getKey(), entry.getValue());
+	}
+
+	@Override
+	public void beforeStore(User user, UserHistory transaction, Map<String, Object> dictionary) throws Exception {
+		// Nothing to do
+	}
+
+	@Override
+	public void afterStore(User user, UserHistory transaction, Map<String, Object> dictionary) throws Exception {
+		// The groups of the user may have changed
+		long tenantId = user.getTenantId();
+		long userId = user.getId();
+		onCommit(cache -> cache.evictUser(tenantId, userId));
+	}
+
+	private static void evictDocument(Document document) {
+		long tenantId = document.getTenantId();
+		long docId = document.getId();
+		onCommit(cache -> cache.evictDocument(tenantId, docId));
+	}
+
+	/**
+	 * Executes an eviction after the commit of the current transaction
+	 */
+	private static void onCommit(Consumer<ResourceCache> eviction) {
+		TransactionUtil.afterCommit(() -> {
+			ResourceCache cache = getCache();
+			if (cache != null)
+				eviction.accept(cache);
+		});
+	}
+
+	private static ResourceCache getCache() {
+		Context context = Context.get();
+		if (context == null)
+			return null;
+		return (ResourceCache) context.getBean(ResourceCache.class);
+	}
+}
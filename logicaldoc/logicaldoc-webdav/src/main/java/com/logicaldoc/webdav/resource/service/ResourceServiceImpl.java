@@ -3,11 +3,15 @@ package com.logicaldoc.webdav.resource.service;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.apache.jackrabbit.webdav.DavException;
 import org.apache.jackrabbit.webdav.DavServletResponse;
@@ -27,6 +31,7 @@ import com.logicaldoc.core.folder.Folder;
 import com.logicaldoc.core.folder.FolderDAO;
 import com.logicaldoc.core.folder.FolderEvent;
 import com.logicaldoc.core.folder.FolderHistory;
+import com.logicaldoc.core.security.Permission;
 import com.logicaldoc.core.security.Tenant;
 import com.logicaldoc.core.security.User;
 import com.logicaldoc.core.security.dao.UserDAO;
@@ -61,10 +66,16 @@ public class ResourceServiceImpl implements ResourceService {
 
 	private UserDAO userDAO;
 
+	private ResourceCache resourceCache;
+
 	public void setUserDAO(UserDAO userDAO) {
 		this.userDAO = userDAO;
 	}
 
+	public void setResourceCache(ResourceCache resourceCache) {
+		this.resourceCache = resourceCache;
+	}
+
 	public void setDocumentDAO(DocumentDAO documentDAO) {
 		this.documentDAO = documentDAO;
 	}
@@ -76,13 +87,30 @@ public class ResourceServiceImpl implements ResourceService {
 	public ResourceServiceImpl() {
 	}
 
+	/**
+	 * Gets the user of the session, the user is loaded just if not available
+	 * in the session
+	 */
+	private User getUser(long userId, DavSession session) {
+		User user = session != null ? (User) session.getObject("user") : null;
+		if (user == null || user.getId() != userId) {
+			user = userDAO.findById(userId);
+			userDAO.initialize(user);
+		}
+		return user;
+	}
+
 	private Resource marshallFolder(Folder folder, long userId, DavSession session) {
+		return marshallFolder(folder, folderDAO.computePathExtended(folder.getId()), session);
+	}
+
+	private Resource marshallFolder(Folder folder, String path, DavSession session) {
 
 		Resource resource = new ResourceImpl();
 		resource.setID(String.valueOf(folder.getId()));
 		resource.setContentLength(0L);
 		resource.setName(folder.getName());
-		resource.setPath(folderDAO.computePathExtended(folder.getId()));
+		resource.setPath(path);
 		resource.setLastModified(folder.getLastModified());
 
 		resource.setETag(String.format("f-%d_%d", folder.getId(), folder.getRecordVersion()));
@@ -131,50 +159,127 @@ public class ResourceServiceImpl implements ResourceService {
 	}
 
 	public List<Resource> getChildResources(Resource parentResource) {
-		FolderDAO folderDAO = (FolderDAO) Context.get().getBean(FolderDAO.class);
 		List<Resource> resourceList = new LinkedList<Resource>();
 		final Long folderID = Long.parseLong(parentResource.getID());
 		boolean hasAccess = folderDAO.isReadEnabled(folderID, parentResource.getRequestedPerson());
 
+		Folder root = null;
 		if (hasAccess == false) {
 			// Check if the folder is a root and in that case we mark it as
 			// readable.
 			Folder folder = folderDAO.findFolder(folderID);
-			if (folder != null && folder.equals(folderDAO.findRoot(folder.getTenantId())))
-				hasAccess = true;
+			if (folder != null) {
+				root = folderDAO.findRoot(folder.getTenantId());
+				if (folder.equals(root))
+					hasAccess = true;
+			}
 		}
 
 		if (hasAccess == false)
 			return resourceList;
 
-		User user = userDAO.findById(parentResource.getRequestedPerson());
-		userDAO.initialize(user);
+		User user = getUser(parentResource.getRequestedPerson(), parentResource.getSession());
+		if (root == null)
+			root = folderDAO.findRoot(user.getTenantId());
+
+		// The path of each child is the one of the parent plus its name
+		String parentPath = parentResource.getPath() != null ? parentResource.getPath()
+				: folderDAO.computePathExtended(folderID);
+		if (!parentPath.endsWith("/"))
+			parentPath += "/";
 
 		// Find children visible by the current user
-		Collection<Folder> folders = folderDAO.findChildren(folderID, parentResource.getRequestedPerson());
-		if (folders != null) {
-			for (Folder currentFolder : folders) {
-				if (currentFolder.getHidden() == 0)
-					resourceList.add(marshallFolder(currentFolder, parentResource.getRequestedPerson(),
-							parentResource.getSession()));
-			}
+		List<Folder> folders = folderDAO.findChildren(folderID, parentResource.getRequestedPerson()).stream()
+				.filter(f -> f.getHidden() == 0).collect(Collectors.toList());
+
+		/*
+		 * Evaluate the permissions of all the children in one pass, the
+		 * documents get the ones of the parent folder
+		 */
+		List<Long> folderIds = new ArrayList<Long>();
+		folderIds.add(folderID);
+		folderIds.addAll(folders.stream().map(f -> f.getId()).collect(Collectors.toList()));
+		Map<Long, Set<Permission>> permissions = folderDAO.getEnabledPermissions(folderIds,
+				parentResource.getRequestedPerson());
+
+		for (Folder currentFolder : folders) {
+			Resource resource = marshallFolder(currentFolder, parentPath + currentFolder.getName(),
+					parentResource.getSession());
+			resource.setPermissions(permissions.get(currentFolder.getId()));
+			resourceList.add(resource);
 		}
 
-		Collection<Document> documents = documentDAO.findByFolder(folderID, null);
-		for (Iterator<Document> iterator = documents.iterator(); iterator.hasNext();) {
-			Document document = iterator.next();
+		for (Document document : findDocumentsInFolder(folderID)) {
 			try {
 				checkPublished(user, document);
 			} catch (Throwable t) {
 				continue;
 			}
-			resourceList.add(marshallDocument(document, parentResource.getSession()));
+			Resource resource = marshallDocument(document, parentResource.getSession());
+			// The permissions in the root are fixed and evaluated by the
+			// resource itself
+			if (root == null || folderID != root.getId())
+				resource.setPermissions(permissions.get(folderID));
+			resourceList.add(resource);
 		}
 
 		return resourceList;
 	}
 
+	/**
+	 * Lists the documents of a folder loading just the fields needed to
+	 * marshall them, instead of the whole persistent entities
+	 */
+	private List<Document> findDocumentsInFolder(long folderId) {
+		Folder folder = new Folder();
+		folder.setId(folderId);
+
+		List<Document> documents = new ArrayList<Document>();
+		try {
+			List<Object> records = documentDAO.findByQuery(
+					"select _entity.id, _entity.fileName, _entity.fileSize, _entity.creation, _entity.date, _entity.status, _entity.version, _entity.publisher, _entity.docRef, _entity.lockUser, _entity.published, _entity.startPublishing, _entity.stopPublishing "
+							+ " from Document _entity where _entity.deleted=0 and _entity.folder.id = ?1",
+					new Object[] { Long.valueOf(folderId) }, null);
+			for (Object object : records) {
+				Object[] record = (Object[]) object;
+				Document document = new Document();
+				document.setId((Long) record[0]);
+				document.setFileName((String) record[1]);
+				document.setFileSize((Long) record[2]);
+				document.setCreation((Date) record[3]);
+				document.setDate((Date) record[4]);
+				document.setStatus((Integer) record[5]);
+				document.setVersion((String) record[6]);
+				document.setPublisher((String) record[7]);
+				document.setDocRef((Long) record[8]);
+				document.setLockUser((String) record[9]);
+				document.setPublished((Integer) record[10]);
+				document.setStartPublishing((Date) record[11]);
+				document.setStopPublishing((Date) record[12]);
+				document.setFolder(folder);
+				documents.add(document);
+			}
+		} catch (PersistenceException e) {
+			log.error(e.getMessage(), e);
+		}
+		return documents;
+	}
+
 	public Resource getResource(String requestPath, DavSession session) throws DavException {
+		if (resourceCache == null || session == null)
+			return resolveResource(requestPath, session);
+
+		long generation = resourceCache.getGeneration(session);
+		Resource resource = resourceCache.get(requestPath, session);
+		if (resource == null) {
+			resource = resolveResource(requestPath, session);
+			if (resource != null)
+				resourceCache.put(requestPath, session, resource, generation);
+		}
+		return resource;
+	}
+
+	private Resource resolveResource(String requestPath, DavSession session) throws DavException {
 		
 		log.trace("Find DAV resource: {}", requestPath);
 
@@ -228,9 +333,7 @@ public class ResourceServiceImpl implements ResourceService {
 			throw new DavException(DavServletResponse.SC_FORBIDDEN,
 					"You have no appropriated rights to read this document");
 
-		User user = userDAO.findById(userId);
-		userDAO.initialize(user);
-		checkPublished(user, document);
+		checkPublished(getUser(userId, session), document);
 
 		return marshallDocument(document, session);
 	}
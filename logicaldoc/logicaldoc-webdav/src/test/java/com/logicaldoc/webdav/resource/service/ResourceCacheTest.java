@@ -0,0 +1,163 @@
+package com.logicaldoc.webdav.resource.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.logicaldoc.util.config.ContextProperties;
+import com.logicaldoc.webdav.resource.model.Resource;
+import com.logicaldoc.webdav.resource.model.ResourceImpl;
+import com.logicaldoc.webdav.session.DavSessionImpl;
+
+import junit.framework.Assert;
+
+/**
+ * Test case for {@link ResourceCache}
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class ResourceCacheTest {
+
+	// Instance under test
+	private ResourceCache cache;
+
+	private DavSessionImpl session;
+
+	@Before
+	public void setUp() throws Exception {
+		cache = new ResourceCache();
+		cache.setConfig(newConfig("webdav.cache.ttl=10\nwebdav.cache.size=10\n"));
+		session = newSession(1L, 1L);
+	}
+
+	@Test
+	public void testGetAndPut() throws IOException {
+		Assert.assertNull(cache.get("/store/a", session));
+
+		put("/store/a", session, newResource("a", 1L, false));
+		Resource cached = cache.get("/store/a", session);
+		Assert.assertEquals("a", cached.getName());
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals(1, cache.getMisses());
+
+		// A copy is returned, so the cached resource cannot be altered
+		((ResourceImpl) cached).setName("changed");
+		Assert.assertEquals("a", cache.get("/store/a", session).getName());
+
+		// The entries are kept per user
+		Assert.assertNull(cache.get("/store/a", newSession(1L, 2L)));
+
+		// The least recently used entry is evicted
+		cache.setConfig(newConfig("webdav.cache.ttl=10\nwebdav.cache.size=2\n"));
+		put("/store/b", session, newResource("b", 2L, false));
+		put("/store/c", session, newResource("c", 3L, false));
+		Assert.assertEquals(2, cache.getSize());
+		Assert.assertNull(cache.get("/store/a", session));
+	}
+
+	@Test
+	public void testEvictPaths() {
+		put("/store/Default/dir", session, newResource("dir", 10L, true));
+		put("/store/Default/dir/doc.txt", session, newResource("doc.txt", 1L, false));
+		put("/store/Default/dir2/doc.txt", session, newResource("doc.txt", 2L, false));
+		put("/store/Default/dir/sub/", session, newResource("sub", 11L, true));
+
+		// Other tenants are not affected
+		cache.evictPaths(2L, Collections.singleton("/Default/dir"));
+		Assert.assertEquals(4, cache.getSize());
+
+		// The folder and its content are evicted, a folder with a similar
+		// name is not
+		cache.evictPaths(1L, Arrays.asList("/Default/dir", "/Default/other"));
+		Assert.assertNull(cache.get("/store/Default/dir", session));
+		Assert.assertNull(cache.get("/store/Default/dir/doc.txt", session));
+		Assert.assertNull(cache.get("/store/Default/dir/sub/", session));
+		Assert.assertNotNull(cache.get("/store/Default/dir2/doc.txt", session));
+
+		// The root evicts the whole tenant
+		cache.evictPaths(1L, Collections.singleton("/"));
+		Assert.assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void testEvictDocument() {
+		put("/store/Default/dir", session, newResource("dir", 1L, true));
+		put("/store/Default/dir/doc.txt", session, newResource("doc.txt", 1L, false));
+		put("/store/Default/dir/doc2.txt", session, newResource("doc2.txt", 2L, false));
+
+		// The folder with the same ID is kept
+		cache.evictDocument(1L, 1L);
+		Assert.assertNotNull(cache.get("/store/Default/dir", session));
+		Assert.assertNull(cache.get("/store/Default/dir/doc.txt", session));
+		Assert.assertNotNull(cache.get("/store/Default/dir/doc2.txt", session));
+	}
+
+	@Test
+	public void testEvictUser() {
+		DavSessionImpl other = newSession(1L, 2L);
+		put("/store/a", session, newResource("a", 1L, false));
+		put("/store/a", other, newResource("a", 1L, false));
+
+		cache.evictUser(1L, 2L);
+		Assert.assertNotNull(cache.get("/store/a", session));
+		Assert.assertNull(cache.get("/store/a", other));
+
+		cache.evictAll();
+		Assert.assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void testStalePut() {
+		// The tenant changes while the resource is being resolved
+		long generation = cache.getGeneration(session);
+		cache.evictDocument(1L, 5L);
+		cache.put("/store/a", session, newResource("a", 1L, false), generation);
+		Assert.assertNull(cache.get("/store/a", session));
+		Assert.assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void testDisabled() throws IOException {
+		cache.setConfig(newConfig("webdav.cache.ttl=0\n"));
+		put("/store/a", session, newResource("a", 1L, false));
+		Assert.assertNull(cache.get("/store/a", session));
+	}
+
+	@Test
+	public void testNormalize() {
+		Assert.assertEquals("", ResourceCache.normalize("/store"));
+		Assert.assertEquals("", ResourceCache.normalize("/store/"));
+		Assert.assertEquals("/Default/dir", ResourceCache.normalize("/store/Default/dir/"));
+		Assert.assertEquals("/Default/dir", ResourceCache.normalize("/vstore/Default/dir"));
+		Assert.assertEquals("/storage/dir", ResourceCache.normalize("/storage/dir"));
+	}
+
+	private void put(String path, DavSessionImpl session, ResourceImpl resource) {
+		cache.put(path, session, resource, cache.getGeneration(session));
+	}
+
+	private static DavSessionImpl newSession(long tenantId, long userId) {
+		DavSessionImpl session = new DavSessionImpl();
+		session.setTenantId(tenantId);
+		session.putObject("id", userId);
+		return session;
+	}
+
+	private static ResourceImpl newResource(String name, long id, boolean folder) {
+		ResourceImpl resource = new ResourceImpl();
+		resource.setName(name);
+		resource.setID(Long.toString(id));
+		resource.isFolder(folder);
+		return resource;
+	}
+
+	private static ContextProperties newConfig(String properties) throws IOException {
+		return new ContextProperties(new ByteArrayInputStream(properties.getBytes(StandardCharsets.UTF_8)));
+	}
+}
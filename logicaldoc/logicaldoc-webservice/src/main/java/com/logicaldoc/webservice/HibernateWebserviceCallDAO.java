@@ -1,12 +1,18 @@
 package com.logicaldoc.webservice;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.List;
 
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
 import org.slf4j.LoggerFactory;
 
 import com.logicaldoc.core.HibernatePersistentObjectDAO;
+import com.logicaldoc.core.PersistenceException;
 
 /**
  * Hibernate implementation of <code>ChatMessageyDAO</code>
@@ -42,4 +48,37 @@ public class HibernateWebserviceCallDAO extends HibernatePersistentObjectDAO<Web
 
 		}
 	}
+
+	@Override
+	public void store(List<WebserviceCall> calls) throws PersistenceException {
+		if (calls.isEmpty() || !checkStoringAspect())
+			return;
+
+		try {
+			// Use the same generator of the mapping, so the identifiers never
+			// collide with the ones assigned by Hibernate
+			IdentifierGenerator generator = ((SessionFactoryImplementor) sessionFactory).getMetamodel()
+					.entityPersister(WebserviceCall.class).getIdentifierGenerator();
+			SharedSessionContractImplementor session = (SharedSessionContractImplementor) getCurrentSession();
+
+			Date now = new Date();
+			for (WebserviceCall call : calls) {
+				call.setId((Long) generator.generate(session, call));
+				call.setLastModified(now);
+			}
+		} catch (Throwable e) {
+			throw new PersistenceException(e);
+		}
+
+		List<Object[]> args = new ArrayList<Object[]>(calls.size());
+		for (WebserviceCall call : calls)
+			args.add(new Object[] { call.getId(), call.getLastModified(), call.getTenantId(), call.getUserId(),
+					call.getDate(), call.getUsername(), call.getUserLogin(), call.getEvent(), call.getComment(),
+					call.getPath(), call.getSessionId(), call.getIp(), call.getGeolocation(), call.getDevice(),
+					call.getProtocol() });
+
+		jdbcBatchUpdate(
+				"insert into ld_webservicecall(ld_id, ld_lastmodified, ld_recordversion, ld_deleted, ld_tenantid, ld_userid, ld_date, ld_username, ld_userlogin, ld_event, ld_comment, ld_path, ld_sessionid, ld_ip, ld_geolocation, ld_device, ld_protocol) values (?, ?, 0, 0, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+				args);
+	}
 }
\ No newline at end of file
@@ -1,5 +1,8 @@
 package com.logicaldoc.webservice;
 
+import java.util.List;
+
+import com.logicaldoc.core.PersistenceException;
 import com.logicaldoc.core.PersistentObjectDAO;
 
 /**
@@ -18,4 +21,13 @@ public interface WebserviceCallDAO extends PersistentObjectDAO<WebserviceCall> {
 	 *        old
 	 */
 	public void cleanOldCalls(int ttl);
+
+	/**
+	 * Saves a set of new calls with a batch of inserts
+	 * 
+	 * @param calls the calls to save
+	 * 
+	 * @throws PersistenceException error at data layer
+	 */
+	public void store(List<WebserviceCall> calls) throws PersistenceException;
 }
\ No newline at end of file
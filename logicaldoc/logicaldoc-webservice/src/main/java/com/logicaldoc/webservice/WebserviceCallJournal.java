@@ -0,0 +1,254 @@
+package com.logicaldoc.webservice;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.logicaldoc.core.threading.ThreadPools;
+import com.logicaldoc.util.config.ContextProperties;
+import com.logicaldoc.util.time.TimeDiff;
+import com.logicaldoc.util.time.TimeDiff.TimeField;
+
+/**
+ * A journal of the webservice calls to be recorded. The calls are put in a
+ * lock-free ring buffer of <b>webservice.call.journal.size</b> elements and
+ * a writer running in the <b>WebserviceCallJournal</b> thread pool drains it
+ * every <b>webservice.call.journal.flush</b> milliseconds, saving the calls
+ * with batched inserts of
+ * <b>webservice.call.journal.batch</b> elements.<br>
+ * When the buffer is more than three quarters full just one call every
+ * <b>webservice.call.journal.sampling</b> is accepted, when it is full the
+ * calls are dropped. The depth of the buffer and the number of sampled out
+ * and dropped calls are available as metrics.
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class WebserviceCallJournal {
+
+	protected static Logger log = LoggerFactory.getLogger(WebserviceCallJournal.class);
+
+	public static final String THREADPOOL = "WebserviceCallJournal";
+
+	private WebserviceCallDAO webserviceCallDao;
+
+	private ThreadPools threadPools;
+
+	private ContextProperties settings;
+
+	private volatile AtomicReferenceArray<WebserviceCall> slots;
+
+	private int mask;
+
+	// Next position to write, claimed by the producers
+	private final AtomicLong tail = new AtomicLong(0L);
+
+	// Next position to read, moved only by the writer
+	private final AtomicLong head = new AtomicLong(0L);
+
+	private final AtomicLong offered = new AtomicLong(0L);
+
+	private final AtomicLong sampled = new AtomicLong(0L);
+
+	private final AtomicLong dropped = new AtomicLong(0L);
+
+	private final AtomicLong written = new AtomicLong(0L);
+
+	private long lastDropped = 0L;
+
+	private Date lastClean;
+
+	private ScheduledFuture<?> writer;
+
+	/**
+	 * Puts a call in the journal, never blocks
+	 *
+	 * @param call the call to record
+	 *
+	 * @return true if the call was accepted, false if it was sampled out or
+	 *         dropped
+	 */
+	public boolean offer(WebserviceCall call) {
+		if (slots == null)
+			init();
+
+		long count = offered.incrementAndGet();
+		int sampling = settings.getInt("webservice.call.journal.sampling", 10);
+		if (sampling > 1 && getDepth() > slots.length() * 3 / 4 && count % sampling != 0) {
+			sampled.incrementAndGet();
+			return false;
+		}
+
+		while (true) {
+			long position = tail.get();
+			if (position - head.get() >= slots.length()) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			if (tail.compareAndSet(position, position + 1)) {
+				slots.set((int) (position & mask), call);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Takes the next call from the buffer, to be invoked by the writer only
+	 *
+	 * @return the call or null if there are no calls ready
+	 */
+	private WebserviceCall poll() {
+		long position = head.get();
+		int index = (int) (position & mask);
+		WebserviceCall call = slots.get(index);
+		// Null also if a producer claimed the slot but did not yet fill it
+		if (call == null)
+			return null;
+		slots.set(index, null);
+		head.lazySet(position + 1);
+		return call;
+	}
+
+	/**
+	 * Saves all the calls in the buffer
+	 */
+	public synchronized void flush() {
+		if (slots == null)
+			return;
+
+		int batchSize = Math.max(1, settings.getInt("webservice.call.journal.batch", 500));
+		List<WebserviceCall> batch = new ArrayList<WebserviceCall>(batchSize);
+		WebserviceCall call;
+		while (true) {
+			call = poll();
+			if (call != null)
+				batch.add(call);
+			if (batch.size() >= batchSize || (call == null && !batch.isEmpty())) {
+				store(batch);
+				batch.clear();
+			}
+			if (call == null)
+				break;
+		}
+
+		long drp = dropped.get();
+		if (drp > lastDropped) {
+			log.warn("Dropped {} webservice calls because the journal was full, depth {}", drp - lastDropped,
+					getDepth());
+			lastDropped = drp;
+		}
+
+		cleanOldCalls();
+	}
+
+	private void store(List<WebserviceCall> batch) {
+		try {
+			webserviceCallDao.store(batch);
+			written.addAndGet(batch.size());
+			log.debug("Saved {} webservice calls", batch.size());
+		} catch (Throwable t) {
+			dropped.addAndGet(batch.size());
+			log.warn("Unable to save {} webservice calls - {}", batch.size(), t.getMessage(), t);
+		}
+	}
+
+	private void cleanOldCalls() {
+		Date now = new Date();
+		if (lastClean == null)
+			lastClean = now;
+		if (TimeDiff.getTimeDifference(lastClean, now, TimeField.HOUR) >= 24) {
+			try {
+				webserviceCallDao.cleanOldCalls(settings.getInt("webservice.call.ttl", 90));
+			} catch (Throwable t) {
+				log.warn(t.getMessage(), t);
+			}
+			lastClean = now;
+		}
+	}
+
+	/**
+	 * Allocates the buffer and schedules the writer
+	 */
+	public synchronized void init() {
+		if (slots != null)
+			return;
+
+		int size = Math.max(2, settings.getInt("webservice.call.journal.size", 16384));
+		int capacity = Integer.highestOneBit(size - 1) << 1;
+		mask = capacity - 1;
+		slots = new AtomicReferenceArray<WebserviceCall>(capacity);
+
+		long interval = Math.max(10L, settings.getLong("webservice.call.journal.flush", 1000L));
+		writer = threadPools.scheduleWithFixedDelay(this::flush, THREADPOOL, interval);
+	}
+
+	/**
+	 * Stops the writer saving the calls still in the buffer
+	 */
+	public void shutdown() {
+		// A flush in progress completes before the final one
+		if (writer != null)
+			writer.cancel(false);
+
+		try {
+			flush();
+		} catch (Throwable t) {
+			log.warn(t.getMessage(), t);
+		}
+	}
+
+	/**
+	 * The number of calls waiting to be saved
+	 *
+	 * @return the depth of the buffer
+	 */
+	public long getDepth() {
+		return Math.max(0L, tail.get() - head.get());
+	}
+
+	/**
+	 * The number of calls that were not recorded because the buffer was full
+	 * or because they could not be saved
+	 *
+	 * @return number of dropped calls
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * The number of calls that were not recorded because of the sampling
+	 *
+	 * @return number of sampled out calls
+	 */
+	public long getSampled() {
+		return sampled.get();
+	}
+
+	/**
+	 * The number of calls saved in the database
+	 *
+	 * @return number of saved calls
+	 */
+	public long getWritten() {
+		return written.get();
+	}
+
+	public void setWebserviceCallDao(WebserviceCallDAO webserviceCallDao) {
+		this.webserviceCallDao = webserviceCallDao;
+	}
+
+	public void setSettings(ContextProperties settings) {
+		this.settings = settings;
+	}
+
+	public void setThreadPools(ThreadPools threadPools) {
+		this.threadPools = threadPools;
+	}
+}
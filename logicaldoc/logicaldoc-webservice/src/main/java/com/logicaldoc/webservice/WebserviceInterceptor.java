@@ -1,10 +1,17 @@
 package com.logicaldoc.webservice;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -17,7 +24,6 @@ import org.apache.cxf.binding.soap.SoapMessage;
 import org.apache.cxf.common.i18n.BundleUtils;
 import org.apache.cxf.interceptor.Fault;
 import org.apache.cxf.interceptor.Interceptor;
-import org.apache.cxf.io.CachedOutputStream;
 import org.apache.cxf.message.Message;
 import org.apache.cxf.phase.AbstractPhaseInterceptor;
 import org.apache.cxf.phase.Phase;
@@ -47,12 +53,26 @@ public class WebserviceInterceptor extends AbstractPhaseInterceptor<Message> {
 
 	public static final String THREADPOOL_CALL_COUNTER = "WebserviceCallCounter";
 
-	public static final String THREADPOOL_CALL_STORE = "WebserviceCallStore";
-
 	public static final String WSCALL = "wscall";
 
 	public static final String WSCALL_ = WSCALL + "-";
 
+	/**
+	 * Maximum number of bytes of the payload read to record the call and to
+	 * search for the session
+	 */
+	static final int PEEK_SIZE = 8192;
+
+	private static final Pattern SID_ELEMENT = Pattern.compile("<sid(.*?)>([\\w\\-\\d]*)</sid>");
+
+	private static final Pattern SID_PARAMETER = Pattern.compile("(^|&)sid=([\\w\\-\\d]*)");
+
+	private static final Pattern BOUNDARY = Pattern.compile("boundary=\"?([^\";]+)\"?",
+			Pattern.CASE_INSENSITIVE);
+
+	private static final Pattern PART_CONTENT_TYPE = Pattern.compile("content-type:\\s*([^;\\r\\n]+)",
+			Pattern.CASE_INSENSITIVE);
+
 	protected static Logger log = LoggerFactory.getLogger(WebserviceInterceptor.class);
 
 	private SequenceDAO sequenceDAO;
@@ -69,12 +89,14 @@ public class WebserviceInterceptor extends AbstractPhaseInterceptor<Message> {
 	private static Date lastSync;
 
 	/**
-	 * Last time the oldest calls were cleaned
+	 * True while a synchronization of the counters is scheduled
 	 */
-	private static Date lastClean;
+	private static AtomicBoolean syncScheduled = new AtomicBoolean(false);
 
 	private ContextProperties settings;
 
+	private WebserviceCallJournal journal;
+
 	public WebserviceInterceptor() {
 		super(Phase.RECEIVE);
 	}
@@ -86,7 +108,14 @@ public class WebserviceInterceptor extends AbstractPhaseInterceptor<Message> {
 			throw new Fault(new org.apache.cxf.common.i18n.Message("Webservices not enabled", BUNDLE));
 		}
 
-		String payload = getPayload(message);
+		boolean record = RunLevel.current().aspectEnabled(WebserviceCall.ASPECT)
+				&& settings.getBoolean("webservice.call.record", false);
+
+		/*
+		 * The payload is peeked only if the call must be recorded or if the
+		 * session cannot be found in the request
+		 */
+		String payload = record ? getPayload(message) : null;
 
 		Session session = null;
 		try {
@@ -105,8 +134,7 @@ public class WebserviceInterceptor extends AbstractPhaseInterceptor<Message> {
 		}
 
 		try {
-			if (RunLevel.current().aspectEnabled(WebserviceCall.ASPECT)
-					&& settings.getBoolean("webservice.call.record", false)) {
+			if (record) {
 				WebserviceCall call = new WebserviceCall();
 				call.setTenantId(Tenant.SYSTEM_ID);
 				call.setPayload(payload);
@@ -158,8 +186,7 @@ public class WebserviceInterceptor extends AbstractPhaseInterceptor<Message> {
 		if (call.getPayload() != null)
 			call.setPayload(maskCredentials(call.getPayload()));
 
-		ThreadPools pools = (ThreadPools) Context.get().getBean(ThreadPools.class);
-		pools.schedule(new WebserviceCallStore(call), THREADPOOL_CALL_STORE, 5000);
+		journal.offer(call);
 	}
 
 	static String maskCredentials(String originalString) {
@@ -204,17 +231,30 @@ public class WebserviceInterceptor extends AbstractPhaseInterceptor<Message> {
 		if (lastSync == null)
 			lastSync = now;
 		long timeSinceLastSync = TimeDiff.getTimeDifference(lastSync, now, TimeField.MINUTE);
-		if (timeSinceLastSync >= 10) {
-			ThreadPools pools = (ThreadPools) Context.get().getBean(ThreadPools.class);
-			pools.schedule(new WebserviceCallCounterSync(), THREADPOOL_CALL_COUNTER, 5000);
+		// Just one synchronization at a time is scheduled
+		if (timeSinceLastSync >= 10 && syncScheduled.compareAndSet(false, true)) {
+			try {
+				ThreadPools pools = (ThreadPools) Context.get().getBean(ThreadPools.class);
+				pools.schedule(new WebserviceCallCounterSync(), THREADPOOL_CALL_COUNTER, 5000);
+			} catch (RuntimeException e) {
+				syncScheduled.set(false);
+				throw e;
+			}
 		}
 	}
 
 	protected void syncCounters() {
 		for (Pair<String, Long> counterPair : counters.keySet()) {
 			AtomicLong counter = counters.get(counterPair);
-			sequenceDAO.next(counterPair.getKey(), 0L, counterPair.getValue(), counter.get());
-			counter.set(0L);
+			long increment = counter.getAndSet(0L);
+			if (increment > 0L)
+				try {
+					sequenceDAO.next(counterPair.getKey(), 0L, counterPair.getValue(), increment);
+				} catch (RuntimeException e) {
+					// Keep the calls for the next synchronization
+					counter.addAndGet(increment);
+					throw e;
+				}
 		}
 	}
 
@@ -228,55 +268,146 @@ public class WebserviceInterceptor extends AbstractPhaseInterceptor<Message> {
 
 	protected void increaseCounter(String counterName, long tenantId) {
 		Pair<String, Long> counterPair = new Pair<String, Long>(counterName, tenantId);
-		AtomicLong counter = counters.get(counterPair);
-		if (counter == null) {
-			counter = new AtomicLong(0L);
-			counters.put(counterPair, counter);
-		}
-		counter.incrementAndGet();
+		counters.computeIfAbsent(counterPair, p -> new AtomicLong(0L)).incrementAndGet();
 	}
 
+	/**
+	 * Searches the session in the request and, if not found or not open, in
+	 * the first bytes of the payload
+	 * 
+	 * @param message the current message
+	 * @param payload the payload if already read
+	 * 
+	 * @return the session if any
+	 */
 	static Session getSession(Message message, String payload) {
-		HttpServletRequest request = (HttpServletRequest) message.get(AbstractHTTPDestination.HTTP_REQUEST);
-		Session session = SessionManager.get().getSession(request);
-		if (session != null)
-			return session;
+		// A stale cookie must not hide the session given in the payload
+		String sid = getSessionId(message);
+		if (sid != null && SessionManager.get().isOpen(sid))
+			return SessionManager.get().get(sid);
 
 		if (StringUtils.isEmpty(payload))
 			payload = getPayload(message);
 		if (StringUtils.isNotEmpty(payload)) {
-			String pattern = "<sid(.*)>([\\w\\-\\d]*)</sid>";
-			Pattern regPat = Pattern.compile(pattern);
-			Matcher matcher = regPat.matcher(payload);
-			if (matcher.find()) {
-				String matchedText = matcher.group();
-				String sid = matchedText.substring(matchedText.indexOf('>') + 1, matchedText.lastIndexOf('<'));
-				session = SessionManager.get().get(sid);
-			}
+			Matcher matcher = SID_ELEMENT.matcher(payload);
+			if (matcher.find())
+				return SessionManager.get().get(matcher.group(2));
+			matcher = SID_PARAMETER.matcher(payload);
+			if (matcher.find())
+				return SessionManager.get().get(matcher.group(2));
+		}
+		return null;
+	}
 
+	/**
+	 * Looks for the session ID in the query string, in the headers and then
+	 * in the rest of the request. The body is never read here, so the
+	 * parameters of form posts are not inspected, while their session,
+	 * cookies and security context are.
+	 * 
+	 * @param message the current message
+	 * 
+	 * @return the session ID if any
+	 */
+	static String getSessionId(Message message) {
+		String query = (String) message.get(Message.QUERY_STRING);
+		if (StringUtils.isNotEmpty(query)) {
+			Matcher matcher = SID_PARAMETER.matcher(query);
+			if (matcher.find())
+				return matcher.group(2);
 		}
-		return session;
+
+		@SuppressWarnings("unchecked")
+		Map<String, List<String>> headers = (Map<String, List<String>>) message.get(Message.PROTOCOL_HEADERS);
+		if (headers != null)
+			for (Map.Entry<String, List<String>> header : headers.entrySet())
+				if (SessionManager.PARAM_SID.equalsIgnoreCase(header.getKey()) && header.getValue() != null
+						&& !header.getValue().isEmpty())
+					return header.getValue().get(0);
+
+		HttpServletRequest request = (HttpServletRequest) message.get(AbstractHTTPDestination.HTTP_REQUEST);
+		if (request == null)
+			return null;
+
+		// Reading the parameters of a form post would consume the body
+		String contentType = (String) message.get(Message.CONTENT_TYPE);
+		boolean formPost = contentType != null && contentType.toLowerCase().contains("x-www-form-urlencoded");
+		return SessionManager.get().getSessionId(request, !formPost);
 	}
 
+	/**
+	 * Peeks at the first bytes of the message: at most {@link #PEEK_SIZE}
+	 * bytes are buffered and then put back in front of the rest of the
+	 * stream, that is left untouched. Binary messages are not read at all and
+	 * for multipart messages only the textual parts that precede the first
+	 * binary one are returned.
+	 * 
+	 * @param message the current message
+	 * 
+	 * @return the beginning of the payload, null if it was not captured
+	 * 
+	 * @throws Fault error reading the message
+	 */
 	static String getPayload(Message message) throws Fault {
-		try (InputStream is = message.getContent(InputStream.class);
-				CachedOutputStream bos = new CachedOutputStream()) {
-			if (is != null) {
-				IOUtils.copy(is, bos);
-
-				bos.flush();
-				is.close();
-
-				StringBuilder sb = new StringBuilder();
-				message.setContent(InputStream.class, bos.getInputStream());
-				bos.writeCacheTo(sb, 2048);
-				return sb.toString();
-			}
+		String contentType = (String) message.get(Message.CONTENT_TYPE);
+		boolean multipart = contentType != null && contentType.toLowerCase().startsWith("multipart/");
+		if (!multipart && !isTextual(contentType))
+			return null;
+
+		InputStream is = message.getContent(InputStream.class);
+		if (is == null)
+			return null;
+
+		try {
+			byte[] peek = new byte[PEEK_SIZE];
+			int length = IOUtils.read(is, peek);
+			message.setContent(InputStream.class,
+					new SequenceInputStream(new ByteArrayInputStream(peek, 0, length), is));
+
+			String encoding = (String) message.get(Message.ENCODING);
+			String payload = new String(peek, 0, length,
+					encoding != null && Charset.isSupported(encoding) ? Charset.forName(encoding)
+							: StandardCharsets.UTF_8);
+			return multipart ? cutAtFirstBinaryPart(payload, contentType) : payload;
 		} catch (Throwable e) {
-			e.printStackTrace();
+			log.error(e.getMessage(), e);
 			throw new Fault(e);
 		}
-		return null;
+	}
+
+	/**
+	 * Checks if a content type denotes a textual content, a missing content
+	 * type is considered textual
+	 */
+	private static boolean isTextual(String contentType) {
+		if (StringUtils.isEmpty(contentType))
+			return true;
+		String type = contentType.toLowerCase();
+		return type.startsWith("text/") || type.contains("xml") || type.contains("json")
+				|| type.contains("x-www-form-urlencoded") || type.contains("javascript");
+	}
+
+	/**
+	 * Truncates a multipart payload before the first part whose content type
+	 * is not textual
+	 */
+	private static String cutAtFirstBinaryPart(String payload, String contentType) {
+		Matcher matcher = BOUNDARY.matcher(contentType);
+		if (!matcher.find())
+			return payload;
+
+		String delimiter = "--" + matcher.group(1);
+		int index = payload.indexOf(delimiter);
+		while (index >= 0) {
+			int next = payload.indexOf(delimiter, index + delimiter.length());
+			String part = payload.substring(index, next >= 0 ? next : payload.length());
+			int headersEnd = part.indexOf("\r\n\r\n");
+			Matcher partType = PART_CONTENT_TYPE.matcher(headersEnd >= 0 ? part.substring(0, headersEnd) : part);
+			if (partType.find() && !isTextual(partType.group(1).trim()))
+				return payload.substring(0, index);
+			index = next;
+		}
+		return payload;
 	}
 
 	protected static String getCurrentMonth() {
@@ -301,35 +432,8 @@ public class WebserviceInterceptor extends AbstractPhaseInterceptor<Message> {
 				lastSync = new Date();
 			} catch (Throwable t) {
 				log.warn(t.getMessage(), t);
-			}
-		}
-	}
-
-	/**
-	 * This runnable takes care of writing a call into the database
-	 */
-	class WebserviceCallStore implements Runnable {
-
-		private WebserviceCall call;
-
-		public WebserviceCallStore(WebserviceCall call) {
-			super();
-			this.call = call;
-		}
-
-		@Override
-		public void run() {
-			try {
-				WebserviceCallDAO dao = (WebserviceCallDAO) Context.get().getBean(WebserviceCallDAO.class);
-				Date now = new Date();
-				if (lastClean == null)
-					lastClean = now;
-				long timeSinceLastClean = TimeDiff.getTimeDifference(lastClean, now, TimeField.HOUR);
-				if (timeSinceLastClean >= 24)
-					dao.cleanOldCalls(settings.getInt("webservice.call.ttl", 90));
-				dao.store(call);
-			} catch (Throwable t) {
-				log.warn(t.getMessage(), t);
+			} finally {
+				syncScheduled.set(false);
 			}
 		}
 	}
@@ -341,4 +445,8 @@ public class WebserviceInterceptor extends AbstractPhaseInterceptor<Message> {
 	public void setSettings(ContextProperties settings) {
 		this.settings = settings;
 	}
+
+	public void setJournal(WebserviceCallJournal journal) {
+		this.journal = journal;
+	}
 }
\ No newline at end of file
@@ -28,8 +28,11 @@ public class WebservicePlugin extends LogicalDOCPlugin {
 		pbean.setProperty("webservice.call.record", "true");
 		pbean.setProperty("webservice.call.ttl", "90");
 
-		pbean.setProperty("threadpool." + WebserviceInterceptor.THREADPOOL_CALL_STORE + ".max", "20");
-		pbean.setProperty("threadpool." + WebserviceInterceptor.THREADPOOL_CALL_STORE + ".type", "default");
+		pbean.setProperty("webservice.call.journal.size", "16384");
+		pbean.setProperty("webservice.call.journal.batch", "500");
+		pbean.setProperty("webservice.call.journal.flush", "1000");
+		pbean.setProperty("webservice.call.journal.sampling", "10");
+
 		pbean.setProperty("threadpool." + WebserviceInterceptor.THREADPOOL_CALL_COUNTER + ".max", "20");
 		pbean.setProperty("threadpool." + WebserviceInterceptor.THREADPOOL_CALL_COUNTER + ".type", "default");
 		
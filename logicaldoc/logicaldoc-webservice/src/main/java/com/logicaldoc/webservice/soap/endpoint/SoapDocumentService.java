@@ -381,7 +381,7 @@ public class SoapDocumentService extends AbstractService implements DocumentServ
 
 			log.debug("Attach file {}", resource);
 
-			storer.store(content.getInputStream(), doc.getId(), resource);
+			storer.store(content.getInputStream(), doc.getId(), resource, doc.getTenantId());
 		} catch (Throwable e) {
 			log.error(e.getMessage(), e);
 			throw e;
@@ -804,7 +804,8 @@ public class SoapDocumentService extends AbstractService implements DocumentServ
 		att.setIcon(doc.getIcon());
 		Storer storer = (Storer) Context.get().getBean(Storer.class);
 		String resource = storer.getResourceName(doc, null, null);
-		att.setData(storer.getBytes(doc.getId(), resource));
+		att.setDocId(doc.getId());
+		att.setResource(resource);
 		att.setFileName(doc.getFileName());
 		String extension = doc.getFileExtension();
 		att.setMimeType(MimeType.get(extension));
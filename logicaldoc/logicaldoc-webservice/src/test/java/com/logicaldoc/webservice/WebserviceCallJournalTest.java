@@ -0,0 +1,102 @@
+package com.logicaldoc.webservice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.logicaldoc.core.threading.ThreadPools;
+import com.logicaldoc.util.config.ContextProperties;
+
+import junit.framework.Assert;
+
+/**
+ * Test case for {@link WebserviceCallJournal}
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class WebserviceCallJournalTest extends AbstractWebserviceTestCase {
+
+	private WebserviceCallDAO dao;
+
+	private ContextProperties settings;
+
+	// Instance under test
+	private WebserviceCallJournal journal;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		dao = (WebserviceCallDAO) context.getBean(WebserviceCallDAO.class);
+
+		settings = (ContextProperties) context.getBean(ContextProperties.class);
+		settings.setProperty("webservice.call.journal.size", "8");
+		settings.setProperty("webservice.call.journal.batch", "3");
+		settings.setProperty("webservice.call.journal.sampling", "0");
+
+		// The test flushes by itself
+		settings.setProperty("webservice.call.journal.flush", "3600000");
+
+		journal = new WebserviceCallJournal();
+		journal.setSettings(settings);
+		journal.setWebserviceCallDao(dao);
+		journal.setThreadPools((ThreadPools) context.getBean(ThreadPools.class));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		journal.shutdown();
+		super.tearDown();
+	}
+
+	@Test
+	public void testOfferAndFlush() {
+		for (int i = 0; i < 10; i++)
+			Assert.assertEquals(i < 8, journal.offer(newCall(i)));
+		Assert.assertEquals(8, journal.getDepth());
+		Assert.assertEquals(2, journal.getDropped());
+		Assert.assertEquals(0, journal.getSampled());
+
+		// Saved in three batches
+		journal.flush();
+		Assert.assertEquals(0, journal.getDepth());
+		Assert.assertEquals(8, journal.getWritten());
+		Assert.assertEquals(8, dao.findAll(1L).size());
+
+		// The slots are reused after the flush
+		for (int i = 0; i < 5; i++)
+			Assert.assertTrue(journal.offer(newCall(i)));
+		journal.shutdown();
+		Assert.assertEquals(13, journal.getWritten());
+		Assert.assertEquals(13, dao.findAll(1L).size());
+	}
+
+	@Test
+	public void testSampling() {
+		settings.setProperty("webservice.call.journal.sampling", "2");
+
+		// Sampling starts when more than three quarters of the buffer are used
+		for (int i = 0; i < 7; i++)
+			Assert.assertTrue(journal.offer(newCall(i)));
+		Assert.assertEquals(0, journal.getSampled());
+
+		Assert.assertTrue(journal.offer(newCall(7)));
+		Assert.assertFalse(journal.offer(newCall(8)));
+		Assert.assertEquals(1, journal.getSampled());
+		Assert.assertFalse(journal.offer(newCall(9)));
+		Assert.assertEquals(1, journal.getDropped());
+
+		journal.flush();
+		Assert.assertEquals(8, journal.getWritten());
+		Assert.assertEquals(8, dao.findAll(1L).size());
+	}
+
+	private static WebserviceCall newCall(int index) {
+		WebserviceCall call = new WebserviceCall();
+		call.setTenantId(1L);
+		call.setUserId(1L);
+		call.setEvent("event.webservice.call");
+		call.setComment("call " + index);
+		return call;
+	}
+}
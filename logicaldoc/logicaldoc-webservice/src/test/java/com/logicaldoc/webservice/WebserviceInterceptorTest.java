@@ -0,0 +1,114 @@
+package com.logicaldoc.webservice;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.message.MessageImpl;
+import org.junit.Test;
+
+import com.logicaldoc.core.security.Session;
+import com.logicaldoc.core.security.SessionManager;
+
+import junit.framework.Assert;
+
+/**
+ * Test case for the session and payload lookups of
+ * {@link WebserviceInterceptor}
+ *
+ * @author Marco Meschieri - LogicalDOC
+ * @since 8.7.3
+ */
+public class WebserviceInterceptorTest extends AbstractWebserviceTestCase {
+
+	@Test
+	public void testGetSessionId() {
+		Message message = new MessageImpl();
+		message.put(Message.QUERY_STRING, "a=b&sid=query-sid");
+		Assert.assertEquals("query-sid", WebserviceInterceptor.getSessionId(message));
+
+		Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+		headers.put("SID", Collections.singletonList("header-sid"));
+		message = new MessageImpl();
+		message.put(Message.PROTOCOL_HEADERS, headers);
+		Assert.assertEquals("header-sid", WebserviceInterceptor.getSessionId(message));
+
+		// No request to inspect
+		Assert.assertNull(WebserviceInterceptor.getSessionId(new MessageImpl()));
+	}
+
+	@Test
+	public void testGetSession() {
+		SessionManager sm = SessionManager.get();
+		sm.clear();
+		Session session = sm.newSession("admin", "admin", null);
+		Session stale = sm.newSession("admin", "admin", null);
+		sm.kill(stale.getSid());
+
+		// The stale session in the request is skipped in favour of the payload
+		Message message = new MessageImpl();
+		message.put(Message.QUERY_STRING, "sid=" + stale.getSid());
+		Assert.assertEquals(session, WebserviceInterceptor.getSession(message,
+				"<soap:Envelope><sid>" + session.getSid() + "</sid></soap:Envelope>"));
+
+		// No session in the payload
+		Assert.assertNull(WebserviceInterceptor.getSession(message, "<soap:Envelope></soap:Envelope>"));
+
+		// The open session in the request wins
+		message.put(Message.QUERY_STRING, "sid=" + session.getSid());
+		Assert.assertEquals(session, WebserviceInterceptor.getSession(message, null));
+	}
+
+	@Test
+	public void testPeek() throws IOException {
+		byte[] content = new byte[WebserviceInterceptor.PEEK_SIZE * 3];
+		Arrays.fill(content, (byte) 'a');
+		byte[] sid = "<sid>abc</sid>".getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(sid, 0, content, 0, sid.length);
+
+		Message message = newMessage("text/xml", content);
+		String payload = WebserviceInterceptor.getPayload(message);
+		Assert.assertEquals(WebserviceInterceptor.PEEK_SIZE, payload.length());
+		Assert.assertTrue(payload.startsWith("<sid>abc</sid>"));
+
+		// The whole content can still be read
+		Assert.assertTrue(Arrays.equals(content, IOUtils.toByteArray(message.getContent(InputStream.class))));
+	}
+
+	@Test
+	public void testPeekBinary() throws IOException {
+		byte[] content = "binary".getBytes(StandardCharsets.UTF_8);
+		Message message = newMessage("application/octet-stream", content);
+		Assert.assertNull(WebserviceInterceptor.getPayload(message));
+		Assert.assertTrue(Arrays.equals(content, IOUtils.toByteArray(message.getContent(InputStream.class))));
+	}
+
+	@Test
+	public void testPeekMultipart() throws IOException {
+		String envelope = "<soap:Envelope><sid>abc</sid></soap:Envelope>";
+		String body = "--xyz\r\nContent-Type: application/xop+xml; type=\"text/xml\"\r\n\r\n" + envelope
+				+ "\r\n--xyz\r\nContent-Type: application/octet-stream\r\n\r\nBINARY-CONTENT\r\n--xyz--";
+		byte[] content = body.getBytes(StandardCharsets.UTF_8);
+
+		Message message = newMessage("multipart/related; boundary=\"xyz\"", content);
+		String payload = WebserviceInterceptor.getPayload(message);
+		Assert.assertTrue(payload.contains(envelope));
+		Assert.assertFalse(payload.contains("BINARY-CONTENT"));
+		Assert.assertTrue(Arrays.equals(content, IOUtils.toByteArray(message.getContent(InputStream.class))));
+	}
+
+	private static Message newMessage(String contentType, byte[] content) {
+		Message message = new MessageImpl();
+		message.put(Message.CONTENT_TYPE, contentType);
+		message.setContent(InputStream.class, new ByteArrayInputStream(content));
+		return message;
+	}
+}